@@ -6,18 +6,21 @@ package freenet.client;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 import com.db4o.ObjectContainer;
-import com.onionnetworks.fec.FECCode;
-import com.onionnetworks.fec.Native8Code;
-import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
 
 /**
  * FEC (forward error correction) handler.
@@ -28,11 +31,19 @@ import freenet.support.io.Closer;
  */
 public abstract class FECCodec {
 
-	// REDFLAG: Optimal stripe size? Smaller => less memory usage, but more JNI overhead
-
-	private static int STRIPE_SIZE = 4096;
+	/** Process up to this much of each block at a time. Whole CHK blocks, so each block is read in one go. */
+	private static final int STRIPE_SIZE = 32768;
+	/** Process at least this much of each block at a time, however many blocks there are */
+	private static final int MIN_STRIPE_SIZE = 4096;
+	/** Use smaller stripes if a stripe of every block would take more than this */
+	private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+	/** Don't split a stripe into pieces smaller than this */
+	private static final int MIN_SPLIT_SIZE = 2048;
+	/** Stripe buffers are big, so we keep a few, but the garbage collector can have them back. */
+	private static final int MAX_POOLED_BYTES = 4 * MAX_BUFFER_SIZE;
+	private static final ArrayList<SoftReference<byte[]>> bufferPool = new ArrayList<SoftReference<byte[]>>();
 	static boolean logMINOR;
-	protected transient FECCode fec;
+	protected transient VandermondeFECCode fec;
 	protected final int k, n;
 
 	protected abstract void loadFEC();
@@ -114,6 +125,15 @@ public abstract class FECCodec {
 	public abstract int countCheckBlocks();
 
 	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf) throws IOException {
+		realDecode(dataBlockStatus, checkBlockStatus, blockLength, bf, null, 1);
+	}
+
+	/**
+	 * Do the actual decode.
+	 * @param executor If not null, used to split each stripe between threads.
+	 * @param threads The number of threads to use, including the caller's.
+	 */
+	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf, Executor executor, int threads) throws IOException {
 		loadFEC();
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		if(logMINOR)
@@ -122,26 +142,20 @@ public abstract class FECCodec {
 			throw new IllegalArgumentException();
 		if(dataBlockStatus.length != k)
 			throw new IllegalArgumentException();
-		Buffer[] packets = new Buffer[k];
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[n];
 		OutputStream[] writers = new OutputStream[k];
 		int numberToDecode = 0; // can be less than n-k
+		byte[] realBuffer = null;
 
 		try {
 
-			byte[] realBuffer = new byte[k * STRIPE_SIZE];
-
 			int[] packetIndexes = new int[k];
 			for(int i = 0; i < packetIndexes.length; i++)
 				packetIndexes[i] = -1;
 
 			int idx = 0;
 
-			for(int i = 0; i < k; i++)
-				packets[i] = new Buffer(realBuffer, i * STRIPE_SIZE,
-					STRIPE_SIZE);
-
 			// Shortcut.
 			// Due to the not-fetching-last-block code, we need to check here,
 			// rather than relying on numberToDecode (since the last data block won't be part of numberToDecode).
@@ -196,34 +210,30 @@ public abstract class FECCodec {
 				for(int i = 0; i < packetIndexes.length; i++)
 					Logger.minor(this, "[" + i + "] = " + packetIndexes[i]);
 
-			if(numberToDecode > 0)
+			if(numberToDecode > 0) {
+				int[] toDecode = new int[numberToDecode];
+				int x = 0;
+				for(int i = 0; i < k; i++)
+					if(writers[i] != null)
+						toDecode[x++] = i;
+				byte[][] matrix = fec.interpolate(packetIndexes, toDecode);
+				// The known blocks go in the first k slots, the decoded blocks after them.
+				int stripeSize = stripeSize(k + numberToDecode, blockLength);
+				realBuffer = getBuffer((k + numberToDecode) * stripeSize);
+				int[] inSlots = slots(0, k);
+				int[] outSlots = slots(k, numberToDecode);
 				// Do the (striped) decode
-				
-				if(fec instanceof Native8Code) {
-					System.out.println("Decoding with native code, n = "+n+" k = "+k);
-					System.out.flush();
-				}
-				
-				for(int offset = 0; offset < blockLength; offset += STRIPE_SIZE) {
+				for(int offset = 0; offset < blockLength; offset += stripeSize) {
+					int length = Math.min(stripeSize, blockLength - offset);
 					// Read the data in first
-					for(int i = 0; i < k; i++) {
-						int x = packetIndexes[i];
-						readers[x].readFully(realBuffer, i * STRIPE_SIZE,
-							STRIPE_SIZE);
-					}
-					// Do the decode
-					// Not shuffled
-					int[] disposableIndexes = new int[packetIndexes.length];
-					System.arraycopy(packetIndexes, 0, disposableIndexes, 0,
-						packetIndexes.length);
-					fec.decode(packets, disposableIndexes);
-					// packets now contains an array of decoded blocks, in order
-					// Write the data out
 					for(int i = 0; i < k; i++)
-						if(writers[i] != null)
-							writers[i].write(realBuffer, i * STRIPE_SIZE,
-								STRIPE_SIZE);
+						readers[packetIndexes[i]].readFully(realBuffer, i * stripeSize, length);
+					multiply(matrix, realBuffer, inSlots, outSlots, stripeSize, length, executor, threads);
+					// Write the data out
+					for(int i = 0; i < numberToDecode; i++)
+						writers[toDecode[i]].write(realBuffer, (k + i) * stripeSize, length);
 				}
+			}
 
 		}
 		finally {
@@ -231,6 +241,8 @@ public abstract class FECCodec {
 				Closer.close(writers[i]);
 			for(int i = 0; i < n; i++)
 				Closer.close(readers[i]);
+			if(realBuffer != null)
+				returnBuffer(realBuffer);
 		}
 		// Set new buckets only after have a successful decode.
 		// Note that the last data bucket will be overwritten padded.
@@ -242,47 +254,39 @@ public abstract class FECCodec {
 		}
 	}
 
+	protected void realEncode(Bucket[] dataBlockStatus,
+		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf)
+		throws IOException {
+		realEncode(dataBlockStatus, checkBlockStatus, blockLength, bf, null, 1);
+	}
+
 	/**
 	 * Do the actual encode.
+	 * @param executor If not null, used to split each stripe between threads.
+	 * @param threads The number of threads to use, including the caller's.
 	 */
 	protected void realEncode(Bucket[] dataBlockStatus,
-		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf)
+		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf, Executor executor, int threads)
 		throws IOException {
 		if(bf == null) throw new NullPointerException();
 		loadFEC();
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
-		//		Runtime.getRuntime().gc();
-//		Runtime.getRuntime().runFinalization();
-//		Runtime.getRuntime().gc();
-//		Runtime.getRuntime().runFinalization();
-		long memUsedAtStart = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 		if(logMINOR) {
-			Logger.minor(this, "Memory in use at start: " + memUsedAtStart + " max=" + Runtime.getRuntime().maxMemory());
 			Logger.minor(this, "Doing encode: " + dataBlockStatus.length + " data blocks, " + checkBlockStatus.length + " check blocks, block length " + blockLength + " with " + this);
 		}
 		if((dataBlockStatus.length + checkBlockStatus.length != n) ||
 			(dataBlockStatus.length != k))
 			throw new IllegalArgumentException("Data blocks: " + dataBlockStatus.length + ", Check blocks: " + checkBlockStatus.length + ", n: " + n + ", k: " + k);
-		Buffer[] dataPackets = new Buffer[k];
-		Buffer[] checkPackets = new Buffer[n - k];
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[k];
 		OutputStream[] writers = new OutputStream[n - k];
+		byte[] realBuffer = null;
 		
 		try {
 
 			int[] toEncode = new int[n - k];
 			int numberToEncode = 0; // can be less than n-k
 
-			byte[] realBuffer = new byte[n * STRIPE_SIZE];
-
-			for(int i = 0; i < k; i++)
-				dataPackets[i] = new Buffer(realBuffer, i * STRIPE_SIZE,
-					STRIPE_SIZE);
-			for(int i = 0; i < n - k; i++)
-				checkPackets[i] = new Buffer(realBuffer, (i + k) * STRIPE_SIZE,
-					STRIPE_SIZE);
-
 			for(int i = 0; i < dataBlockStatus.length; i++) {
 				buckets[i] = dataBlockStatus[i];
 				if(buckets[i] == null)
@@ -309,58 +313,31 @@ public abstract class FECCodec {
 			if(logMINOR)
 				Logger.minor(this, "Created "+created+" check buckets");
 
-			//			Runtime.getRuntime().gc();
-//			Runtime.getRuntime().runFinalization();
-//			Runtime.getRuntime().gc();
-//			Runtime.getRuntime().runFinalization();
-			long memUsedBeforeEncodes = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-			if(logMINOR)
-				Logger.minor(this, "Memory in use before encodes: " + memUsedBeforeEncodes);
-
-			if(fec instanceof Native8Code) {
-				System.out.println("Encoding with native code, n = "+n+" k = "+k);
-				System.out.flush();
-			}
-			
-			if(numberToEncode > 0)
+			if(numberToEncode > 0) {
+				int[] checkBlocks = new int[numberToEncode];
+				System.arraycopy(toEncode, 0, checkBlocks, 0, numberToEncode);
+				byte[][] matrix = fec.encodeMatrix(checkBlocks);
+				// The data blocks go in the first k slots, the check blocks after them.
+				int stripeSize = stripeSize(k + numberToEncode, blockLength);
+				realBuffer = getBuffer((k + numberToEncode) * stripeSize);
+				int[] inSlots = slots(0, k);
+				int[] outSlots = slots(k, numberToEncode);
 				// Do the (striped) encode
-
-				for(int offset = 0; offset < blockLength; offset += STRIPE_SIZE) {
-					long memUsedBeforeRead = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-					if(logMINOR)
-						Logger.minor(this, "Memory in use before read: " + memUsedBeforeRead);
+				for(int offset = 0; offset < blockLength; offset += stripeSize) {
+					int length = Math.min(stripeSize, blockLength - offset);
 					// Read the data in first
 					for(int i = 0; i < k; i++)
-						readers[i].readFully(realBuffer, i * STRIPE_SIZE,
-							STRIPE_SIZE);
-					// Do the encode
-					// Not shuffled
+						readers[i].readFully(realBuffer, i * stripeSize, length);
 					long startTime = System.currentTimeMillis();
-					//					Runtime.getRuntime().gc();
-//					Runtime.getRuntime().runFinalization();
-//					Runtime.getRuntime().gc();
-//					Runtime.getRuntime().runFinalization();
-					long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-					if(logMINOR)
-						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
-					fec.encode(dataPackets, checkPackets, toEncode);
-					//					Runtime.getRuntime().gc();
-//					Runtime.getRuntime().runFinalization();
-//					Runtime.getRuntime().gc();
-//					Runtime.getRuntime().runFinalization();
-					long memUsedAfterStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-					if(logMINOR)
-						Logger.minor(this, "Memory in use after stripe: " + memUsedAfterStripe);
+					multiply(matrix, realBuffer, inSlots, outSlots, stripeSize, length, executor, threads);
 					long endTime = System.currentTimeMillis();
 					if(logMINOR)
-						Logger.minor(this, "Stripe encode took " + (endTime - startTime) + "ms for k=" + k + ", n=" + n + ", stripeSize=" + STRIPE_SIZE);
-					// packets now contains an array of decoded blocks, in order
+						Logger.minor(this, "Stripe encode took " + (endTime - startTime) + "ms for k=" + k + ", n=" + n + ", stripeSize=" + stripeSize);
 					// Write the data out
-					for(int i = k; i < n; i++)
-						if(writers[i - k] != null)
-							writers[i - k].write(realBuffer, i * STRIPE_SIZE,
-								STRIPE_SIZE);
+					for(int i = 0; i < numberToEncode; i++)
+						writers[checkBlocks[i] - k].write(realBuffer, (k + i) * stripeSize, length);
 				}
+			}
 
 		}
 		finally {
@@ -368,6 +345,8 @@ public abstract class FECCodec {
 				Closer.close(readers[i]);
 			for(int i = 0; i < n - k; i++)
 				Closer.close(writers[i]);
+			if(realBuffer != null)
+				returnBuffer(realBuffer);
 		}
 		// Set new buckets only after have a successful decode.
 		for(int i = 0; i < checkBlockStatus.length; i++) {
@@ -378,6 +357,115 @@ public abstract class FECCodec {
 		}
 	}
 
+	private static int[] slots(int start, int count) {
+		int[] slots = new int[count];
+		for(int i = 0; i < count; i++)
+			slots[i] = start + i;
+		return slots;
+	}
+
+	/**
+	 * Compute a stripe, splitting it between threads if we have been given some.
+	 */
+	private void multiply(final byte[][] matrix, final byte[] buf, final int[] inSlots, final int[] outSlots, final int slotSize, int length, Executor executor, int threads) throws IOException {
+		int parts = Math.min(threads, length / MIN_SPLIT_SIZE);
+		if(executor == null || parts <= 1) {
+			VandermondeFECCode.multiply(matrix, buf, inSlots, outSlots, slotSize, 0, length);
+			return;
+		}
+		final int partSize = (length + parts - 1) / parts;
+		final CountDownLatch done = new CountDownLatch(parts - 1);
+		final Throwable[] failed = new Throwable[1];
+		for(int p = 1; p < parts; p++) {
+			final int from = p * partSize;
+			final int to = Math.min(length, from + partSize);
+			executor.execute(new PrioRunnable() {
+
+				public void run() {
+					try {
+						VandermondeFECCode.multiply(matrix, buf, inSlots, outSlots, slotSize, from, to);
+					} catch (Throwable t) {
+						synchronized(failed) {
+							failed[0] = t;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+
+				public int getPriority() {
+					return NativeThread.LOW_PRIORITY;
+				}
+
+			}, "FEC helper for "+this);
+		}
+		VandermondeFECCode.multiply(matrix, buf, inSlots, outSlots, slotSize, 0, Math.min(length, partSize));
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		synchronized(failed) {
+			if(failed[0] != null) {
+				IOException e = new IOException("FEC helper thread failed: "+failed[0]);
+				e.initCause(failed[0]);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return How much of each block to process at a time, so that a stripe of all of them fits
+	 * in MAX_BUFFER_SIZE where possible. Large segments get small stripes as they used to.
+	 */
+	static int stripeSize(int blocks, int blockLength) {
+		int size = Math.min(STRIPE_SIZE, MAX_BUFFER_SIZE / blocks);
+		size = Math.max(MIN_STRIPE_SIZE, size & ~(MIN_STRIPE_SIZE - 1));
+		return Math.min(blockLength, size);
+	}
+
+	/**
+	 * Get a stripe buffer of at least the given size, from the pool if possible.
+	 */
+	private static byte[] getBuffer(int size) {
+		synchronized(bufferPool) {
+			for(int i = 0; i < bufferPool.size(); i++) {
+				byte[] buf = bufferPool.get(i).get();
+				if(buf == null) {
+					bufferPool.remove(i--);
+					continue;
+				}
+				if(buf.length >= size && buf.length <= size * 2) {
+					bufferPool.remove(i);
+					return buf;
+				}
+			}
+		}
+		return new byte[size];
+	}
+
+	private static void returnBuffer(byte[] buf) {
+		if(buf.length > MAX_POOLED_BYTES) return;
+		synchronized(bufferPool) {
+			bufferPool.add(new SoftReference<byte[]>(buf));
+			// Keep the newest buffers which fit, drop the rest.
+			long total = 0;
+			for(int i = bufferPool.size() - 1; i >= 0; i--) {
+				byte[] b = bufferPool.get(i).get();
+				if(b == null || total + b.length > MAX_POOLED_BYTES)
+					bufferPool.remove(i);
+				else
+					total += b.length;
+			}
+		}
+	}
+
 	/**
 	 * The method used to submit {@link FECJob}s to the pool
 	 * 
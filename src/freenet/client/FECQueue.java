@@ -199,6 +199,9 @@ public class FECQueue implements OOMHook {
 				while(true) {
 					try {
 					final FECJob job;
+					// Threads we are allowed but aren't using, to split the job up. They count as
+					// running FEC threads until the job is done, so we stay within the limit.
+					final int helpers;
 					// Get a job
 					synchronized (FECQueue.this) {
 						job = getFECJobBlockingNoDBAccess();
@@ -207,27 +210,40 @@ public class FECQueue implements OOMHook {
 							return;
 						}
 						job.running = true;
+						// If other jobs are waiting, the spare threads should run those instead.
+						helpers = isQueueEmpty() ? Math.max(0, getMaxRunningFECThreads() - runningFECThreads) : 0;
+						runningFECThreads += helpers;
 					}
+					int threads = helpers + 1;
 
 					if(Logger.shouldLog(LogLevel.MINOR, this))
 						Logger.minor(this, "Running job "+job);
 					// Encode it
 					try {
-						if (job.isADecodingJob)
-							job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
-							        job.bucketFactory);
-						else {
-							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory);
-							// Update SplitFileBlocks from buckets if necessary
-							if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
-								for (int i = 0; i < job.dataBlocks.length; i++)
-									job.dataBlockStatus[i].setData(job.dataBlocks[i]);
-								for (int i = 0; i < job.checkBlocks.length; i++)
-									job.checkBlockStatus[i].setData(job.checkBlocks[i]);
+						try {
+							if (job.isADecodingJob)
+								job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
+								        job.bucketFactory, executor, threads);
+							else {
+								job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory, executor, threads);
+								// Update SplitFileBlocks from buckets if necessary
+								if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
+									for (int i = 0; i < job.dataBlocks.length; i++)
+										job.dataBlockStatus[i].setData(job.dataBlocks[i]);
+									for (int i = 0; i < job.checkBlocks.length; i++)
+										job.checkBlockStatus[i].setData(job.checkBlocks[i]);
+								}
+							}
+						} catch (IOException e) {
+							Logger.error(this, "BOH! ioe:" + e.getMessage(), e);
+						}
+					} finally {
+						if(helpers > 0) {
+							synchronized(FECQueue.this) {
+								runningFECThreads -= helpers;
+								FECQueue.this.notifyAll();
 							}
 						}
-					} catch (IOException e) {
-						Logger.error(this, "BOH! ioe:" + e.getMessage(), e);
 					}
 
 					// Call the callback
@@ -452,6 +468,15 @@ public class FECQueue implements OOMHook {
 		return maxRunningFECThreads;
 	}
 
+	/** Caller must hold the lock. */
+	private boolean isQueueEmpty() {
+		for(int i=0;i<priorities;i++) {
+			if(!transientQueue[i].isEmpty()) return false;
+			if(!persistentQueueCache[i].isEmpty()) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Find a FEC job to run.
 	 * @return null only if there are too many FEC threads running.
@@ -3,15 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
-import com.onionnetworks.fec.FECCode;
-import com.onionnetworks.fec.PureCode;
-
 import freenet.support.LRUHashtable;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
 /**
- * FECCodec implementation using the onion code.
+ * FECCodec implementation of the onion code.
  */
 public class StandardOnionFECCodec extends FECCodec {
 	// REDFLAG: How big is one of these?
@@ -76,48 +73,17 @@ public class StandardOnionFECCodec extends FECCodec {
 		synchronized(this) {
 			if(fec != null) return;
 		}
-		FECCode fec2 = null;
 		if(k >= n) throw new IllegalArgumentException("n must be >k: n = "+n+" k = "+k);
 		if(k > 256 || n > 256) Logger.error(this, "Wierd FEC parameters? k = "+k+" n = "+n);
-		// native code segfaults if k < 256 and n > 256
-		// native code segfaults if n > k*2 i.e. if we have extra blocks beyond 100% redundancy
 		// FIXME: NATIVE FEC DISABLED PENDING FIXING THE SEGFAULT BUG (easily reproduced with check blocks > data blocks)
 		// AND A COMPETENT CODE REVIEW!!!
 		// SEGFAULT BUGS ARE USUALLY REMOTELY EXPLOITABLE!!!
-//		if((!noNative) && k <= 256 && n <= 256 && n <= k*2) { 
-//			System.out.println("Creating native FEC: n="+n+" k="+k);
-//			System.out.flush();
-//			try {
-//				fec2 = new Native8Code(k,n);
-//				Logger.minor(this, "Loaded native FEC.");
-//
-//			} catch (Throwable t) {
-//				if(!noNative) {
-//					System.err.println("Failed to load native FEC: "+t);
-//					t.printStackTrace();
-//				}
-//				Logger.error(this, "Failed to load native FEC: "+t+" (k="+k+" n="+n+ ')', t);
-//
-//				if(t instanceof UnsatisfiedLinkError)
-//					noNative = true;
-//			}
-//		} // FIXME 16-bit native FEC???
-
-		if (fec2 != null){
-			synchronized(this) {
-			fec = fec2;
-			}
-		} else 	{
-			fec2 = new PureCode(k,n);
-			synchronized(this) {
+		// The pure Java code produces the same check blocks as the onion code (native or not).
+		VandermondeFECCode fec2 = new VandermondeFECCode(k, n);
+		synchronized(this) {
+			if(fec == null)
 				fec = fec2;
-			}
 		}
-
-		// revert to below if above causes JVM crashes
-		// Worst performance, but decode crashes
-		// fec = new PureCode(k,n);
-		// Crashes are caused by bugs which cause to use 320/128 etc. - n > 256, k < 256.
 	}
 
 	@Override
@@ -0,0 +1,202 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+/**
+ * Pure Java Vandermonde (Reed-Solomon) erasure code over GF(2^8), producing the same check
+ * blocks as Luigi Rizzo's code, which onion's PureCode and Native8Code implement.
+ *
+ * Packet i is the value at point x_i of the polynomial of degree less than k whose values at
+ * x_0 ... x_{k-1} are the data blocks, where x_0 = 0 and x_i = alpha^(i-1). So both encoding and
+ * decoding are Lagrange interpolation: each output block is a linear combination of k known
+ * blocks, with coefficients worked out once per segment. The combinations are done with a
+ * multiplication table, a byte at a time, on whatever range of the blocks the caller wants, so a
+ * stripe can be split between threads.
+ */
+public class VandermondeFECCode {
+
+	/** x^8 + x^4 + x^3 + x^2 + 1 */
+	private static final int POLYNOMIAL = 0x11d;
+	private static final int[] EXP = new int[510];
+	private static final int[] LOG = new int[256];
+	/** MUL[a][b] = a * b in GF(2^8) */
+	private static final byte[][] MUL = new byte[256][256];
+	/** Work on this much of each block at a time, so the inputs stay in the cache. */
+	private static final int CHUNK_SIZE = 2048;
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256) x ^= POLYNOMIAL;
+		}
+		for(int i = 255; i < EXP.length; i++)
+			EXP[i] = EXP[i - 255];
+		for(int a = 1; a < 256; a++)
+			for(int b = 1; b < 256; b++)
+				MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+	}
+
+	private final int k, n;
+	/** Coefficients of the check blocks, one row of k for each of them. Created on demand. */
+	private byte[][] encodeMatrix;
+
+	/**
+	 * @param k Number of data blocks.
+	 * @param n Total number of blocks, data plus check blocks.
+	 */
+	public VandermondeFECCode(int k, int n) {
+		if(k < 1 || n <= k || n > 256)
+			throw new IllegalArgumentException("Invalid: k="+k+" n="+n);
+		this.k = k;
+		this.n = n;
+	}
+
+	static int mul(int a, int b) {
+		return MUL[a][b] & 0xFF;
+	}
+
+	private static int inverse(int a) {
+		if(a == 0) throw new ArithmeticException("Division by zero");
+		return EXP[255 - LOG[a]];
+	}
+
+	/** @return The point of the polynomial which block i is the value at. */
+	private static int point(int i) {
+		return i == 0 ? 0 : EXP[i - 1];
+	}
+
+	/**
+	 * Compute the coefficients for some blocks from k known blocks.
+	 * @param known The indexes of the k known blocks.
+	 * @param wanted The indexes of the blocks to compute.
+	 * @return For each wanted block, k coefficients, one for each known block.
+	 */
+	byte[][] interpolate(int[] known, int[] wanted) {
+		if(known.length != k)
+			throw new IllegalArgumentException("Need "+k+" blocks, got "+known.length);
+		int[] x = new int[k];
+		for(int s = 0; s < k; s++) {
+			if(known[s] < 0 || known[s] >= n)
+				throw new IllegalArgumentException("Invalid block index "+known[s]);
+			x[s] = point(known[s]);
+		}
+		// Barycentric weights: w_s = 1 / prod(x_s - x_t), t != s
+		int[] w = new int[k];
+		for(int s = 0; s < k; s++) {
+			int d = 1;
+			for(int t = 0; t < k; t++) {
+				if(t == s) continue;
+				int diff = x[s] ^ x[t];
+				if(diff == 0) throw new IllegalArgumentException("Block "+known[s]+" given twice");
+				d = mul(d, diff);
+			}
+			w[s] = inverse(d);
+		}
+		byte[][] matrix = new byte[wanted.length][k];
+		for(int r = 0; r < wanted.length; r++) {
+			byte[] row = matrix[r];
+			int target = point(wanted[r]);
+			int same = -1;
+			for(int s = 0; s < k; s++) {
+				if(x[s] == target) {
+					same = s;
+					break;
+				}
+			}
+			if(same != -1) {
+				// Already known, just copy it.
+				row[same] = 1;
+				continue;
+			}
+			// L_s(target) = prod(target - x_t) * w_s / (target - x_s)
+			int l = 1;
+			for(int s = 0; s < k; s++)
+				l = mul(l, target ^ x[s]);
+			for(int s = 0; s < k; s++)
+				row[s] = (byte) mul(mul(l, w[s]), inverse(target ^ x[s]));
+		}
+		return matrix;
+	}
+
+	/**
+	 * @return The coefficients of the given check blocks, indexed from k, in terms of the data
+	 * blocks. Do not modify.
+	 */
+	byte[][] encodeMatrix(int[] checkBlocks) {
+		byte[][] all;
+		synchronized(this) {
+			if(encodeMatrix == null) {
+				int[] data = new int[k];
+				for(int i = 0; i < k; i++)
+					data[i] = i;
+				int[] check = new int[n - k];
+				for(int i = 0; i < n - k; i++)
+					check[i] = i + k;
+				encodeMatrix = interpolate(data, check);
+			}
+			all = encodeMatrix;
+		}
+		byte[][] matrix = new byte[checkBlocks.length][];
+		for(int i = 0; i < checkBlocks.length; i++) {
+			if(checkBlocks[i] < k || checkBlocks[i] >= n)
+				throw new IllegalArgumentException("Not a check block: "+checkBlocks[i]);
+			matrix[i] = all[checkBlocks[i] - k];
+		}
+		return matrix;
+	}
+
+	/**
+	 * Compute output blocks from input blocks, all stored in slots of the same buffer, but only
+	 * for the bytes between from and to within each block. The output slots must not overlap the
+	 * input slots.
+	 * @param matrix One row of coefficients for each output, one coefficient for each input.
+	 */
+	static void multiply(byte[][] matrix, byte[] buf, int[] inSlots, int[] outSlots, int slotSize, int from, int to) {
+		for(int start = from; start < to; start += CHUNK_SIZE) {
+			int len = Math.min(CHUNK_SIZE, to - start);
+			for(int r = 0; r < outSlots.length; r++) {
+				byte[] row = matrix[r];
+				int out = outSlots[r] * slotSize + start;
+				for(int i = out; i < out + len; i++)
+					buf[i] = 0;
+				for(int s = 0; s < inSlots.length; s++)
+					addMul(buf, out, buf, inSlots[s] * slotSize + start, row[s] & 0xFF, len);
+			}
+		}
+	}
+
+	/** dst += c * src */
+	static void addMul(byte[] dst, int dstOff, byte[] src, int srcOff, int c, int len) {
+		if(c == 0) return;
+		int end = srcOff + len;
+		int s = srcOff;
+		int d = dstOff;
+		if(c == 1) {
+			for(; s < end; s++, d++)
+				dst[d] ^= src[s];
+			return;
+		}
+		byte[] m = MUL[c];
+		for(; s + 8 <= end; s += 8, d += 8) {
+			dst[d] ^= m[src[s] & 0xFF];
+			dst[d + 1] ^= m[src[s + 1] & 0xFF];
+			dst[d + 2] ^= m[src[s + 2] & 0xFF];
+			dst[d + 3] ^= m[src[s + 3] & 0xFF];
+			dst[d + 4] ^= m[src[s + 4] & 0xFF];
+			dst[d + 5] ^= m[src[s + 5] & 0xFF];
+			dst[d + 6] ^= m[src[s + 6] & 0xFF];
+			dst[d + 7] ^= m[src[s + 7] & 0xFF];
+		}
+		for(; s < end; s++, d++)
+			dst[d] ^= m[src[s] & 0xFF];
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":k="+k+",n="+n;
+	}
+}
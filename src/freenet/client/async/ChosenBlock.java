@@ -2,6 +2,7 @@ package freenet.client.async;
 
 import freenet.keys.ClientKey;
 import freenet.keys.Key;
+import freenet.node.AsyncSendableRequestSender;
 import freenet.node.LowLevelGetException;
 import freenet.node.LowLevelPutException;
 import freenet.node.NodeClientCore;
@@ -63,6 +64,22 @@ public abstract class ChosenBlock {
 		ClientContext context = sched.getContext();
 		return getSender(context).send(core, sched, context, this);
 	}
+
+	/** @return True if the request can be started with sendAsync(). */
+	public boolean canSendAsync(ClientContext context) {
+		return getSender(context) instanceof AsyncSendableRequestSender;
+	}
+
+	/**
+	 * Start the request without waiting for it to finish. Only valid if canSendAsync().
+	 * @param onFinished Run exactly once, when the request has finished, or straight away if
+	 * nothing was sent.
+	 * @return True if a request was sent.
+	 */
+	public boolean sendAsync(NodeClientCore core, RequestScheduler sched, Runnable onFinished) {
+		ClientContext context = sched.getContext();
+		return ((AsyncSendableRequestSender) getSender(context)).sendAsync(core, sched, context, this, onFinished);
+	}
 	
 	public abstract SendableRequestSender getSender(ClientContext context);
 	
@@ -5,7 +5,6 @@ package freenet.client.async;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 import com.db4o.ObjectContainer;
 
@@ -72,14 +71,14 @@ abstract class ClientRequestSchedulerBase {
 	protected final SortedVectorByNumber[] priorities;
 	protected transient ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. */
-	protected transient ArrayList<KeyListener> keyListeners;
+	protected transient KeyListenerIndex keyListeners;
 
 	abstract boolean persistent();
 	
 	protected ClientRequestSchedulerBase(boolean forInserts, boolean forSSKs, RandomSource random) {
 		this.isInsertScheduler = forInserts;
 		this.isSSKScheduler = forSSKs;
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new KeyListenerIndex();
 		priorities = new SortedVectorByNumber[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 		globalSalt = new byte[32];
 		random.nextBytes(globalSalt);
@@ -231,9 +230,8 @@ abstract class ClientRequestSchedulerBase {
 		if(listener == null) throw new NullPointerException();
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
-			if(keyListeners.contains(listener))
+			if(!keyListeners.add(listener))
 				return;
-			keyListeners.add(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
@@ -243,8 +241,6 @@ abstract class ClientRequestSchedulerBase {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
-			while(logMINOR && keyListeners.remove(listener))
-				Logger.error(this, "Still in pending keys after removal, must be in twice or more: "+listener, new Exception("error"));
 			listener.onRemove();
 		}
 		if (logMINOR)
@@ -253,34 +249,21 @@ abstract class ClientRequestSchedulerBase {
 	}
 	
 	public synchronized boolean removePendingKeys(HasKeyListener hasListener) {
-		boolean found = false;
-		for(Iterator<KeyListener> i = keyListeners.iterator();i.hasNext();) {
-			KeyListener listener = i.next();
-			if(listener == null) {
-				i.remove();
-				Logger.error(this, "Null KeyListener in removePendingKeys()");
-				continue;
-			}
-			if(listener.getHasKeyListener() == hasListener) {
-				found = true;
-				i.remove();
-				listener.onRemove();
-				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
-			}
+		ArrayList<KeyListener> removed = keyListeners.remove(hasListener);
+		if(removed == null) return false;
+		for(KeyListener listener : removed) {
+			listener.onRemove();
+			Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
 		}
-		return found;
+		return true;
 	}
 	
 	public short getKeyPrio(Key key, short priority, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = keyListeners.probablyWantKey(key, saltedKey);
 		}
 		if(matches == null) return priority;
 		for(KeyListener listener : matches) {
@@ -293,7 +276,7 @@ abstract class ClientRequestSchedulerBase {
 	
 	public synchronized long countWaitingKeys(ObjectContainer container) {
 		long count = 0;
-		for(KeyListener listener : keyListeners)
+		for(KeyListener listener : keyListeners.getAll())
 			count += listener.countKeys();
 		return count;
 	}
@@ -301,13 +284,9 @@ abstract class ClientRequestSchedulerBase {
 	public boolean anyWantKey(Key key, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = keyListeners.probablyWantKey(key, saltedKey);
 		}
 		if(matches != null) {
 			for(KeyListener listener : matches) {
@@ -321,11 +300,7 @@ abstract class ClientRequestSchedulerBase {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for(KeyListener listener : keyListeners) {
-			if(listener.probablyWantKey(key, saltedKey))
-				return true;
-		}
-		return false;
+		return keyListeners.anyProbablyWantKey(key, saltedKey);
 	}
 	
 	private long persistentTruePositives;
@@ -339,29 +314,24 @@ abstract class ClientRequestSchedulerBase {
 		}
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				if(matches.contains(listener)) {
-					Logger.error(this, "In matches twice, presumably in keyListeners twice?: "+listener);
-					continue;
-				}
-				matches.add(listener);
-			}
+			matches = keyListeners.probablyWantKey(key, saltedKey);
 		}
 		boolean ret = false;
 		if(matches != null) {
 			for(KeyListener listener : matches) {
-				if(listener.handleBlock(key, saltedKey, block, container, context))
+				boolean handled = listener.handleBlock(key, saltedKey, block, container, context);
+				if(handled)
 					ret = true;
-				if(listener.isEmpty()) {
-					synchronized(this) {
+				boolean empty = listener.isEmpty();
+				synchronized(this) {
+					keyListeners.onChecked(listener, handled);
+					if(empty)
 						keyListeners.remove(listener);
-					}
-					listener.onRemove();
 				}
+				if(empty)
+					listener.onRemove();
 			}
 		} else return false;
 		if(ret) {
@@ -412,6 +382,15 @@ abstract class ClientRequestSchedulerBase {
 		buf.append(persistentTruePositives);
 		buf.append(" negatives=");
 		buf.append(persistentNegatives);
+		buf.append(" listeners=");
+		buf.append(keyListeners.size());
+		long lookups = keyListeners.getLookups();
+		if(lookups > 0) {
+			buf.append(" probes/key=");
+			buf.append((double) keyListeners.getProbes() / lookups);
+			buf.append(' ');
+			buf.append(keyListeners.getStats());
+		}
 		buf.append(')');
 		if(percent > 10)
 			Logger.error(this, buf.toString());
@@ -426,8 +405,9 @@ abstract class ClientRequestSchedulerBase {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		synchronized(this) {
-		for(KeyListener listener : keyListeners) {
-			if(!listener.probablyWantKey(key, saltedKey)) continue;
+		ArrayList<KeyListener> matches = keyListeners.probablyWantKey(key, saltedKey);
+		if(matches == null) return null;
+		for(KeyListener listener : matches) {
 			SendableGet[] reqs = listener.getRequestsForKey(key, saltedKey, container, context);
 			if(reqs == null) continue;
 			if(list == null) list = new ArrayList<SendableGet>();
@@ -439,7 +419,7 @@ abstract class ClientRequestSchedulerBase {
 	}
 	
 	public void onStarted() {
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new KeyListenerIndex();
 	}
 	
 	@Override
@@ -390,12 +390,17 @@ public class DatastoreChecker implements PrioRunnable {
 			sched = getter.getScheduler(context);
 		}
 		boolean anyValid = false;
-		for(Key key : keys) {
+		// Look up all the keys at once, so the store can read them in disk order.
+		KeyBlock[] found = null;
+		if(blocks == null)
+			found = node.fetchBatch(keys, true, true, false, false);
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			KeyBlock block = null;
 			if(blocks != null)
 				block = blocks.get(key);
-			if(blocks == null)
-				block = node.fetch(key, true, true, false, false, null);
+			else
+				block = found[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
@@ -1,8 +1,6 @@
 package freenet.client.async;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -10,7 +8,6 @@ import com.db4o.query.Query;
 
 import freenet.client.InsertException;
 import freenet.crypt.HashResult;
-import freenet.crypt.MultiHashInputStream;
 import freenet.crypt.MultiHashOutputStream;
 import freenet.keys.CHKBlock;
 import freenet.keys.NodeCHK;
@@ -21,7 +18,8 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressJob;
-import freenet.support.compress.CompressionOutputSizeException;
+import freenet.support.compress.CompressionRace;
+import freenet.support.compress.RealCompressor;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketChainBucketFactory;
@@ -52,6 +50,12 @@ public class InsertCompressor implements CompressJob {
 	private transient boolean scheduled;
 	private static volatile boolean logMINOR;
 	private final long generateHashes;
+	/** Estimate how well each codec does on a few samples of the data, and only compress all of
+	 * it with those which might win. */
+	private static volatile boolean sampleCompression;
+	/** Run the codecs in parallel, if we have the cores and the memory for it. */
+	private static final boolean PARALLEL_COMPRESSION = 
+		Runtime.getRuntime().availableProcessors() > 1 && Runtime.getRuntime().maxMemory() >= 256 * 1024 * 1024;
 	
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
@@ -74,6 +78,14 @@ public class InsertCompressor implements CompressJob {
 		this.generateHashes = generateHashes;
 	}
 
+	public static void setSampleCompression(boolean sample) {
+		sampleCompression = sample;
+	}
+
+	public static boolean getSampleCompression() {
+		return sampleCompression;
+	}
+
 	public void init(ObjectContainer container, final ClientContext ctx) {
 		if(persistent) {
 			container.activate(inserter, 1);
@@ -115,7 +127,6 @@ public class InsertCompressor implements CompressJob {
 		long origSize = origData.size();
 		COMPRESSOR_TYPE bestCodec = null;
 		Bucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
 		
 		HashResult[] hashes = null;
 		
@@ -126,91 +137,24 @@ public class InsertCompressor implements CompressJob {
 		try {
 			BucketChainBucketFactory bucketFactory2 = new BucketChainBucketFactory(bucketFactory, NodeCHK.BLOCK_SIZE, persistent ? context.jobRunner : null, 1024);
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor);
-			boolean first = true;
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				Bucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					final int phase = comp.metadataID;
-					if(persistent) {
-						context.jobRunner.queue(new DBJob() {
-
-							public boolean run(ObjectContainer container, ClientContext context) {
-								if(!container.ext().isStored(inserter)) {
-									if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
-									return false;
-								}
-								if(container.ext().isActive(inserter))
-									Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
-								container.activate(inserter, 1);
-								inserter.onStartCompression(comp, container, context);
-								container.deactivate(inserter, 1);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1, false);
-					} else {
-						try {
-							inserter.onStartCompression(comp, null, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					InputStream is = origData.getInputStream();
-					result = bucketFactory2.makeBucket(-1);
-					OutputStream os = result.getOutputStream();
-					MultiHashInputStream hasher = null;
-					long maxOutputSize = bestCompressedDataSize;
-					if(first && generateHashes != 0) {
-						is = hasher = new MultiHashInputStream(is, generateHashes);
-						maxOutputSize = Long.MAX_VALUE; // Want to run it to the end anyway to get hashes. Fortunately the first hasher is always the fastest.
-					}
-					first = false;
-					comp.compress(is, os, origSize, maxOutputSize);
-					is.close();
-					os.close();
-					long resultSize = result.size();
-					if(hasher != null) hashes = hasher.getResults();
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" smaller then minSize "+minSize);
+			CompressionRace race = new CompressionRace(origData, bucketFactory2, minSize, generateHashes, new CompressionRace.Callback() {
 
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultSize < bestCompressedDataSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" better than old best "+bestCompressedDataSize);
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch(CompressionOutputSizeException e) {
-					continue;       // try next compressor type
-				} catch (DatabaseDisabledException e) {
-					Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
+				public void onStartCompression(COMPRESSOR_TYPE comp) {
+					startCompression(comp, context);
 				}
+				
+			});
+			if(sampleCompression)
+				comps = race.sample(comps);
+			// We hold a RealCompressor permit, the other compressors need one each.
+			race.run(comps, PARALLEL_COMPRESSION ? context.mainExecutor : null, RealCompressor.compressorSemaphore);
+			if(race.getData() != null) {
+				bestCompressedData = race.getData();
+				bestCodec = race.getCodec();
 			}
+			hashes = race.getHashes();
+			if(logMINOR)
+				Logger.minor(this, "Best codec "+bestCodec+" compressed "+origSize+" to "+bestCompressedData.size());
 			
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
 			
@@ -263,6 +207,38 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/** Tell the inserter, and so the client, that we have started compressing with a codec. */
+	private void startCompression(final COMPRESSOR_TYPE comp, ClientContext context) {
+		if(persistent) {
+			try {
+				context.jobRunner.queue(new DBJob() {
+
+					public boolean run(ObjectContainer container, ClientContext context) {
+						if(!container.ext().isStored(inserter)) {
+							if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
+							return false;
+						}
+						if(container.ext().isActive(inserter))
+							Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
+						container.activate(inserter, 1);
+						inserter.onStartCompression(comp, container, context);
+						container.deactivate(inserter, 1);
+						return false;
+					}
+
+				}, NativeThread.NORM_PRIORITY+1, false);
+			} catch (DatabaseDisabledException e) {
+				Logger.error(this, "Database disabled compressing data", new Exception("error"));
+			}
+		} else {
+			try {
+				inserter.onStartCompression(comp, null, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import freenet.keys.Key;
+import freenet.keys.NodeSSK;
+import freenet.support.BloomFilter;
+import freenet.support.ByteArrayWrapper;
+
+/**
+ * The KeyListener's registered on a ClientRequestSchedulerBase, indexed so that a key passing
+ * through the node doesn't have to be checked against every one of them:
+ * - Single key listeners are looked up by routing key.
+ * - USK fetchers are looked up by the public key hash of an SSK.
+ * - Splitfile listeners each have a bloom filter over the salted keys. We still check all of
+ * them, but the hashes of the salted key are only computed once rather than once per filter,
+ * which is most of the cost.
+ * - Anything else is checked one by one.
+ * Candidates are always confirmed with probablyWantKey(), so this only ever skips listeners
+ * which would have said no.
+ *
+ * The splitfile filters can't be combined: each is sized for its own splitfile, so a key's bits
+ * are in unrelated places in each of them, and about 3 in 4 of their bits are set, so any union
+ * of them would be nearly full. The persistent ones are loaded from disk without their keys, so
+ * they can't be rebuilt to a common size either. A probe costs about 70-200ns, see the benchmark
+ * in KeyListenerIndexTest.
+ *
+ * We count probes, true positives and false positives separately for each of these ways of
+ * finding a listener, see {@link #getStats()}.
+ *
+ * Not thread-safe, the scheduler synchronizes on itself.
+ */
+class KeyListenerIndex {
+
+	/** All the listeners, in the order they were added */
+	private final LinkedHashSet<KeyListener> all = new LinkedHashSet<KeyListener>();
+	private final Map<ByteArrayWrapper, ArrayList<KeyListener>> byRoutingKey = new HashMap<ByteArrayWrapper, ArrayList<KeyListener>>();
+	private final Map<ByteArrayWrapper, ArrayList<KeyListener>> byPubKeyHash = new HashMap<ByteArrayWrapper, ArrayList<KeyListener>>();
+	private final ArrayList<SplitFileFetcherKeyListener> splitfiles = new ArrayList<SplitFileFetcherKeyListener>();
+	private final ArrayList<KeyListener> others = new ArrayList<KeyListener>();
+
+	/** How a listener is found */
+	enum Phase {
+		ROUTING_KEY, PUBKEY_HASH, SPLITFILE, OTHER
+	}
+
+	/** Number of keys looked up */
+	private long lookups;
+	/** Number of calls to probablyWantKey() for those keys, by phase */
+	private final long[] probes = new long[Phase.values().length];
+	/** Number of candidates which did want the key, by phase */
+	private final long[] truePositives = new long[Phase.values().length];
+	/** Number of candidates which didn't want the key after all, by phase */
+	private final long[] falsePositives = new long[Phase.values().length];
+
+	int size() {
+		return all.size();
+	}
+
+	boolean contains(KeyListener listener) {
+		return all.contains(listener);
+	}
+
+	/** @return A copy of all the listeners. */
+	ArrayList<KeyListener> getAll() {
+		return new ArrayList<KeyListener>(all);
+	}
+
+	private static Phase phase(KeyListener listener) {
+		if(listener instanceof SingleKeyListener)
+			return Phase.ROUTING_KEY;
+		else if(listener instanceof USKFetcher)
+			return Phase.PUBKEY_HASH;
+		else if(listener instanceof SplitFileFetcherKeyListener)
+			return Phase.SPLITFILE;
+		else
+			return Phase.OTHER;
+	}
+
+	/** @return False if the listener was already added. */
+	boolean add(KeyListener listener) {
+		if(!all.add(listener)) return false;
+		switch(phase(listener)) {
+		case ROUTING_KEY:
+			add(byRoutingKey, new ByteArrayWrapper(((SingleKeyListener) listener).getKey().getRoutingKey()), listener);
+			break;
+		case PUBKEY_HASH:
+			add(byPubKeyHash, new ByteArrayWrapper(((USKFetcher) listener).getPubKeyHash()), listener);
+			break;
+		case SPLITFILE:
+			splitfiles.add((SplitFileFetcherKeyListener) listener);
+			break;
+		default:
+			others.add(listener);
+		}
+		return true;
+	}
+
+	boolean remove(KeyListener listener) {
+		if(!all.remove(listener)) return false;
+		switch(phase(listener)) {
+		case ROUTING_KEY:
+			remove(byRoutingKey, new ByteArrayWrapper(((SingleKeyListener) listener).getKey().getRoutingKey()), listener);
+			break;
+		case PUBKEY_HASH:
+			remove(byPubKeyHash, new ByteArrayWrapper(((USKFetcher) listener).getPubKeyHash()), listener);
+			break;
+		case SPLITFILE:
+			splitfiles.remove(listener);
+			break;
+		default:
+			others.remove(listener);
+		}
+		return true;
+	}
+
+	private static void add(Map<ByteArrayWrapper, ArrayList<KeyListener>> map, ByteArrayWrapper key, KeyListener listener) {
+		ArrayList<KeyListener> list = map.get(key);
+		if(list == null) {
+			list = new ArrayList<KeyListener>(1);
+			map.put(key, list);
+		}
+		list.add(listener);
+	}
+
+	private static void remove(Map<ByteArrayWrapper, ArrayList<KeyListener>> map, ByteArrayWrapper key, KeyListener listener) {
+		ArrayList<KeyListener> list = map.get(key);
+		if(list == null) return;
+		list.remove(listener);
+		if(list.isEmpty()) map.remove(key);
+	}
+
+	/**
+	 * @return The listeners which probably want the key, or null if none do.
+	 */
+	ArrayList<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
+		return match(key, saltedKey, false);
+	}
+
+	boolean anyProbablyWantKey(Key key, byte[] saltedKey) {
+		return match(key, saltedKey, true) != null;
+	}
+
+	private ArrayList<KeyListener> match(Key key, byte[] saltedKey, boolean firstOnly) {
+		lookups++;
+		ArrayList<KeyListener> matches = null;
+		matches = match(byRoutingKey.get(new ByteArrayWrapper(key.getRoutingKey())), Phase.ROUTING_KEY, key, saltedKey, matches);
+		if(matches != null && firstOnly) return matches;
+		if(key instanceof NodeSSK && !byPubKeyHash.isEmpty()) {
+			matches = match(byPubKeyHash.get(new ByteArrayWrapper(((NodeSSK) key).getPubKeyHash())), Phase.PUBKEY_HASH, key, saltedKey, matches);
+			if(matches != null && firstOnly) return matches;
+		}
+		if(!splitfiles.isEmpty()) {
+			BloomFilter.Hashes hashes = new BloomFilter.Hashes(saltedKey);
+			for(SplitFileFetcherKeyListener listener : splitfiles) {
+				probes[Phase.SPLITFILE.ordinal()]++;
+				if(!listener.probablyWantKey(hashes)) continue;
+				if(matches == null) matches = new ArrayList<KeyListener>();
+				matches.add(listener);
+				if(firstOnly) return matches;
+			}
+		}
+		return match(others, Phase.OTHER, key, saltedKey, matches);
+	}
+
+	private ArrayList<KeyListener> match(ArrayList<KeyListener> candidates, Phase phase, Key key, byte[] saltedKey, ArrayList<KeyListener> matches) {
+		if(candidates == null) return matches;
+		for(KeyListener listener : candidates) {
+			probes[phase.ordinal()]++;
+			if(!listener.probablyWantKey(key, saltedKey)) continue;
+			if(matches == null) matches = new ArrayList<KeyListener>();
+			matches.add(listener);
+		}
+		return matches;
+	}
+
+	/**
+	 * Remove all the listeners belonging to a HasKeyListener.
+	 * @return The listeners removed, or null.
+	 */
+	ArrayList<KeyListener> remove(HasKeyListener hasListener) {
+		ArrayList<KeyListener> removed = null;
+		for(Iterator<KeyListener> i = all.iterator();i.hasNext();) {
+			KeyListener listener = i.next();
+			if(listener.getHasKeyListener() == hasListener) {
+				if(removed == null) removed = new ArrayList<KeyListener>();
+				removed.add(listener);
+			}
+		}
+		if(removed != null) {
+			for(KeyListener listener : removed)
+				remove(listener);
+		}
+		return removed;
+	}
+
+	long getLookups() {
+		return lookups;
+	}
+
+	long getProbes() {
+		long total = 0;
+		for(long p : probes)
+			total += p;
+		return total;
+	}
+
+	/**
+	 * Record whether a listener returned by probablyWantKey() actually wanted the key.
+	 */
+	void onChecked(KeyListener listener, boolean wanted) {
+		if(wanted)
+			truePositives[phase(listener).ordinal()]++;
+		else
+			falsePositives[phase(listener).ordinal()]++;
+	}
+
+	long getFalsePositives(Phase phase) {
+		return falsePositives[phase.ordinal()];
+	}
+
+	long getTruePositives(Phase phase) {
+		return truePositives[phase.ordinal()];
+	}
+
+	long getProbes(Phase phase) {
+		return probes[phase.ordinal()];
+	}
+
+	/**
+	 * @return The probes, true positives and false positives of each phase which has been
+	 * used, for logging.
+	 */
+	String getStats() {
+		StringBuilder sb = new StringBuilder();
+		for(Phase phase : Phase.values()) {
+			int i = phase.ordinal();
+			if(probes[i] == 0) continue;
+			if(sb.length() > 0) sb.append(' ');
+			sb.append(phase.name().toLowerCase());
+			sb.append("(probes=");
+			sb.append(probes[i]);
+			sb.append(" true=");
+			sb.append(truePositives[i]);
+			sb.append(" false=");
+			sb.append(falsePositives[i]);
+			sb.append(')');
+		}
+		return sb.toString();
+	}
+}
@@ -136,20 +136,40 @@ public class PersistentChosenBlock extends ChosenBlock {
 		try {
 			return super.send(core, sched);
 		} finally {
-			boolean wasFinished;
-			synchronized(this) {
-				wasFinished = finished;
-				if(!finished) {
-					finished = true;
-					if(parent.request instanceof SendableGet) {
-						Logger.error(this, "SendableGet "+parent.request+" didn't call a callback on "+this);
-					}
+			checkFinished(sched);
+		}
+	}
+
+	@Override
+	public boolean sendAsync(NodeClientCore core, final RequestScheduler sched, final Runnable onFinished) {
+		return super.sendAsync(core, sched, new Runnable() {
+
+			public void run() {
+				try {
+					checkFinished(sched);
+				} finally {
+					onFinished.run();
 				}
 			}
-			if(!wasFinished) {
-				parent.onFinished(this, sched.getContext());
+
+		});
+	}
+
+	/** Called when the request has been sent, to finish it if the sender didn't call a callback. */
+	private void checkFinished(RequestScheduler sched) {
+		boolean wasFinished;
+		synchronized(this) {
+			wasFinished = finished;
+			if(!finished) {
+				finished = true;
+				if(parent.request instanceof SendableGet) {
+					Logger.error(this, "SendableGet "+parent.request+" didn't call a callback on "+this);
+				}
 			}
 		}
+		if(!wasFinished) {
+			parent.onFinished(this, sched.getContext());
+		}
 	}
 
 	@Override
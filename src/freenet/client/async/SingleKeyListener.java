@@ -22,6 +22,11 @@ public class SingleKeyListener implements KeyListener {
 		this.persistent = persistent;
 	}
 
+	/** The key we want, used by the scheduler to index us. */
+	Key getKey() {
+		return key;
+	}
+
 	public long countKeys() {
 		if(done) return 0;
 		else return 1;
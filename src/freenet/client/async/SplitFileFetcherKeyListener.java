@@ -17,6 +17,7 @@ import freenet.keys.KeyBlock;
 import freenet.node.PrioRunnable;
 import freenet.node.SendableGet;
 import freenet.support.BinaryBloomFilter;
+import freenet.support.BloomFilter;
 import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -154,6 +155,15 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		return filter.checkFilter(saltedKey);
 	}
 
+	/**
+	 * Same as probablyWantKey(), but with the hashes of the salted key shared between all the
+	 * splitfiles the scheduler checks it against.
+	 */
+	boolean probablyWantKey(BloomFilter.Hashes saltedKeyHashes) {
+		if(filter == null) Logger.error(this, "Probably want key: filter = null for "+this+ " fetcher = "+fetcher);
+		return filter.checkFilter(saltedKeyHashes);
+	}
+
 	public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container,
 			ClientContext context) {
 		// Caller has already called probablyWantKey(), so don't do it again.
@@ -45,6 +45,8 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
+	/** Encode the blocks of a segment on this many threads */
+	private static final int ENCODE_THREADS = Runtime.getRuntime().availableProcessors();
 
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
@@ -504,46 +506,39 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			if (deactivateParentCtx)
 				container.activate(parent.ctx, 1);
 		}
-		for(int i=0;i<dataBlocks.length;i++) {
-			if(dataURIs[i] == null && dataBlocks[i] != null) {
-				try {
-					boolean deactivate = false;
-					if(persistent) {
-						deactivate = !container.ext().isActive(dataBlocks[i]);
-						if(deactivate) container.activate(dataBlocks[i], 1);
-					}
-					ClientCHK key = encodeBucket(dataBlocks[i], compressorDescriptor).getClientKey();
-					if(deactivate) container.deactivate(dataBlocks[i], 1);
-					onEncode(i, key, container, context);
-				} catch (CHKEncodeException e) {
-					fail(new InsertException(InsertException.INTERNAL_ERROR, e, null), container, context);
-				} catch (IOException e) {
-					fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
+		// Encode all the blocks we have but don't have the keys for yet, in parallel.
+		int total = dataBlocks.length + (encoded ? checkBlocks.length : 0);
+		Bucket[] toEncode = new Bucket[total];
+		boolean[] deactivate = new boolean[total];
+		for(int i=0;i<total;i++) {
+			boolean check = i >= dataBlocks.length;
+			Bucket data = check ? checkBlocks[i-dataBlocks.length] : dataBlocks[i];
+			ClientCHK uri = check ? checkURIs[i-dataBlocks.length] : dataURIs[i];
+			if(uri == null && data != null) {
+				if(persistent) {
+					deactivate[i] = !container.ext().isActive(data);
+					if(deactivate[i]) container.activate(data, 1);
 				}
-			} else if(dataURIs[i] == null && dataBlocks[i] == null) {
-				fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), container, context);
+				toEncode[i] = data;
+			} else if(uri == null && data == null) {
+				fail(new InsertException(InsertException.INTERNAL_ERROR, (check ? "Check" : "Data")+" block "+(check ? i-dataBlocks.length : i)+" cannot be encoded: no data", null), container, context);
 			}
 		}
-		if(encoded) {
-			for(int i=0;i<checkBlocks.length;i++) {
-				if(checkURIs[i] == null && checkBlocks[i] != null) {
-					try {
-						boolean deactivate = false;
-						if(persistent) {
-							deactivate = !container.ext().isActive(checkBlocks[i]);
-							if(deactivate) container.activate(checkBlocks[i], 1);
-						}
-						ClientCHK key = encodeBucket(checkBlocks[i], compressorDescriptor).getClientKey();
-						if(deactivate) container.deactivate(checkBlocks[i], 1);
-						onEncode(i+dataBlocks.length, key, container, context);
-					} catch (CHKEncodeException e) {
-						fail(new InsertException(InsertException.INTERNAL_ERROR, e, null), container, context);
-					} catch (IOException e) {
-						fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
-					}
-				} else if(checkURIs[i] == null && checkBlocks[i] == null) {
-					fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), container, context);
-				}
+		ClientCHKBlock[] encodedBlocks = null;
+		try {
+			encodedBlocks = ClientCHKBlock.encodeSplitfileBlocks(toEncode, compressorDescriptor, context.mainExecutor, ENCODE_THREADS);
+		} catch (CHKEncodeException e) {
+			fail(new InsertException(InsertException.INTERNAL_ERROR, e, null), container, context);
+		} catch (IOException e) {
+			fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
+		} finally {
+			for(int i=0;i<total;i++)
+				if(deactivate[i]) container.deactivate(toEncode[i], 1);
+		}
+		if(encodedBlocks != null) {
+			for(int i=0;i<total;i++) {
+				if(encodedBlocks[i] != null)
+					onEncode(i, encodedBlocks[i].getClientKey(), container, context);
 			}
 		}
 	}
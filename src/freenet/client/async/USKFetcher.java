@@ -1220,6 +1220,11 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return false;
 	}
 
+	/** We only want keys with this public key hash, used by the scheduler to index us. */
+	byte[] getPubKeyHash() {
+		return origUSK.pubKeyHash;
+	}
+
 	public boolean probablyWantKey(Key key, byte[] saltedKey) {
 		if(!(key instanceof NodeSSK)) return false;
 		NodeSSK k = (NodeSSK) key;
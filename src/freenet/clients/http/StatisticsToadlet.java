@@ -20,8 +20,10 @@ import freenet.node.NodeClientCore;
 import freenet.node.NodeStarter;
 import freenet.node.NodeStats;
 import freenet.node.OpennetManager;
+import freenet.node.PacketSender;
 import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
+import freenet.node.RequestStarter;
 import freenet.node.RequestStarterGroup;
 import freenet.node.Version;
 import freenet.node.stats.DataStoreInstanceType;
@@ -212,6 +214,10 @@ public class StatisticsToadlet extends Toadlet {
 				loadStatsList.addChild("li", starters.diagnosticThrottlesLine(false));
 				loadStatsList.addChild("li", starters.diagnosticThrottlesLine(true));
 				
+				// Request starts box
+				HTMLNode requestStartsInfobox = nextTableCell.addChild("div", "class", "infobox");
+				drawRequestStartsBox(requestStartsInfobox, starters);
+				
 				// Psuccess box
 				HTMLNode successRateBox = nextTableCell.addChild("div", "class", "infobox");
 				successRateBox.addChild("div", "class", "infobox-header", l10n("successRate"));
@@ -288,6 +294,14 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			// packet send latency box
+			HTMLNode sendLatencyInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawSendLatencyBox(sendLatencyInfobox);
+
+			// ticker jobs box
+			HTMLNode tickerJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawTickerJobsBox(tickerJobsInfobox);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -446,6 +460,61 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
+	private void drawSendLatencyBox(HTMLNode node) {
+		node.addChild("div", "class", "infobox-header", l10n("sendLatencyByShard"));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+		PacketSender ps = this.node.ps;
+
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("shard"));
+		row.addChild("th", l10n("peers"));
+		for(int bucket : PacketSender.SEND_LATENCY_BUCKETS)
+			row.addChild("th", "<" + bucket + "ms");
+		row.addChild("th", ">=" + PacketSender.SEND_LATENCY_BUCKETS[PacketSender.SEND_LATENCY_BUCKETS.length - 1] + "ms");
+
+		for(int i=0; i<ps.getShardCount(); i++) {
+			row = table.addChild("tr");
+			row.addChild("td", String.valueOf(i));
+			row.addChild("td", String.valueOf(ps.getShardPeerCount(i)));
+			for(long count : ps.getSendLatencyCounts(i))
+				row.addChild("td", String.valueOf(count));
+		}
+	}
+
+	private void drawRequestStartsBox(HTMLNode node, RequestStarterGroup starters) {
+		node.addChild("div", "class", "infobox-header", l10n("requestStartsByPriority"));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("priority"));
+		row.addChild("th", l10n("startRate"));
+		for(int bucket : RequestStarter.QUEUEING_DELAY_BUCKETS)
+			row.addChild("th", "<" + TimeUtil.formatTime(bucket, 2, true));
+		row.addChild("th", ">=" + TimeUtil.formatTime(RequestStarter.QUEUEING_DELAY_BUCKETS[RequestStarter.QUEUEING_DELAY_BUCKETS.length - 1], 2, true));
+
+		double[] rates = starters.getStartRates();
+		for(short i=0; i<RequestStarter.NUMBER_OF_PRIORITY_CLASSES; i++) {
+			row = table.addChild("tr");
+			row.addChild("td", String.valueOf(i));
+			row.addChild("td", fix1p1.format(rates[i]));
+			for(long count : starters.getQueueingDelayCounts(i))
+				row.addChild("td", String.valueOf(count));
+		}
+	}
+
+	private void drawTickerJobsBox(HTMLNode node) {
+		PacketSender ps = this.node.ps;
+		node.addChild("div", "class", "infobox-header", l10n("tickerJobsByType", "count", Integer.toString(ps.getQueuedJobCount())));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("queuedCount"));
+		row.addChild("th", l10n("jobType"));
+		ps.getQueuedJobsByType().toTableRows(table);
+	}
+
 	private void drawDatabaseJobsBox(HTMLNode node) {
 		// Job count by priority
 		node.addChild("div", "class", "infobox-header", l10n("databaseJobsByPriority"));
@@ -519,6 +588,10 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("lockContentions"));
+		row.addChild("th", l10n("pendingWrites"));
+		row.addChild("th", l10n("avgWriteBatch"));
+		row.addChild("th", l10n("overflowWrites"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -548,6 +621,22 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", fix1p2.format(stats.accessRate(nodeUptimeSeconds)) + " /s");
 			row.addChild("td", fix1p2.format(stats.writeRate(nodeUptimeSeconds)) + " /s");
 			row.addChild("td", thousandPoint.format(stats.falsePos()));
+			row.addChild("td", thousandPoint.format(stats.lockContentions()));
+			try {
+				row.addChild("td", thousandPoint.format(stats.pendingWrites()));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", fix1p2.format(stats.avgWriteBatch()));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", thousandPoint.format(stats.overflowWrites()));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
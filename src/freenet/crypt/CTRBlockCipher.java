@@ -0,0 +1,106 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Counter mode: the keystream is the encryption of the IV, then of the IV plus one, and so on,
+ * treating the IV as one big-endian number. Encryption and decryption are the same operation.
+ * Unlike PCFBMode, each block of keystream is independent of the data, so whole buffers are
+ * processed a block at a time straight into the output, and the instance can be positioned
+ * anywhere in the stream with a different IV.
+ *
+ * Not thread-safe, but the cipher it uses may be shared (Rijndael is thread-safe).
+ */
+public class CTRBlockCipher {
+
+	private final BlockCipher cipher;
+	/** Non-null if cipher is a Rijndael, to avoid the length checks and copying */
+	private final Rijndael rijndael;
+	private final int blockSize;
+	private final byte[] counter;
+	private final byte[] keystream;
+	/** Position within keystream of the next byte to use */
+	private int keystreamPointer;
+
+	public CTRBlockCipher(BlockCipher cipher) {
+		this.cipher = cipher;
+		this.rijndael = (cipher instanceof Rijndael) ? (Rijndael) cipher : null;
+		blockSize = cipher.getBlockSize() >> 3;
+		counter = new byte[blockSize];
+		keystream = new byte[blockSize];
+		keystreamPointer = blockSize;
+	}
+
+	public CTRBlockCipher(BlockCipher cipher, byte[] iv) {
+		this(cipher);
+		reset(iv, 0);
+	}
+
+	/**
+	 * Start again from the given IV.
+	 * @param iv The buffer containing the IV, which is the first counter block.
+	 * @param offset The offset to start reading the IV at.
+	 */
+	public final void reset(byte[] iv, int offset) {
+		System.arraycopy(iv, offset, counter, 0, blockSize);
+		keystreamPointer = blockSize;
+	}
+
+	/** @return The length of the IV, which is the block size of the cipher. */
+	public int lengthIV() {
+		return blockSize;
+	}
+
+	/**
+	 * Encrypt or decrypt part of a buffer. May be called repeatedly to process a stream in
+	 * pieces of any size.
+	 * @param input The data to process.
+	 * @param offset The offset to start at in input.
+	 * @param length The number of bytes to process.
+	 * @param output Where to write the result. May be input, if outputOffset is the same as
+	 * offset.
+	 * @param outputOffset The offset to start writing at in output.
+	 */
+	public void processBytes(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+		// Use up the rest of the current block of keystream.
+		while(length > 0 && keystreamPointer < blockSize) {
+			output[outputOffset++] = (byte) (input[offset++] ^ keystream[keystreamPointer++]);
+			length--;
+		}
+		// Whole blocks.
+		while(length >= blockSize) {
+			nextBlock();
+			for(int i = 0; i < blockSize; i++)
+				output[outputOffset + i] = (byte) (input[offset + i] ^ keystream[i]);
+			offset += blockSize;
+			outputOffset += blockSize;
+			length -= blockSize;
+		}
+		// And the start of the next one.
+		if(length > 0) {
+			nextBlock();
+			for(int i = 0; i < length; i++)
+				output[outputOffset + i] = (byte) (input[offset + i] ^ keystream[i]);
+			keystreamPointer = length;
+		}
+	}
+
+	/** Encrypt the counter into the keystream buffer and increment it. */
+	private void nextBlock() {
+		if(rijndael != null)
+			rijndael.encipher(counter, 0, keystream, 0);
+		else {
+			// BlockCipher may overwrite its input, so don't give it the counter.
+			System.arraycopy(counter, 0, keystream, 0, blockSize);
+			cipher.encipher(keystream, keystream);
+		}
+		for(int i = blockSize - 1; i >= 0; i--) {
+			if(++counter[i] != 0) break;
+		}
+		keystreamPointer = blockSize;
+	}
+
+}
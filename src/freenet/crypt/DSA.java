@@ -87,6 +87,8 @@ public class DSA {
 		if(m.signum() == -1) throw new IllegalArgumentException();
 		if(kp.getGroup().getQ().bitLength() == 256 && !forceMod)
 			m = m.and(SIGNATURE_MASK);
+		if(DSAVerifier.isVerified(kp, sig, m))
+			return true;
 		try {
 			// 0<r<q has to be true
 			if((sig.getR().compareTo(BigInteger.ZERO) < 1) || (kp.getQ().compareTo(sig.getR()) < 1)) {
@@ -104,10 +106,12 @@ public class DSA {
 			BigInteger w=sig.getS().modInverse(kp.getQ());
 			BigInteger u1=m.multiply(w).mod(kp.getQ());
 			BigInteger u2=sig.getR().multiply(w).mod(kp.getQ());
-			BigInteger v1=kp.getG().modPow(u1, kp.getP());
-			BigInteger v2=kp.getY().modPow(u2, kp.getP());
-			BigInteger v=v1.multiply(v2).mod(kp.getP()).mod(kp.getQ());
-			return v.equals(sig.getR());
+			// g^u1 * y^u2 mod p
+			BigInteger v=DSAVerifier.multiPow(kp, u1, u2).mod(kp.getQ());
+			if(!v.equals(sig.getR()))
+				return false;
+			DSAVerifier.addVerified(kp, sig, m);
+			return true;
 
 			//FIXME: is there a better way to handle this exception raised on the 'w=' line above?
 		} catch (ArithmeticException e) {  // catch error raised by invalid data
@@ -117,6 +121,14 @@ public class DSA {
 		}
 	}
 
+	/**
+	 * @return True if verifying with forceMod would check a different value to verifying
+	 * without it, i.e. if the hash is clipped to 255 bits for this key.
+	 */
+	public static boolean isClipped(DSAPublicKey kp, BigInteger m) {
+		return kp.getGroup().getQ().bitLength() == 256 && m.bitLength() > 255;
+	}
+
 	public static void main(String[] args) throws Exception {
 		//DSAGroup g=DSAGroup.readFromField(args[0]);
 		DSAGroup g = Global.DSAgroupBigA;
@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+import net.i2p.util.NativeBigInteger;
+import freenet.support.LRUHashtable;
+
+/**
+ * Caches for DSA.verify():
+ * <ul>
+ * <li>Signatures which have recently been verified successfully, so verifying the same SSK
+ * block again is free.</li>
+ * <li>Comb tables for the generator of each group and for public keys which are used
+ * repeatedly, so g^u1 * y^u2 can be computed with far fewer multiplications. A table is only
+ * built once its group or key has been seen a few times, so random keys don't cost anything
+ * extra. Not used when the native GMP library is loaded, as its modPow() is faster.</li>
+ * </ul>
+ */
+final class DSAVerifier {
+
+	/** Successfully verified signatures to remember */
+	private static final int MAX_VERIFIED = 256;
+	/** Comb tables for public keys to keep. Each is 64KB for a 2048-bit group. */
+	private static final int MAX_KEY_TABLES = 32;
+	private static final int MAX_GROUP_TABLES = 4;
+	/** Number of groups and keys to count uses of */
+	private static final int MAX_USE_COUNTS = 256;
+	/** Build a table for a group or key once it has been used this many times */
+	private static final int TABLE_THRESHOLD = 3;
+
+	private static final LRUHashtable<VerifiedSignature, VerifiedSignature> verified =
+		new LRUHashtable<VerifiedSignature, VerifiedSignature>();
+	private static final LRUHashtable<DSAGroup, FixedBaseComb> groupTables =
+		new LRUHashtable<DSAGroup, FixedBaseComb>();
+	private static final LRUHashtable<DSAPublicKey, FixedBaseComb> keyTables =
+		new LRUHashtable<DSAPublicKey, FixedBaseComb>();
+	/** Groups and keys, and how many times each has been used */
+	private static final LRUHashtable<Object, int[]> uses = new LRUHashtable<Object, int[]>();
+
+	private DSAVerifier() {
+	}
+
+	private static final class VerifiedSignature {
+		final DSAPublicKey key;
+		final BigInteger m;
+		final BigInteger r;
+		final BigInteger s;
+		final int hashCode;
+
+		VerifiedSignature(DSAPublicKey key, DSASignature sig, BigInteger m) {
+			this.key = key;
+			this.m = m;
+			this.r = sig.getR();
+			this.s = sig.getS();
+			hashCode = key.hashCode() ^ m.hashCode() ^ r.hashCode() ^ (s.hashCode() * 31);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof VerifiedSignature)) return false;
+			VerifiedSignature v = (VerifiedSignature) o;
+			return hashCode == v.hashCode && m.equals(v.m) && r.equals(v.r) && s.equals(v.s) &&
+				key.equals(v.key);
+		}
+	}
+
+	/** @return True if this signature of m has recently been verified successfully. */
+	static boolean isVerified(DSAPublicKey key, DSASignature sig, BigInteger m) {
+		VerifiedSignature v = new VerifiedSignature(key, sig, m);
+		synchronized(verified) {
+			if(!verified.containsKey(v)) return false;
+			verified.push(v, v);
+			return true;
+		}
+	}
+
+	/** Remember that this signature of m is valid. */
+	static void addVerified(DSAPublicKey key, DSASignature sig, BigInteger m) {
+		VerifiedSignature v = new VerifiedSignature(key, sig, m);
+		synchronized(verified) {
+			verified.push(v, v);
+			while(verified.size() > MAX_VERIFIED)
+				verified.popKey();
+		}
+	}
+
+	/**
+	 * @return g^u1 * y^u2 mod p for the key's group and y.
+	 * @param u1 Must be non-negative and less than q.
+	 * @param u2 Must be non-negative and less than q.
+	 */
+	static BigInteger multiPow(DSAPublicKey key, BigInteger u1, BigInteger u2) {
+		DSAGroup group = key.getGroup();
+		BigInteger p = group.getP();
+		if(NativeBigInteger.isNative())
+			return group.getG().modPow(u1, p).multiply(key.getY().modPow(u2, p)).mod(p);
+		FixedBaseComb g = getTable(group, groupTables, MAX_GROUP_TABLES, group.getG(), group);
+		if(g == null)
+			return group.getG().modPow(u1, p).multiply(key.getY().modPow(u2, p)).mod(p);
+		FixedBaseComb y = getTable(key, keyTables, MAX_KEY_TABLES, key.getY(), group);
+		if(y == null)
+			return g.pow(u1).multiply(key.getY().modPow(u2, p)).mod(p);
+		return FixedBaseComb.multiPow(g, u1, y, u2);
+	}
+
+	/** @return The table for the group or key, or null if it hasn't been used often enough yet. */
+	private static <K> FixedBaseComb getTable(K key, LRUHashtable<K, FixedBaseComb> tables, int maxTables,
+			BigInteger base, DSAGroup group) {
+		FixedBaseComb table;
+		synchronized(tables) {
+			table = tables.get(key);
+			if(table != null) {
+				tables.push(key, table);
+				return table;
+			}
+		}
+		synchronized(uses) {
+			int[] count = uses.get(key);
+			if(count == null) count = new int[1];
+			uses.push(key, count);
+			while(uses.size() > MAX_USE_COUNTS)
+				uses.popKey();
+			if(++count[0] < TABLE_THRESHOLD) return null;
+			uses.removeKey(key);
+		}
+		// Takes about as long as two exponentiations. Another thread may build it at the same time,
+		// but only the first time.
+		table = new FixedBaseComb(base, group.getP(), group.getQ().bitLength());
+		synchronized(tables) {
+			tables.push(key, table);
+			while(tables.size() > maxTables)
+				tables.popKey();
+		}
+		return table;
+	}
+
+}
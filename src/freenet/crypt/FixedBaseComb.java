@@ -0,0 +1,130 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+/**
+ * Precomputed powers of a fixed base modulo p, for fast exponentiation (Lim and Lee's comb
+ * method). The exponent's bits are laid out in ROWS rows of columns bits each. The table holds
+ * the base raised to every combination of the first bit of each row, so one pass along the
+ * columns needs one squaring and one multiplication per column: 32 of each for a 256-bit
+ * exponent, rather than the 256 squarings of an ordinary exponentiation. Two combs over the same
+ * modulus can be evaluated together, sharing the squarings, to compute a product of two powers.
+ *
+ * Reduction uses Barrett's method, which only needs multiplications, as BigInteger.mod() is
+ * slow. The table takes 2^ROWS numbers the size of p: 64KB for a 2048-bit p.
+ *
+ * Immutable, so thread-safe.
+ */
+final class FixedBaseComb {
+
+	static final int ROWS = 8;
+
+	private final BigInteger p;
+	/** floor(2^(2 * pBits) / p), for Barrett reduction */
+	private final BigInteger mu;
+	private final int pBits;
+	/** The number of bits in each row of the exponent */
+	private final int columns;
+	/** table[i] is the base to the power of the sum over each bit j set in i of 2^(j * columns) */
+	private final BigInteger[] table;
+
+	/**
+	 * @param base The fixed base.
+	 * @param p The modulus. Must be positive.
+	 * @param exponentBits The maximum bit length of the exponents it will be used with.
+	 */
+	FixedBaseComb(BigInteger base, BigInteger p, int exponentBits) {
+		this.p = p;
+		pBits = p.bitLength();
+		mu = BigInteger.ONE.shiftLeft(2 * pBits).divide(p);
+		columns = (exponentBits + ROWS - 1) / ROWS;
+		table = new BigInteger[1 << ROWS];
+		table[0] = BigInteger.ONE;
+		BigInteger power = base.mod(p);
+		for(int row = 0; row < ROWS; row++) {
+			if(row > 0) {
+				for(int i = 0; i < columns; i++)
+					power = square(power);
+			}
+			int bit = 1 << row;
+			table[bit] = power;
+			for(int i = 1; i < bit; i++)
+				table[bit | i] = multiply(table[i], power);
+		}
+	}
+
+	/** @return True if this comb can be used for the given exponent. */
+	boolean canExponentiate(BigInteger exponent) {
+		return exponent.signum() >= 0 && exponent.bitLength() <= columns * ROWS;
+	}
+
+	/** @return The base to the power of the exponent, mod p. */
+	BigInteger pow(BigInteger exponent) {
+		if(!canExponentiate(exponent)) throw new IllegalArgumentException();
+		BigInteger result = BigInteger.ONE;
+		for(int column = columns - 1; column >= 0; column--) {
+			if(result != BigInteger.ONE)
+				result = square(result);
+			int index = index(exponent, column);
+			if(index != 0)
+				result = (result == BigInteger.ONE) ? table[index] : multiply(result, table[index]);
+		}
+		return result;
+	}
+
+	/**
+	 * @return a's base to the power of ea times b's base to the power of eb, mod p.
+	 * @throws IllegalArgumentException If the combs have a different modulus or layout.
+	 */
+	static BigInteger multiPow(FixedBaseComb a, BigInteger ea, FixedBaseComb b, BigInteger eb) {
+		if(a.columns != b.columns || !a.p.equals(b.p))
+			throw new IllegalArgumentException();
+		if(!(a.canExponentiate(ea) && b.canExponentiate(eb)))
+			throw new IllegalArgumentException();
+		BigInteger result = BigInteger.ONE;
+		for(int column = a.columns - 1; column >= 0; column--) {
+			if(result != BigInteger.ONE)
+				result = a.square(result);
+			int index = a.index(ea, column);
+			if(index != 0)
+				result = (result == BigInteger.ONE) ? a.table[index] : a.multiply(result, a.table[index]);
+			index = b.index(eb, column);
+			if(index != 0)
+				result = (result == BigInteger.ONE) ? b.table[index] : a.multiply(result, b.table[index]);
+		}
+		return result;
+	}
+
+	/** @return The bits of the exponent in the given column, one from each row. */
+	private int index(BigInteger exponent, int column) {
+		int index = 0;
+		for(int row = ROWS - 1; row >= 0; row--) {
+			index <<= 1;
+			if(exponent.testBit(row * columns + column))
+				index |= 1;
+		}
+		return index;
+	}
+
+	private BigInteger multiply(BigInteger x, BigInteger y) {
+		return reduce(x.multiply(y));
+	}
+
+	private BigInteger square(BigInteger x) {
+		return reduce(x.multiply(x));
+	}
+
+	/** Barrett reduction of x, which must be less than p^2. */
+	private BigInteger reduce(BigInteger x) {
+		BigInteger q = x.shiftRight(pBits - 1).multiply(mu).shiftRight(pBits + 1);
+		BigInteger r = x.subtract(q.multiply(p));
+		// q is at most two less than the real quotient.
+		while(r.compareTo(p) >= 0)
+			r = r.subtract(p);
+		return r;
+	}
+
+}
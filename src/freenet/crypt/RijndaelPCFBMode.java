@@ -4,36 +4,31 @@ import freenet.crypt.ciphers.Rijndael;
 
 /**
  * Optimised PCFBMode for Rijndael.
- * All this actually does is avoid two new int[4]'s per cycle.
+ * All this actually does is encrypt the feedback register in place without going through
+ * the length checks of the BlockCipher interface.
  */
 public final class RijndaelPCFBMode extends PCFBMode {
 
-    /** Temporary variables to remove allocations from inner crypto loop. These are wiped
-     * by the encrypt function. */
-    private final int[] a, t;
+    private final Rijndael rijndael;
 
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
     @Override
 	protected void refillBuffer() {
         // Encrypt feedback into result
-        ((Rijndael)c).encipher(feedback_register, feedback_register, a, t);
+        rijndael.encipher(feedback_register, 0, feedback_register, 0);
 
         registerPointer=0;
     }
 	
     public RijndaelPCFBMode(Rijndael c) {
     	super(c);
-    	int tempSize = c.getTempArraySize();
-    	a = new int[tempSize];
-    	t = new int[tempSize];
+    	rijndael = c;
     }
 
     public RijndaelPCFBMode(Rijndael c, byte[] iv) {
     	super(c, iv);
-    	int tempSize = c.getTempArraySize();
-    	a = new int[tempSize];
-    	t = new int[tempSize];
+    	rijndael = c;
     }
     
 }
@@ -0,0 +1,189 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Gives each thread its own generator, seeded from a shared RandomSource (normally Yarrow), so
+ * that threads don't all queue up for the lock on the shared one.
+ *
+ * Each generator is AES-256 in counter mode. After every buffer of output it rekeys itself
+ * from its own output, so that the key it holds can't be used to recover anything it has
+ * already returned. It reseeds from the shared source after RESEED_BYTES of output, after
+ * RESEED_INTERVAL, and whenever the shared Yarrow has reseeded from its entropy pools.
+ *
+ * Entropy is passed straight to the shared source, which keeps the seed file up to date.
+ */
+@SuppressWarnings("serial")
+public class ThreadLocalRandomSource extends RandomSource {
+
+	/** Output generated at once. The first KEY_SIZE bytes of each buffer become the next key. */
+	private static final int BUFFER_SIZE = 1024;
+	private static final int KEY_SIZE = 32;
+	/** Reseed from the shared source after this much output */
+	private static final long RESEED_BYTES = 256 * 1024;
+	/** Reseed from the shared source at least this often */
+	private static final long RESEED_INTERVAL = 60 * 1000;
+
+	private final RandomSource source;
+	/** Non-null if the source is a Yarrow, to reseed when it does */
+	private final Yarrow yarrow;
+
+	private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+		@Override
+		protected Generator initialValue() {
+			return new Generator();
+		}
+	};
+
+	public ThreadLocalRandomSource(RandomSource source) {
+		this.source = source;
+		this.yarrow = (source instanceof Yarrow) ? (Yarrow) source : null;
+	}
+
+	/** @return The shared source the generators are seeded from. */
+	public RandomSource getSource() {
+		return source;
+	}
+
+	private class Generator {
+		private final Rijndael cipher;
+		private final CTRBlockCipher ctr;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private final byte[] key = new byte[KEY_SIZE];
+		/** Next unused byte in buffer */
+		private int pointer;
+		private long bytesSinceReseed;
+		private long reseedTime;
+		private int yarrowReseedCount;
+
+		Generator() {
+			try {
+				cipher = new Rijndael(256, 128);
+			} catch (UnsupportedCipherException e) {
+				throw new Error(e);
+			}
+			readSource(key);
+			cipher.initialize(key);
+			Arrays.fill(key, (byte) 0);
+			byte[] iv = new byte[cipher.getBlockSize() / 8];
+			source.nextBytes(iv);
+			ctr = new CTRBlockCipher(cipher, iv);
+			fill();
+		}
+
+		private void readSource(byte[] seed) {
+			if(yarrow != null)
+				yarrowReseedCount = yarrow.getReseedCount();
+			source.nextBytes(seed);
+			reseedTime = System.currentTimeMillis();
+			bytesSinceReseed = 0;
+		}
+
+		/** Generate the next buffer of output and rekey from the start of it. */
+		private void fill() {
+			Arrays.fill(buffer, (byte) 0);
+			ctr.processBytes(buffer, 0, BUFFER_SIZE, buffer, 0);
+			System.arraycopy(buffer, 0, key, 0, KEY_SIZE);
+			cipher.initialize(key);
+			Arrays.fill(key, (byte) 0);
+			Arrays.fill(buffer, 0, KEY_SIZE, (byte) 0);
+			pointer = KEY_SIZE;
+		}
+
+		/** Mix fresh output from the shared source into the key. */
+		private void reseed() {
+			fill();
+			byte[] seed = new byte[KEY_SIZE * 2];
+			// Our own output, so the new key depends on the old one as well as on the source.
+			System.arraycopy(buffer, pointer, seed, 0, KEY_SIZE);
+			byte[] fresh = new byte[KEY_SIZE];
+			readSource(fresh);
+			System.arraycopy(fresh, 0, seed, KEY_SIZE, KEY_SIZE);
+			byte[] hash = SHA256.digest(seed);
+			cipher.initialize(hash);
+			Arrays.fill(seed, (byte) 0);
+			Arrays.fill(fresh, (byte) 0);
+			Arrays.fill(hash, (byte) 0);
+			fill();
+		}
+
+		private void refill() {
+			if(bytesSinceReseed >= RESEED_BYTES ||
+					(yarrow != null && yarrow.getReseedCount() != yarrowReseedCount) ||
+					System.currentTimeMillis() - reseedTime >= RESEED_INTERVAL)
+				reseed();
+			else
+				fill();
+		}
+
+		void nextBytes(byte[] out, int offset, int length) {
+			while(length > 0) {
+				if(pointer == BUFFER_SIZE) refill();
+				int copy = Math.min(length, BUFFER_SIZE - pointer);
+				System.arraycopy(buffer, pointer, out, offset, copy);
+				// Don't keep output we have returned.
+				Arrays.fill(buffer, pointer, pointer + copy, (byte) 0);
+				pointer += copy;
+				offset += copy;
+				length -= copy;
+				bytesSinceReseed += copy;
+			}
+		}
+
+		int nextInt() {
+			if(BUFFER_SIZE - pointer < 4) refill();
+			int val = ((buffer[pointer] & 0xFF) << 24) | ((buffer[pointer + 1] & 0xFF) << 16) |
+				((buffer[pointer + 2] & 0xFF) << 8) | (buffer[pointer + 3] & 0xFF);
+			buffer[pointer] = buffer[pointer + 1] = buffer[pointer + 2] = buffer[pointer + 3] = 0;
+			pointer += 4;
+			bytesSinceReseed += 4;
+			return val;
+		}
+	}
+
+	@Override
+	protected int next(int bits) {
+		return generators.get().nextInt() >>> (32 - bits);
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		generators.get().nextBytes(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
+		return this.source.acceptEntropy(source, data, entropyGuess);
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer) {
+		return source.acceptTimerEntropy(timer);
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer, double bias) {
+		return source.acceptTimerEntropy(timer, bias);
+	}
+
+	@Override
+	public int acceptEntropyBytes(EntropySource source, byte[] buf, int offset, int length, double bias) {
+		return this.source.acceptEntropyBytes(source, buf, offset, length, bias);
+	}
+
+	@Override
+	public void waitForEntropy(int bits) {
+		source.waitForEntropy(bits);
+	}
+
+	@Override
+	public void close() {
+		source.close();
+	}
+
+}
@@ -447,6 +447,30 @@ public class Yarrow extends RandomSource {
 	private int fast_entropy,  slow_entropy;
 	private boolean fast_select;
 	private Map<EntropySource, int[]> entropySeen;
+	/** Holds a sample while it is added to a pool */
+	private final byte[] entropyBuffer = new byte[8];
+
+	/**
+	 * Timer entropy arrives with every packet, so each thread collects samples here and adds
+	 * them to the pools in one go, rather than taking the lock for each one.
+	 */
+	private static class TimerEntropyBatch {
+		final long[] data = new long[TIMER_BATCH_SIZE];
+		final int[] entropy = new int[TIMER_BATCH_SIZE];
+		final EntropySource[] sources = new EntropySource[TIMER_BATCH_SIZE];
+		int count;
+		/** When the first sample in the batch was added */
+		long started;
+	}
+	private static final int TIMER_BATCH_SIZE = 32;
+	/** Don't hold on to timer entropy for longer than this */
+	private static final long TIMER_BATCH_MAX_AGE = 1000;
+	private final ThreadLocal<TimerEntropyBatch> timerBatches = new ThreadLocal<TimerEntropyBatch>() {
+		@Override
+		protected TimerEntropyBatch initialValue() {
+			return new TimerEntropyBatch();
+		}
+	};
 
 	private void accumulator_init(String digest) throws NoSuchAlgorithmException {
 		fast_pool = MessageDigest.getInstance(digest);
@@ -489,66 +513,75 @@ public class Yarrow extends RandomSource {
 	}
 
 	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
+		boolean performedPoolReseed;
+		synchronized(this) {
+			performedPoolReseed = mix_entropy(data, source, actualEntropy);
+		}
+		if(performedPoolReseed)
+			reseeded();
+		return actualEntropy;
+	}
 
+	/**
+	 * Add a sample to one of the pools, and reseed if there is enough entropy.
+	 * Caller must hold the lock.
+	 * @return True if we reseeded.
+	 */
+	private boolean mix_entropy(long data, EntropySource source, int actualEntropy) {
 		boolean performedPoolReseed = false;
-		byte[] b = new byte[] {
-				(byte) data,
-				(byte) (data >> 8),
-				(byte) (data >> 16),
-				(byte) (data >> 24),
-				(byte) (data >> 32),
-				(byte) (data >> 40),
-				(byte) (data >> 48),
-				(byte) (data >> 56)
-		};
-		
-		synchronized(this) {
-			fast_select = !fast_select;
-			MessageDigest pool = (fast_select ? fast_pool : slow_pool);
-			pool.update(b);
-
-			if(fast_select) {
-				fast_entropy += actualEntropy;
-				if(fast_entropy > FAST_THRESHOLD) {
-					fast_pool_reseed();
-					performedPoolReseed = true;
-				}
-			} else {
-				slow_entropy += actualEntropy;
-
-				if(source != null) {
-					int[] contributedEntropy = entropySeen.get(source);
-					if(contributedEntropy == null) {
-						contributedEntropy = new int[] { actualEntropy };
-						entropySeen.put(source, contributedEntropy);
-					} else
-						contributedEntropy[0]+=actualEntropy;
-
-					if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
-						int kc = 0;
-						for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
-							EntropySource key = e.getKey();
-							int[] v = e.getValue();
-							if(DEBUG)
-								Logger.normal(this, "Key: <" + key + "> " + v);
-							if(v[0] > SLOW_THRESHOLD) {
-								kc++;
-								if(kc >= SLOW_K) {
-									slow_pool_reseed();
-									performedPoolReseed = true;
-									break;
-								}
+		byte[] b = entropyBuffer;
+		for(int i = 0; i < 8; i++)
+			b[i] = (byte) (data >> (i * 8));
+
+		fast_select = !fast_select;
+		MessageDigest pool = (fast_select ? fast_pool : slow_pool);
+		pool.update(b);
+
+		if(fast_select) {
+			fast_entropy += actualEntropy;
+			if(fast_entropy > FAST_THRESHOLD) {
+				fast_pool_reseed();
+				performedPoolReseed = true;
+			}
+		} else {
+			slow_entropy += actualEntropy;
+
+			if(source != null) {
+				int[] contributedEntropy = entropySeen.get(source);
+				if(contributedEntropy == null) {
+					contributedEntropy = new int[] { actualEntropy };
+					entropySeen.put(source, contributedEntropy);
+				} else
+					contributedEntropy[0]+=actualEntropy;
+
+				if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
+					int kc = 0;
+					for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
+						EntropySource key = e.getKey();
+						int[] v = e.getValue();
+						if(DEBUG)
+							Logger.normal(this, "Key: <" + key + "> " + v);
+						if(v[0] > SLOW_THRESHOLD) {
+							kc++;
+							if(kc >= SLOW_K) {
+								slow_pool_reseed();
+								performedPoolReseed = true;
+								break;
 							}
 						}
 					}
 				}
 			}
-			if(DEBUG)
-				//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
-				// "+slow_entropy, LogLevel.NORMAL);
-				System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
 		}
-		if(performedPoolReseed && (seedfile != null)) {
+		if(DEBUG)
+			//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
+			// "+slow_entropy, LogLevel.NORMAL);
+			System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+		return performedPoolReseed;
+	}
+
+	private void reseeded() {
+		if(seedfile != null) {
 			//Dont do this while synchronized on 'this' since
 			//opening a file seems to be suprisingly slow on windows
 			if(logMINOR)
@@ -557,8 +590,6 @@ public class Yarrow extends RandomSource {
 			if(logMINOR)
 				Logger.minor(this, "Written seedfile");
 		}
-
-		return actualEntropy;
 	}
 
 	private int estimateEntropy(EntropySource source, long newVal) {
@@ -613,7 +644,32 @@ public class Yarrow extends RandomSource {
 	@Override
 	public int acceptTimerEntropy(EntropySource timer, double bias) {
 		long now = System.currentTimeMillis();
-		return acceptEntropy(timer, now - timer.lastVal, 32, bias);
+		long data = now - timer.lastVal;
+		int actualEntropy = (int) (bias * Math.min(32, estimateEntropy(timer, data)));
+		TimerEntropyBatch batch = timerBatches.get();
+		if(batch.count == 0)
+			batch.started = now;
+		batch.data[batch.count] = data;
+		batch.entropy[batch.count] = actualEntropy;
+		batch.sources[batch.count] = timer;
+		batch.count++;
+		if(batch.count == TIMER_BATCH_SIZE || now - batch.started >= TIMER_BATCH_MAX_AGE)
+			flushTimerEntropy(batch);
+		return actualEntropy;
+	}
+
+	private void flushTimerEntropy(TimerEntropyBatch batch) {
+		boolean performedPoolReseed = false;
+		synchronized(this) {
+			for(int i = 0; i < batch.count; i++) {
+				if(mix_entropy(batch.data[i], batch.sources[i], batch.entropy[i]))
+					performedPoolReseed = true;
+			}
+		}
+		Arrays.fill(batch.sources, 0, batch.count, null);
+		batch.count = 0;
+		if(performedPoolReseed)
+			reseeded();
 	}
 
 	/**
@@ -629,6 +685,8 @@ public class Yarrow extends RandomSource {
 	 */
 	private static final int Pt = 5;
 	private MessageDigest reseed_ctx;
+	/** Incremented every time the generator is rekeyed from the pools */
+	private volatile int reseedCount;
 
 	private void reseed_init(String digest) throws NoSuchAlgorithmException {
 		reseed_ctx = MessageDigest.getInstance(digest);
@@ -651,6 +709,7 @@ public class Yarrow extends RandomSource {
 		rekey(tmp);
 		Arrays.fill(v0, (byte) 0); // blank out for security
 		fast_entropy = 0;
+		reseedCount++;
 		if (DEBUG) {
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 5000)
@@ -667,6 +726,14 @@ public class Yarrow extends RandomSource {
 
 		entropySeen.clear();
 	}
+	/**
+	 * @return The number of times the generator has been reseeded from the entropy pools. Anything
+	 * seeded from this Yarrow can reseed itself when this changes, to pick up the new entropy.
+	 */
+	public int getReseedCount() {
+		return reseedCount;
+	}
+
 	/**
 	 * 5.4 Reseed Control parameters
 	 */
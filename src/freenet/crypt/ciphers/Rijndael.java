@@ -14,10 +14,13 @@ import freenet.support.Logger;
 
 /**
  * Interfaces with the Rijndael AES candidate to implement the Rijndael
- * algorithm
+ * algorithm.
+ *
+ * The key schedule is never modified once made, so a single instance can be used by any
+ * number of threads at once, without locking. initialize() replaces it atomically.
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	private volatile Object sessionKey;
 	private final int keysize, blocksize;
 
 	/**
@@ -64,33 +67,31 @@ public class Rijndael implements BlockCipher {
 		}
 	}
 
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
+		Rijndael_Algorithm.blockEncrypt(block, 0, result, 0, sessionKey, blocksize/8);
 	}
 
 	/**
-	 * @return Size of temporary int[] a, t. If these are passed in, this can speed
-	 * things up by avoiding unnecessary allocations between rounds.
+	 * Encipher one block from anywhere in one buffer to anywhere in another (or the same) buffer.
+	 * The two ranges may be the same, but must not otherwise overlap.
 	 */
-	// only consumer is RijndaelPCFBMode
-	public synchronized final int getTempArraySize() {
-		return blocksize/(8*4);
+	public final void encipher(byte[] in, int inOffset, byte[] out, int outOffset) {
+		Rijndael_Algorithm.blockEncrypt(in, inOffset, out, outOffset, sessionKey, blocksize/8);
 	}
 
-	// only consumer is RijndaelPCFBMode
-	public synchronized final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		if(a.length != t.length || t.length != blocksize/(8*4))
-			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8, a, t);
+		Rijndael_Algorithm.blockDecrypt(block, 0, result, 0, sessionKey, blocksize/8);
 	}
 
-	public synchronized final void decipher(byte[] block, byte[] result) {
-		if(block.length != blocksize/8)
-			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
+	/**
+	 * Decipher one block from anywhere in one buffer to anywhere in another (or the same) buffer.
+	 * The two ranges may be the same, but must not otherwise overlap.
+	 */
+	public final void decipher(byte[] in, int inOffset, byte[] out, int outOffset) {
+		Rijndael_Algorithm.blockDecrypt(in, inOffset, out, outOffset, sessionKey, blocksize/8);
 	}
 }
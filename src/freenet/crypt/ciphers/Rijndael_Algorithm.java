@@ -303,7 +303,7 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	 * @param  sessionKey The session key to use for encryption.
 	 */
 	private static final void
-	blockEncrypt (byte[] in, byte[] result, int inOffset, Object sessionKey) {
+	blockEncrypt (byte[] in, byte[] result, int inOffset, int resultOffset, Object sessionKey) {
 		if (RDEBUG) trace(IN, "blockEncrypt("+in+", "+inOffset+", "+sessionKey+ ')');
 		int[][] Ke = (int[][]) ((Object[]) sessionKey)[0]; // extract encryption round keys
 		int ROUNDS = Ke.length - 1;
@@ -356,25 +356,25 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		// last round is special
 		Ker = Ke[ROUNDS];
 		int tt = Ker[0];
-		result[ 0] = (byte)(S[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 1] = (byte)(S[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 2] = (byte)(S[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 3] = (byte)(S[ t3         & 0xFF] ^  tt        );
+		result[resultOffset+0] = (byte)(S[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+1] = (byte)(S[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+2] = (byte)(S[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+3] = (byte)(S[ t3         & 0xFF] ^  tt        );
 		tt = Ker[1];
-		result[ 4] = (byte)(S[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 5] = (byte)(S[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 6] = (byte)(S[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 7] = (byte)(S[ t0         & 0xFF] ^  tt        );
+		result[resultOffset+4] = (byte)(S[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+5] = (byte)(S[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+6] = (byte)(S[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+7] = (byte)(S[ t0         & 0xFF] ^  tt        );
 		tt = Ker[2];
-		result[ 8] = (byte)(S[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 9] = (byte)(S[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[10] = (byte)(S[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[11] = (byte)(S[ t1         & 0xFF] ^  tt        );
+		result[resultOffset+8] = (byte)(S[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+9] = (byte)(S[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+10] = (byte)(S[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+11] = (byte)(S[ t1         & 0xFF] ^  tt        );
 		tt = Ker[3];
-		result[12] = (byte)(S[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[13] = (byte)(S[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[14] = (byte)(S[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[15] = (byte)(S[ t2         & 0xFF] ^  tt        );
+		result[resultOffset+12] = (byte)(S[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+13] = (byte)(S[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+14] = (byte)(S[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+15] = (byte)(S[ t2         & 0xFF] ^  tt        );
 		if (RDEBUG && (debuglevel > 6)) {
 			System.out.println("CT="+toString(result));
 			System.out.println();
@@ -392,7 +392,7 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	 * @param  sessionKey The session key to use for decryption.
 	 */
 	private static final void
-	blockDecrypt (byte[] in, byte[] result, int inOffset, Object sessionKey) {
+	blockDecrypt (byte[] in, byte[] result, int inOffset, int resultOffset, Object sessionKey) {
 		if (RDEBUG) trace(IN, "blockDecrypt("+in+", "+inOffset+", "+sessionKey+ ')');
 		int[][] Kd = (int[][]) ((Object[]) sessionKey)[1]; // extract decryption round keys
 		int ROUNDS = Kd.length - 1;
@@ -445,25 +445,25 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		// last round is special
 		Kdr = Kd[ROUNDS];
 		int tt = Kdr[0];
-		result[ 0] = (byte)(Si[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 1] = (byte)(Si[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 2] = (byte)(Si[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 3] = (byte)(Si[ t1         & 0xFF] ^  tt        );
+		result[resultOffset+0] = (byte)(Si[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+1] = (byte)(Si[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+2] = (byte)(Si[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+3] = (byte)(Si[ t1         & 0xFF] ^  tt        );
 		tt = Kdr[1];
-		result[ 4] = (byte)(Si[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 5] = (byte)(Si[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 6] = (byte)(Si[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 7] = (byte)(Si[ t2         & 0xFF] ^  tt        );
+		result[resultOffset+4] = (byte)(Si[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+5] = (byte)(Si[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+6] = (byte)(Si[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+7] = (byte)(Si[ t2         & 0xFF] ^  tt        );
 		tt = Kdr[2];
-		result[ 8] = (byte)(Si[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 9] = (byte)(Si[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[10] = (byte)(Si[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[11] = (byte)(Si[ t3         & 0xFF] ^  tt        );
+		result[resultOffset+8] = (byte)(Si[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+9] = (byte)(Si[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+10] = (byte)(Si[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+11] = (byte)(Si[ t3         & 0xFF] ^  tt        );
 		tt = Kdr[3];
-		result[12] = (byte)(Si[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[13] = (byte)(Si[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[14] = (byte)(Si[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[15] = (byte)(Si[ t0         & 0xFF] ^  tt        );
+		result[resultOffset+12] = (byte)(Si[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+13] = (byte)(Si[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+14] = (byte)(Si[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+15] = (byte)(Si[ t0         & 0xFF] ^  tt        );
 		if (RDEBUG && (debuglevel > 6)) {
 			System.out.println("PT="+toString(result));
 			System.out.println();
@@ -492,17 +492,9 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	 * @param blockSize  The block size in bytes of this Rijndael.
 	 * @exception  InvalidKeyException  If the key is invalid.
 	 */
-	//TODO: This method doesn't really need synchronization. The only reason
-	//I can see for it to be synchronized is that it will consume 100% CPU (due to
-	//heavy calculations) when called. Probably should be unsynchronized if we
-	//want better support for dual+ CPU machines. /Iakin 2003-10-12
-	//Concur:  the class has no fields which are not final, and does
-	//not reference fields of any other classes.  Control over how
-	//many simultaneous makeKey invocations should be allowed is
-	//a problem the callers should resolve among themselves.
-	//It is a fact that allowing no more than one makeKey on any given
-	//CPU will result in fewer cache misses.  -- ejhuff 2003-10-12
-	final static synchronized Object makeKey(byte[] k, int blockSize)
+	// Not synchronized: the class has no mutable state, and the key it returns is never
+	// modified, so it can be shared between threads.
+	final static Object makeKey(byte[] k, int blockSize)
 	throws InvalidKeyException {
 		if (RDEBUG) trace(IN, "makeKey("+k+", "+blockSize+ ')');
 		if (k == null)
@@ -601,7 +593,7 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	static final void
 	blockEncrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize) {
 		if (blockSize == BLOCK_SIZE) {
-			blockEncrypt(in, result, inOffset, sessionKey);
+			blockEncrypt(in, result, inOffset, 0, sessionKey);
 			return;
 		}
 
@@ -625,7 +617,7 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	static final void
 	blockEncrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize, int[] a, int[] t) {
 		if (blockSize == BLOCK_SIZE) {
-			blockEncrypt(in, result, inOffset, sessionKey);
+			blockEncrypt(in, result, inOffset, 0, sessionKey);
 			return;
 		}
 		if (RDEBUG) trace(IN, "blockEncrypt("+in+", "+inOffset+", "+sessionKey+", "+blockSize+ ')');
@@ -681,7 +673,7 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	static final void
 	blockDecrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize) {
 		if (blockSize == BLOCK_SIZE) {
-			blockDecrypt(in, result, inOffset, sessionKey);
+			blockDecrypt(in, result, inOffset, 0, sessionKey);
 			return;
 		}
 
@@ -728,6 +720,326 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		if (RDEBUG) trace(OUT, "blockDecrypt()");
 	}
 
+	/**
+	 * Encrypt exactly one 256-bit block. The same as the general case, but with the rounds
+	 * unrolled and the state in locals, so it needs no temporary arrays and is safe to call
+	 * from any number of threads at once.
+	 *
+	 * @param  in         The plaintext.
+	 * @param  inOffset   Index of in from which to start considering data.
+	 * @param  result     The buffer into which to write the result.
+	 * @param  resultOffset Index of result at which to start writing.
+	 * @param  sessionKey The session key, from makeKey() with a 32 byte block size.
+	 */
+	static final void
+	blockEncrypt256 (byte[] in, int inOffset, byte[] result, int resultOffset, Object sessionKey) {
+		int[][] Ke = (int[][]) ((Object[]) sessionKey)[0];
+		int ROUNDS = Ke.length - 1;
+		int[] Ker = Ke[0];
+
+		int t0 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[0];
+		int t1 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[1];
+		int t2 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[2];
+		int t3 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[3];
+		int t4 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[4];
+		int t5 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[5];
+		int t6 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[6];
+		int t7 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Ker[7];
+
+		int a0, a1, a2, a3, a4, a5, a6, a7;
+		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
+			Ker = Ke[r];
+			a0 = (T1[(t0 >>> 24) & 0xFF] ^
+					T2[(t1 >>> 16) & 0xFF] ^
+					T3[(t3 >>>  8) & 0xFF] ^
+					T4[ t4         & 0xFF]  ) ^ Ker[0];
+			a1 = (T1[(t1 >>> 24) & 0xFF] ^
+					T2[(t2 >>> 16) & 0xFF] ^
+					T3[(t4 >>>  8) & 0xFF] ^
+					T4[ t5         & 0xFF]  ) ^ Ker[1];
+			a2 = (T1[(t2 >>> 24) & 0xFF] ^
+					T2[(t3 >>> 16) & 0xFF] ^
+					T3[(t5 >>>  8) & 0xFF] ^
+					T4[ t6         & 0xFF]  ) ^ Ker[2];
+			a3 = (T1[(t3 >>> 24) & 0xFF] ^
+					T2[(t4 >>> 16) & 0xFF] ^
+					T3[(t6 >>>  8) & 0xFF] ^
+					T4[ t7         & 0xFF]  ) ^ Ker[3];
+			a4 = (T1[(t4 >>> 24) & 0xFF] ^
+					T2[(t5 >>> 16) & 0xFF] ^
+					T3[(t7 >>>  8) & 0xFF] ^
+					T4[ t0         & 0xFF]  ) ^ Ker[4];
+			a5 = (T1[(t5 >>> 24) & 0xFF] ^
+					T2[(t6 >>> 16) & 0xFF] ^
+					T3[(t0 >>>  8) & 0xFF] ^
+					T4[ t1         & 0xFF]  ) ^ Ker[5];
+			a6 = (T1[(t6 >>> 24) & 0xFF] ^
+					T2[(t7 >>> 16) & 0xFF] ^
+					T3[(t1 >>>  8) & 0xFF] ^
+					T4[ t2         & 0xFF]  ) ^ Ker[6];
+			a7 = (T1[(t7 >>> 24) & 0xFF] ^
+					T2[(t0 >>> 16) & 0xFF] ^
+					T3[(t2 >>>  8) & 0xFF] ^
+					T4[ t3         & 0xFF]  ) ^ Ker[7];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3;
+			t4 = a4; t5 = a5; t6 = a6; t7 = a7;
+		}
+
+		// last round is special
+		Ker = Ke[ROUNDS];
+		int tt;
+		tt = Ker[0];
+		result[resultOffset+ 0] = (byte)(S[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+ 1] = (byte)(S[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+ 2] = (byte)(S[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+ 3] = (byte)(S[ t4         & 0xFF] ^  tt        );
+		tt = Ker[1];
+		result[resultOffset+ 4] = (byte)(S[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+ 5] = (byte)(S[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+ 6] = (byte)(S[(t4 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+ 7] = (byte)(S[ t5         & 0xFF] ^  tt        );
+		tt = Ker[2];
+		result[resultOffset+ 8] = (byte)(S[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+ 9] = (byte)(S[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+10] = (byte)(S[(t5 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+11] = (byte)(S[ t6         & 0xFF] ^  tt        );
+		tt = Ker[3];
+		result[resultOffset+12] = (byte)(S[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+13] = (byte)(S[(t4 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+14] = (byte)(S[(t6 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+15] = (byte)(S[ t7         & 0xFF] ^  tt        );
+		tt = Ker[4];
+		result[resultOffset+16] = (byte)(S[(t4 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+17] = (byte)(S[(t5 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+18] = (byte)(S[(t7 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+19] = (byte)(S[ t0         & 0xFF] ^  tt        );
+		tt = Ker[5];
+		result[resultOffset+20] = (byte)(S[(t5 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+21] = (byte)(S[(t6 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+22] = (byte)(S[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+23] = (byte)(S[ t1         & 0xFF] ^  tt        );
+		tt = Ker[6];
+		result[resultOffset+24] = (byte)(S[(t6 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+25] = (byte)(S[(t7 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+26] = (byte)(S[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+27] = (byte)(S[ t2         & 0xFF] ^  tt        );
+		tt = Ker[7];
+		result[resultOffset+28] = (byte)(S[(t7 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+29] = (byte)(S[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+30] = (byte)(S[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+31] = (byte)(S[ t3         & 0xFF] ^  tt        );
+	}
+
+	/**
+	 * Decrypt exactly one 256-bit block. The same as the general case, but with the rounds
+	 * unrolled and the state in locals, so it needs no temporary arrays and is safe to call
+	 * from any number of threads at once.
+	 *
+	 * @param  in         The ciphertext.
+	 * @param  inOffset   Index of in from which to start considering data.
+	 * @param  result     The buffer into which to write the result.
+	 * @param  resultOffset Index of result at which to start writing.
+	 * @param  sessionKey The session key, from makeKey() with a 32 byte block size.
+	 */
+	static final void
+	blockDecrypt256 (byte[] in, int inOffset, byte[] result, int resultOffset, Object sessionKey) {
+		int[][] Kd = (int[][]) ((Object[]) sessionKey)[1];
+		int ROUNDS = Kd.length - 1;
+		int[] Kdr = Kd[0];
+
+		int t0 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[0];
+		int t1 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[1];
+		int t2 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[2];
+		int t3 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[3];
+		int t4 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[4];
+		int t5 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[5];
+		int t6 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[6];
+		int t7 = ((in[inOffset++] & 0xFF) << 24 |
+				(in[inOffset++] & 0xFF) << 16 |
+				(in[inOffset++] & 0xFF) <<  8 |
+				(in[inOffset++] & 0xFF)        ) ^ Kdr[7];
+
+		int a0, a1, a2, a3, a4, a5, a6, a7;
+		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
+			Kdr = Kd[r];
+			a0 = (T5[(t0 >>> 24) & 0xFF] ^
+					T6[(t7 >>> 16) & 0xFF] ^
+					T7[(t5 >>>  8) & 0xFF] ^
+					T8[ t4         & 0xFF]  ) ^ Kdr[0];
+			a1 = (T5[(t1 >>> 24) & 0xFF] ^
+					T6[(t0 >>> 16) & 0xFF] ^
+					T7[(t6 >>>  8) & 0xFF] ^
+					T8[ t5         & 0xFF]  ) ^ Kdr[1];
+			a2 = (T5[(t2 >>> 24) & 0xFF] ^
+					T6[(t1 >>> 16) & 0xFF] ^
+					T7[(t7 >>>  8) & 0xFF] ^
+					T8[ t6         & 0xFF]  ) ^ Kdr[2];
+			a3 = (T5[(t3 >>> 24) & 0xFF] ^
+					T6[(t2 >>> 16) & 0xFF] ^
+					T7[(t0 >>>  8) & 0xFF] ^
+					T8[ t7         & 0xFF]  ) ^ Kdr[3];
+			a4 = (T5[(t4 >>> 24) & 0xFF] ^
+					T6[(t3 >>> 16) & 0xFF] ^
+					T7[(t1 >>>  8) & 0xFF] ^
+					T8[ t0         & 0xFF]  ) ^ Kdr[4];
+			a5 = (T5[(t5 >>> 24) & 0xFF] ^
+					T6[(t4 >>> 16) & 0xFF] ^
+					T7[(t2 >>>  8) & 0xFF] ^
+					T8[ t1         & 0xFF]  ) ^ Kdr[5];
+			a6 = (T5[(t6 >>> 24) & 0xFF] ^
+					T6[(t5 >>> 16) & 0xFF] ^
+					T7[(t3 >>>  8) & 0xFF] ^
+					T8[ t2         & 0xFF]  ) ^ Kdr[6];
+			a7 = (T5[(t7 >>> 24) & 0xFF] ^
+					T6[(t6 >>> 16) & 0xFF] ^
+					T7[(t4 >>>  8) & 0xFF] ^
+					T8[ t3         & 0xFF]  ) ^ Kdr[7];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3;
+			t4 = a4; t5 = a5; t6 = a6; t7 = a7;
+		}
+
+		// last round is special
+		Kdr = Kd[ROUNDS];
+		int tt;
+		tt = Kdr[0];
+		result[resultOffset+ 0] = (byte)(Si[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+ 1] = (byte)(Si[(t7 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+ 2] = (byte)(Si[(t5 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+ 3] = (byte)(Si[ t4         & 0xFF] ^  tt        );
+		tt = Kdr[1];
+		result[resultOffset+ 4] = (byte)(Si[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+ 5] = (byte)(Si[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+ 6] = (byte)(Si[(t6 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+ 7] = (byte)(Si[ t5         & 0xFF] ^  tt        );
+		tt = Kdr[2];
+		result[resultOffset+ 8] = (byte)(Si[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+ 9] = (byte)(Si[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+10] = (byte)(Si[(t7 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+11] = (byte)(Si[ t6         & 0xFF] ^  tt        );
+		tt = Kdr[3];
+		result[resultOffset+12] = (byte)(Si[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+13] = (byte)(Si[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+14] = (byte)(Si[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+15] = (byte)(Si[ t7         & 0xFF] ^  tt        );
+		tt = Kdr[4];
+		result[resultOffset+16] = (byte)(Si[(t4 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+17] = (byte)(Si[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+18] = (byte)(Si[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+19] = (byte)(Si[ t0         & 0xFF] ^  tt        );
+		tt = Kdr[5];
+		result[resultOffset+20] = (byte)(Si[(t5 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+21] = (byte)(Si[(t4 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+22] = (byte)(Si[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+23] = (byte)(Si[ t1         & 0xFF] ^  tt        );
+		tt = Kdr[6];
+		result[resultOffset+24] = (byte)(Si[(t6 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+25] = (byte)(Si[(t5 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+26] = (byte)(Si[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+27] = (byte)(Si[ t2         & 0xFF] ^  tt        );
+		tt = Kdr[7];
+		result[resultOffset+28] = (byte)(Si[(t7 >>> 24) & 0xFF] ^ (tt >>> 24));
+		result[resultOffset+29] = (byte)(Si[(t6 >>> 16) & 0xFF] ^ (tt >>> 16));
+		result[resultOffset+30] = (byte)(Si[(t4 >>>  8) & 0xFF] ^ (tt >>>  8));
+		result[resultOffset+31] = (byte)(Si[ t3         & 0xFF] ^  tt        );
+	}
+
+	/**
+	 * Encrypt exactly one block, of any block size, without allocating anything for the common
+	 * 128 and 256 bit block sizes.
+	 *
+	 * @param  in         The plaintext.
+	 * @param  inOffset   Index of in from which to start considering data.
+	 * @param  result     The buffer into which to write the resulting ciphertext.
+	 * @param  resultOffset Index of result at which to start writing.
+	 * @param  sessionKey The session key to use for encryption.
+	 * @param  blockSize  The block size in bytes of this Rijndael.
+	 */
+	static final void
+	blockEncrypt (byte[] in, int inOffset, byte[] result, int resultOffset, Object sessionKey, int blockSize) {
+		if (blockSize == BLOCK_SIZE)
+			blockEncrypt(in, result, inOffset, resultOffset, sessionKey);
+		else if (blockSize == 32)
+			blockEncrypt256(in, inOffset, result, resultOffset, sessionKey);
+		else if (resultOffset == 0)
+			blockEncrypt(in, result, inOffset, sessionKey, blockSize);
+		else {
+			byte[] buf = new byte[blockSize];
+			blockEncrypt(in, buf, inOffset, sessionKey, blockSize);
+			System.arraycopy(buf, 0, result, resultOffset, blockSize);
+		}
+	}
+
+	/**
+	 * Decrypt exactly one block, of any block size, without allocating anything for the common
+	 * 128 and 256 bit block sizes.
+	 *
+	 * @param  in         The ciphertext.
+	 * @param  inOffset   Index of in from which to start considering data.
+	 * @param  result     The buffer into which to write the resulting plaintext.
+	 * @param  resultOffset Index of result at which to start writing.
+	 * @param  sessionKey The session key to use for decryption.
+	 * @param  blockSize  The block size in bytes of this Rijndael.
+	 */
+	static final void
+	blockDecrypt (byte[] in, int inOffset, byte[] result, int resultOffset, Object sessionKey, int blockSize) {
+		if (blockSize == BLOCK_SIZE)
+			blockDecrypt(in, result, inOffset, resultOffset, sessionKey);
+		else if (blockSize == 32)
+			blockDecrypt256(in, inOffset, result, resultOffset, sessionKey);
+		else if (resultOffset == 0)
+			blockDecrypt(in, result, inOffset, sessionKey, blockSize);
+		else {
+			byte[] buf = new byte[blockSize];
+			blockDecrypt(in, buf, inOffset, sessionKey, blockSize);
+			System.arraycopy(buf, 0, result, resultOffset, blockSize);
+		}
+	}
+
 	/** A basic symmetric encryption/decryption test for a given key size. */
 	private static boolean self_test (int keysize) {
 		if (RDEBUG) trace(IN, "self_test("+keysize+ ')');
@@ -19,16 +19,17 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
+import freenet.support.Buffer;
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
@@ -36,10 +37,15 @@ import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NullOutputStream;
 
 /**
  * A Message which can be read from and written to a DatagramPacket
  *
+ * Fields are stored by their index in the MessageType. Primitive fields are kept unboxed in a
+ * long[], and everything else in an Object[]. Encoding and decoding go through the field type
+ * codes worked out when the MessageType was set up, rather than looking up each field by name.
+ *
  * @author ian
  */
 public class Message {
@@ -61,7 +67,12 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Values of primitive fields, doubles as their long bits */
+	private final long[] _primitives;
+	/** Values of other fields */
+	private final Object[] _objects;
+	/** Bit i is set if field i is set */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -88,16 +99,7 @@ public class Message {
 		    return null; // silently discard internal-only messages
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-		    for (String name : mspec.getOrderedFields()) {
-		        Class<?> type = mspec.getFields().get(name);
-		        if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-		            m.set(name, Serializer
-					        .readListFromDataInputStream(mspec.getLinkedListTypes().get(name),
-					        bb));
-		        } else {
-		            m.set(name, Serializer.readFromDataInputStream(type, bb));
-		        }
-			}
+			m.decodeFields(bb);
 			if (mayHaveSubMessages) {
 		    	while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 		    		ByteBufferInputStream bb2;
@@ -122,7 +124,7 @@ public class Message {
 		    	}
 		    }
 		} catch (EOFException e) {
-			String msg = peer.getPeer()+" sent a message packet that ends prematurely while deserialising "+mspec.getName();
+			String msg = (peer == null ? null : peer.getPeer())+" sent a message packet that ends prematurely while deserialising "+mspec.getName();
 			if(inSubMessage)
 				Logger.minor(Message.class, msg+" in sub-message", e);
 			else
@@ -136,6 +138,56 @@ public class Message {
 		return m;
 	}
 
+	/** Read the fields in order, primitives straight into their slots. */
+	private void decodeFields(ByteBufferInputStream bb) throws IOException {
+		int count = _spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
+			switch (_spec.getFieldCode(i)) {
+			case MessageType.FIELD_BOOLEAN:
+				byte bool = bb.readByte();
+				if (bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: "+bool);
+				_primitives[i] = bool;
+				break;
+			case MessageType.FIELD_BYTE:
+				_primitives[i] = bb.readByte();
+				break;
+			case MessageType.FIELD_SHORT:
+				_primitives[i] = bb.readShort();
+				break;
+			case MessageType.FIELD_INT:
+				_primitives[i] = bb.readInt();
+				break;
+			case MessageType.FIELD_LONG:
+			case MessageType.FIELD_DOUBLE:
+				_primitives[i] = bb.readLong();
+				break;
+			case MessageType.FIELD_STRING:
+				int length = bb.readInt();
+				if (length < 0 || length > bb.remaining() / 2)
+					throw new EOFException("String of length "+length+" with "+bb.remaining()+" bytes left");
+				char[] chars = new char[length];
+				for (int x = 0; x < length; x++)
+					chars[x] = bb.readChar();
+				_objects[i] = new String(chars);
+				break;
+			case MessageType.FIELD_BUFFER:
+				_objects[i] = new Buffer(bb);
+				break;
+			case MessageType.FIELD_SHORTBUFFER:
+				_objects[i] = new ShortBuffer(bb);
+				break;
+			case MessageType.FIELD_LINKEDLIST:
+				_objects[i] = Serializer.readListFromDataInputStream(
+				        _spec.getLinkedListTypes().get(_spec.getFieldName(i)), bb);
+				break;
+			default:
+				_objects[i] = Serializer.readFromDataInputStream(_spec.getFieldType(i), bb);
+			}
+			_set |= 1L << i;
+		}
+	}
+
 	public Message(MessageType spec) {
 		this(spec, null, 0);
 	}
@@ -151,62 +203,122 @@ public class Message {
 			_sourceRef = source.getWeakRef();
 		}
 		_receivedByteCount = recvByteCount;
+		int count = spec.getFieldCount();
+		_primitives = new long[count];
+		_objects = new Object[count];
+	}
+
+	/**
+	 * @return The index of a field which is set and is of the given type.
+	 * @throws IncorrectTypeException If there is no such field, or it has a different type.
+	 * @throws FieldNotSetException If the field is not set.
+	 */
+	private int getIndex(String key, byte code) {
+		int i = _spec.getFieldIndex(key);
+		if (i < 0)
+			throw new IncorrectTypeException("No field "+key+" in "+_spec.getName());
+		if (_spec.getFieldCode(i) != code)
+			throw new IncorrectTypeException("Field "+key+" is a "+_spec.getFieldType(i).getName());
+		if ((_set & (1L << i)) == 0)
+			throw new FieldNotSetException(key+" not set");
+		return i;
 	}
 
 	public boolean getBoolean(String key) {
-		return ((Boolean) _payload.get(key)).booleanValue();
+		return _primitives[getIndex(key, MessageType.FIELD_BOOLEAN)] != 0;
 	}
 
 	public byte getByte(String key) {
-		return ((Byte) _payload.get(key)).byteValue();
+		return (byte) _primitives[getIndex(key, MessageType.FIELD_BYTE)];
 	}
 
 	public short getShort(String key) {
-		return ((Short) _payload.get(key)).shortValue();
+		return (short) _primitives[getIndex(key, MessageType.FIELD_SHORT)];
 	}
 
 	public int getInt(String key) {
-		return ((Integer) _payload.get(key)).intValue();
+		return (int) _primitives[getIndex(key, MessageType.FIELD_INT)];
 	}
 
 	public long getLong(String key) {
-		return ((Long) _payload.get(key)).longValue();
+		return _primitives[getIndex(key, MessageType.FIELD_LONG)];
 	}
 
 	public double getDouble(String key) {
-	    return ((Double) _payload.get(key)).doubleValue();
+	    return Double.longBitsToDouble(_primitives[getIndex(key, MessageType.FIELD_DOUBLE)]);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		int i = _spec.getFieldIndex(key);
+		if (i < 0) return null;
+		return (String) _objects[i];
 	}
 
+	/**
+	 * @return The value of the field, boxed if it is a primitive, or null if it is not set.
+	 */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _spec.getFieldIndex(key);
+		if (i < 0 || (_set & (1L << i)) == 0) return null;
+		return getValue(i);
+	}
+
+	private Object getValue(int i) {
+		long v = _primitives[i];
+		switch (_spec.getFieldCode(i)) {
+		case MessageType.FIELD_BOOLEAN:
+			return Boolean.valueOf(v != 0);
+		case MessageType.FIELD_BYTE:
+			return Byte.valueOf((byte) v);
+		case MessageType.FIELD_SHORT:
+			return Short.valueOf((short) v);
+		case MessageType.FIELD_INT:
+			return Integer.valueOf((int) v);
+		case MessageType.FIELD_LONG:
+			return Long.valueOf(v);
+		case MessageType.FIELD_DOUBLE:
+			return new Double(Double.longBitsToDouble(v));
+		default:
+			return _objects[i];
+		}
+	}
+
+	/**
+	 * @return The index of a field of the given type.
+	 * @throws IncorrectTypeException If there is no such field, or it has a different type.
+	 */
+	private int setIndex(String key, byte code) {
+		int i = _spec.getFieldIndex(key);
+		if (i < 0)
+			throw new IncorrectTypeException("No field "+key+" in "+_spec.getName());
+		if (_spec.getFieldCode(i) != code)
+			throw new IncorrectTypeException("Field "+key+" is a "+_spec.getFieldType(i).getName());
+		_set |= 1L << i;
+		return i;
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		_primitives[setIndex(key, MessageType.FIELD_BOOLEAN)] = b ? 1 : 0;
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		_primitives[setIndex(key, MessageType.FIELD_BYTE)] = b;
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		_primitives[setIndex(key, MessageType.FIELD_SHORT)] = s;
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		_primitives[setIndex(key, MessageType.FIELD_INT)] = i;
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		_primitives[setIndex(key, MessageType.FIELD_LONG)] = l;
 	}
 
 	public void set(String key, double d) {
-		set(key, new Double(d));
+		_primitives[setIndex(key, MessageType.FIELD_DOUBLE)] = Double.doubleToLongBits(d);
 	}
 
 	public void set(String key, Object value) {
@@ -216,49 +328,192 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int i = _spec.getFieldIndex(key);
+		switch (_spec.getFieldCode(i)) {
+		case MessageType.FIELD_BOOLEAN:
+			_primitives[i] = ((Boolean) value).booleanValue() ? 1 : 0;
+			break;
+		case MessageType.FIELD_BYTE:
+			_primitives[i] = ((Byte) value).byteValue();
+			break;
+		case MessageType.FIELD_SHORT:
+			_primitives[i] = ((Short) value).shortValue();
+			break;
+		case MessageType.FIELD_INT:
+			_primitives[i] = ((Integer) value).intValue();
+			break;
+		case MessageType.FIELD_LONG:
+			_primitives[i] = ((Long) value).longValue();
+			break;
+		case MessageType.FIELD_DOUBLE:
+			_primitives[i] = Double.doubleToLongBits(((Double) value).doubleValue());
+			break;
+		default:
+			_objects[i] = value;
+		}
+		_set |= 1L << i;
 	}
 
 	public byte[] encodeToPacket(PeerContext destination) {
-		return encodeToPacket(destination, true, false);
+		byte[] buf = new byte[encodedLength(destination)];
+		encodeToPacket(destination, ByteBuffer.wrap(buf));
+		if(logDEBUG)
+			Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
 	}
 
-	private byte[] encodeToPacket(PeerContext destination, boolean includeSubMessages, boolean isSubMessage) {
-//		if (this.getSpec() != MessageTypes.ping && this.getSpec() != MessageTypes.pong)
-//		Logger.logMinor("<<<<< Send message : " + this);
+	/**
+	 * Encode the message, including any sub-messages, into the buffer at its current position.
+	 * @return The number of bytes written.
+	 * @throws java.nio.BufferOverflowException If the buffer is too small. Use
+	 * {@link #encodedLength(PeerContext)} to find out how much space is needed.
+	 */
+	public int encodeToPacket(PeerContext destination, ByteBuffer buf) {
+		return encodeToPacket(destination, buf, true);
+	}
 
+	private int encodeToPacket(PeerContext destination, ByteBuffer buf, boolean includeSubMessages) {
 		if(logDEBUG)
 			Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos, destination);
+		int start = buf.position();
+		buf.putInt(_spec.getName().hashCode());
+		int count = _spec.getFieldCount();
+		DataOutputStream dos = null;
+		for (int i = 0; i < count; i++) {
+			if ((_set & (1L << i)) == 0)
+				throw new FieldNotSetException(_spec.getFieldName(i)+" not set encoding "+_spec.getName());
+			long v = _primitives[i];
+			switch (_spec.getFieldCode(i)) {
+			case MessageType.FIELD_BOOLEAN:
+			case MessageType.FIELD_BYTE:
+				buf.put((byte) v);
+				break;
+			case MessageType.FIELD_SHORT:
+				buf.putShort((short) v);
+				break;
+			case MessageType.FIELD_INT:
+				buf.putInt((int) v);
+				break;
+			case MessageType.FIELD_LONG:
+			case MessageType.FIELD_DOUBLE:
+				buf.putLong(v);
+				break;
+			case MessageType.FIELD_STRING:
+				String s = (String) _objects[i];
+				buf.putInt(s.length());
+				for (int x = 0; x < s.length(); x++)
+					buf.putChar(s.charAt(x));
+				break;
+			case MessageType.FIELD_BUFFER:
+				Buffer b = (Buffer) _objects[i];
+				buf.putInt(b.getLength());
+				b.copyTo(buf);
+				break;
+			case MessageType.FIELD_SHORTBUFFER:
+				ShortBuffer sb = (ShortBuffer) _objects[i];
+				buf.putShort((short) sb.getLength());
+				sb.copyTo(buf);
+				break;
+			default:
+				if (dos == null)
+					dos = new DataOutputStream(new ByteBufferOutputStream(buf));
+				try {
+					Serializer.writeToDataOutputStream(_objects[i], dos, destination);
+					dos.flush();
+				} catch (IOException e) {
+					// Impossible
+					throw new IllegalStateException(e.getMessage());
+				}
 			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
 		}
 
 		if(_subMessages != null && includeSubMessages) {
 			for(int i=0;i<_subMessages.size();i++) {
-				byte[] temp = _subMessages.get(i).encodeToPacket(destination, false, true);
+				int lengthPos = buf.position();
+				buf.putShort((short) 0);
+				int length = _subMessages.get(i).encodeToPacket(destination, buf, false);
+				buf.putShort(lengthPos, (short) length);
+			}
+		}
+		return buf.position() - start;
+	}
+
+	/**
+	 * @return The number of bytes needed to encode the message, including any sub-messages.
+	 */
+	public int encodedLength(PeerContext destination) {
+		return encodedLength(destination, true);
+	}
+
+	private int encodedLength(PeerContext destination, boolean includeSubMessages) {
+		int length = 4;
+		int count = _spec.getFieldCount();
+		DataOutputStream dos = null;
+		for (int i = 0; i < count; i++) {
+			if ((_set & (1L << i)) == 0)
+				throw new FieldNotSetException(_spec.getFieldName(i)+" not set encoding "+_spec.getName());
+			switch (_spec.getFieldCode(i)) {
+			case MessageType.FIELD_BOOLEAN:
+			case MessageType.FIELD_BYTE:
+				length += 1;
+				break;
+			case MessageType.FIELD_SHORT:
+				length += 2;
+				break;
+			case MessageType.FIELD_INT:
+				length += 4;
+				break;
+			case MessageType.FIELD_LONG:
+			case MessageType.FIELD_DOUBLE:
+				length += 8;
+				break;
+			case MessageType.FIELD_STRING:
+				length += 4 + 2 * ((String) _objects[i]).length();
+				break;
+			case MessageType.FIELD_BUFFER:
+				length += 4 + ((Buffer) _objects[i]).getLength();
+				break;
+			case MessageType.FIELD_SHORTBUFFER:
+				length += 2 + ((ShortBuffer) _objects[i]).getLength();
+				break;
+			default:
+				// Rare, just write it to nowhere and count it.
+				if (dos == null)
+					dos = new DataOutputStream(new NullOutputStream());
+				int before = dos.size();
 				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
+					Serializer.writeToDataOutputStream(_objects[i], dos, destination);
 				} catch (IOException e) {
-					e.printStackTrace();
+					// Impossible
 					throw new IllegalStateException(e.getMessage());
 				}
+				length += dos.size() - before;
 			}
 		}
+		if(_subMessages != null && includeSubMessages) {
+			for(int i=0;i<_subMessages.size();i++)
+				length += 2 + _subMessages.get(i).encodedLength(destination, false);
+		}
+		return length;
+	}
 
-		byte[] buf = baos.toByteArray();
-		if(logDEBUG)
-			Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
+	/** Lets Serializer write the rarer field types straight into the buffer. */
+	private static class ByteBufferOutputStream extends OutputStream {
+		private final ByteBuffer buf;
+
+		ByteBufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buf.put(b, off, len);
+		}
 	}
 
 	@Override
@@ -266,9 +521,11 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		int count = _spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(_spec.getFieldName(i)).append('=');
+			ret.append((_set & (1L << i)) == 0 ? null : getValue(i));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -288,11 +545,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _spec.getFieldIndex(fieldName);
+		return i >= 0 && (_set & (1L << i)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
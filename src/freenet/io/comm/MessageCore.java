@@ -18,10 +18,7 @@
  */
 package freenet.io.comm;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
@@ -29,7 +26,6 @@ import freenet.node.PeerNode;
 import freenet.node.Ticker;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 
 public class MessageCore {
@@ -49,10 +45,10 @@ public class MessageCore {
 	}
 
 	private Dispatcher _dispatcher;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
+	/** _filters serves as lock for both */
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
+	private final UnclaimedMessages _unclaimed = new UnclaimedMessages(MAX_UNMATCHED_FIFO_SIZE);
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = 10*60*1000;  // 10 minutes; maybe this should be per message type??
 	// Every second, remove all timed out filters
 	private static final int FILTER_REMOVE_TIME = 1000;
@@ -116,20 +112,14 @@ public class MessageCore {
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					_timedOutFilters.add(f);
-				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
-			}
+			// Only looks at the filters which are due to time out, or due to ask their
+			// callbacks whether they should time out early.
+			// See also the end of waitFor() for another weird case.
+			_filters.removeTimedOut(tStart, _timedOutFilters);
+		}
+		if(logMINOR) {
+			for(MessageFilter f : _timedOutFilters)
+				Logger.minor(this, "Removing "+f);
 		}
 		
 		for(MessageFilter f : _timedOutFilters) {
@@ -166,21 +156,12 @@ public class MessageCore {
 		}
 		MessageFilter match = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				if (f.match(m)) {
-					matched = true;
-					i.remove();
-					match = f;
-					if(logMINOR) Logger.minor(this, "Matched: "+f);
-					break; // Only one match permitted per message
-				}
-			}
+			// Only one match permitted per message
+			match = _filters.removeMatch(m);
+		}
+		if(match != null) {
+			matched = true;
+			if(logMINOR) Logger.minor(this, "Matched: "+match);
 		}
 		if(match != null) {
 			match.setMessage(m);
@@ -221,27 +202,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					if (f.match(m)) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched: "+f);
-						break; // Only one match permitted per message
-					}
-				}
-				if(!matched) {
-				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
-				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
-				        if ((removed.getSource()) instanceof PeerNode) {
-				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        } else {
-				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        }
-				    }
-				    _unclaimed.addLast(m);
+				match = _filters.removeMatch(m);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched: "+match);
+				} else {
+				    _unclaimed.add(m);
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
 			}
@@ -262,18 +228,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeForConnection(ctx, false);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -284,18 +241,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeForConnection(ctx, true);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -321,7 +269,6 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
 			//have disconnected between check above and locking, so we *must* check again.
@@ -331,41 +278,13 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				if (filter.match(m)) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.debug(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = _unclaimed.removeMatch(filter, now, messageDropTime);
+			if(ret != null && logMINOR) Logger.debug(this, "Matching from _unclaimed");
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						break;
-					}
-				}
+				// Filters are kept in order of timeout
+				_filters.add(filter, now);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout());
 			}
 		}
 		if(ret != null) {
@@ -400,44 +319,15 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				if (filter.match(m)) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = _unclaimed.removeMatch(filter, now, messageDropTime);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						break;
-					}
-				}
+				// Filters are kept in order of timeout
+				_filters.add(filter, now);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout());
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -475,9 +365,6 @@ public class MessageCore {
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
 			synchronized(_filters) {
-				// Fortunately, it will be close to the beginning of the filters list, having
-				// just timed out. That is assuming it hasn't already been removed; in that
-				// case, this will be slower.
 				_filters.remove(filter);
 			}
 		}
@@ -525,20 +412,8 @@ public class MessageCore {
 	}
 	
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
-		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				String messageName = m.getSpec().getName();
-				Integer messageCount = messageCounts.get(messageName);
-				if (messageCount == null) {
-					messageCounts.put(messageName, Integer.valueOf(1) );
-				} else {
-					messageCount = Integer.valueOf(messageCount.intValue() + 1);
-					messageCounts.put(messageName, messageCount );
-				}
-			}
+			return _unclaimed.getMessageCounts();
 		}
-		return messageCounts;
 	}
 }
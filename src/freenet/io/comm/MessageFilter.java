@@ -130,6 +130,26 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The next filter in the chain, or null */
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** @return The value a field must have to match, or null if the field isn't set */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			return _fields.get(fieldName);
+		}
+	}
+
+	boolean hasCallback() {
+		return _callback != null;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -0,0 +1,220 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import freenet.support.Logger;
+
+/**
+ * The waiting MessageFilter's, indexed by message type, source and uid, so a message is only
+ * checked against the filters which could match it. Filters without a type go in a wildcard
+ * bucket, which is checked for every message.
+ *
+ * Filters are ordered by their timeout when added, then by the order they were added. If several
+ * filters match a message, the first one wins, like the old list sorted by timeout.
+ *
+ * Timeouts are checked in order of when each filter is next due, so a tick only looks at the
+ * filters which are due. A filter with a callback is also due every
+ * {@link #CALLBACK_CHECK_INTERVAL}, when its callback is asked whether it should time out early.
+ * The callback is also asked whenever a message is checked against the filter.
+ *
+ * Not thread-safe, MessageCore synchronizes on it.
+ */
+class MessageFilterIndex {
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		final long timeout;
+		final long seq;
+		/** Buckets this entry is in, one per alternative of the filter */
+		final List<TreeSet<Entry>> buckets = new ArrayList<TreeSet<Entry>>(1);
+		final List<MessageKey> keys = new ArrayList<MessageKey>(1);
+		/** When to next check whether the filter has timed out. Only changed while not in byCheckTime. */
+		long checkTime;
+
+		Entry(MessageFilter filter, long seq) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+		}
+
+		public int compareTo(Entry e) {
+			if (timeout != e.timeout) return timeout < e.timeout ? -1 : 1;
+			if (seq != e.seq) return seq < e.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private static final Comparator<Entry> CHECK_ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.checkTime != b.checkTime) return a.checkTime < b.checkTime ? -1 : 1;
+			return a.compareTo(b);
+		}
+	};
+
+	/** How often to ask a filter's callback whether it should time out early */
+	static final long CALLBACK_CHECK_INTERVAL = 10 * 1000;
+
+	private final Map<MessageFilter, Entry> entries = new HashMap<MessageFilter, Entry>();
+	private final Map<MessageKey, TreeSet<Entry>> byKey = new HashMap<MessageKey, TreeSet<Entry>>();
+	private final TreeSet<Entry> wildcard = new TreeSet<Entry>();
+	/** All entries in order of when they are next due to be checked for timeout */
+	private final TreeSet<Entry> byCheckTime = new TreeSet<Entry>(CHECK_ORDER);
+	private long seq;
+
+	int size() {
+		return entries.size();
+	}
+
+	void add(MessageFilter filter, long now) {
+		if (entries.containsKey(filter)) {
+			// Would have been in the old list twice.
+			Logger.error(this, "Filter added twice: " + filter, new Exception("error"));
+			remove(filter);
+		}
+		Entry e = new Entry(filter, seq++);
+		for (MessageFilter alt = filter; alt != null; alt = alt.getOr()) {
+			MessageType type = alt.getType();
+			TreeSet<Entry> bucket;
+			MessageKey key = null;
+			if (type == null) {
+				bucket = wildcard;
+			} else {
+				key = new MessageKey(type, alt.getSource(), alt.getField(DMT.UID));
+				bucket = byKey.get(key);
+				if (bucket == null) {
+					bucket = new TreeSet<Entry>();
+					byKey.put(key, bucket);
+				}
+			}
+			if (bucket.add(e)) {
+				e.buckets.add(bucket);
+				e.keys.add(key);
+			}
+		}
+		entries.put(filter, e);
+		e.checkTime = nextCheckTime(filter, now);
+		byCheckTime.add(e);
+	}
+
+	private static long nextCheckTime(MessageFilter filter, long now) {
+		long time = filter.getTimeout();
+		if (filter.hasCallback())
+			time = Math.min(time, now + CALLBACK_CHECK_INTERVAL);
+		return time;
+	}
+
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if (e == null) return false;
+		for (int i = 0; i < e.buckets.size(); i++) {
+			TreeSet<Entry> bucket = e.buckets.get(i);
+			bucket.remove(e);
+			MessageKey key = e.keys.get(i);
+			if (key != null && bucket.isEmpty())
+				byKey.remove(key);
+		}
+		byCheckTime.remove(e);
+		return true;
+	}
+
+	/**
+	 * Find the first filter which matches the message, and remove it.
+	 * @return The filter, or null.
+	 */
+	MessageFilter removeMatch(Message m) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+
+		Entry best = null;
+		best = firstMatch(byKey.get(new MessageKey(type, source, uid)), m, best);
+		if (uid != null)
+			best = firstMatch(byKey.get(new MessageKey(type, source, null)), m, best);
+		if (source != null)
+			best = firstMatch(byKey.get(new MessageKey(type, null, uid)), m, best);
+		if (uid != null && source != null)
+			best = firstMatch(byKey.get(new MessageKey(type, null, null)), m, best);
+		best = firstMatch(wildcard, m, best);
+
+		if (best == null) return null;
+		remove(best.filter);
+		return best.filter;
+	}
+
+	private Entry firstMatch(TreeSet<Entry> bucket, Message m, Entry best) {
+		if (bucket == null) return best;
+		List<MessageFilter> preMatched = null;
+		for (Entry e : bucket) {
+			if (best != null && e.compareTo(best) >= 0) break;
+			MessageFilter f = e.filter;
+			if (f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: " + f);
+				if (preMatched == null) preMatched = new ArrayList<MessageFilter>();
+				preMatched.add(f);
+				continue;
+			}
+			if (f.match(m)) {
+				best = e;
+				break;
+			}
+		}
+		if (preMatched != null)
+			for (MessageFilter f : preMatched)
+				remove(f);
+		return best;
+	}
+
+	/**
+	 * Remove the filters which have timed out, and add them to the list. Only looks at the
+	 * filters which are due: those past their timeout, and those with a callback which haven't
+	 * been asked for {@link #CALLBACK_CHECK_INTERVAL}.
+	 */
+	void removeTimedOut(long now, List<MessageFilter> timedOut) {
+		List<Entry> due = null;
+		for (Entry e : byCheckTime) {
+			if (e.checkTime >= now) break;
+			if (due == null) due = new ArrayList<Entry>();
+			due.add(e);
+		}
+		if (due == null) return;
+		for (Entry e : due) {
+			if (e.filter.timedOut(now)) {
+				remove(e.filter);
+				timedOut.add(e.filter);
+			} else {
+				byCheckTime.remove(e);
+				e.checkTime = nextCheckTime(e.filter, now);
+				byCheckTime.add(e);
+			}
+		}
+	}
+
+	/**
+	 * Remove the filters which wait for a message from a connection which has been dropped or
+	 * restarted. Rare, so we just look at all of them.
+	 * @return The filters removed, or null.
+	 */
+	List<MessageFilter> removeForConnection(PeerContext ctx, boolean restarted) {
+		List<MessageFilter> dropped = null;
+		for (Iterator<MessageFilter> i = entries.keySet().iterator(); i.hasNext();) {
+			MessageFilter f = i.next();
+			if (restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if (dropped == null) dropped = new ArrayList<MessageFilter>();
+				dropped.add(f);
+			}
+		}
+		if (dropped != null)
+			for (MessageFilter f : dropped)
+				remove(f);
+		return dropped;
+	}
+}
@@ -0,0 +1,48 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+/**
+ * Message type, source and uid, used to index messages and the filters waiting for them. Each
+ * of source and uid may be null, meaning not set, or for a filter, that it doesn't care.
+ *
+ * @see MessageFilterIndex
+ * @see UnclaimedMessages
+ */
+final class MessageKey {
+	final MessageType type;
+	final PeerContext source;
+	final Object uid;
+	private final int hashCode;
+
+	MessageKey(MessageType type, PeerContext source, Object uid) {
+		this.type = type;
+		this.source = source;
+		this.uid = uid;
+		int h = type.hashCode();
+		if (source != null) h = h * 31 + source.hashCode();
+		if (uid != null) h = h * 31 + uid.hashCode();
+		hashCode = h;
+	}
+
+	/** @return The key of a message, with its uid if set. */
+	static MessageKey of(Message m) {
+		return new MessageKey(m.getSpec(), m.getSource(), m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MessageKey)) return false;
+		MessageKey k = (MessageKey) o;
+		if (!type.equals(k.type)) return false;
+		if (source == null ? k.source != null : !source.equals(k.source)) return false;
+		if (uid == null ? k.uid != null : !uid.equals(k.uid)) return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+}
@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
+import freenet.support.Buffer;
 import freenet.support.Logger;
 import freenet.support.ShortBuffer;
 
@@ -36,6 +37,29 @@ public class MessageType {
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/** Index of each field in the ordered fields, used by Message to store and encode its
+	 * payload without looking up each field by name. */
+	private final HashMap<String, Integer> _fieldIndexes = new HashMap<String, Integer>();
+	private String[] _fieldNames = new String[0];
+	private Class<?>[] _fieldTypes = new Class<?>[0];
+	private byte[] _fieldCodes = new byte[0];
+
+	/** Maximum number of fields, Message keeps track of which fields are set in a long */
+	static final int MAX_FIELDS = 64;
+
+	// Field type codes
+	static final byte FIELD_BOOLEAN = 0;
+	static final byte FIELD_BYTE = 1;
+	static final byte FIELD_SHORT = 2;
+	static final byte FIELD_INT = 3;
+	static final byte FIELD_LONG = 4;
+	static final byte FIELD_DOUBLE = 5;
+	static final byte FIELD_STRING = 6;
+	static final byte FIELD_BUFFER = 7;
+	static final byte FIELD_SHORTBUFFER = 8;
+	static final byte FIELD_LINKEDLIST = 9;
+	/** Anything else, handled by Serializer */
+	static final byte FIELD_OTHER = 10;
 	private final boolean internalOnly;
 	private final short priority;
 
@@ -64,8 +88,62 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if(_fieldIndexes.containsKey(name))
+			throw new IllegalArgumentException("Field "+name+" already exists in "+_name);
+		if(_fieldNames.length == MAX_FIELDS)
+			throw new IllegalArgumentException("Too many fields in "+_name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		int index = _fieldNames.length;
+		_fieldIndexes.put(name, index);
+		String[] names = new String[index + 1];
+		System.arraycopy(_fieldNames, 0, names, 0, index);
+		names[index] = name;
+		Class<?>[] types = new Class<?>[index + 1];
+		System.arraycopy(_fieldTypes, 0, types, 0, index);
+		types[index] = type;
+		byte[] codes = new byte[index + 1];
+		System.arraycopy(_fieldCodes, 0, codes, 0, index);
+		codes[index] = fieldCode(type);
+		_fieldNames = names;
+		_fieldTypes = types;
+		_fieldCodes = codes;
+	}
+
+	private static byte fieldCode(Class<?> type) {
+		if(type == Boolean.class) return FIELD_BOOLEAN;
+		if(type == Byte.class) return FIELD_BYTE;
+		if(type == Short.class) return FIELD_SHORT;
+		if(type == Integer.class) return FIELD_INT;
+		if(type == Long.class) return FIELD_LONG;
+		if(type == Double.class) return FIELD_DOUBLE;
+		if(type == String.class) return FIELD_STRING;
+		if(type == Buffer.class) return FIELD_BUFFER;
+		if(type == ShortBuffer.class) return FIELD_SHORTBUFFER;
+		if(type == LinkedList.class) return FIELD_LINKEDLIST;
+		return FIELD_OTHER;
+	}
+
+	/** @return The index of the field, or -1 if there is no such field. */
+	int getFieldIndex(String name) {
+		Integer index = _fieldIndexes.get(name);
+		return index == null ? -1 : index.intValue();
+	}
+
+	int getFieldCount() {
+		return _fieldNames.length;
+	}
+
+	String getFieldName(int index) {
+		return _fieldNames[index];
+	}
+
+	Class<?> getFieldType(int index) {
+		return _fieldTypes[index];
+	}
+
+	byte getFieldCode(int index) {
+		return _fieldCodes[index];
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -80,6 +158,9 @@ public class MessageType {
 			return false;
 		}
 		Class<?> defClass = _fields.get(fieldName);
+		if (defClass == null) {
+			return false;
+		}
 		Class<?> valueClass = fieldValue.getClass();
 		if(defClass == valueClass) return true;
 		if(defClass.isAssignableFrom(valueClass)) return true;
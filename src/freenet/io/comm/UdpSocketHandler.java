@@ -1,13 +1,22 @@
 package freenet.io.comm;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -18,9 +27,16 @@ import freenet.support.OOMHandler;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
+/**
+ * Sends and receives UDP packets. One thread drains the socket, and hands the packets to a few
+ * worker threads which decrypt and process them. Packets from the same IP address always go to
+ * the same worker, so they are processed in order, even if the peer's NAT changes its port.
+ */
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
+	private final DatagramChannel _channel;
 	private final DatagramSocket _sock;
+	private final Selector _selector;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -39,9 +55,29 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private final int listenPort;
 	private final String title;
 	private boolean _started;
+	/** Number of worker threads still running */
+	private int runningWorkers;
 	private long startTime;
 	private final IOStatisticCollector collector;
 
+	/** Number of threads processing received packets */
+	private static final int RECEIVE_WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	/** Maximum number of packets waiting for each worker. Further packets are dropped. */
+	private static final int RECEIVE_QUEUE_SIZE = 512;
+	private final ReceiveWorker[] workers;
+	/** Free receive buffers */
+	private final BlockingQueue<byte[]> bufferPool;
+
+	// Statistics
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private final AtomicLong sendsDropped = new AtomicLong();
+	/** Total time packets spent waiting for a worker, in ms */
+	private final AtomicLong totalQueueTime = new AtomicLong();
+	/** Total time spent processing packets, in ms */
+	private final AtomicLong totalProcessTime = new AtomicLong();
+	private final AtomicLong packetsProcessed = new AtomicLong();
+
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
@@ -53,18 +89,35 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
-		}
 		try {
+			_channel = DatagramChannel.open();
+			_sock = _channel.socket();
 			// Exit reasonably quickly
 			_sock.setReuseAddress(true);
+			_sock.bind(new InetSocketAddress(bindto, listenPort));
+			int sz = _sock.getReceiveBufferSize();
+			if(sz < 65536) {
+				_sock.setReceiveBufferSize(65536);
+			}
+			// Sends don't block, so packets which don't fit in the send buffer are dropped.
+			if(_sock.getSendBufferSize() < 65536) {
+				_sock.setSendBufferSize(65536);
+			}
+			_channel.configureBlocking(false);
+			_selector = Selector.open();
+			_channel.register(_selector, SelectionKey.OP_READ);
 		} catch (SocketException e) {
-			throw new RuntimeException(e);
+			throw e;
+		} catch (IOException e) {
+			SocketException se = new SocketException("Unable to open UDP socket on port "+listenPort+": "+e);
+			se.initCause(e);
+			throw se;
 		}
 //		}
+		workers = new ReceiveWorker[RECEIVE_WORKERS];
+		for(int i=0;i<workers.length;i++)
+			workers[i] = new ReceiveWorker(i);
+		bufferPool = new ArrayBlockingQueue<byte[]>(RECEIVE_WORKERS * RECEIVE_QUEUE_SIZE);
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
@@ -128,11 +181,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
-		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
 			try {
-				realRun(packet);
+				realRun();
 			} catch (OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -144,66 +195,187 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void realRun(DatagramPacket packet) {
+	private void realRun() throws IOException {
 		// Single receiving thread
-		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
-		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
-			if(endTime - startTime > 50) {
-				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
-				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
-				}
+		try {
+			if(_selector.select(SELECT_TIMEOUT) == 0) {
+				if(logDEBUG) Logger.debug(this, "No packet received");
+				return;
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
+			_selector.selectedKeys().clear();
+		} catch (ClosedChannelException e) {
+			return;
+		} catch (ClosedSelectorException e) {
+			return;
+		}
+		// Drain the socket before going back to select().
+		int count = 0;
+		while (_active) {
+			byte[] buf = bufferPool.poll();
+			if(buf == null) buf = new byte[MAX_RECEIVE_SIZE];
+			InetSocketAddress address;
+			ByteBuffer bb = ByteBuffer.wrap(buf);
 			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+				address = (InetSocketAddress) _channel.receive(bb);
+			} catch (ClosedChannelException e) {
+				// closed, just return silently
+				return;
+			} catch (IOException e) {
+				if (!_active) return;
+				throw e;
+			}
+			if(address == null) {
+				bufferPool.offer(buf);
+				break;
+			}
+			count++;
+			packetsReceived.incrementAndGet();
+			ReceivedPacket packet = new ReceivedPacket(buf, bb.position(), address, System.currentTimeMillis());
+			// By IP address only, so a peer whose port changes stays on the same worker.
+			ReceiveWorker worker = workers[(address.getAddress().hashCode() & Integer.MAX_VALUE) % workers.length];
+			if(!worker.queue.offer(packet)) {
+				packetsDropped.incrementAndGet();
+				bufferPool.offer(buf);
+				if(logMINOR) Logger.minor(this, "Dropping packet from "+address+": queue full for worker "+worker.index);
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
+		if(logMINOR) Logger.minor(this, "Received "+count+" packets");
 	}
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
+	/** Check whether we are still active this often */
+	private static final int SELECT_TIMEOUT = 1000;
+
+	/** A packet waiting to be processed */
+	private static class ReceivedPacket {
+		final byte[] data;
+		final int length;
+		final InetSocketAddress address;
+		final long receivedTime;
+
+		ReceivedPacket(byte[] data, int length, InetSocketAddress address, long receivedTime) {
+			this.data = data;
+			this.length = length;
+			this.address = address;
+			this.receivedTime = receivedTime;
+		}
+	}
 
-	private boolean getPacket(DatagramPacket packet) {
-		try {
-			_sock.receive(packet);
-			collector.addInfo(packet.getAddress() + ":" + packet.getPort(),
-					packet.getLength(), 0); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
-		} catch (SocketTimeoutException e1) {
-			return false;
-		} catch (IOException e2) {
-			if (!_active) { // closed, just return silently
-				return false;
+	/** Decrypts and processes the packets from a subset of addresses, in the order received. */
+	private class ReceiveWorker implements PrioRunnable {
+
+		final int index;
+		final BlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(RECEIVE_QUEUE_SIZE);
+
+		ReceiveWorker(int index) {
+			this.index = index;
+		}
+
+		public void run() {
+			try {
+				while (_active) {
+					ReceivedPacket packet;
+					try {
+						packet = queue.poll(SELECT_TIMEOUT, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						continue;
+					}
+					if(packet == null) continue;
+					try {
+						process(packet);
+					} catch (OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught " + t, t);
+					} finally {
+						bufferPool.offer(packet.data);
+					}
+				}
+			} finally {
+				synchronized (UdpSocketHandler.this) {
+					runningWorkers--;
+					UdpSocketHandler.this.notifyAll();
+				}
+			}
+		}
+
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+	}
+
+	private void process(ReceivedPacket packet) {
+		long startTime = System.currentTimeMillis();
+		totalQueueTime.addAndGet(startTime - packet.receivedTime);
+		Peer peer = new Peer(packet.address.getAddress(), packet.address.getPort());
+		tracker.receivedPacketFrom(peer);
+		collector.addInfo(packet.address.getAddress() + ":" + packet.address.getPort(),
+				packet.length, 0); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
 			} else {
-				throw new RuntimeException(e2);
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 			}
 		}
-		if(logMINOR) Logger.minor(this, "Received packet");
-		return true;
+		int length = packet.length;
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(packet.data, 0, length, peer, packet.receivedTime);
+			endTime = System.currentTimeMillis();
+			totalProcessTime.addAndGet(endTime - startTime);
+			packetsProcessed.incrementAndGet();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
+	/** @return The number of received packets waiting to be processed */
+	public int getReceiveQueueDepth() {
+		int depth = 0;
+		for(ReceiveWorker worker : workers)
+			depth += worker.queue.size();
+		return depth;
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	/** @return The number of received packets dropped because the workers couldn't keep up */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	/** @return The number of packets not sent because the socket's send buffer was full */
+	public long getSendsDropped() {
+		return sendsDropped.get();
+	}
+
+	/** @return The average time a packet waits for a worker, in ms */
+	public double getAverageQueueTime() {
+		long count = packetsProcessed.get();
+		if(count == 0) return 0.0;
+		return ((double) totalQueueTime.get()) / count;
+	}
+
+	/** @return The average time taken to decrypt and process a packet, in ms */
+	public double getAverageProcessTime() {
+		long count = packetsProcessed.get();
+		if(count == 0) return 0.0;
+		return ((double) totalProcessTime.get()) / count;
 	}
 
 	/**
@@ -237,17 +409,21 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
-
 		try {
-			_sock.send(packet);
+			ByteBuffer buf = ByteBuffer.wrap(blockToSend);
+			InetSocketAddress target = new InetSocketAddress(address, port);
+			// The channel is non-blocking. If the send buffer is full, drop the packet like the
+			// network would: the packet layer resends it, and the sender's thread isn't held up.
+			if(_channel.send(buf, target) == 0) {
+				sendsDropped.incrementAndGet();
+				if(logMINOR) Logger.minor(this, "Socket send buffer full, dropped packet length "+blockToSend.length+" to "+address+':'+port);
+				return;
+			}
 			tracker.sentPacketTo(destination);
 			collector.addInfo(address + ":" + port, 0, blockToSend.length + UDP_HEADERS_LENGTH);
 			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
+			if(address instanceof Inet6Address) {
 				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e, e);
 			} else {
 				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
@@ -296,7 +472,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized(this) {
 			_started = true;
 			startTime = System.currentTimeMillis();
+			runningWorkers = workers.length;
 		}
+		for(int i=0;i<workers.length;i++)
+			node.executor.execute(workers[i], "UdpSocketHandler worker "+i+" for port "+listenPort);
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
 	}
 
@@ -304,10 +483,15 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
+			try {
+				_selector.close();
+			} catch (IOException e) {
+				Logger.error(this, "Error closing selector: "+e, e);
+			}
 			_sock.close();
 
 			if(!_started) return;
-			while (!_isDone) {
+			while (!_isDone || runningWorkers > 0) {
 				try {
 					wait(2000);
 				} catch (InterruptedException e) {
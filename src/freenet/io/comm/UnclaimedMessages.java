@@ -0,0 +1,157 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import freenet.node.PeerNode;
+import freenet.support.Logger;
+import freenet.support.TimeUtil;
+
+/**
+ * FIFO of messages which didn't match any filter, in case the intended receiver isn't waiting
+ * yet. Indexed by message type, and by type, source and uid, so a new filter doesn't have to be
+ * checked against every message.
+ *
+ * Not thread-safe, MessageCore synchronizes on its filters.
+ */
+class UnclaimedMessages {
+
+	/** Wrapper so that the same Message can be in the FIFO twice */
+	private static final class Item {
+		final Message message;
+		final MessageKey key;
+
+		Item(Message message, MessageKey key) {
+			this.message = message;
+			this.key = key;
+		}
+	}
+
+	private final int maxSize;
+	private final LinkedHashSet<Item> fifo = new LinkedHashSet<Item>();
+	private final Map<MessageType, LinkedHashSet<Item>> byType = new HashMap<MessageType, LinkedHashSet<Item>>();
+	private final Map<MessageKey, LinkedHashSet<Item>> byKey = new HashMap<MessageKey, LinkedHashSet<Item>>();
+
+	UnclaimedMessages(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	int size() {
+		return fifo.size();
+	}
+
+	/**
+	 * Add a message, dropping the oldest messages if there are too many.
+	 */
+	void add(Message m) {
+		while (fifo.size() > maxSize) {
+			Item removed = fifo.iterator().next();
+			remove(removed);
+			long messageLifeTime = System.currentTimeMillis() - removed.message.localInstantiationTime;
+			logDropped(removed.message, messageLifeTime, "quantity");
+		}
+		Item item = new Item(m, MessageKey.of(m));
+		fifo.add(item);
+		LinkedHashSet<Item> list = byType.get(item.key.type);
+		if (list == null) {
+			list = new LinkedHashSet<Item>();
+			byType.put(item.key.type, list);
+		}
+		list.add(item);
+		list = byKey.get(item.key);
+		if (list == null) {
+			list = new LinkedHashSet<Item>();
+			byKey.put(item.key, list);
+		}
+		list.add(item);
+	}
+
+	private void remove(Item item) {
+		fifo.remove(item);
+		LinkedHashSet<Item> list = byType.get(item.key.type);
+		list.remove(item);
+		if (list.isEmpty()) byType.remove(item.key.type);
+		list = byKey.get(item.key);
+		list.remove(item);
+		if (list.isEmpty()) byKey.remove(item.key);
+	}
+
+	/**
+	 * Find and remove the oldest message which matches the filter. Also drop any messages older
+	 * than dropTime which the filter doesn't match.
+	 * @return The message, or null.
+	 */
+	Message removeMatch(MessageFilter filter, long now, long dropTime) {
+		// Drop old messages from the head, unless the filter wants them.
+		for (Iterator<Item> i = fifo.iterator(); i.hasNext();) {
+			Item item = i.next();
+			if (item.message.localInstantiationTime >= dropTime) break;
+			i.remove();
+			remove(item);
+			if (filter.match(item.message))
+				return item.message;
+			logDropped(item.message, now - item.message.localInstantiationTime, "age");
+		}
+
+		Item best = null;
+		for (MessageFilter alt = filter; alt != null; alt = alt.getOr()) {
+			MessageType type = alt.getType();
+			Iterable<Item> candidates;
+			if (type == null) {
+				candidates = fifo;
+			} else {
+				PeerContext source = alt.getSource();
+				Object uid = alt.getField(DMT.UID);
+				if (source != null && uid != null)
+					candidates = byKey.get(new MessageKey(type, source, uid));
+				else
+					candidates = byType.get(type);
+			}
+			if (candidates == null) continue;
+			for (Item item : candidates) {
+				if (best != null && item.message.localInstantiationTime > best.message.localInstantiationTime)
+					break;
+				if (item == best) break;
+				if (filter.match(item.message)) {
+					if (best == null || isBefore(item, best))
+						best = item;
+					break;
+				}
+			}
+		}
+		if (best == null) return null;
+		remove(best);
+		return best.message;
+	}
+
+	/** Is a before b in the FIFO? */
+	private boolean isBefore(Item a, Item b) {
+		if (a.message.localInstantiationTime != b.message.localInstantiationTime)
+			return a.message.localInstantiationTime < b.message.localInstantiationTime;
+		for (Item item : fifo) {
+			if (item == a) return true;
+			if (item == b) return false;
+		}
+		return false;
+	}
+
+	Map<String, Integer> getMessageCounts() {
+		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
+		for (Map.Entry<MessageType, LinkedHashSet<Item>> e : byType.entrySet())
+			messageCounts.put(e.getKey().getName(), e.getValue().size());
+		return messageCounts;
+	}
+
+	private void logDropped(Message m, long messageLifeTime, String reason) {
+		if ((m.getSource()) instanceof PeerNode) {
+			Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" ("+reason+")"+": "+m);
+		} else {
+			Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" ("+reason+")"+": "+m);
+		}
+	}
+}
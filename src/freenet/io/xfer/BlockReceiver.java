@@ -68,6 +68,7 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 	private MessageFilter discardFilter;
 	private long discardEndTime;
 	private boolean senderAborted;
+	private int consecutiveMissingPacketReports;
 //	private final boolean _doTooLong;
 
 	boolean logMINOR=Logger.shouldLog(LogLevel.MINOR, this);
@@ -87,6 +88,13 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 		sentAborted=true;
 	}
 	
+	/** Called when an asynchronous receive() finishes. Called on the thread which delivered the
+	 * last message or timeout, so implementations should return quickly. */
+	public interface BlockReceiverCompletion {
+		public void blockReceived(byte[] buf);
+		public void blockReceiveFailed(RetrievalException e);
+	}
+
 	public byte[] receive() throws RetrievalException {
 		long startTime = System.currentTimeMillis();
 //		if(_doTooLong) {
@@ -108,92 +116,205 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 //			
 //		}, TOO_LONG_TIMEOUT);
 //		}
-		int consecutiveMissingPacketReports = 0;
 		try {
-			MessageFilter mfPacketTransmit = MessageFilter.create().setTimeout(RECEIPT_TIMEOUT).setType(DMT.packetTransmit).setField(DMT.UID, _uid).setSource(_sender);
-			MessageFilter mfAllSent = MessageFilter.create().setTimeout(RECEIPT_TIMEOUT).setType(DMT.allSent).setField(DMT.UID, _uid).setSource(_sender);
-			MessageFilter mfSendAborted = MessageFilter.create().setTimeout(RECEIPT_TIMEOUT).setType(DMT.sendAborted).setField(DMT.UID, _uid).setSource(_sender);
-			MessageFilter relevantMessages=mfPacketTransmit.or(mfAllSent.or(mfSendAborted));
+			MessageFilter relevantMessages=relevantMessages();
 		while (!_prb.allReceived()) {
 			Message m1;
             try {
             	m1 = _usm.waitFor(relevantMessages, _ctr);
                 if(!_sender.isConnected()) throw new DisconnectedException();
             } catch (DisconnectedException e1) {
-                Logger.normal(this, "Disconnected during receive: "+_uid+" from "+_sender);
-                _prb.abort(RetrievalException.SENDER_DISCONNECTED, "Disconnected during receive");
-                throw new RetrievalException(RetrievalException.SENDER_DISCONNECTED);
+                throw onDisconnected();
             }
-            if(logMINOR)
-            	Logger.minor(this, "Received "+m1);
-            if ((m1 != null) && m1.getSpec().equals(DMT.sendAborted)) {
-				String desc=m1.getString(DMT.DESCRIPTION);
-				if (desc.indexOf("Upstream")<0)
-					desc="Upstream transmit error: "+desc;
-				_prb.abort(m1.getInt(DMT.REASON), desc);
-				synchronized(this) {
-					senderAborted = true;
-				}
-				throw new RetrievalException(m1.getInt(DMT.REASON), desc);
+            processMessage(m1);
+		}
+		return completed(relevantMessages, startTime);
+		} catch(NotConnectedException e) {
+		    throw new RetrievalException(RetrievalException.SENDER_DISCONNECTED);
+		} catch(AbortedException e) {
+			// We didn't cause it?!
+			Logger.error(this, "Caught in receive - probably a bug as receive sets it: "+e);
+			throw new RetrievalException(RetrievalException.UNKNOWN, "Aborted?");
+		} finally {
+			maybeSendAborted();
+		}
+	}
+
+	/**
+	 * Receive the block without blocking a thread: each message or timeout is handled by
+	 * callbacks from the MessageCore. Otherwise exactly the same as receive().
+	 */
+	public void receive(BlockReceiverCompletion callback) {
+		new AsyncReceive(callback).waitForMessage();
+	}
+
+	private class AsyncReceive implements AsyncMessageFilterCallback {
+
+		private final BlockReceiverCompletion callback;
+		private final long startTime = System.currentTimeMillis();
+		private MessageFilter relevantMessages;
+
+		AsyncReceive(BlockReceiverCompletion callback) {
+			this.callback = callback;
+		}
+
+		void waitForMessage() {
+			relevantMessages = relevantMessages();
+			try {
+				_usm.addAsyncFilter(relevantMessages, this);
+			} catch (DisconnectedException e) {
+				onDisconnect(_sender);
 			}
-			if ((m1 != null) && (m1.getSpec().equals(DMT.packetTransmit))) {
-				consecutiveMissingPacketReports = 0;
-				// packetTransmit received
-				int packetNo = m1.getInt(DMT.PACKET_NO);
-				BitArray sent = (BitArray) m1.getObject(DMT.SENT);
-				Buffer data = (Buffer) m1.getObject(DMT.DATA);
-				_prb.addPacket(packetNo, data);
-				// Remove it from rrmp if its in there
-				_recentlyReportedMissingPackets.remove(packetNo);
-				// Check that we have what the sender thinks we have
-				LinkedList<Integer> missing = new LinkedList<Integer>();
-				for (int x = 0; x < sent.getSize(); x++) {
-					if (sent.bitAt(x) && !_prb.isReceived(x)) {
-						// Sender thinks we have a block which we don't, but have we already
-						// re-requested it recently?
-						Long resendTime = _recentlyReportedMissingPackets.get(x);
-						if ((resendTime == null) || (System.currentTimeMillis() > resendTime.longValue())) {
-							// Make a note of the earliest time we should resend this, based on the number of other
-							// packets we are already waiting for
-							long resendWait = System.currentTimeMillis()
-									+ (MAX_ROUND_TRIP_TIME + (_recentlyReportedMissingPackets.size() * MAX_SEND_INTERVAL));
-							_recentlyReportedMissingPackets.put(x, resendWait);
-							missing.add(x);
-						}
-					}
-				}
-				if(logMINOR)
-					Logger.minor(this, "Missing: "+missing.size());
-				if (missing.size() > 0) {
-					Message mn = DMT.createMissingPacketNotification(_uid, missing);
-					_usm.send(_sender, mn, _ctr);
-					consecutiveMissingPacketReports++;
-					if (missing.size() > 50) {
-						Logger.normal(this, "Excessive packet loss : "+mn);
+		}
+
+		private void handle(Message m1) {
+			byte[] block;
+			try {
+				try {
+					processMessage(m1);
+					if(!_prb.allReceived()) {
+						waitForMessage();
+						return;
 					}
+					block = completed(relevantMessages, startTime);
+				} catch(NotConnectedException e) {
+					throw new RetrievalException(RetrievalException.SENDER_DISCONNECTED);
+				} catch(AbortedException e) {
+					// We didn't cause it?!
+					Logger.error(this, "Caught in receive - probably a bug as receive sets it: "+e);
+					throw new RetrievalException(RetrievalException.UNKNOWN, "Aborted?");
 				}
+			} catch (RetrievalException e) {
+				maybeSendAborted();
+				callback.blockReceiveFailed(e);
+				return;
+			}
+			callback.blockReceived(block);
+		}
 
+		public void onMatched(Message m) {
+			if(_ctr != null)
+				_ctr.receivedBytes(m.receivedByteCount());
+			if(!_sender.isConnected()) {
+				onDisconnect(_sender);
+				return;
 			}
-			if ((m1 == null) || (m1.getSpec().equals(DMT.allSent))) {
-				if (consecutiveMissingPacketReports >= MAX_CONSECUTIVE_MISSING_PACKET_REPORTS) {
-					_prb.abort(RetrievalException.SENDER_DIED, "Sender unresponsive to resend requests");
-					throw new RetrievalException(RetrievalException.SENDER_DIED,
-							"Sender unresponsive to resend requests");
-				}
-				LinkedList<Integer> missing = new LinkedList<Integer>();
-				for (int x = 0; x < _prb.getNumPackets(); x++) {
-					if (!_prb.isReceived(x)) {
+			handle(m);
+		}
+
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		public void onTimeout() {
+			handle(null);
+		}
+
+		public void onDisconnect(PeerContext ctx) {
+			RetrievalException e = onDisconnected();
+			maybeSendAborted();
+			callback.blockReceiveFailed(e);
+		}
+
+		public void onRestarted(PeerContext ctx) {
+			onDisconnect(ctx);
+		}
+
+	}
+
+	private MessageFilter relevantMessages() {
+		MessageFilter mfPacketTransmit = MessageFilter.create().setTimeout(RECEIPT_TIMEOUT).setType(DMT.packetTransmit).setField(DMT.UID, _uid).setSource(_sender);
+		MessageFilter mfAllSent = MessageFilter.create().setTimeout(RECEIPT_TIMEOUT).setType(DMT.allSent).setField(DMT.UID, _uid).setSource(_sender);
+		MessageFilter mfSendAborted = MessageFilter.create().setTimeout(RECEIPT_TIMEOUT).setType(DMT.sendAborted).setField(DMT.UID, _uid).setSource(_sender);
+		return mfPacketTransmit.or(mfAllSent.or(mfSendAborted));
+	}
+
+	/** @return The exception to fail the transfer with. */
+	private RetrievalException onDisconnected() {
+		Logger.normal(this, "Disconnected during receive: "+_uid+" from "+_sender);
+		_prb.abort(RetrievalException.SENDER_DISCONNECTED, "Disconnected during receive");
+		return new RetrievalException(RetrievalException.SENDER_DISCONNECTED);
+	}
+
+	/**
+	 * Deal with a message from the sender.
+	 * @param m1 The message, or null if we timed out waiting for one.
+	 * @throws RetrievalException If the transfer has failed.
+	 */
+	private void processMessage(Message m1) throws RetrievalException, NotConnectedException, AbortedException {
+		if(logMINOR)
+			Logger.minor(this, "Received "+m1);
+		if ((m1 != null) && m1.getSpec().equals(DMT.sendAborted)) {
+			String desc=m1.getString(DMT.DESCRIPTION);
+			if (desc.indexOf("Upstream")<0)
+				desc="Upstream transmit error: "+desc;
+			_prb.abort(m1.getInt(DMT.REASON), desc);
+			synchronized(this) {
+				senderAborted = true;
+			}
+			throw new RetrievalException(m1.getInt(DMT.REASON), desc);
+		}
+		if ((m1 != null) && (m1.getSpec().equals(DMT.packetTransmit))) {
+			consecutiveMissingPacketReports = 0;
+			// packetTransmit received
+			int packetNo = m1.getInt(DMT.PACKET_NO);
+			BitArray sent = (BitArray) m1.getObject(DMT.SENT);
+			Buffer data = (Buffer) m1.getObject(DMT.DATA);
+			_prb.addPacket(packetNo, data);
+			// Remove it from rrmp if its in there
+			_recentlyReportedMissingPackets.remove(packetNo);
+			// Check that we have what the sender thinks we have
+			LinkedList<Integer> missing = new LinkedList<Integer>();
+			for (int x = 0; x < sent.getSize(); x++) {
+				if (sent.bitAt(x) && !_prb.isReceived(x)) {
+					// Sender thinks we have a block which we don't, but have we already
+					// re-requested it recently?
+					Long resendTime = _recentlyReportedMissingPackets.get(x);
+					if ((resendTime == null) || (System.currentTimeMillis() > resendTime.longValue())) {
+						// Make a note of the earliest time we should resend this, based on the number of other
+						// packets we are already waiting for
+						long resendWait = System.currentTimeMillis()
+								+ (MAX_ROUND_TRIP_TIME + (_recentlyReportedMissingPackets.size() * MAX_SEND_INTERVAL));
+						_recentlyReportedMissingPackets.put(x, resendWait);
 						missing.add(x);
 					}
 				}
+			}
+			if(logMINOR)
+				Logger.minor(this, "Missing: "+missing.size());
+			if (missing.size() > 0) {
 				Message mn = DMT.createMissingPacketNotification(_uid, missing);
 				_usm.send(_sender, mn, _ctr);
 				consecutiveMissingPacketReports++;
 				if (missing.size() > 50) {
-					Logger.normal(this, "Sending large missingPacketNotification due to packet receiver timeout after "+RECEIPT_TIMEOUT+"ms");
+					Logger.normal(this, "Excessive packet loss : "+mn);
 				}
 			}
+
 		}
+		if ((m1 == null) || (m1.getSpec().equals(DMT.allSent))) {
+			if (consecutiveMissingPacketReports >= MAX_CONSECUTIVE_MISSING_PACKET_REPORTS) {
+				_prb.abort(RetrievalException.SENDER_DIED, "Sender unresponsive to resend requests");
+				throw new RetrievalException(RetrievalException.SENDER_DIED,
+						"Sender unresponsive to resend requests");
+			}
+			LinkedList<Integer> missing = new LinkedList<Integer>();
+			for (int x = 0; x < _prb.getNumPackets(); x++) {
+				if (!_prb.isReceived(x)) {
+					missing.add(x);
+				}
+			}
+			Message mn = DMT.createMissingPacketNotification(_uid, missing);
+			_usm.send(_sender, mn, _ctr);
+			consecutiveMissingPacketReports++;
+			if (missing.size() > 50) {
+				Logger.normal(this, "Sending large missingPacketNotification due to packet receiver timeout after "+RECEIPT_TIMEOUT+"ms");
+			}
+		}
+	}
+
+	/** All the packets have arrived: tell the sender, and discard any stragglers. */
+	private byte[] completed(MessageFilter relevantMessages, long startTime) throws NotConnectedException, AbortedException {
 		_usm.send(_sender, DMT.createAllReceived(_uid), _ctr);
 		discardEndTime=System.currentTimeMillis()+CLEANUP_TIMEOUT;
 		discardFilter=relevantMessages;
@@ -208,20 +329,15 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 		}
 		
 		return _prb.getBlock();
-		} catch(NotConnectedException e) {
-		    throw new RetrievalException(RetrievalException.SENDER_DISCONNECTED);
-		} catch(AbortedException e) {
-			// We didn't cause it?!
-			Logger.error(this, "Caught in receive - probably a bug as receive sets it: "+e);
-			throw new RetrievalException(RetrievalException.UNKNOWN, "Aborted?");
-		} finally {
-			try {
-				if (_prb.isAborted() && !sentAborted) {
-					sendAborted(_prb.getAbortReason(), _prb.getAbortDescription());
-				}
-			} catch (NotConnectedException e) {
-				//ignore
+	}
+
+	private void maybeSendAborted() {
+		try {
+			if (_prb.isAborted() && !sentAborted) {
+				sendAborted(_prb.getAbortReason(), _prb.getAbortDescription());
 			}
+		} catch (NotConnectedException e) {
+			//ignore
 		}
 	}
 	
@@ -5,25 +5,28 @@ package freenet.keys;
 
 import java.io.IOException;
 import java.security.MessageDigest;
-import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spaceroots.mantissa.random.MersenneTwister;
 
 import com.db4o.ObjectContainer;
 
-import freenet.crypt.BlockCipher;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.keys.Key.Compressed;
 import freenet.node.Node;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.BucketTools;
+import freenet.support.io.NativeThread;
 
 /**
  * @author amphibian
@@ -81,28 +84,23 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         // Overall hash already verified, so first job is to decrypt.
 		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
             throw new UnsupportedOperationException();
-        BlockCipher cipher;
-        try {
-            cipher = new Rijndael(256, 256);
-        } catch (UnsupportedCipherException e) {
-            // FIXME - log this properly
-            throw new Error(e);
-        }
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
-        cipher.initialize(key.cryptoKey);
-        PCFBMode pcfb = PCFBMode.create(cipher);
-	byte[] hbuf = new byte[headers.length-2];
-	System.arraycopy(headers, 2, hbuf, 0, headers.length-2);
-        byte[] dbuf = new byte[data.length];
+        CipherState state = cipherState.get();
+        PCFBMode pcfb = state.init(cryptoKey);
+        // Decrypt into per-thread buffers, Key.decompress() copies the data out of them.
+        byte[] hbuf = state.getHeaderBuffer(headers.length-2);
+        System.arraycopy(headers, 2, hbuf, 0, headers.length-2);
+        byte[] dbuf = state.getDataBuffer(data.length);
         System.arraycopy(data, 0, dbuf, 0, data.length);
         // Decipher header first - functions as IV
-        pcfb.blockDecipher(hbuf, 0, hbuf.length);
-        pcfb.blockDecipher(dbuf, 0, dbuf.length);
+        pcfb.blockDecipher(hbuf, 0, headers.length-2);
+        pcfb.blockDecipher(dbuf, 0, data.length);
         // Check: Decryption key == hash of data (not including header)
         MessageDigest md256 = SHA256.getMessageDigest();
-        byte[] dkey = md256.digest(dbuf);
+        md256.update(dbuf, 0, data.length);
+        byte[] dkey = md256.digest();
         if(!java.util.Arrays.equals(dkey, key.cryptoKey)) {
         	SHA256.returnMessageDigest(md256);
             throw new CHKDecodeException("Check failed: decrypt key == H(data)");
@@ -110,11 +108,11 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         // Check: IV == hash of decryption key
         byte[] predIV = md256.digest(dkey);
         SHA256.returnMessageDigest(md256); md256 = null;
-        // Extract the IV
-        byte[] iv = new byte[32];
-        System.arraycopy(hbuf, 0, iv, 0, 32);
-        if(!Arrays.equals(iv, predIV))
-            throw new CHKDecodeException("Check failed: Decrypted IV == H(decryption key)");
+        // Check the IV
+        for(int i = 0; i < predIV.length; i++) {
+            if(hbuf[i] != predIV[i])
+                throw new CHKDecodeException("Check failed: Decrypted IV == H(decryption key)");
+        }
         // Checks complete
         int size = ((hbuf[32] & 0xff) << 8) + (hbuf[33] & 0xff);
         if((size > 32768) || (size < 0)) {
@@ -139,8 +137,6 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
     static public ClientCHKBlock encode(Bucket sourceData, boolean asMetadata, boolean dontCompress, short alreadyCompressedCodec, long sourceLength, String compressorDescriptor) throws CHKEncodeException, IOException {
         byte[] finalData = null;
         byte[] data;
-        byte[] header;
-        ClientCHK key;
         short compressionAlgorithm = -1;
         try {
 			Compressed comp = Key.compress(sourceData, dontCompress, alreadyCompressedCodec, sourceLength, MAX_LENGTH_BEFORE_COMPRESSION, CHKBlock.DATA_LENGTH, false, compressorDescriptor);
@@ -152,47 +148,55 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
 			throw new CHKEncodeException(e2.getMessage(), e2);
 		}
         // Now do the actual encode
-        
+        if(finalData.length == CHKBlock.DATA_LENGTH)
+        	return encodeInPlace(finalData, finalData.length, asMetadata, compressionAlgorithm);
+        data = new byte[CHKBlock.DATA_LENGTH];
+        System.arraycopy(finalData, 0, data, 0, finalData.length);
+        return encodeInPlace(data, finalData.length, asMetadata, compressionAlgorithm);
+    }
+
+    /**
+     * Encode data which has already been compressed if necessary, in the caller's buffer, without
+     * copying it.
+     * @param data A buffer of exactly CHKBlock.DATA_LENGTH bytes, the first dataLength of which
+     * are the data. The rest is overwritten with padding, and the whole buffer is encrypted in
+     * place and becomes the data of the returned block, so the caller must not reuse it.
+     * @param dataLength The length of the data, including the length prefix if it is compressed.
+     * @param compressionAlgorithm The compression codec, or -1 if the data is not compressed.
+     */
+    public static ClientCHKBlock encodeInPlace(byte[] data, int dataLength, boolean asMetadata, short compressionAlgorithm) throws CHKEncodeException {
+        if(data.length != CHKBlock.DATA_LENGTH)
+            throw new CHKEncodeException("Buffer must be "+CHKBlock.DATA_LENGTH+" bytes, not "+data.length);
+        if(dataLength < 0 || dataLength > data.length)
+            throw new CHKEncodeException("Invalid data length "+dataLength);
         MessageDigest md256 = SHA256.getMessageDigest();
         // First pad it
-        if(finalData.length != 32768) {
+        if(dataLength != data.length) {
             // Hash the data
-            if(finalData.length != 0)
-            	md256.update(finalData);
+            if(dataLength != 0)
+            	md256.update(data, 0, dataLength);
             byte[] digest = md256.digest();
             MersenneTwister mt = new MersenneTwister(digest);
-            data = new byte[32768];
-            System.arraycopy(finalData, 0, data, 0, finalData.length);
-            byte[] randomBytes = new byte[32768-finalData.length];
+            byte[] randomBytes = new byte[data.length-dataLength];
             mt.nextBytes(randomBytes);
-            System.arraycopy(randomBytes, 0, data, finalData.length, 32768-finalData.length);
-        } else {
-        	data = finalData;
+            System.arraycopy(randomBytes, 0, data, dataLength, data.length-dataLength);
         }
         // Now make the header
         byte[] encKey = md256.digest(data);
         md256.reset();
         // IV = E(H(crypto key))
         byte[] plainIV = md256.digest(encKey);
-        header = new byte[plainIV.length+2+2];
+        byte[] header = new byte[plainIV.length+2+2];
         header[0] = (byte)(KeyBlock.HASH_SHA256 >> 8);
         header[1] = (byte)(KeyBlock.HASH_SHA256 & 0xff);
         System.arraycopy(plainIV, 0, header, 2, plainIV.length);
-        header[plainIV.length+2] = (byte)(finalData.length >> 8);
-        header[plainIV.length+3] = (byte)(finalData.length & 0xff);
+        header[plainIV.length+2] = (byte)(dataLength >> 8);
+        header[plainIV.length+3] = (byte)(dataLength & 0xff);
         // GRRR, java 1.4 does not have any symmetric crypto
         // despite exposing asymmetric and hashes!
         
         // Now encrypt the header, then the data, using the same PCFB instance
-        BlockCipher cipher;
-        try {
-            cipher = new Rijndael(256, 256);
-        } catch (UnsupportedCipherException e) {
-            // FIXME - log this properly
-            throw new Error(e);
-        }
-        cipher.initialize(encKey);
-        PCFBMode pcfb = PCFBMode.create(cipher);
+        PCFBMode pcfb = cipherState.get().init(encKey);
         pcfb.blockEncipher(header, 2, header.length-2);
         pcfb.blockEncipher(data, 0, data.length);
         
@@ -203,7 +207,7 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         SHA256.returnMessageDigest(md256);
         
         // Now convert it into a ClientCHK
-        key = new ClientCHK(finalHash, encKey, asMetadata, Key.ALGO_AES_PCFB_256_SHA256, compressionAlgorithm);
+        ClientCHK key = new ClientCHK(finalHash, encKey, asMetadata, Key.ALGO_AES_PCFB_256_SHA256, compressionAlgorithm);
         
         try {
             return new ClientCHKBlock(data, header, key, false);
@@ -212,6 +216,113 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
             throw new Error(e3);
         }
     }
+
+    /**
+     * Encode the blocks of a splitfile segment, without compression, on several threads. Each
+     * thread takes the next block not yet taken, so a block which is slow to read doesn't hold up
+     * the others.
+     * @param buckets The blocks to encode. Null entries are skipped.
+     * @param executor Runs the other threads. If null, everything is encoded on this thread.
+     * @param threads The maximum number of threads to use, including this one.
+     * @return The encoded blocks, in the same order as the buckets, null where the bucket was null.
+     */
+    public static ClientCHKBlock[] encodeSplitfileBlocks(final Bucket[] buckets, final String compressorDescriptor, Executor executor, int threads) throws CHKEncodeException, IOException {
+        final ClientCHKBlock[] blocks = new ClientCHKBlock[buckets.length];
+        final AtomicInteger next = new AtomicInteger();
+        final Throwable[] failure = new Throwable[1];
+        int helpers = executor == null ? 0 : Math.max(0, Math.min(threads, buckets.length) - 1);
+        // Including this thread
+        final CountDownLatch done = new CountDownLatch(helpers + 1);
+        class Encoder implements PrioRunnable {
+            public void run() {
+                try {
+                    int i;
+                    while((i = next.getAndIncrement()) < buckets.length) {
+                        if(buckets[i] == null) continue;
+                        synchronized(failure) {
+                            if(failure[0] != null) return;
+                        }
+                        blocks[i] = encode(buckets[i], false, true, (short)-1, CHKBlock.DATA_LENGTH, compressorDescriptor);
+                    }
+                } catch (Throwable t) {
+                    synchronized(failure) {
+                        if(failure[0] == null) failure[0] = t;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+            public int getPriority() {
+                return NativeThread.LOW_PRIORITY;
+            }
+        }
+        for(int i = 0; i < helpers; i++)
+            executor.execute(new Encoder(), "CHK encoder "+i);
+        new Encoder().run();
+        boolean interrupted = false;
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        synchronized(failure) {
+            Throwable t = failure[0];
+            if(t instanceof CHKEncodeException) throw (CHKEncodeException) t;
+            if(t instanceof IOException) throw (IOException) t;
+            if(t instanceof RuntimeException) throw (RuntimeException) t;
+            if(t instanceof Error) throw (Error) t;
+        }
+        return blocks;
+    }
+
+    /**
+     * The cipher for encoding and decoding CHKs, and buffers to decrypt into. Kept per thread,
+     * since each block has its own key, which needs a new key schedule but not new objects.
+     */
+    private static class CipherState {
+        private static final byte[] ZERO_IV = new byte[32];
+        private final Rijndael cipher;
+        private final PCFBMode pcfb;
+        private byte[] headerBuffer = new byte[0];
+        private byte[] dataBuffer = new byte[0];
+
+        CipherState() {
+            try {
+                cipher = new Rijndael(256, 256);
+            } catch (UnsupportedCipherException e) {
+                throw new Error(e);
+            }
+            pcfb = PCFBMode.create(cipher);
+        }
+
+        /** @return The PCFB mode, with the new key and a zero IV, as if newly created. */
+        PCFBMode init(byte[] cryptoKey) {
+            cipher.initialize(cryptoKey);
+            pcfb.reset(ZERO_IV);
+            return pcfb;
+        }
+
+        byte[] getHeaderBuffer(int length) {
+            if(headerBuffer.length < length) headerBuffer = new byte[length];
+            return headerBuffer;
+        }
+
+        byte[] getDataBuffer(int length) {
+            if(dataBuffer.length < length) dataBuffer = new byte[length];
+            return dataBuffer;
+        }
+    }
+
+    private static final ThreadLocal<CipherState> cipherState = new ThreadLocal<CipherState>() {
+        @Override
+        protected CipherState initialValue() {
+            return new CipherState();
+        }
+    };
     
     /**
      * Encode a block of data to a CHKBlock.
@@ -153,8 +153,11 @@ public class SSKBlock implements KeyBlock {
 			// Now verify it
 			NativeBigInteger r = new NativeBigInteger(1, bufR);
 			NativeBigInteger s = new NativeBigInteger(1, bufS);
-			if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
-					(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
+			DSASignature sig = new DSASignature(r, s);
+			NativeBigInteger m = new NativeBigInteger(1, overallHash);
+			// The second check is only different if the hash is clipped.
+			if(!(DSA.verify(pubKey, sig, m, false) ||
+					(DSA.isClipped(pubKey, m) && DSA.verify(pubKey, sig, m, true)))) {
 				if (dontVerify)
 					Logger.error(this, "DSA verification failed with dontVerify!!!!");
 				throw new SSKVerifyException("Signature verification failed for node-level SSK");
@@ -0,0 +1,20 @@
+package freenet.node;
+
+import freenet.client.async.ChosenBlock;
+import freenet.client.async.ClientContext;
+
+/**
+ * A SendableRequestSender which can start a request without waiting for it to finish, so the
+ * request doesn't tie up a thread while it is running.
+ * Strictly non-persistent.
+ */
+public interface AsyncSendableRequestSender extends SendableRequestSender {
+
+	/** ONLY called by RequestStarter. Like send(), but returns as soon as the request has been
+	 * started. The callbacks on the ChosenBlock are called when it finishes.
+	 * @param onFinished Run exactly once, after the callbacks on the ChosenBlock have been
+	 * called, or if nothing was sent, before we return.
+	 * @return True if a request was sent, false otherwise, as for send(). */
+	public abstract boolean sendAsync(NodeClientCore node, RequestScheduler sched, ClientContext context, ChosenBlock request, Runnable onFinished);
+
+}
@@ -5,11 +5,15 @@ package freenet.node;
 
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 
 import net.i2p.util.NativeBigInteger;
 import freenet.crypt.BlockCipher;
@@ -167,6 +171,17 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 	static public final int HEADERS_LENGTH_ONE_MESSAGE =
 		HEADERS_LENGTH_MINIMUM + 2; // 2 bytes = length of message. rest is the same.
 	static boolean LOG_UNMATCHABLE_ERROR = false;
+	/** Maximum rate at which we try packets from one unknown /24 (or /64) against every peer's keys */
+	private static final int TRIAL_DECRYPTION_SCANS_PER_NETWORK_PER_SECOND = 5;
+	/** Burst size for the above */
+	private static final int TRIAL_DECRYPTION_SCANS_PER_NETWORK_BURST = 20;
+	/** Maximum rate for all networks none of our peers are on */
+	private static final int TRIAL_DECRYPTION_SCANS_PER_SECOND = 20;
+	/** Burst size for the above */
+	private static final int TRIAL_DECRYPTION_SCANS_BURST = 100;
+	private final TrialDecryptionLimiter trialDecryptionLimiter =
+		new TrialDecryptionLimiter(TRIAL_DECRYPTION_SCANS_PER_NETWORK_PER_SECOND, TRIAL_DECRYPTION_SCANS_PER_NETWORK_BURST,
+				TRIAL_DECRYPTION_SCANS_PER_SECOND, TRIAL_DECRYPTION_SCANS_BURST, System.currentTimeMillis());
 
 	final int fullHeadersLengthMinimum;
 	final int fullHeadersLengthOneMessage;
@@ -257,38 +272,113 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			}
 		}
 		PeerNode[] peers = crypto.getPeerNodes();
+		// NAT rebinding usually only changes the port, so try the peers on the same IP address
+		// first. Comparing addresses is cheap, trying every peer's keys is not.
+		List<PeerNode> sameAddress = getPeersOnAddress(peers, peer, opn);
+		for(PeerNode p : sameAddress) {
+			if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
+				if(logMINOR) Logger.minor(this, "Trying key trackers for same address "+p);
+				if(tryProcessSessionKeys(buf, offset, length, p, now)) {
+					// Port change
+					p.changedIP(peer);
+					return;
+				}
+			}
+			if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2 && !node.isStopping()) {
+				if(tryProcessAuth(buf, offset, length, p, peer, false, now)) return;
+			}
+		}
+		// Trial decryption against every peer is expensive, and anyone can send us packets, so
+		// limit how often we do it, per source network and overall.
+		InetAddress addr = peer.getAddress(false);
+		boolean knownNetwork = opn != null || isKnownNetwork(peers, addr);
+		if(trialDecryptionLimiter.allow(addr, knownNetwork, now)) {
+			if(tryProcessAllPeers(buf, offset, length, peer, opn, sameAddress, peers, now)) return;
+		} else {
+			if(logMINOR) Logger.minor(this, "Too many packets from unknown addresses, not trying all peers for "+peer);
+		}
+		if(node.isStopping()) return;
+		if(node.wantAnonAuth()) {
+			if(tryProcessAuthAnon(buf, offset, length, peer)) return;
+		}
+		if(LOG_UNMATCHABLE_ERROR)
+			System.err.println("Unmatchable packet from "+peer+" on "+node.getDarknetPortNumber());
+		Logger.normal(this,"Unmatchable packet from "+peer);
+	}
+
+	/**
+	 * Get the peers whose current address has the same IP address as the packet's, but which
+	 * aren't the exact match.
+	 */
+	private List<PeerNode> getPeersOnAddress(PeerNode[] peers, Peer peer, PeerNode opn) {
+		InetAddress addr = peer.getAddress(false);
+		if(addr == null) return Collections.emptyList();
+		List<PeerNode> sameAddress = null;
+		for(PeerNode pn : peers) {
+			if(pn == opn) continue;
+			Peer p = pn.getPeer();
+			if(p == null) continue;
+			if(!addr.equals(p.getAddress(false))) continue;
+			if(sameAddress == null) sameAddress = new ArrayList<PeerNode>(1);
+			sameAddress.add(pn);
+		}
+		if(sameAddress == null) return Collections.emptyList();
+		return sameAddress;
+	}
+
+	/**
+	 * Is any peer's current address on the same network (/24 or /64) as this address?
+	 */
+	private boolean isKnownNetwork(PeerNode[] peers, InetAddress addr) {
+		if(addr == null) return false;
+		for(PeerNode pn : peers) {
+			Peer p = pn.getPeer();
+			if(p == null) continue;
+			InetAddress a = p.getAddress(false);
+			if(a != null && TrialDecryptionLimiter.sameNetwork(addr, a)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Try to process a data packet with the current, previous and unverified keys of a peer.
+	 */
+	private boolean tryProcessSessionKeys(byte[] buf, int offset, int length, PeerNode pn, long now) {
+		if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) return true;
+		if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) return true;
+		if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) return true;
+		return false;
+	}
+
+	/**
+	 * Try a packet from an unknown address against every peer: existing connections which have
+	 * changed IP address, disconnected peers connecting from a new address, anonymous-initiator
+	 * peers, and old opennet peers. Expensive, so rate limited by the caller.
+	 * @param tried Peers which have already been tried.
+	 * @return True if the packet was handled.
+	 */
+	private boolean tryProcessAllPeers(byte[] buf, int offset, int length, Peer peer, PeerNode opn, List<PeerNode> tried, PeerNode[] peers, long now) {
+		PeerNode pn;
 		// Existing connection, changed IP address?
 		if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
 			for(int i=0;i<peers.length;i++) {
 				pn = peers[i];
-				if(pn == opn) continue;
-				if(logMINOR) Logger.minor(this, "Trying current key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return;
-				}
-				if(logMINOR) Logger.minor(this, "Trying previous key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
+				if(pn == opn || tried.contains(pn)) continue;
+				if(logMINOR) Logger.minor(this, "Trying key trackers for loop");
+				if(tryProcessSessionKeys(buf, offset, length, pn, now)) {
 					// IP address change
 					pn.changedIP(peer);
-					return;
-				}
-				if(logMINOR) Logger.minor(this, "Trying unverified key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return;
+					return true;
 				}
 			}
 		}
-		if(node.isStopping()) return;
+		if(node.isStopping()) return false;
 		// Disconnected node connecting on a new IP address?
 		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2) {
 			for(int i=0;i<peers.length;i++) {
 				pn = peers[i];
-				if(pn == opn) continue;
-				if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) return;
+				if(pn == opn || tried.contains(pn)) continue;
+				if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) return true;
 			}
 		}
 		PeerNode[] anonPeers = crypto.getAnonSetupPeerNodes();
@@ -296,18 +386,10 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			for(int i=0;i<anonPeers.length;i++) {
 				pn = anonPeers[i];
 				if(pn == opn) continue;
-				if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) return;
-				if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
-					pn.changedIP(peer);
-					return;
-				}
-				if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
-					pn.changedIP(peer);
-					return;
-				}
-				if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
+				if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) return true;
+				if(tryProcessSessionKeys(buf, offset, length, pn, now)) {
 					pn.changedIP(peer);
-					return;
+					return true;
 				}
 			}
 		}
@@ -320,16 +402,11 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 				// Try old connections.
 				PeerNode[] oldPeers = opennet.getOldPeers();
 				for(int i=0;i<oldPeers.length;i++) {
-					if(tryProcessAuth(buf, offset, length, oldPeers[i], peer, true, now)) return;
+					if(tryProcessAuth(buf, offset, length, oldPeers[i], peer, true, now)) return true;
 				}
 			}
 		}
-		if(node.wantAnonAuth()) {
-			if(tryProcessAuthAnon(buf, offset, length, peer)) return;
-		}
-		if(LOG_UNMATCHABLE_ERROR)
-			System.err.println("Unmatchable packet from "+peer+" on "+node.getDarknetPortNumber());
-		Logger.normal(this,"Unmatchable packet from "+peer);
+		return false;
 	}
 
 	/**
@@ -0,0 +1,18 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.keys.ClientKeyBlock;
+
+/**
+ * Callback for a local request started by NodeClientCore.asyncGetKey(). Exactly one of the
+ * methods is called, once.
+ */
+public interface LowLevelGetCallback {
+
+	public void onSuccess(ClientKeyBlock block);
+
+	public void onFailure(LowLevelGetException e);
+
+}
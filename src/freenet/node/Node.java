@@ -78,6 +78,7 @@ import freenet.crypt.DSAPublicKey;
 import freenet.crypt.DiffieHellman;
 import freenet.crypt.EncryptingIoAdapter;
 import freenet.crypt.RandomSource;
+import freenet.crypt.ThreadLocalRandomSource;
 import freenet.crypt.Yarrow;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -551,6 +552,10 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private int storeBloomFilterSize;
 	private final boolean storeBloomFilterCounting;
+	private final boolean storeBloomFilterBlocked;
+	/** Number of threads sending packets, each handling a share of the peers */
+	private int packetSenderThreads;
+	static final int MAX_PACKET_SENDER_THREADS = 16;
 	private boolean storeSaltHashResizeOnStart;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
@@ -797,6 +802,8 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean isPRNGReady = false;
 
 	private boolean storePreallocate;
+	private boolean storeSaltHashMemoryMapped;
+	private boolean storeSaltHashWriteBehind;
 
 	/**
 	 * Read all storable settings (identity etc) from the node file.
@@ -1052,7 +1059,8 @@ public class Node implements TimeSkewDetectorCallback {
 			}, "Entropy Gathering Thread", NativeThread.MIN_PRIORITY, true);
 
 			entropyGatheringThread.start();
-			this.random = new Yarrow();
+			// Each thread gets its own generator, so they don't all contend for the Yarrow.
+			this.random = new ThreadLocalRandomSource(new Yarrow());
 			DiffieHellman.init(random);
 
 		} else // if it's not null it's because we are running in the simulator
@@ -1546,7 +1554,27 @@ public class Node implements TimeSkewDetectorCallback {
 
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
-		ps = new PacketSender(this);
+		nodeConfig.register("packetSenderThreads", 1, sortOrder++, true, false, "Node.packetSenderThreads",
+				"Node.packetSenderThreadsLong", new IntCallback() {
+					@Override
+					public Integer get() {
+						return packetSenderThreads;
+					}
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val.intValue() == packetSenderThreads) return;
+						if(val < 1 || val > MAX_PACKET_SENDER_THREADS)
+							throw new InvalidConfigValueException(l10n("invalidPacketSenderThreads", "max", Integer.toString(MAX_PACKET_SENDER_THREADS)));
+						packetSenderThreads = val;
+						throw new NodeNeedRestartException("Number of packet sender threads cannot be changed on the fly");
+					}
+		}, false);
+		packetSenderThreads = nodeConfig.getInt("packetSenderThreads");
+		if(packetSenderThreads < 1 || packetSenderThreads > MAX_PACKET_SENDER_THREADS) {
+			Logger.error(this, "Invalid packetSenderThreads: "+packetSenderThreads);
+			packetSenderThreads = 1;
+		}
+		ps = new PacketSender(this, packetSenderThreads);
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ps);
 
@@ -2061,6 +2089,31 @@ public class Node implements TimeSkewDetectorCallback {
 
 		storeBloomFilterCounting = nodeConfig.getBoolean("storeBloomFilterCounting");
 
+		nodeConfig.register("storeBloomFilterBlocked", false, sortOrder++, true, false,
+		        "Node.storeBloomFilterBlocked", "Node.storeBloomFilterBlockedLong", new BooleanCallback() {
+			        private Boolean cachedBloomFilterBlocked;
+
+			        @Override
+					public Boolean get() {
+				        if (cachedBloomFilterBlocked == null)
+					        cachedBloomFilterBlocked = storeBloomFilterBlocked;
+				        return cachedBloomFilterBlocked;
+			        }
+
+			        @Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				        cachedBloomFilterBlocked = val;
+				        throw new NodeNeedRestartException("Store bloom filter type cannot be changed on the fly");
+			        }
+
+			        @Override
+					public boolean isReadOnly() {
+				        return !("salt-hash".equals(storeType));
+			        }
+		        });
+
+		storeBloomFilterBlocked = nodeConfig.getBoolean("storeBloomFilterBlocked");
+
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
 			@Override
@@ -2136,6 +2189,50 @@ public class Node implements TimeSkewDetectorCallback {
 		);
 		storePreallocate = nodeConfig.getBoolean("storePreallocate");
 
+		nodeConfig.register("storeSaltHashMemoryMapped", false, sortOrder++, true, false, "Node.storeSaltHashMemoryMapped", "Node.storeSaltHashMemoryMappedLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return storeSaltHashMemoryMapped;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						storeSaltHashMemoryMapped = val;
+						if (storeType.equals("salt-hash")) {
+							((SaltedHashFreenetStore<CHKBlock>) chkDatastore.getStore()).setMemoryMapped(val);
+							((SaltedHashFreenetStore<CHKBlock>) chkDatacache.getStore()).setMemoryMapped(val);
+							((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatastore.getStore()).setMemoryMapped(val);
+							((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatacache.getStore()).setMemoryMapped(val);
+							((SaltedHashFreenetStore<SSKBlock>) sskDatastore.getStore()).setMemoryMapped(val);
+							((SaltedHashFreenetStore<SSKBlock>) sskDatacache.getStore()).setMemoryMapped(val);
+						}
+					}}
+		);
+		storeSaltHashMemoryMapped = nodeConfig.getBoolean("storeSaltHashMemoryMapped");
+
+		nodeConfig.register("storeSaltHashWriteBehind", false, sortOrder++, true, false, "Node.storeSaltHashWriteBehind", "Node.storeSaltHashWriteBehindLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return storeSaltHashWriteBehind;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						storeSaltHashWriteBehind = val;
+						if (storeType.equals("salt-hash")) {
+							((SaltedHashFreenetStore<CHKBlock>) chkDatastore.getStore()).setWriteBehind(val);
+							((SaltedHashFreenetStore<CHKBlock>) chkDatacache.getStore()).setWriteBehind(val);
+							((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatastore.getStore()).setWriteBehind(val);
+							((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatacache.getStore()).setWriteBehind(val);
+							((SaltedHashFreenetStore<SSKBlock>) sskDatastore.getStore()).setWriteBehind(val);
+							((SaltedHashFreenetStore<SSKBlock>) sskDatacache.getStore()).setWriteBehind(val);
+						}
+					}}
+		);
+		storeSaltHashWriteBehind = nodeConfig.getBoolean("storeSaltHashWriteBehind");
+
 		if(File.separatorChar == '/' && System.getProperty("os.name").toLowerCase().indexOf("mac os") < 0) {
 			securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<SecurityLevels.PHYSICAL_THREAT_LEVEL>() {
 
@@ -3413,7 +3510,9 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(storeDir, type+"-"+store, cb,
-		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ps : null, clientCacheMasterKey);
+		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, storeBloomFilterBlocked, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ps : null, clientCacheMasterKey);
+		fs.setMemoryMapped(storeSaltHashMemoryMapped);
+		fs.setWriteBehind(storeSaltHashWriteBehind);
 		cb.setStore(fs);
 		return fs;
 	}
@@ -4116,6 +4215,117 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch several keys at once. The CHKs are looked up in batches, so that each store can
+	 * check all of them in one mostly sequential pass. SSKs are fetched one at a time.
+	 * @return Array of the same length as <code>keys</code>, with null for each key not found.
+	 */
+	public KeyBlock[] fetchBatch(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		KeyBlock[] blocks = new KeyBlock[keys.length];
+		int chkCount = 0;
+		for(Key key : keys)
+			if(key instanceof NodeCHK) chkCount++;
+		NodeCHK[] chks = new NodeCHK[chkCount];
+		int[] chkIndexes = new int[chkCount];
+		int x = 0;
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i] instanceof NodeCHK) {
+				chks[x] = (NodeCHK) keys[i];
+				chkIndexes[x++] = i;
+			} else
+				blocks[i] = fetch(keys[i], canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, null);
+		}
+		if(chkCount > 0) {
+			CHKBlock[] chkBlocks = fetchBatch(chks, false, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR);
+			for(int i=0;i<chkCount;i++)
+				blocks[chkIndexes[i]] = chkBlocks[i];
+		}
+		return blocks;
+	}
+
+	/**
+	 * Fetch several CHKs at once, looking in the same stores in the same order as
+	 * {@link #fetch(NodeCHK, boolean, boolean, boolean, boolean, boolean, BlockMetadata)}.
+	 * @return Array of the same length as <code>keys</code>, with null for each key not found.
+	 */
+	public CHKBlock[] fetchBatch(NodeCHK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		CHKBlock[] blocks = new CHKBlock[keys.length];
+		boolean[] found = new boolean[keys.length];
+		double myLoc = lm.getLocation();
+		if(canReadClientCache) {
+			try {
+				if(chkClientcache.fetchBatch(keys, blocks, dontPromote || !canWriteClientCache) > 0) {
+					for(int i=0;i<keys.length;i++) {
+						if(blocks[i] == null || found[i]) continue;
+						found[i] = true;
+						double loc = keys[i].toNormalizedDouble();
+						double dist = Location.distance(myLoc, loc);
+						nodeStats.avgClientCacheCHKSuccess.report(loc);
+						if (dist > nodeStats.furthestClientCacheCHKSuccess)
+							nodeStats.furthestClientCacheCHKSuccess=dist;
+					}
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+		}
+		if(forULPR || useSlashdotCache || canReadClientCache) {
+			try {
+				if(chkSlashdotcache.fetchBatch(keys, blocks, dontPromote) > 0) {
+					for(int i=0;i<keys.length;i++) {
+						if(blocks[i] == null || found[i]) continue;
+						found[i] = true;
+						double loc = keys[i].toNormalizedDouble();
+						double dist = Location.distance(myLoc, loc);
+						nodeStats.avgSlashdotCacheCHKSucess.report(loc);
+						if (dist > nodeStats.furthestSlashdotCacheCHKSuccess)
+							nodeStats.furthestSlashdotCacheCHKSuccess=dist;
+					}
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+		}
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<keys.length;i++)
+				if(!found[i]) nodeStats.avgRequestLocation.report(keys[i].toNormalizedDouble());
+			int count = chkDatastore.fetchBatch(keys, blocks, dontPromote || !canWriteDatastore);
+			CHKStore store = oldCHK;
+			if(store != null)
+				count += store.fetchBatch(keys, blocks, dontPromote || !canWriteDatastore);
+			if(count > 0) {
+				for(int i=0;i<keys.length;i++) {
+					if(blocks[i] == null || found[i]) continue;
+					found[i] = true;
+					double loc = keys[i].toNormalizedDouble();
+					double dist = Location.distance(myLoc, loc);
+					nodeStats.avgStoreCHKSuccess.report(loc);
+					if (dist > nodeStats.furthestStoreCHKSuccess)
+						nodeStats.furthestStoreCHKSuccess=dist;
+				}
+			}
+			count = chkDatacache.fetchBatch(keys, blocks, dontPromote || !canWriteDatastore);
+			store = oldCHKCache;
+			if(store != null)
+				count += store.fetchBatch(keys, blocks, dontPromote || !canWriteDatastore);
+			if(count > 0) {
+				for(int i=0;i<keys.length;i++) {
+					if(blocks[i] == null || found[i]) continue;
+					found[i] = true;
+					double loc = keys[i].toNormalizedDouble();
+					double dist = Location.distance(myLoc, loc);
+					nodeStats.avgCacheCHKSuccess.report(loc);
+					if (dist > nodeStats.furthestCacheCHKSuccess)
+						nodeStats.furthestCacheCHKSuccess=dist;
+				}
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		return blocks;
+	}
+
 	public CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -4740,7 +4950,10 @@ public class Node implements TimeSkewDetectorCallback {
 		config.store();
 
 		// TODO: find a smarter way of doing it not involving any casting
-		Yarrow myRandom = (Yarrow) random;
+		RandomSource seedSource = random;
+		if(seedSource instanceof ThreadLocalRandomSource)
+			seedSource = ((ThreadLocalRandomSource) seedSource).getSource();
+		Yarrow myRandom = (Yarrow) seedSource;
 		myRandom.write_seed(myRandom.seedfile, true);
 	}
 
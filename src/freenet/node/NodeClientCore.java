@@ -71,6 +71,7 @@ import freenet.support.OOMHandler;
 import freenet.support.OOMHook;
 import freenet.support.PrioritizedSerialExecutor;
 import freenet.support.SimpleFieldSet;
+import freenet.support.SizeUtil;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
@@ -78,6 +79,7 @@ import freenet.support.api.LongCallback;
 import freenet.support.api.StringArrCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.compress.Compressor;
+import freenet.support.compress.GzipCompressor;
 import freenet.support.compress.RealCompressor;
 import freenet.support.io.FileUtil;
 import freenet.support.io.FilenameGenerator;
@@ -159,6 +161,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 	private RestartDBJob[] startupDatabaseJobs;
 	private File persistentTempDir;
 	private boolean alwaysCommit;
+	private int parallelCompressionThreads;
+	private int parallelCompressionChunkSize;
 	
 	NodeClientCore(Node node, Config config, SubConfig nodeConfig, File nodeDir, int portNumber, int sortOrder, SimpleFieldSet oldConfig, SubConfig fproxyConfig, SimpleToadletServer toadlets, long nodeDBHandle, ObjectContainer container) throws NodeInitException {
 		this.node = node;
@@ -537,6 +541,67 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 			
 		});
 		alwaysCommit = nodeConfig.getBoolean("alwaysCommit");
+		
+		nodeConfig.register("sampleCompression", false, sortOrder++, true, false, "NodeClientCore.sampleCompression", "NodeClientCore.sampleCompressionLong", 
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return InsertCompressor.getSampleCompression();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						InsertCompressor.setSampleCompression(val);
+					}
+			
+		});
+		InsertCompressor.setSampleCompression(nodeConfig.getBoolean("sampleCompression"));
+		
+		nodeConfig.register("parallelCompressionThreads", "0", sortOrder++, true, false, "NodeClientCore.parallelCompressionThreads", "NodeClientCore.parallelCompressionThreadsLong", 
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return parallelCompressionThreads;
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException {
+						if(val < 0)
+							throw new InvalidConfigValueException(l10n("parallelCompressionThreadsMustNotBeNegative"));
+						synchronized(NodeClientCore.this) {
+							parallelCompressionThreads = val;
+							GzipCompressor.setParallelCompression(node.executor, parallelCompressionThreads, parallelCompressionChunkSize);
+						}
+					}
+			
+		}, false);
+		parallelCompressionThreads = nodeConfig.getInt("parallelCompressionThreads");
+		
+		nodeConfig.register("parallelCompressionChunkSize", "1MiB", sortOrder++, true, false, "NodeClientCore.parallelCompressionChunkSize", "NodeClientCore.parallelCompressionChunkSizeLong", 
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return parallelCompressionChunkSize;
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException {
+						if(val < GzipCompressor.MIN_CHUNK_SIZE)
+							throw new InvalidConfigValueException(l10n("parallelCompressionChunkSizeTooSmall", "min", SizeUtil.formatSize(GzipCompressor.MIN_CHUNK_SIZE)));
+						synchronized(NodeClientCore.this) {
+							parallelCompressionChunkSize = val;
+							GzipCompressor.setParallelCompression(node.executor, parallelCompressionThreads, parallelCompressionChunkSize);
+						}
+					}
+			
+		}, true);
+		parallelCompressionChunkSize = nodeConfig.getInt("parallelCompressionChunkSize");
+		if(parallelCompressionChunkSize < GzipCompressor.MIN_CHUNK_SIZE)
+			parallelCompressionChunkSize = GzipCompressor.MIN_CHUNK_SIZE;
+		GzipCompressor.setParallelCompression(node.executor, parallelCompressionThreads, parallelCompressionChunkSize);
 	}
 
 	private void initUSK(ObjectContainer container) {
@@ -713,6 +778,10 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		return NodeL10n.getBase().getString("NodeClientCore." + key);
 	}
 
+	private static String l10n(String key, String pattern, String value) {
+		return NodeL10n.getBase().getString("NodeClientCore." + key, pattern, value);
+	}
+
 	protected synchronized void setDownloadAllowedDirs(String[] val) {
 		int x = 0;
 		downloadAllowedEverywhere = false;
@@ -932,6 +1001,147 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 			throw new IllegalArgumentException("Not a CHK or SSK: " + key);
 	}
 
+	/**
+	 * Start fetching a key, like realGetKey(), but without waiting for it: while the request is
+	 * running it costs a RequestSender and a listener, not a blocked thread.
+	 * @param cb Called when the request finishes, on an executor thread, or on the caller's
+	 * thread if it finishes straight away, e.g. because the key is in the datastore.
+	 */
+	public void asyncGetKey(ClientKey key, boolean localOnly, boolean ignoreStore, boolean canWriteClientCache, LowLevelGetCallback cb) {
+		boolean isSSK;
+		if(key instanceof ClientCHK)
+			isSSK = false;
+		else if(key instanceof ClientSSK)
+			isSSK = true;
+		else
+			throw new IllegalArgumentException("Not a CHK or SSK: " + key);
+		long startTime = System.currentTimeMillis();
+		long uid = random.nextLong();
+		RequestTag tag = new RequestTag(isSSK, RequestTag.START.LOCAL);
+		if(!node.lockUID(uid, isSSK, false, false, true, tag)) {
+			Logger.error(this, "Could not lock UID just randomly generated: " + uid + " - probably indicates broken PRNG");
+			cb.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR));
+			return;
+		}
+		Object o;
+		try {
+			o = node.makeRequestSender(key.getNodeKey(true), node.maxHTL(), uid, null, localOnly, ignoreStore, false, true, canWriteClientCache);
+		} catch(Throwable t) {
+			Logger.error(this, "Caught " + t + " starting local request for " + key, t);
+			node.unlockUID(uid, isSSK, false, true, false, true, tag);
+			cb.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR));
+			return;
+		}
+		if(o instanceof RequestSender) {
+			((RequestSender) o).addListener(new LocalGetListener((RequestSender) o, key, isSSK, uid, tag, startTime, cb));
+			return;
+		}
+		ClientKeyBlock block;
+		try {
+			block = fromDatastore(key, o, tag);
+		} catch(LowLevelGetException e) {
+			cb.onFailure(e);
+			return;
+		} finally {
+			node.unlockUID(uid, isSSK, false, true, false, true, tag);
+		}
+		cb.onSuccess(block);
+	}
+
+	/**
+	 * Waits for a local request started by asyncGetKey(), then does what realGetKey() would do
+	 * when the request finishes, and calls the callback.
+	 */
+	private class LocalGetListener implements RequestSender.Listener, RequestSender.FinishedListener {
+
+		private final RequestSender rs;
+		private final ClientKey key;
+		private final boolean isSSK;
+		private final long uid;
+		private final RequestTag tag;
+		private final long startTime;
+		private final LowLevelGetCallback cb;
+		private boolean rejectedOverload;
+		private boolean finished;
+		/** Downstream transfers were aborted, so we wait for the real status via onFinished() */
+		private boolean aborted;
+
+		LocalGetListener(RequestSender rs, ClientKey key, boolean isSSK, long uid, RequestTag tag, long startTime, LowLevelGetCallback cb) {
+			this.rs = rs;
+			this.key = key;
+			this.isSSK = isSSK;
+			this.uid = uid;
+			this.tag = tag;
+			this.startTime = startTime;
+			this.cb = cb;
+		}
+
+		public void onReceivedRejectOverload() {
+			synchronized(this) {
+				if(rejectedOverload || finished) return;
+				rejectedOverload = true;
+			}
+			// See realGetCHK(); inserts count both
+			requestStarters.rejectedOverload(isSSK, false);
+		}
+
+		public void onCHKTransferBegins() {
+			// Ignore
+		}
+
+		public void onAbortDownstreamTransfers(int reason, String desc) {
+			// We aren't a downstream transfer: the request is still running, e.g. it has gone to
+			// turtle mode. Ignore the TRANSFER_FAILED which follows, and keep the UID locked
+			// until the request really finishes.
+			synchronized(this) {
+				if(finished) return;
+				aborted = true;
+			}
+			rs.addFinishedListener(this);
+		}
+
+		public void onRequestSenderFinished(int status) {
+			synchronized(this) {
+				if(aborted) return;
+			}
+			onFinished(status);
+		}
+
+		public void onFinished(final int status) {
+			final boolean overloaded;
+			synchronized(this) {
+				if(finished) return;
+				finished = true;
+				overloaded = rejectedOverload;
+			}
+			// We are called with the RequestSender's listeners locked, and the client may take a while.
+			getExecutor().execute(new Runnable() {
+
+				public void run() {
+					ClientKeyBlock block;
+					try {
+						if(isSSK)
+							block = finishSSK(rs, status, (ClientSSK) key, uid, startTime, overloaded);
+						else
+							block = finishCHK(rs, status, (ClientCHK) key, startTime, overloaded);
+					} catch(LowLevelGetException e) {
+						cb.onFailure(e);
+						return;
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " finishing local request for " + key, t);
+						cb.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR));
+						return;
+					} finally {
+						node.unlockUID(uid, isSSK, false, true, false, true, tag);
+					}
+					cb.onSuccess(block);
+				}
+
+			}, "Completing local request for " + key);
+		}
+
+	}
+
 	/**
 	 * Fetch a CHK.
 	 * @param key
@@ -953,16 +1163,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		}
 		try {
 			Object o = node.makeRequestSender(key.getNodeCHK(), node.maxHTL(), uid, null, localOnly, ignoreStore, false, true, canWriteClientCache);
-			if(o instanceof CHKBlock)
-				try {
-					tag.setServedFromDatastore();
-					return new ClientCHKBlock((CHKBlock) o, key);
-				} catch(CHKVerifyException e) {
-					Logger.error(this, "Does not verify: " + e, e);
-					throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
-				}
-			if(o == null)
-				throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND_IN_STORE);
+			if(!(o instanceof RequestSender))
+				return (ClientCHKBlock) fromDatastore(key, o, tag);
 			RequestSender rs = (RequestSender) o;
 			boolean rejectedOverload = false;
 			short waitStatus = 0;
@@ -982,82 +1184,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				if(status == RequestSender.NOT_FINISHED)
 					continue;
 
-				if(status != RequestSender.TIMED_OUT && status != RequestSender.GENERATED_REJECTED_OVERLOAD && status != RequestSender.INTERNAL_ERROR) {
-					if(logMINOR)
-						Logger.minor(this, "CHK fetch cost " + rs.getTotalSentBytes() + '/' + rs.getTotalReceivedBytes() + " bytes (" + status + ')');
-					nodeStats.localChkFetchBytesSentAverage.report(rs.getTotalSentBytes());
-					nodeStats.localChkFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
-					if(status == RequestSender.SUCCESS)
-						// See comments above declaration of successful* : We don't report sent bytes here.
-						//nodeStats.successfulChkFetchBytesSentAverage.report(rs.getTotalSentBytes());
-						nodeStats.successfulChkFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
-				}
-
-				if((status == RequestSender.TIMED_OUT) ||
-					(status == RequestSender.GENERATED_REJECTED_OVERLOAD)) {
-					if(!rejectedOverload) {
-						// See below
-						requestStarters.rejectedOverload(false, false);
-						rejectedOverload = true;
-						long rtt = System.currentTimeMillis() - startTime;
-						node.nodeStats.reportCHKTime(rtt, false);
-					}
-				} else
-					if(rs.hasForwarded() &&
-						((status == RequestSender.DATA_NOT_FOUND) ||
-						(status == RequestSender.RECENTLY_FAILED) ||
-						(status == RequestSender.SUCCESS) ||
-						(status == RequestSender.ROUTE_NOT_FOUND) ||
-						(status == RequestSender.VERIFY_FAILURE) ||
-						(status == RequestSender.GET_OFFER_VERIFY_FAILURE))) {
-						long rtt = System.currentTimeMillis() - startTime;
-						if(!rejectedOverload)
-							requestStarters.requestCompleted(false, false, key.getNodeKey(true));
-						// Count towards RTT even if got a RejectedOverload - but not if timed out.
-						requestStarters.chkRequestThrottle.successfulCompletion(rtt);
-						node.nodeStats.reportCHKTime(rtt, status == RequestSender.SUCCESS);
-						if(status == RequestSender.SUCCESS) {
-							Logger.minor(this, "Successful CHK fetch took "+rtt);
-						}
-					}
-
-				if(status == RequestSender.SUCCESS)
-					try {
-						return new ClientCHKBlock(rs.getPRB().getBlock(), rs.getHeaders(), key, true);
-					} catch(CHKVerifyException e) {
-						Logger.error(this, "Does not verify: " + e, e);
-						throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
-					} catch(AbortedException e) {
-						Logger.error(this, "Impossible: " + e, e);
-						throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
-					}
-				else {
-					switch(status) {
-						case RequestSender.NOT_FINISHED:
-							Logger.error(this, "RS still running in getCHK!: " + rs);
-							throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
-						case RequestSender.DATA_NOT_FOUND:
-							throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND);
-						case RequestSender.RECENTLY_FAILED:
-							throw new LowLevelGetException(LowLevelGetException.RECENTLY_FAILED);
-						case RequestSender.ROUTE_NOT_FOUND:
-							throw new LowLevelGetException(LowLevelGetException.ROUTE_NOT_FOUND);
-						case RequestSender.TRANSFER_FAILED:
-						case RequestSender.GET_OFFER_TRANSFER_FAILED:
-							throw new LowLevelGetException(LowLevelGetException.TRANSFER_FAILED);
-						case RequestSender.VERIFY_FAILURE:
-						case RequestSender.GET_OFFER_VERIFY_FAILURE:
-							throw new LowLevelGetException(LowLevelGetException.VERIFY_FAILED);
-						case RequestSender.GENERATED_REJECTED_OVERLOAD:
-						case RequestSender.TIMED_OUT:
-							throw new LowLevelGetException(LowLevelGetException.REJECTED_OVERLOAD);
-						case RequestSender.INTERNAL_ERROR:
-							throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
-						default:
-							Logger.error(this, "Unknown RequestSender code in getCHK: " + status + " on " + rs);
-							throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
-					}
-				}
+				return finishCHK(rs, status, key, startTime, rejectedOverload);
 			}
 		} finally {
 			node.unlockUID(uid, false, false, true, false, true, tag);
@@ -1074,18 +1201,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		}
 		try {
 			Object o = node.makeRequestSender(key.getNodeKey(true), node.maxHTL(), uid, null, localOnly, ignoreStore, false, true, canWriteClientCache);
-			if(o instanceof SSKBlock)
-				try {
-					tag.setServedFromDatastore();
-					SSKBlock block = (SSKBlock) o;
-					key.setPublicKey(block.getPubKey());
-					return ClientSSKBlock.construct(block, key);
-				} catch(SSKVerifyException e) {
-					Logger.error(this, "Does not verify: " + e, e);
-					throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
-				}
-			if(o == null)
-				throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND_IN_STORE);
+			if(!(o instanceof RequestSender))
+				return (ClientSSKBlock) fromDatastore(key, o, tag);
 			RequestSender rs = (RequestSender) o;
 			boolean rejectedOverload = false;
 			short waitStatus = 0;
@@ -1101,81 +1218,201 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				if(status == RequestSender.NOT_FINISHED)
 					continue;
 
-				if(status != RequestSender.TIMED_OUT && status != RequestSender.GENERATED_REJECTED_OVERLOAD && status != RequestSender.INTERNAL_ERROR) {
-					if(logMINOR)
-						Logger.minor(this, "SSK fetch cost " + rs.getTotalSentBytes() + '/' + rs.getTotalReceivedBytes() + " bytes (" + status + ')');
-					nodeStats.localSskFetchBytesSentAverage.report(rs.getTotalSentBytes());
-					nodeStats.localSskFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
-					if(status == RequestSender.SUCCESS)
-						// See comments above successfulSskFetchBytesSentAverage : we don't relay the data, so
-						// reporting the sent bytes would be inaccurate.
-						//nodeStats.successfulSskFetchBytesSentAverage.report(rs.getTotalSentBytes());
-						nodeStats.successfulSskFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
-				}
-
-				if((status == RequestSender.TIMED_OUT) ||
-					(status == RequestSender.GENERATED_REJECTED_OVERLOAD)) {
-					if(!rejectedOverload) {
-						requestStarters.rejectedOverload(true, false);
-						rejectedOverload = true;
-					}
-				} else
-					if(rs.hasForwarded() &&
-						((status == RequestSender.DATA_NOT_FOUND) ||
-						(status == RequestSender.RECENTLY_FAILED) ||
-						(status == RequestSender.SUCCESS) ||
-						(status == RequestSender.ROUTE_NOT_FOUND) ||
-						(status == RequestSender.VERIFY_FAILURE) ||
-						(status == RequestSender.GET_OFFER_VERIFY_FAILURE))) {
-						long rtt = System.currentTimeMillis() - startTime;
-
-						if(!rejectedOverload)
-							requestStarters.requestCompleted(true, false, key.getNodeKey(true));
-						// Count towards RTT even if got a RejectedOverload - but not if timed out.
-						requestStarters.sskRequestThrottle.successfulCompletion(rtt);
-					}
-
-				if(rs.getStatus() == RequestSender.SUCCESS)
-					try {
-						SSKBlock block = rs.getSSKBlock();
-						key.setPublicKey(block.getPubKey());
-						return ClientSSKBlock.construct(block, key);
-					} catch(SSKVerifyException e) {
-						Logger.error(this, "Does not verify: " + e, e);
-						throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
-					}
-				else
-					switch(rs.getStatus()) {
-						case RequestSender.NOT_FINISHED:
-							Logger.error(this, "RS still running in getCHK!: " + rs);
-							throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
-						case RequestSender.DATA_NOT_FOUND:
-							throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND);
-						case RequestSender.RECENTLY_FAILED:
-							throw new LowLevelGetException(LowLevelGetException.RECENTLY_FAILED);
-						case RequestSender.ROUTE_NOT_FOUND:
-							throw new LowLevelGetException(LowLevelGetException.ROUTE_NOT_FOUND);
-						case RequestSender.TRANSFER_FAILED:
-						case RequestSender.GET_OFFER_TRANSFER_FAILED:
-							Logger.error(this, "WTF? Transfer failed on an SSK? on " + uid);
-							throw new LowLevelGetException(LowLevelGetException.TRANSFER_FAILED);
-						case RequestSender.VERIFY_FAILURE:
-						case RequestSender.GET_OFFER_VERIFY_FAILURE:
-							throw new LowLevelGetException(LowLevelGetException.VERIFY_FAILED);
-						case RequestSender.GENERATED_REJECTED_OVERLOAD:
-						case RequestSender.TIMED_OUT:
-							throw new LowLevelGetException(LowLevelGetException.REJECTED_OVERLOAD);
-						case RequestSender.INTERNAL_ERROR:
-						default:
-							Logger.error(this, "Unknown RequestSender code in getCHK: " + rs.getStatus() + " on " + rs);
-							throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
-					}
+				return finishSSK(rs, status, key, uid, startTime, rejectedOverload);
 			}
 		} finally {
 			node.unlockUID(uid, true, false, true, false, true, tag);
 		}
 	}
 
+	/**
+	 * Decode a block which a local request found in the datastore.
+	 * @param o What makeRequestSender() returned instead of a RequestSender: the block, or null
+	 * if it wasn't in the store and we may not route the request.
+	 */
+	private ClientKeyBlock fromDatastore(ClientKey key, Object o, RequestTag tag) throws LowLevelGetException {
+		if(o == null)
+			throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND_IN_STORE);
+		tag.setServedFromDatastore();
+		if(o instanceof CHKBlock)
+			try {
+				return new ClientCHKBlock((CHKBlock) o, (ClientCHK) key);
+			} catch(CHKVerifyException e) {
+				Logger.error(this, "Does not verify: " + e, e);
+				throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
+			}
+		try {
+			SSKBlock block = (SSKBlock) o;
+			ClientSSK ssk = (ClientSSK) key;
+			ssk.setPublicKey(block.getPubKey());
+			return ClientSSKBlock.construct(block, ssk);
+		} catch(SSKVerifyException e) {
+			Logger.error(this, "Does not verify: " + e, e);
+			throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
+		}
+	}
+
+	/**
+	 * Account for a finished local CHK request, and get its result.
+	 * @param status The final status of the RequestSender.
+	 * @param rejectedOverload True if we have already counted a RejectedOverload for it.
+	 */
+	private ClientCHKBlock finishCHK(RequestSender rs, int status, ClientCHK key, long startTime, boolean rejectedOverload) throws LowLevelGetException {
+		if(status != RequestSender.TIMED_OUT && status != RequestSender.GENERATED_REJECTED_OVERLOAD && status != RequestSender.INTERNAL_ERROR) {
+			if(logMINOR)
+				Logger.minor(this, "CHK fetch cost " + rs.getTotalSentBytes() + '/' + rs.getTotalReceivedBytes() + " bytes (" + status + ')');
+			nodeStats.localChkFetchBytesSentAverage.report(rs.getTotalSentBytes());
+			nodeStats.localChkFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
+			if(status == RequestSender.SUCCESS)
+				// See comments above declaration of successful* : We don't report sent bytes here.
+				//nodeStats.successfulChkFetchBytesSentAverage.report(rs.getTotalSentBytes());
+				nodeStats.successfulChkFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
+		}
+
+		if((status == RequestSender.TIMED_OUT) ||
+			(status == RequestSender.GENERATED_REJECTED_OVERLOAD)) {
+			if(!rejectedOverload) {
+				// See below
+				requestStarters.rejectedOverload(false, false);
+				rejectedOverload = true;
+				long rtt = System.currentTimeMillis() - startTime;
+				node.nodeStats.reportCHKTime(rtt, false);
+			}
+		} else
+			if(rs.hasForwarded() &&
+				((status == RequestSender.DATA_NOT_FOUND) ||
+				(status == RequestSender.RECENTLY_FAILED) ||
+				(status == RequestSender.SUCCESS) ||
+				(status == RequestSender.ROUTE_NOT_FOUND) ||
+				(status == RequestSender.VERIFY_FAILURE) ||
+				(status == RequestSender.GET_OFFER_VERIFY_FAILURE))) {
+				long rtt = System.currentTimeMillis() - startTime;
+				if(!rejectedOverload)
+					requestStarters.requestCompleted(false, false, key.getNodeKey(true));
+				// Count towards RTT even if got a RejectedOverload - but not if timed out.
+				requestStarters.chkRequestThrottle.successfulCompletion(rtt);
+				node.nodeStats.reportCHKTime(rtt, status == RequestSender.SUCCESS);
+				if(status == RequestSender.SUCCESS) {
+					Logger.minor(this, "Successful CHK fetch took "+rtt);
+				}
+			}
+
+		if(status == RequestSender.SUCCESS)
+			try {
+				return new ClientCHKBlock(rs.getPRB().getBlock(), rs.getHeaders(), key, true);
+			} catch(CHKVerifyException e) {
+				Logger.error(this, "Does not verify: " + e, e);
+				throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
+			} catch(AbortedException e) {
+				Logger.error(this, "Impossible: " + e, e);
+				throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
+			}
+		else {
+			switch(status) {
+				case RequestSender.NOT_FINISHED:
+					Logger.error(this, "RS still running in getCHK!: " + rs);
+					throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
+				case RequestSender.DATA_NOT_FOUND:
+					throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND);
+				case RequestSender.RECENTLY_FAILED:
+					throw new LowLevelGetException(LowLevelGetException.RECENTLY_FAILED);
+				case RequestSender.ROUTE_NOT_FOUND:
+					throw new LowLevelGetException(LowLevelGetException.ROUTE_NOT_FOUND);
+				case RequestSender.TRANSFER_FAILED:
+				case RequestSender.GET_OFFER_TRANSFER_FAILED:
+					throw new LowLevelGetException(LowLevelGetException.TRANSFER_FAILED);
+				case RequestSender.VERIFY_FAILURE:
+				case RequestSender.GET_OFFER_VERIFY_FAILURE:
+					throw new LowLevelGetException(LowLevelGetException.VERIFY_FAILED);
+				case RequestSender.GENERATED_REJECTED_OVERLOAD:
+				case RequestSender.TIMED_OUT:
+					throw new LowLevelGetException(LowLevelGetException.REJECTED_OVERLOAD);
+				case RequestSender.INTERNAL_ERROR:
+					throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
+				default:
+					Logger.error(this, "Unknown RequestSender code in getCHK: " + status + " on " + rs);
+					throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
+			}
+		}
+	}
+
+	/**
+	 * Account for a finished local SSK request, and get its result.
+	 * @param status The final status of the RequestSender.
+	 * @param rejectedOverload True if we have already counted a RejectedOverload for it.
+	 */
+	private ClientSSKBlock finishSSK(RequestSender rs, int status, ClientSSK key, long uid, long startTime, boolean rejectedOverload) throws LowLevelGetException {
+		if(status != RequestSender.TIMED_OUT && status != RequestSender.GENERATED_REJECTED_OVERLOAD && status != RequestSender.INTERNAL_ERROR) {
+			if(logMINOR)
+				Logger.minor(this, "SSK fetch cost " + rs.getTotalSentBytes() + '/' + rs.getTotalReceivedBytes() + " bytes (" + status + ')');
+			nodeStats.localSskFetchBytesSentAverage.report(rs.getTotalSentBytes());
+			nodeStats.localSskFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
+			if(status == RequestSender.SUCCESS)
+				// See comments above successfulSskFetchBytesSentAverage : we don't relay the data, so
+				// reporting the sent bytes would be inaccurate.
+				//nodeStats.successfulSskFetchBytesSentAverage.report(rs.getTotalSentBytes());
+				nodeStats.successfulSskFetchBytesReceivedAverage.report(rs.getTotalReceivedBytes());
+		}
+
+		if((status == RequestSender.TIMED_OUT) ||
+			(status == RequestSender.GENERATED_REJECTED_OVERLOAD)) {
+			if(!rejectedOverload) {
+				requestStarters.rejectedOverload(true, false);
+				rejectedOverload = true;
+			}
+		} else
+			if(rs.hasForwarded() &&
+				((status == RequestSender.DATA_NOT_FOUND) ||
+				(status == RequestSender.RECENTLY_FAILED) ||
+				(status == RequestSender.SUCCESS) ||
+				(status == RequestSender.ROUTE_NOT_FOUND) ||
+				(status == RequestSender.VERIFY_FAILURE) ||
+				(status == RequestSender.GET_OFFER_VERIFY_FAILURE))) {
+				long rtt = System.currentTimeMillis() - startTime;
+
+				if(!rejectedOverload)
+					requestStarters.requestCompleted(true, false, key.getNodeKey(true));
+				// Count towards RTT even if got a RejectedOverload - but not if timed out.
+				requestStarters.sskRequestThrottle.successfulCompletion(rtt);
+			}
+
+		if(status == RequestSender.SUCCESS)
+			try {
+				SSKBlock block = rs.getSSKBlock();
+				key.setPublicKey(block.getPubKey());
+				return ClientSSKBlock.construct(block, key);
+			} catch(SSKVerifyException e) {
+				Logger.error(this, "Does not verify: " + e, e);
+				throw new LowLevelGetException(LowLevelGetException.DECODE_FAILED);
+			}
+		else
+			switch(status) {
+				case RequestSender.NOT_FINISHED:
+					Logger.error(this, "RS still running in getCHK!: " + rs);
+					throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
+				case RequestSender.DATA_NOT_FOUND:
+					throw new LowLevelGetException(LowLevelGetException.DATA_NOT_FOUND);
+				case RequestSender.RECENTLY_FAILED:
+					throw new LowLevelGetException(LowLevelGetException.RECENTLY_FAILED);
+				case RequestSender.ROUTE_NOT_FOUND:
+					throw new LowLevelGetException(LowLevelGetException.ROUTE_NOT_FOUND);
+				case RequestSender.TRANSFER_FAILED:
+				case RequestSender.GET_OFFER_TRANSFER_FAILED:
+					Logger.error(this, "WTF? Transfer failed on an SSK? on " + uid);
+					throw new LowLevelGetException(LowLevelGetException.TRANSFER_FAILED);
+				case RequestSender.VERIFY_FAILURE:
+				case RequestSender.GET_OFFER_VERIFY_FAILURE:
+					throw new LowLevelGetException(LowLevelGetException.VERIFY_FAILED);
+				case RequestSender.GENERATED_REJECTED_OVERLOAD:
+				case RequestSender.TIMED_OUT:
+					throw new LowLevelGetException(LowLevelGetException.REJECTED_OVERLOAD);
+				case RequestSender.INTERNAL_ERROR:
+				default:
+					Logger.error(this, "Unknown RequestSender code in getCHK: " + status + " on " + rs);
+					throw new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR);
+			}
+	}
+
 	/**
 	 * Start a local request to insert a block. Note that this is a KeyBlock not a ClientKeyBlock
 	 * mainly because of random reinserts.
@@ -14,6 +14,7 @@ import freenet.config.SubConfig;
 import freenet.crypt.RandomSource;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
+import freenet.io.comm.UdpSocketHandler;
 import freenet.l10n.NodeL10n;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.stats.NodeStoreStats;
@@ -1204,6 +1205,18 @@ public class NodeStats implements Persistable {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		UdpSocketHandler[] sockets = node.getPacketSocketHandlers();
+		for (int i = 0; i < sockets.length; i++) {
+			UdpSocketHandler sock = sockets[i];
+			if (sock == null) continue;
+			String prefix = "udp" + sock.getPortNumber();
+			fs.put(prefix + "ReceiveQueueDepth", sock.getReceiveQueueDepth());
+			fs.put(prefix + "PacketsReceived", sock.getPacketsReceived());
+			fs.put(prefix + "PacketsDropped", sock.getPacketsDropped());
+			fs.put(prefix + "SendsDropped", sock.getSendsDropped());
+			fs.put(prefix + "AverageQueueTime", sock.getAverageQueueTime());
+			fs.put(prefix + "AverageProcessTime", sock.getAverageProcessTime());
+		}
 		
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
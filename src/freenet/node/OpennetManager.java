@@ -829,18 +829,7 @@ public class OpennetManager {
 	 * @return An opennet noderef.
 	 */
 	public byte[] waitForOpennetNoderef(boolean isReply, PeerNode source, long uid, ByteCounter ctr) {
-		// FIXME remove back compat code
-		MessageFilter mf =
-			MessageFilter.create().setSource(source).setField(DMT.UID, uid).
-			setTimeout(RequestSender.OPENNET_TIMEOUT).
-			setType(isReply ? DMT.FNPOpennetConnectReplyNew : DMT.FNPOpennetConnectDestinationNew);
-		if (!isReply) {
-			// Also waiting for an ack
-			MessageFilter mfAck = 
-				MessageFilter.create().setSource(source).setField(DMT.UID, uid).
-				setTimeout(RequestSender.OPENNET_TIMEOUT).setType(DMT.FNPOpennetCompletedAck);
-			mf = mfAck.or(mf);
-		}
+		MessageFilter mf = opennetNoderefFilter(isReply, source, uid);
 		Message msg;
 		
 		try {
@@ -856,6 +845,31 @@ public class OpennetManager {
 			return null;
 		}
 		
+		return receiveOpennetNoderef(msg, isReply, source, uid, ctr);
+	}
+
+	/** @return A filter for the message which starts an opennet noderef transfer, and if
+	 * !isReply, for the ack which says there won't be one. */
+	MessageFilter opennetNoderefFilter(boolean isReply, PeerNode source, long uid) {
+		// FIXME remove back compat code
+		MessageFilter mf =
+			MessageFilter.create().setSource(source).setField(DMT.UID, uid).
+			setTimeout(RequestSender.OPENNET_TIMEOUT).
+			setType(isReply ? DMT.FNPOpennetConnectReplyNew : DMT.FNPOpennetConnectDestinationNew);
+		if (!isReply) {
+			// Also waiting for an ack
+			MessageFilter mfAck = 
+				MessageFilter.create().setSource(source).setField(DMT.UID, uid).
+				setTimeout(RequestSender.OPENNET_TIMEOUT).setType(DMT.FNPOpennetCompletedAck);
+			mf = mfAck.or(mf);
+		}
+		return mf;
+	}
+
+	/** Receive the noderef announced by a message matched by opennetNoderefFilter(). Blocks
+	 * while the noderef is transferred.
+	 * @return The noderef, or null if there isn't one or it couldn't be received. */
+	byte[] receiveOpennetNoderef(Message msg, boolean isReply, PeerNode source, long uid, ByteCounter ctr) {
 		if (msg.getSpec() == DMT.FNPOpennetCompletedAck) {
 			return null; // Acked (only possible if !isReply)
 		}
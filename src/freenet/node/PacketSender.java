@@ -4,10 +4,14 @@
 package freenet.node;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import freenet.io.comm.Peer;
 import freenet.l10n.NodeL10n;
@@ -17,7 +21,9 @@ import freenet.support.HTMLNode;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.OOMHandler;
+import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
+import freenet.support.TimingWheel;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
@@ -26,6 +32,11 @@ import freenet.support.io.NativeThread;
  *
  *         Thread that sends a packet whenever: - A packet needs to be resent immediately -
  *         Acknowledgments or resend requests need to be sent urgently.
+ *
+ *         The peers are split into shards, each with its own sending thread. A shard only looks
+ *         at a peer when its next action time has come, or when something has happened to it
+ *         (see {@link #wakeUp(PeerNode)}), so idle peers cost next to nothing. The main thread
+ *         does the housekeeping and runs the timed jobs.
  */
 // j16sdiz (22-Dec-2008):
 // FIXME this is the only class implements Ticker, everbody is using this as
@@ -57,39 +68,53 @@ public class PacketSender implements Runnable, Ticker {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final int MIN_OLD_OPENNET_CONNECT_DELAY = 60 * 1000;
-	/** ~= Ticker :) */
-	private final TreeMap<Long, Object> timedJobsByTime;
+	/** Look at a connected peer at least this often even if it has nothing to do, for
+	 * timeouts etc. */
+	static final int IDLE_PEER_CHECK_INTERVAL = 1000;
+	/** Look at a peer which isn't connected this often, so handshakes go out on time. Peers
+	 * are also looked at straight away when their status changes. */
+	static final int DISCONNECTED_PEER_CHECK_INTERVAL = MAX_COALESCING_DELAY;
+	/** Upper bounds of the send latency histogram buckets, in milliseconds. There is one more
+	 * bucket for anything longer. */
+	public static final int[] SEND_LATENCY_BUCKETS = new int[] { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+	/** ~= Ticker :) Also the lock for queuedJobs and queuedJobsByType. */
+	private final TimingWheel<Job> timedJobs;
+	/** The most recently queued Job for each job, for noDupes and removeQueuedJob(). The others
+	 * queued for the same job are chained from it. Compared by identity, like Job. */
+	private final IdentityHashMap<Runnable, Job> queuedJobs;
+	/** Number of jobs queued by class name, for the stats page */
+	private final HashMap<String, Integer> queuedJobsByType;
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
 	long lastClearedOldSwapChains;
 	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
-	private Vector<ResendPacketItem> rpiTemp;
-	private int[] rpiIntTemp;
+	private final SenderShard[] shards;
 
 	private final static class Job {
 		final String name;
 		final Runnable job;
+		/** Set when queued, to cancel it */
+		TimingWheel.Timer<Job> timer;
+		/** The next Job queued for the same job */
+		Job nextSame;
 		Job(String name, Runnable job) {
 			this.name = name;
 			this.job = job;
 		}
-
-		public boolean equals(Object o) {
-			if(!(o instanceof Job)) return false;
-			// Ignore the name, we are only interested in the job, needed for noDupes.
-			return ((Job)o).job == job;
-		}
 	}
 
-	PacketSender(Node node) {
-		timedJobsByTime = new TreeMap<Long, Object>();
+	PacketSender(Node node, int threads) {
+		timedJobs = new TimingWheel<Job>(System.currentTimeMillis());
+		queuedJobs = new IdentityHashMap<Runnable, Job>();
+		queuedJobsByType = new HashMap<String, Integer>();
 		this.node = node;
 		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
-		rpiTemp = new Vector<ResendPacketItem>();
-		rpiIntTemp = new int[64];
+		shards = new SenderShard[Math.max(1, threads)];
+		for(int i = 0; i < shards.length; i++)
+			shards[i] = new SenderShard(i);
 	}
 
 	void start(NodeStats stats) {
@@ -110,21 +135,18 @@ public class PacketSender implements Runnable, Ticker {
 						}
 					}
 				}, transition - now);
+		for(SenderShard shard : shards)
+			shard.thread.start();
 		myThread.start();
 	}
 
 	public void run() {
 		if(logMINOR) Logger.minor(this, "In PacketSender.run()");
 		freenet.support.Logger.OSThread.logPID(this);
-		/*
-		 * Index of the point in the nodes list at which we sent a packet and then
-		 * ran out of bandwidth. We start the loop from here next time.
-		 */
-		int brokeAt = 0;
 		while(true) {
 			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
-				brokeAt = realRun(brokeAt);
+				realRun();
 			} catch(OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -136,13 +158,16 @@ public class PacketSender implements Runnable, Ticker {
 		}
 	}
 
-	private int realRun(int brokeAt) {
+	/** Housekeeping and timed jobs. The peers are handled by the shards. */
+	private void realRun() {
 		long now = System.currentTimeMillis();
 		PeerManager pm = node.peers;
 		PeerNode[] nodes = pm.myPeers;
 		// Run the time sensitive status updater separately
 		for(int i = 0; i < nodes.length; i++) {
 			PeerNode pn = nodes[i];
+			lastReceivedPacketFromAnyNode =
+				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
 			// Only routing backed off nodes should need status updating since everything else
 			// should get updated immediately when it's changed
 			if(pn.getPeerNodeStatus() == PeerManager.PEER_NODE_STATUS_ROUTING_BACKED_OFF)
@@ -153,110 +178,12 @@ public class PacketSender implements Runnable, Ticker {
 		stats.maybeUpdatePeerManagerUserAlertStats(now);
 		stats.maybeUpdateNodeIOStats(now);
 		pm.maybeUpdatePeerNodeRoutableConnectionStats(now);
-		long nextActionTime = Long.MAX_VALUE;
-		long oldTempNow = now;
 		// Needs to be run very frequently. Maybe change to a regular once per second schedule job?
 		// Maybe not worth it as it is fairly lightweight.
 		// FIXME given the lock contention, maybe it's worth it? What about
 		// running it on the UdpSocketHandler thread? That would surely be better...?
 		node.lm.removeTooOldQueuedItems();
 
-		boolean canSendThrottled = false;
-
-		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
-		long count = node.outputThrottle.getCount();
-		if(count > MAX_PACKET_SIZE)
-			canSendThrottled = true;
-		else {
-			long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
-			canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
-			if(logMINOR)
-				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
-		}
-
-		int newBrokeAt = brokeAt;
-		for(int i = 0; i < nodes.length; i++) {
-			int idx = (i + brokeAt + 1) % nodes.length;
-			PeerNode pn = nodes[idx];
-			lastReceivedPacketFromAnyNode =
-				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
-			pn.maybeOnConnect();
-			if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
-				// Might as well do it properly.
-				node.peers.disconnect(pn, true, true, false);
-			}
-
-			if(pn.isConnected()) {
-
-				if(pn.shouldThrottle() && !canSendThrottled)
-					continue;
-
-				// Is the node dead?
-				if(now - pn.lastReceivedPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
-					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
-					pn.disconnected(false, false /* hopefully will recover, transient network glitch */);
-					continue;
-				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
-					/*
-					 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
-					 code will only execute because of the scheduled-runnable in start() which executes
-					 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
-					 as being incompatible.
-					 */
-					pn.invalidate();
-					pn.setPeerNodeStatus(now);
-					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
-					continue;
-				}
-
-				try {
-				if((canSendThrottled || !pn.shouldThrottle()) && pn.maybeSendPacket(now, rpiTemp, rpiIntTemp)) {
-					canSendThrottled = false;
-					count = node.outputThrottle.getCount();
-					if(count > MAX_PACKET_SIZE)
-						canSendThrottled = true;
-					else {
-						long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
-						canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
-						if(logMINOR)
-							Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-						nextActionTime = Math.min(nextActionTime, now + canSendAt);
-						newBrokeAt = idx;
-					}
-				}
-				} catch (BlockedTooLongException e) {
-					Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+this+" on "+e.tracker+" - DISCONNECTING!");
-					pn.forceDisconnect(true);
-					onForceDisconnectBlockTooLong(pn, e);
-				}
-
-				long urgentTime = pn.getNextUrgentTime(now);
-				// Should spam the logs, unless there is a deadlock
-				if(urgentTime < Long.MAX_VALUE && logMINOR)
-					Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn.getPeer());
-				nextActionTime = Math.min(nextActionTime, urgentTime);
-			} else
-				// Not connected
-
-				if(pn.noContactDetails())
-					pn.startARKFetcher();
-
-			if(pn.shouldSendHandshake()) {
-				// Send handshake if necessary
-				long beforeHandshakeTime = System.currentTimeMillis();
-				pn.getOutgoingMangler().sendHandshake(pn, false);
-				long afterHandshakeTime = System.currentTimeMillis();
-				if((afterHandshakeTime - beforeHandshakeTime) > (2 * 1000))
-					Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
-			}
-			long tempNow = System.currentTimeMillis();
-			if((tempNow - oldTempNow) > (5 * 1000))
-				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
-			oldTempNow = tempNow;
-		}
-		brokeAt = newBrokeAt;
-
 		/* Attempt to connect to old-opennet-peers.
 		 * Constantly send handshake packets, in order to get through a NAT.
 		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
@@ -305,60 +232,43 @@ public class PacketSender implements Runnable, Ticker {
 		if((now - oldNow) > (10 * 1000))
 			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
 
-		List<Job> jobsToRun = null;
-
-		synchronized(timedJobsByTime) {
-			while(!timedJobsByTime.isEmpty()) {
-				Long tRun = timedJobsByTime.firstKey();
-				if(tRun.longValue() <= now) {
-					if(jobsToRun == null)
-						jobsToRun = new ArrayList<Job>();
-					Object o = timedJobsByTime.remove(tRun);
-					if(o instanceof Job[]) {
-						Job[] r = (Job[]) o;
-						for(int i = 0; i < r.length; i++)
-							jobsToRun.add(r[i]);
-					} else {
-						Job r = (Job) o;
-						jobsToRun.add(r);
-					}
-				} else
-					// FIXME how accurately do we want ticker jobs to be scheduled?
-					// FIXME can they wait the odd 200ms?
+		List<Job> jobsToRun = new ArrayList<Job>();
 
-					break;
-			}
+		// FIXME how accurately do we want ticker jobs to be scheduled?
+		// FIXME can they wait the odd 200ms?
+		synchronized(timedJobs) {
+			timedJobs.expire(now, jobsToRun);
+			for(Job r : jobsToRun)
+				onDequeued(r);
 		}
 
-		if(jobsToRun != null)
-			for(Job r : jobsToRun) {
-				if(logMINOR)
-					Logger.minor(this, "Running " + r);
-				if(r.job instanceof FastRunnable)
-					// Run in-line
+		for(Job r : jobsToRun) {
+			if(logMINOR)
+				Logger.minor(this, "Running " + r);
+			if(r.job instanceof FastRunnable)
+				// Run in-line
 
-					try {
-						r.job.run();
-					} catch(Throwable t) {
-						Logger.error(this, "Caught " + t + " running " + r, t);
-					}
-				else
-					try {
-						node.executor.execute(r.job, r.name, true);
-					} catch(OutOfMemoryError e) {
-						OOMHandler.handleOOM(e);
-						System.err.println("Will retry above failed operation...");
-						queueTimedJob(r.job, r.name, 200, true, false);
-					} catch(Throwable t) {
-						Logger.error(this, "Caught in PacketSender: " + t, t);
-						System.err.println("Caught in PacketSender: " + t);
-						t.printStackTrace();
-					}
-			}
+				try {
+					r.job.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running " + r, t);
+				}
+			else
+				try {
+					node.executor.execute(r.job, r.name, true);
+				} catch(OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+					System.err.println("Will retry above failed operation...");
+					queueTimedJob(r.job, r.name, 200, true, false);
+				} catch(Throwable t) {
+					Logger.error(this, "Caught in PacketSender: " + t, t);
+					System.err.println("Caught in PacketSender: " + t);
+					t.printStackTrace();
+				}
+		}
 
-		long sleepTime = nextActionTime - now;
 		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+		long sleepTime = MAX_COALESCING_DELAY;
 
 		if(now - node.startupTime > 60 * 1000 * 5)
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
@@ -366,20 +276,280 @@ public class PacketSender implements Runnable, Ticker {
 				lastReportedNoPackets = now;
 			}
 
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
+		// Update logging only when have time to do so
+		try {
+			if(logMINOR)
+				Logger.minor(this, "Sleeping for " + sleepTime);
+			synchronized(this) {
+				wait(sleepTime);
+			}
+		} catch(InterruptedException e) {
+		// Ignore, just wake up.
+		}
+	}
+
+	/**
+	 * Sends packets and handshakes for a subset of the peers, on its own thread.
+	 */
+	private class SenderShard implements Runnable {
+
+		final int index;
+		final NativeThread thread;
+		private final Vector<ResendPacketItem> rpiTemp = new Vector<ResendPacketItem>();
+		private int[] rpiIntTemp = new int[64];
+		/** The peer list our shard was computed from */
+		private PeerNode[] allPeers;
+		/** Our peers */
+		private volatile PeerNode[] peers = new PeerNode[0];
+		/**
+		 * Index of the point in the nodes list at which we sent a packet and then
+		 * ran out of bandwidth. We start the loop from here next time.
+		 */
+		private int brokeAt;
+		/** Set by wakeUp(), cleared when we start a pass. Protected by this. */
+		private boolean woken;
+		/** Time between a peer needing a packet sent and us sending it, counts by bucket */
+		final AtomicLongArray sendLatency = new AtomicLongArray(SEND_LATENCY_BUCKETS.length + 1);
+
+		SenderShard(int index) {
+			this.index = index;
+			thread = new NativeThread(this, "PacketSender shard " + index + " for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
+			thread.setDaemon(true);
+		}
+
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				try {
+					realRun();
+				} catch(OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+					System.err.println("Will retry above failed operation...");
+				} catch(Throwable t) {
+					Logger.error(this, "Caught in PacketSender: " + t, t);
+					System.err.println("Caught in PacketSender: " + t);
+					t.printStackTrace();
+				}
+			}
+		}
+
+		private PeerNode[] getPeers() {
+			PeerNode[] nodes = node.peers.myPeers;
+			if(nodes == allPeers) return peers;
+			ArrayList<PeerNode> list = new ArrayList<PeerNode>(nodes.length / shards.length + 1);
+			for(PeerNode pn : nodes)
+				if(shardFor(pn) == this)
+					list.add(pn);
+			peers = list.toArray(new PeerNode[list.size()]);
+			allPeers = nodes;
+			return peers;
+		}
+
+		private void realRun() {
+			synchronized(this) {
+				woken = false;
+			}
+			long now = System.currentTimeMillis();
+			PeerNode[] nodes = getPeers();
+			long nextActionTime = Long.MAX_VALUE;
+			long oldTempNow = now;
+
+			boolean canSendThrottled = false;
+
+			int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
+			long count = node.outputThrottle.getCount();
+			if(count > MAX_PACKET_SIZE)
+				canSendThrottled = true;
+			else {
+				long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
+				canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
 				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
-					wait(sleepTime);
+					Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
+				nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			}
+
+			int newBrokeAt = brokeAt;
+			for(int i = 0; i < nodes.length; i++) {
+				int idx = (i + brokeAt + 1) % nodes.length;
+				PeerNode pn = nodes[idx];
+				long due = pn.getPacketSenderCheckTime();
+				if(due > now) {
+					// Nothing to do yet
+					nextActionTime = Math.min(nextActionTime, due);
+					continue;
 				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
+				long peerNextTime = now + IDLE_PEER_CHECK_INTERVAL;
+				pn.maybeOnConnect();
+				if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
+					// Might as well do it properly.
+					node.peers.disconnect(pn, true, true, false);
+				}
+
+				if(pn.isConnected()) {
+
+					// Leave it due, we will come back when we can send.
+					if(pn.shouldThrottle() && !canSendThrottled)
+						continue;
+
+					// Is the node dead?
+					if(now - pn.lastReceivedPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
+						Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
+						pn.disconnected(false, false /* hopefully will recover, transient network glitch */);
+						pn.setPacketSenderCheckTime(due, peerNextTime);
+						continue;
+					} else if(pn.isRoutable() && pn.noLongerRoutable()) {
+						/*
+						 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
+						 code will only execute because of the scheduled-runnable in start() which executes
+						 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
+						 as being incompatible.
+						 */
+						pn.invalidate();
+						pn.setPeerNodeStatus(now);
+						Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+						pn.setPacketSenderCheckTime(due, peerNextTime);
+						continue;
+					}
+
+					try {
+					if((canSendThrottled || !pn.shouldThrottle()) && pn.maybeSendPacket(now, rpiTemp, rpiIntTemp)) {
+						if(due > 0) reportSendLatency(now - due);
+						canSendThrottled = false;
+						count = node.outputThrottle.getCount();
+						if(count > MAX_PACKET_SIZE)
+							canSendThrottled = true;
+						else {
+							long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
+							canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
+							if(logMINOR)
+								Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
+							nextActionTime = Math.min(nextActionTime, now + canSendAt);
+							newBrokeAt = idx;
+						}
+					}
+					} catch (BlockedTooLongException e) {
+						Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+this+" on "+e.tracker+" - DISCONNECTING!");
+						pn.forceDisconnect(true);
+						onForceDisconnectBlockTooLong(pn, e);
+					}
+
+					long urgentTime = pn.getNextUrgentTime(now);
+					// Should spam the logs, unless there is a deadlock
+					if(urgentTime < Long.MAX_VALUE && logMINOR)
+						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn.getPeer());
+					peerNextTime = Math.min(peerNextTime, urgentTime);
+				} else {
+					// Not connected
+					peerNextTime = now + DISCONNECTED_PEER_CHECK_INTERVAL;
+
+					if(pn.noContactDetails())
+						pn.startARKFetcher();
+				}
+
+				if(pn.shouldSendHandshake()) {
+					// Send handshake if necessary
+					long beforeHandshakeTime = System.currentTimeMillis();
+					pn.getOutgoingMangler().sendHandshake(pn, false);
+					long afterHandshakeTime = System.currentTimeMillis();
+					if((afterHandshakeTime - beforeHandshakeTime) > (2 * 1000))
+						Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
+				}
+				// If something happened to the peer since we started, it stays due.
+				pn.setPacketSenderCheckTime(due, peerNextTime);
+				nextActionTime = Math.min(nextActionTime, peerNextTime);
+				long tempNow = System.currentTimeMillis();
+				if((tempNow - oldTempNow) > (5 * 1000))
+					Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
+				oldTempNow = tempNow;
 			}
+			brokeAt = newBrokeAt;
+
+			now = System.currentTimeMillis();
+			long sleepTime = nextActionTime - now;
+			// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
+			sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+
+			if(sleepTime > 0) {
+				try {
+					if(logMINOR)
+						Logger.minor(this, "Sleeping for " + sleepTime);
+					synchronized(this) {
+						if(!woken)
+							wait(sleepTime);
+					}
+				} catch(InterruptedException e) {
+				// Ignore, just wake up. Probably we got interrupt()ed
+				// because a new packet came in.
+				}
+			}
+		}
+
+		private void reportSendLatency(long delay) {
+			int bucket = 0;
+			while(bucket < SEND_LATENCY_BUCKETS.length && delay >= SEND_LATENCY_BUCKETS[bucket])
+				bucket++;
+			sendLatency.incrementAndGet(bucket);
+		}
+
+		synchronized void wakeUp() {
+			woken = true;
+			notifyAll();
+		}
+
+		int getPeerCount() {
+			return peers.length;
+		}
+
+		@Override
+		public String toString() {
+			return "PacketSender shard " + index + " for " + node.getDarknetPortNumber();
+		}
+	}
+
+	private SenderShard shardFor(PeerNode pn) {
+		return shards[shardIndex(pn, shards.length)];
+	}
+
+	/** @return The index of the shard which handles a peer. Fixed for the life of the peer. */
+	static int shardIndex(Object pn, int shardCount) {
+		return (System.identityHashCode(pn) & Integer.MAX_VALUE) % shardCount;
+	}
+
+	/**
+	 * Make a shard look at a peer on its next pass, by lowering the time it next needs to.
+	 * @param checkTime The peer's check time, see {@link PeerNode#getPacketSenderCheckTime()}.
+	 */
+	static void wake(AtomicLong checkTime, long now) {
+		while(true) {
+			long t = checkTime.get();
+			// If it's already due, still change it, so that setPacketSenderCheckTime() fails
+			// if a shard is looking at the peer right now.
+			long next = t > now ? now : t - 1;
+			if(checkTime.compareAndSet(t, next)) return;
 		}
-		return brokeAt;
+	}
+
+	/** @return The number of sending threads */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Get the send latency histogram for a shard: the time between a peer needing a packet
+	 * sent, and the shard sending it.
+	 * @return The number of packets in each bucket, see {@link #SEND_LATENCY_BUCKETS}.
+	 */
+	public long[] getSendLatencyCounts(int shard) {
+		AtomicLongArray counts = shards[shard].sendLatency;
+		long[] ret = new long[counts.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = counts.get(i);
+		return ret;
+	}
+
+	/** @return The number of peers in a shard */
+	public int getShardPeerCount(int shard) {
+		return shards[shard].getPeerCount();
 	}
 
 	private HashSet<Peer> peersDumpedBlockedTooLong = new HashSet<Peer>();
@@ -495,6 +665,14 @@ public class PacketSender implements Runnable, Ticker {
 		synchronized(this) {
 			notifyAll();
 		}
+		for(SenderShard shard : shards)
+			shard.wakeUp();
+	}
+
+	/** Something has happened to a peer, e.g. a packet needs resending. Look at it now. */
+	void wakeUp(PeerNode pn) {
+		pn.wakePacketSender(System.currentTimeMillis());
+		shardFor(pn).wakeUp();
 	}
 
 	protected String l10n(String key, String[] patterns, String[] values) {
@@ -520,10 +698,9 @@ public class PacketSender implements Runnable, Ticker {
 	 * their thread priorities; if true, jobs to run immediately through the executor (which
 	 * normally will also preserve thread priorities, but may need to call back via
 	 * runOnTickerAnyway=true if it needs to increase the thread priority).
-	 * @param noDupes Don't run this job if it is already scheduled. Relatively expensive, O(n)
-	 * with queued jobs. Necessary for Announcer to ensure that we don't get exponentially
-	 * increasing numbers of announcement check jobs queued, while ensuring that we do always
-	 * have one queued within the given period.
+	 * @param noDupes Don't run this job if it is already scheduled. Necessary for Announcer to
+	 * ensure that we don't get exponentially increasing numbers of announcement check jobs
+	 * queued, while ensuring that we do always have one queued within the given period.
 	 */
 	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
 		// Run directly *if* that won't cause any priority problems.
@@ -535,32 +712,78 @@ public class PacketSender implements Runnable, Ticker {
 		Job job = new Job(name, runner);
 		if(offset < 0) offset = 0;
 		long now = System.currentTimeMillis();
-		Long l = Long.valueOf(offset + now);
-		synchronized(timedJobsByTime) {
-			if(noDupes) {
-				if(timedJobsByTime.containsValue(new Job(name, runner))) {
-					// O(n) but this is okay as it is only used by Announcer.
-					// If you replace this with a lookup set, be *very* careful to ensure that the two are consistent,
-					// otherwise we can forget important recurring jobs e.g. Announcer.
-					Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
-					return;
-				}
-			}
-			Object o = timedJobsByTime.get(l);
-			if(o == null)
-				timedJobsByTime.put(l, job);
-			else if(o instanceof Job)
-				timedJobsByTime.put(l, new Job[]{(Job) o, job});
-			else if(o instanceof Job[]) {
-				Job[] r = (Job[]) o;
-				Job[] jobs = new Job[r.length + 1];
-				System.arraycopy(r, 0, jobs, 0, r.length);
-				jobs[jobs.length - 1] = job;
-				timedJobsByTime.put(l, jobs);
+		synchronized(timedJobs) {
+			// queuedJobs must always match what is in timedJobs, otherwise we can forget
+			// important recurring jobs e.g. Announcer. Both only change inside this lock.
+			if(noDupes && queuedJobs.containsKey(runner)) {
+				Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+				return;
 			}
+			job.timer = timedJobs.schedule(job, now + offset);
+			job.nextSame = queuedJobs.put(runner, job);
+			String type = runner.getClass().getName();
+			Integer count = queuedJobsByType.get(type);
+			queuedJobsByType.put(type, count == null ? 1 : count + 1);
 		}
 		if(offset < MAX_COALESCING_DELAY) {
 			wakeUp();
 		}
 	}
+
+	/** A job has been taken off the queue to run. Caller must hold the timedJobs lock. */
+	private void onDequeued(Job job) {
+		Job head = queuedJobs.get(job.job);
+		if(head == job) {
+			if(job.nextSame == null) queuedJobs.remove(job.job);
+			else queuedJobs.put(job.job, job.nextSame);
+		} else {
+			for(Job j = head; j != null; j = j.nextSame) {
+				if(j.nextSame == job) {
+					j.nextSame = job.nextSame;
+					break;
+				}
+			}
+		}
+		job.nextSame = null;
+		onDequeuedType(job.job);
+	}
+
+	/** Caller must hold the timedJobs lock. */
+	private void onDequeuedType(Runnable runner) {
+		String type = runner.getClass().getName();
+		Integer count = queuedJobsByType.remove(type);
+		if(count > 1) queuedJobsByType.put(type, count - 1);
+	}
+
+	public boolean removeQueuedJob(Runnable runner) {
+		synchronized(timedJobs) {
+			Job job = queuedJobs.remove(runner);
+			if(job == null) return false;
+			while(job != null) {
+				timedJobs.cancel(job.timer);
+				onDequeuedType(runner);
+				Job next = job.nextSame;
+				job.nextSame = null;
+				job = next;
+			}
+			return true;
+		}
+	}
+
+	/** @return The number of jobs queued on the ticker. */
+	public int getQueuedJobCount() {
+		synchronized(timedJobs) {
+			return timedJobs.size();
+		}
+	}
+
+	/** @return The number of jobs queued on the ticker, by class. */
+	public StringCounter getQueuedJobsByType() {
+		StringCounter counter = new StringCounter();
+		synchronized(timedJobs) {
+			for(Map.Entry<String, Integer> entry : queuedJobsByType.entrySet())
+				counter.add(entry.getKey(), entry.getValue());
+		}
+		return counter;
+	}
 }
@@ -621,7 +621,7 @@ public class PacketTracker {
 			synchronized(packetsToResend) {
 				packetsToResend.add(seqNumber);
 			}
-			pn.node.ps.wakeUp();
+			pn.node.ps.wakeUp(pn);
 		} else {
 			synchronized(this) {
 				if(nextPacketNumber <= seqNumber) {
@@ -724,7 +724,7 @@ public class PacketTracker {
 				} else
 					return false;
 		}
-		pn.node.ps.wakeUp();
+		pn.node.ps.wakeUp(pn);
 		return false;
 	}
 
@@ -1015,7 +1015,7 @@ public class PacketTracker {
 		}
 		pn.requeueMessageItems(messages, 0, messages.length, true);
 
-		pn.node.ps.wakeUp();
+		pn.node.ps.wakeUp(pn);
 	}
 
 	/**
@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -147,6 +148,9 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 	private long timeLastSentPacket;
 	/** When did we last receive a packet? */
 	private long timeLastReceivedPacket;
+	/** When PacketSender next needs to look at this peer. Lowered when something happens
+	 * which may need a packet sent, e.g. a message is queued. */
+	private final AtomicLong packetSenderCheckTime = new AtomicLong();
 	/** When did we last receive a non-auth packet? */
 	private long timeLastReceivedDataPacket;
 	/** When was isConnected() last true? */
@@ -1058,11 +1062,13 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		int x = messageQueue.queueAndEstimateSize(item);
 		if(x > 1024 || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
-			node.ps.wakeUp();
+			node.ps.wakeUp(this);
+		} else {
+			// Otherwise we do not need to wake up the PacketSender
+			// It will wake up before the maximum coalescing delay (100ms) because
+			// it wakes up every 100ms *anyway*. But it must look at us when it does.
+			wakePacketSender(now);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 	}
 
 	public long getMessageQueueLengthBytes() {
@@ -1126,6 +1132,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 				sendHandshakeTime = now; // Immediately
 				ctx = null;
 			}
+			node.ps.wakeUp(this);
 			Logger.normal(this, "We are asking for the key to be renewed (" + this.detectedPeer + ')');
 		}
 	}
@@ -1269,6 +1276,24 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		}
 	}
 
+	/** @return When PacketSender next needs to look at this peer. */
+	long getPacketSenderCheckTime() {
+		return packetSenderCheckTime.get();
+	}
+
+	/**
+	 * Set when PacketSender next needs to look at this peer, unless it has been changed since
+	 * PacketSender read it, i.e. something happened to the peer while it was being looked at.
+	 */
+	void setPacketSenderCheckTime(long expected, long next) {
+		packetSenderCheckTime.compareAndSet(expected, next);
+	}
+
+	/** Make PacketSender look at this peer on its next pass. */
+	void wakePacketSender(long now) {
+		PacketSender.wake(packetSenderCheckTime, now);
+	}
+
 	/**
 	* @return The time at which we must send a packet, even if
 	* it means it will only contains ack requests etc., or
@@ -3257,6 +3282,8 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		}
 		if(peerNodeStatus!=oldPeerNodeStatus){
 			notifyPeerNodeStatusChangeListeners();
+			// Connected, disconnected etc: we may need to handshake, or send something.
+			node.ps.wakeUp(this);
 		}
 		return peerNodeStatus;
 	}
@@ -3642,6 +3669,8 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 
 	public void reportIncomingPacket(byte[] buf, int offset, int length, long now) {
 		reportIncomingBytes(length);
+		// We may need to ack it.
+		wakePacketSender(now);
 		long hash = Fields.longHashCode(buf, offset, length);
 		synchronized(this) {
 			packetsRecvTimes[recvPtr] = now;
@@ -0,0 +1,59 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+/**
+ * Rate credit for a RequestStarter: the number of non-local requests it may start now. It
+ * accrues at one per throttle delay, up to a maximum, so after a quiet spell several requests
+ * can be started together rather than one per delay. Not thread-safe: only used by the
+ * starter thread.
+ */
+class RequestCredit {
+
+	private final double max;
+	private double credit;
+	/** When credit was last updated */
+	private long time;
+
+	RequestCredit(double max, double initial, long now) {
+		this.max = max;
+		this.credit = initial;
+		this.time = now;
+	}
+
+	/** Add the credit earned since the last call, at one request per delay. If the clock has
+	 * gone backwards, nothing is earned, and credit accrues from the new time. */
+	void accrue(long now, long delay) {
+		if(now > time)
+			credit = Math.min(max, credit + (double) (now - time) / Math.max(delay, 1));
+		time = now;
+	}
+
+	/** @return True if there is credit to start a request now. */
+	boolean canStart() {
+		return credit >= 1.0;
+	}
+
+	/** @return How long to wait until there is credit for a request, in milliseconds. */
+	long waitTime(long delay) {
+		if(credit >= 1.0) return 0;
+		return (long) Math.ceil((1.0 - credit) * delay);
+	}
+
+	/** A request has been started. */
+	void onStarted() {
+		credit -= 1.0;
+	}
+
+	/** A request was rejected because the node is overloaded: wait one delay before trying
+	 * again, and don't start a burst when we do. */
+	void onRejected() {
+		credit = 0.0;
+	}
+
+	double get() {
+		return credit;
+	}
+
+}
@@ -8,6 +8,8 @@ import java.util.HashSet;
 
 import freenet.crypt.CryptFormatException;
 import freenet.crypt.DSAPublicKey;
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.AsyncMessageFilterCallback;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -15,6 +17,7 @@ import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.NullAsyncMessageFilterCallback;
+import freenet.io.comm.PeerContext;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.RetrievalException;
@@ -51,6 +54,10 @@ import freenet.support.math.MedianMeanRunningAverage;
  * self from it on destruction. Must put self onto node's list of
  * transferring senders when starts transferring, and remove from it
  * when finishes transferring.
+ * 
+ * Only fetching offered keys runs in a thread of its own. Routing waits for each reply with
+ * an async message filter, and receives the CHK data with an async BlockReceiver, handling
+ * each step on the executor, so a request which is waiting costs no thread.
  */
 public final class RequestSender implements PrioRunnable, ByteCounter {
 
@@ -60,6 +67,8 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     static final int FETCH_TIMEOUT = 120000;
     /** Wait up to this long to get a path folding reply */
     static final int OPENNET_TIMEOUT = 120000;
+    /** Give up waiting for the request to be sent to a node after this long, as sendSync() does */
+    static final int SEND_TIMEOUT = 60000;
     /** One in this many successful requests is randomly reinserted.
      * This is probably a good idea anyway but with the split store it's essential. */
     static final int RANDOM_REINSERT_INTERVAL = 200;
@@ -91,6 +100,8 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     private boolean tryOffersOnly;
     
 	private ArrayList<Listener> listeners=new ArrayList<Listener>();
+	/** Protected by listeners. Not cleared when downstream transfers are aborted. */
+	private ArrayList<FinishedListener> finishedListeners;
     
     // Terminal status
     // Always set finished AFTER setting the reason flag
@@ -425,13 +436,29 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
         	return;
         }
         
-		int routeAttempts=0;
-		int rejectOverloads=0;
-        HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
-        PeerNode next = null;
-        // While in no-cache mode, we don't decrement HTL on a RejectedLoop or similar, but we only allow a limited number of such failures before RNFing.
-        int highHTLFailureCount = 0;
-        boolean starting = true;
+        routeRequests();
+	}
+
+    // Routing state. Only one step of the request runs at a time: each one is started by the
+    // executor job or callback that ended the last, so these don't need locking.
+    private int routeAttempts;
+    private int rejectOverloads;
+    private final HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
+    /** The node we are routing to now, or the last one we routed to */
+    private PeerNode next;
+    // While in no-cache mode, we don't decrement HTL on a RejectedLoop or similar, but we only allow a limited number of such failures before RNFing.
+    private int highHTLFailureCount;
+    private boolean starting = true;
+    private long timeSentRequest;
+    //For debugging purposes, remember the number of responses AFTER the insert, and the last message type we received.
+    private int gotMessages;
+    private String lastMessage;
+
+    /**
+     * Send the request to the next node, or finish if there isn't one. Returns once the request
+     * has been queued: the rest happens in callbacks, so no thread waits for the reply.
+     */
+    private void routeRequests() {
         while(true) {
             boolean canWriteStorePrev = node.canWriteDatastoreInsert(htl);
             if((!starting) && (!canWriteStorePrev)) {
@@ -456,7 +483,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
             	 * 2) The node which just failed can be seen as the requestor for our purposes.
             	 */
             	// Decrement at this point so we can DNF immediately on reaching HTL 0.
-            	htl = node.decrementHTL((hasForwarded ? next : source), htl);
+            	htl = node.decrementHTL((hasForwarded() ? next : source), htl);
             	if(logMINOR) Logger.minor(this, "Decremented HTL to "+htl);
             }
             starting = false;
@@ -498,462 +525,667 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
             // Why? Because by the time the sent() callback gets called, it may already have been acked, under heavy load.
             // So take it from when we first started to try to send the request.
             // See comments below when handling FNPRecentlyFailed for why we need this.
-            long timeSentRequest = System.currentTimeMillis();
+            timeSentRequest = System.currentTimeMillis();
 			
             try {
             	//This is the first contact to this node, it is more likely to timeout
 				/*
-				 * using sendSync could:
-				 *   make ACCEPTED_TIMEOUT more accurate (as it is measured from the send-time),
-				 *   use a lot of our time that we have to fulfill this request (simply waiting on the send queue, or longer if the node just went down),
-				 * using sendAsync could:
-				 *   make ACCEPTED_TIMEOUT much more likely,
-				 *   leave many hanging-requests/unclaimedFIFO items,
-				 *   potentially make overloaded peers MORE overloaded (we make a request and promptly forget about them).
-				 * 
-				 * Don't use sendAsync().
+				 * Start waiting for Accepted once the request has actually been sent, as sendSync() did:
+				 *   makes ACCEPTED_TIMEOUT more accurate (as it is measured from the send-time),
+				 *   doesn't leave many hanging-requests/unclaimedFIFO items,
+				 *   doesn't potentially make overloaded peers MORE overloaded (we make a request and promptly forget about them).
+				 * But without a thread waiting for the send.
 				 */
-            	next.sendSync(req, this);
+            	next.sendAsync(req, new RequestSentCallback(next), this);
             } catch (NotConnectedException e) {
             	Logger.minor(this, "Not connected");
             	continue;
             }
-            
-            synchronized(this) {
-            	hasForwarded = true;
-            }
-            
-            Message msg = null;
-            
-            while(true) {
-            	
-                /**
-                 * What are we waiting for?
-                 * FNPAccepted - continue
-                 * FNPRejectedLoop - go to another node
-                 * FNPRejectedOverload - propagate back to source, go to another node if local
-                 */
-                
-                MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
-                MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
-                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
-
-                // mfRejectedOverload must be the last thing in the or
-                // So its or pointer remains null
-                // Otherwise we need to recreate it below
-                MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
-                
-                try {
-                    msg = node.usm.waitFor(mf, this);
-                    if(logMINOR) Logger.minor(this, "first part got "+msg);
-                } catch (DisconnectedException e) {
-                    Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
-                    break;
-                }
-                
-            	if(msg == null) {
-            		if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted");
-            		// Timeout waiting for Accepted
-            		next.localRejectedOverload("AcceptedTimeout");
-            		forwardRejectedOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		// Try next node
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedLoop) {
-            		if(logMINOR) Logger.minor(this, "Rejected loop");
-            		next.successNotOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		// Find another node to route to
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedOverload) {
-            		if(logMINOR) Logger.minor(this, "Rejected: overload");
-					// Non-fatal - probably still have time left
-					forwardRejectedOverload();
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						if(logMINOR) Logger.minor(this, "Is local");
-						next.localRejectedOverload("ForwardRejectedOverload");
-	            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-						if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					}
-					//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
-					continue;
-            	}
-            	
-            	if(msg.getSpec() != DMT.FNPAccepted) {
-            		Logger.error(this, "Unrecognized message: "+msg);
-            		continue;
-            	}
-            	
-            	break;
-            }
-            
-            if((msg == null) || (msg.getSpec() != DMT.FNPAccepted)) {
-            	// Try another node
-            	continue;
-            }
+            return;
+        }
+    }
 
-            if(logMINOR) Logger.minor(this, "Got Accepted");
-            
-            // Otherwise, must be Accepted
-            
-            // So wait...
-            int gotMessages=0;
-            String lastMessage=null;
-            while(true) {
-            	
-                MessageFilter mfDNF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPDataNotFound);
-                MessageFilter mfRF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRecentlyFailed);
-                MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
-                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
-                
-                MessageFilter mfPubKey = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKPubKey);
-            	MessageFilter mfRealDFCHK = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPCHKDataFound);
-            	MessageFilter mfAltDFSSKHeaders = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundHeaders);
-            	MessageFilter mfAltDFSSKData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
-                MessageFilter mf = mfDNF.or(mfRF.or(mfRouteNotFound.or(mfRejectedOverload)));
-                if(key instanceof NodeCHK) {
-                	mf = mfRealDFCHK.or(mf);
-                } else {
-                	mf = mfPubKey.or(mfAltDFSSKHeaders.or(mfAltDFSSKData.or(mf)));
-                }
-                
-            	try {
-            		msg = node.usm.waitFor(mf, this);
-            	} catch (DisconnectedException e) {
-            		Logger.normal(this, "Disconnected from "+next+" while waiting for data on "+uid);
-            		break;
-            	}
-            	
-            	if(logMINOR) Logger.minor(this, "second part got "+msg);
-                
-            	if(msg == null) {
-					Logger.normal(this, "request fatal-timeout (null) after accept ("+gotMessages+" messages; last="+lastMessage+")");
-            		// Fatal timeout
-            		next.localRejectedOverload("FatalTimeout");
-            		forwardRejectedOverload();
-            		finish(TIMED_OUT, next, false);
-            		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            		return;
-            	}
-				
-				//For debugging purposes, remember the number of responses AFTER the insert, and the last message type we received.
-				gotMessages++;
-				lastMessage=msg.getSpec().getName();
-            	
-            	if(msg.getSpec() == DMT.FNPDataNotFound) {
-            		next.successNotOverload();
-            		finish(DATA_NOT_FOUND, next, false);
-            		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            		return;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRecentlyFailed) {
-            		next.successNotOverload();
-            		/*
-            		 * Must set a correct recentlyFailedTimeLeft before calling this finish(), because it will be
-            		 * passed to the handler.
-            		 * 
-            		 * It is *VITAL* that the TIME_LEFT we pass on is not larger than it should be.
-            		 * It is somewhat less important that it is not too much smaller than it should be.
-            		 * 
-            		 * Why? Because:
-            		 * 1) We have to use FNPRecentlyFailed to create failure table entries. Because otherwise,
-            		 * the failure table is of little value: A request is routed through a node, which gets a DNF,
-            		 * and adds a failure table entry. Other requests then go through that node via other paths.
-            		 * They are rejected with FNPRecentlyFailed - not with DataNotFound. If this does not create
-            		 * failure table entries, more requests will be pointlessly routed through that chain.
-            		 * 
-            		 * 2) If we use a fixed timeout on receiving FNPRecentlyFailed, they can be self-seeding. 
-            		 * What this means is A sends a request to B, which DNFs. This creates a failure table entry 
-            		 * which lasts for 10 minutes. 5 minutes later, A sends another request to B, which is killed
-            		 * with FNPRecentlyFailed because of the failure table entry. B's failure table lasts for 
-            		 * another 5 minutes, but A's lasts for the full 10 minutes i.e. until 5 minutes after B's. 
-            		 * After B's failure table entry has expired, but before A's expires, B sends a request to A. 
-            		 * A replies with FNPRecentlyFailed. Repeat ad infinitum: A reinforces B's blocks, and B 
-            		 * reinforces A's blocks!
-            		 * 
-            		 * 3) This can still happen even if we check where the request is coming from. A loop could 
-            		 * very easily form: A - B - C - A. A requests from B, DNFs (assume the request comes in from 
-            		 * outside, there are more nodes. C requests from A, sets up a block. B's block expires, C's 
-            		 * is still active. A requests from B which requests from C ... and it goes round again.
-            		 * 
-            		 * 4) It is exactly the same if we specify a timeout, unless the timeout can be guaranteed to 
-            		 * not increase the expiry time.
-            		 */
-            		
-            		// First take the original TIME_LEFT. This will start at 10 minutes if we get rejected in
-            		// the same millisecond as the failure table block was added.
-            		int timeLeft = msg.getInt(DMT.TIME_LEFT);
-            		int origTimeLeft = timeLeft;
-            		
-            		if(timeLeft <= 0) {
-            			Logger.error(this, "Impossible: timeLeft="+timeLeft);
-            			origTimeLeft = 0;
-            			timeLeft=1000; // arbitrary default...
-            		}
-            		
-            		// This is in theory relative to when the request was received by the node. Lets make it relative
-            		// to a known event before that: the time when we sent the request.
-            		
-            		long timeSinceSent = Math.max(0, (System.currentTimeMillis() - timeSentRequest));
-            		timeLeft -= timeSinceSent;
-            		
-            		// Subtract 1% for good measure / to compensate for dodgy clocks
-            		timeLeft -= origTimeLeft / 100;
-            		
-            		//Store the timeleft so that the requestHandler can get at it.
-            		recentlyFailedTimeLeft = timeLeft;
-            		
-           			// Kill the request, regardless of whether there is timeout left.
-            		// If there is, we will avoid sending requests for the specified period.
-            		// FIXME we need to create the FT entry.
-           			finish(RECENTLY_FAILED, next, false);
-           			node.failureTable.onFinalFailure(key, next, htl, origHTL, timeLeft, source);
-            		return;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRouteNotFound) {
-            		// Backtrack within available hops
-            		short newHtl = msg.getShort(DMT.HTL);
-            		if(newHtl < htl) htl = newHtl;
-            		next.successNotOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Non-fatal - probably still have time left
-					forwardRejectedOverload();
-					rejectOverloads++;
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						//NB: IS_LOCAL means it's terminal. not(IS_LOCAL) implies that the rejection message was forwarded from a downstream node.
-						//"Local" from our peers perspective, this has nothing to do with local requests (source==null)
-	            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-						next.localRejectedOverload("ForwardRejectedOverload2");
-						// Node in trouble suddenly??
-						Logger.normal(this, "Local RejectedOverload after Accepted, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					}
-					//so long as the node does not send a (IS_LOCAL) message. Interestingly messages can often timeout having only received this message.
-					continue;
-            	}
+    /** Run a step of the request on the executor rather than on the thread which called us back,
+     * which delivers messages or runs timeouts for everything else too. */
+    private abstract class RequestStep implements PrioRunnable {
 
-            	if(msg.getSpec() == DMT.FNPCHKDataFound) {
-            		if(!(key instanceof NodeCHK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-            			break;
-            		}
-            		
-                	// Found data
-                	
-                	// First get headers
-                	
-                	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
-                	
-                	// FIXME: Validate headers
-                	
-                	node.addTransferringSender((NodeCHK)key, this);
-                	
-                	try {
-                		
-                		prb = new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE);
-                		
-                		synchronized(this) {
-                			notifyAll();
-                		}
-                		fireCHKTransferBegins();
-						
-                		long tStart = System.currentTimeMillis();
-                		BlockReceiver br = new BlockReceiver(node.usm, next, uid, prb, this, node.getTicker(), true);
-                		
-                		try {
-                			if(logMINOR) Logger.minor(this, "Receiving data");
-                			final PeerNode from = next;
-                			synchronized(this) {
-                				transferringFrom = next;
-                			}
-                			node.getTicker().queueTimedJob(new Runnable() {
-
-								public void run() {
-									synchronized(RequestSender.this) {
-										if(transferringFrom != from) return;
-									}
-									makeTurtle();
-								}
-                				
-                			}, 60*1000);
-                			byte[] data;
-                			try {
-                				data = br.receive();
-                			} finally {
-                				synchronized(this) {
-                					transferringFrom = null;
-                				}
-                			}
-                			
-                			long tEnd = System.currentTimeMillis();
-                			this.transferTime = tEnd - tStart;
-                			boolean turtle;
-                			boolean turtleBackedOff;
-                			synchronized(this) {
-                				turtle = turtleMode;
-                				turtleBackedOff = sentBackoffTurtle;
-                				sentBackoffTurtle = true;
-                			}
-                			if(!turtle)
-                				next.transferSuccess();
-                			else {
-                				Logger.normal(this, "TURTLE SUCCEEDED: "+key+" for "+this+" in "+TimeUtil.formatTime(transferTime, 2, true));
-                				if(!turtleBackedOff)
-                					next.transferFailed("TurtledTransfer");
-                				node.nodeStats.turtleSucceeded();
-                			}
-                        	next.successNotOverload();
-                        	if(turtle) {
-                        		next.unregisterTurtleTransfer(this);
-                        		node.unregisterTurtleTransfer(this);
-                        	}
-                        	node.nodeStats.successfulBlockReceive();
-                			if(logMINOR) Logger.minor(this, "Received data");
-                			// Received data
-                			try {
-                				verifyAndCommit(data);
-                			} catch (KeyVerifyException e1) {
-                				Logger.normal(this, "Got data but verify failed: "+e1, e1);
-                				finish(VERIFY_FAILURE, next, false);
-                				node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-                				return;
-                			}
-                			finish(SUCCESS, next, false);
-                			return;
-                		} catch (RetrievalException e) {
-                			boolean turtle;
-                			synchronized(this) {
-                				turtle = turtleMode;
-                			}
-            				if(turtle) {
-            					if(e.getReason() != RetrievalException.GONE_TO_TURTLE_MODE) {
-            						Logger.normal(this, "TURTLE FAILED: "+key+" for "+this+" : "+e);
-            						node.nodeStats.turtleFailed();
-            					} else {
-            						if(logMINOR) Logger.minor(this, "Upstream turtled for "+this+" from "+next);
-            					}
-                           		next.unregisterTurtleTransfer(this);
-                           		node.unregisterTurtleTransfer(this);
-            				}
-							if (e.getReason()==RetrievalException.SENDER_DISCONNECTED)
-								Logger.normal(this, "Transfer failed (disconnect): "+e, e);
-							else
-								// A certain number of these are normal, it's better to track them through statistics than call attention to them in the logs.
-								Logger.normal(this, "Transfer failed ("+e.getReason()+"/"+RetrievalException.getErrString(e.getReason())+"): "+e+" from "+next, e);
-							next.localRejectedOverload("TransferFailedRequest"+e.getReason());
-                			finish(TRANSFER_FAILED, next, false);
-                			node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            				int reason = e.getReason();
-                			boolean timeout = (!br.senderAborted()) &&
-    							(reason == RetrievalException.SENDER_DIED || reason == RetrievalException.RECEIVER_DIED || reason == RetrievalException.TIMED_OUT
-    							|| reason == RetrievalException.UNABLE_TO_SEND_BLOCK_WITHIN_TIMEOUT);
-               				if(timeout) {
-               					// Looks like a timeout. Backoff, even if it's a turtle.
-               					if(logMINOR) Logger.minor(this, "Timeout transferring data : "+e, e);
-               					next.transferFailed(e.getErrString());
-               				} else {
-               					// Quick failure (in that we didn't have to timeout). Don't backoff.
-               					// Treat as a DNF.
-               					// If it was turtled, and then failed, still treat it as a DNF.
-           						node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-               				}
-                   			node.nodeStats.failedBlockReceive(true, timeout, reason == RetrievalException.GONE_TO_TURTLE_MODE);
-                			return;
-                		}
-                	} finally {
-                		node.removeTransferringSender((NodeCHK)key, this);
-                	}
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPSSKPubKey) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got pubkey on "+uid);
-            		
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-    				byte[] pubkeyAsBytes = ((ShortBuffer)msg.getObject(DMT.PUBKEY_AS_BYTES)).getData();
-    				try {
-    					if(pubKey == null)
-    						pubKey = DSAPublicKey.create(pubkeyAsBytes);
-    					((NodeSSK)key).setPubKey(pubKey);
-    				} catch (SSKVerifyException e) {
-    					pubKey = null;
-    					Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e.getMessage()+ ')', e);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-    					break; // try next node
-    				} catch (CryptFormatException e) {
-    					Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e+ ')');
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-    					break; // try next node
+    	void queue() {
+    		node.executor.execute(this, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
+    	}
+
+    	public void run() {
+    		try {
+    			step();
+    		} catch (Throwable t) {
+    			Logger.error(RequestSender.this, "Caught "+t, t);
+    			finish(INTERNAL_ERROR, null, false);
+    		}
+    	}
+
+    	abstract void step();
+
+    	public int getPriority() {
+    		return NativeThread.HIGH_PRIORITY;
+    	}
+    }
+
+    /** Starts waiting for Accepted once the request has been sent to a node, or routes
+     * elsewhere if we are disconnected from it first. */
+    private class RequestSentCallback extends RequestStep implements AsyncMessageCallback {
+
+    	private final PeerNode next;
+    	private boolean done;
+    	private boolean disconnected;
+    	/** Removed from the ticker once the send has an outcome, so it doesn't sit there. */
+    	private final Runnable timeout = new Runnable() {
+
+    		public void run() {
+    			if(!setDone(false)) return;
+    			Logger.error(RequestSender.this, "Waited too long for a blocking send for " + RequestSender.this + " to " + next, new Exception("error"));
+    			next.localRejectedOverload("SendSyncTimeout");
+    			queue();
+    		}
+
+    	};
+
+    	RequestSentCallback(PeerNode next) {
+    		this.next = next;
+    		node.getTicker().queueTimedJob(timeout, SEND_TIMEOUT);
+    	}
+
+    	/** @return True if this is the first outcome. */
+    	private synchronized boolean setDone(boolean disconnected) {
+    		if(done) return false;
+    		done = true;
+    		this.disconnected = disconnected;
+    		return true;
+    	}
+
+    	/** Handle an outcome other than the timeout. */
+    	private void finish(boolean disconnected) {
+    		if(!setDone(disconnected)) return;
+    		node.getTicker().removeQueuedJob(timeout);
+    		queue();
+    	}
+
+    	public void sent() {
+    		finish(false);
+    	}
+
+    	public void acknowledged() {
+    		finish(false);
+    	}
+
+    	public void disconnected() {
+    		finish(true);
+    	}
+
+    	public void fatalError() {
+    		finish(false);
+    	}
+
+    	@Override
+    	void step() {
+    		boolean disconnected;
+    		synchronized(this) {
+    			disconnected = this.disconnected;
+    		}
+    		if(disconnected) {
+    			Logger.minor(RequestSender.this, "Not connected");
+    			routeRequests();
+    			return;
+    		}
+    		synchronized(RequestSender.this) {
+    			hasForwarded = true;
+    		}
+    		waitForAccepted(next);
+    	}
+    }
+
+    /** Waits for a reply from a node without holding a thread. */
+    private abstract class ReplyWaiter extends RequestStep implements AsyncMessageFilterCallback {
+
+    	final PeerNode next;
+    	// Set before the step is queued, so visible to it.
+    	private Message msg;
+    	private boolean disconnected;
+
+    	ReplyWaiter(PeerNode next) {
+    		this.next = next;
+    	}
+
+    	/** Add the filter, or handle the disconnection if we can't. */
+    	void waitFor(MessageFilter mf) {
+    		try {
+    			node.usm.addAsyncFilter(mf, this);
+    		} catch (DisconnectedException e) {
+    			onDisconnect(next);
+    		}
+    	}
+
+    	public void onMatched(Message m) {
+    		receivedBytes(m.receivedByteCount());
+    		msg = m;
+    		queue();
+    	}
+
+    	public boolean shouldTimeout() {
+    		return false;
+    	}
+
+    	public void onTimeout() {
+    		queue();
+    	}
+
+    	public void onDisconnect(PeerContext ctx) {
+    		disconnected = true;
+    		queue();
+    	}
+
+    	public void onRestarted(PeerContext ctx) {
+    		onDisconnect(ctx);
+    	}
+
+    	@Override
+    	void step() {
+    		handle(msg, disconnected);
+    	}
+
+    	/**
+    	 * @param msg The reply, or null if we timed out.
+    	 * @param disconnected True if the node disconnected before replying.
+    	 */
+    	abstract void handle(Message msg, boolean disconnected);
+    }
+
+    /**
+     * What are we waiting for?
+     * FNPAccepted - continue
+     * FNPRejectedLoop - go to another node
+     * FNPRejectedOverload - propagate back to source, go to another node if local
+     */
+    private void waitForAccepted(PeerNode next) {
+        MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
+        MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
+
+        // mfRejectedOverload must be the last thing in the or
+        // So its or pointer remains null
+        // Otherwise we need to recreate it below
+        MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
+
+        new ReplyWaiter(next) {
+        	@Override
+        	void handle(Message msg, boolean disconnected) {
+        		handleAccepted(next, msg, disconnected);
+        	}
+        }.waitFor(mf);
+    }
+
+    private void handleAccepted(PeerNode next, Message msg, boolean disconnected) {
+    	if(disconnected) {
+    		Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
+    		routeRequests();
+    		return;
+    	}
+    	
+    	if(logMINOR) Logger.minor(this, "first part got "+msg);
+    	
+    	if(msg == null) {
+    		if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted");
+    		// Timeout waiting for Accepted
+    		next.localRejectedOverload("AcceptedTimeout");
+    		forwardRejectedOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		// Try next node
+    		routeRequests();
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedLoop) {
+    		if(logMINOR) Logger.minor(this, "Rejected loop");
+    		next.successNotOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		// Find another node to route to
+    		routeRequests();
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+    		if(logMINOR) Logger.minor(this, "Rejected: overload");
+    		// Non-fatal - probably still have time left
+    		forwardRejectedOverload();
+    		if (msg.getBoolean(DMT.IS_LOCAL)) {
+    			if(logMINOR) Logger.minor(this, "Is local");
+    			next.localRejectedOverload("ForwardRejectedOverload");
+    			node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
+    			// Give up on this one, try another
+    			routeRequests();
+    			return;
+    		}
+    		//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
+    		waitForAccepted(next);
+    		return;
+    	}
+    	
+    	if(msg.getSpec() != DMT.FNPAccepted) {
+    		Logger.error(this, "Unrecognized message: "+msg);
+    		waitForAccepted(next);
+    		return;
+    	}
+    	
+    	if(logMINOR) Logger.minor(this, "Got Accepted");
+    	
+    	// So wait...
+    	gotMessages = 0;
+    	lastMessage = null;
+    	waitForData(next);
+    }
+
+    private void waitForData(PeerNode next) {
+        MessageFilter mfDNF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPDataNotFound);
+        MessageFilter mfRF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRecentlyFailed);
+        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        
+        MessageFilter mfPubKey = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKPubKey);
+    	MessageFilter mfRealDFCHK = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPCHKDataFound);
+    	MessageFilter mfAltDFSSKHeaders = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundHeaders);
+    	MessageFilter mfAltDFSSKData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
+        MessageFilter mf = mfDNF.or(mfRF.or(mfRouteNotFound.or(mfRejectedOverload)));
+        if(key instanceof NodeCHK) {
+        	mf = mfRealDFCHK.or(mf);
+        } else {
+        	mf = mfPubKey.or(mfAltDFSSKHeaders.or(mfAltDFSSKData.or(mf)));
+        }
+        
+        new ReplyWaiter(next) {
+        	@Override
+        	void handle(Message msg, boolean disconnected) {
+        		handleData(next, msg, disconnected);
+        	}
+        }.waitFor(mf);
+    }
+
+    private void handleData(PeerNode next, Message msg, boolean disconnected) {
+    	if(disconnected) {
+    		Logger.normal(this, "Disconnected from "+next+" while waiting for data on "+uid);
+    		routeRequests();
+    		return;
+    	}
+    	
+    	if(logMINOR) Logger.minor(this, "second part got "+msg);
+        
+    	if(msg == null) {
+			Logger.normal(this, "request fatal-timeout (null) after accept ("+gotMessages+" messages; last="+lastMessage+")");
+    		// Fatal timeout
+    		next.localRejectedOverload("FatalTimeout");
+    		forwardRejectedOverload();
+    		finish(TIMED_OUT, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return;
+    	}
+		
+		gotMessages++;
+		lastMessage=msg.getSpec().getName();
+    	
+    	if(msg.getSpec() == DMT.FNPDataNotFound) {
+    		next.successNotOverload();
+    		finish(DATA_NOT_FOUND, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRecentlyFailed) {
+    		next.successNotOverload();
+    		/*
+    		 * Must set a correct recentlyFailedTimeLeft before calling this finish(), because it will be
+    		 * passed to the handler.
+    		 * 
+    		 * It is *VITAL* that the TIME_LEFT we pass on is not larger than it should be.
+    		 * It is somewhat less important that it is not too much smaller than it should be.
+    		 * 
+    		 * Why? Because:
+    		 * 1) We have to use FNPRecentlyFailed to create failure table entries. Because otherwise,
+    		 * the failure table is of little value: A request is routed through a node, which gets a DNF,
+    		 * and adds a failure table entry. Other requests then go through that node via other paths.
+    		 * They are rejected with FNPRecentlyFailed - not with DataNotFound. If this does not create
+    		 * failure table entries, more requests will be pointlessly routed through that chain.
+    		 * 
+    		 * 2) If we use a fixed timeout on receiving FNPRecentlyFailed, they can be self-seeding. 
+    		 * What this means is A sends a request to B, which DNFs. This creates a failure table entry 
+    		 * which lasts for 10 minutes. 5 minutes later, A sends another request to B, which is killed
+    		 * with FNPRecentlyFailed because of the failure table entry. B's failure table lasts for 
+    		 * another 5 minutes, but A's lasts for the full 10 minutes i.e. until 5 minutes after B's. 
+    		 * After B's failure table entry has expired, but before A's expires, B sends a request to A. 
+    		 * A replies with FNPRecentlyFailed. Repeat ad infinitum: A reinforces B's blocks, and B 
+    		 * reinforces A's blocks!
+    		 * 
+    		 * 3) This can still happen even if we check where the request is coming from. A loop could 
+    		 * very easily form: A - B - C - A. A requests from B, DNFs (assume the request comes in from 
+    		 * outside, there are more nodes. C requests from A, sets up a block. B's block expires, C's 
+    		 * is still active. A requests from B which requests from C ... and it goes round again.
+    		 * 
+    		 * 4) It is exactly the same if we specify a timeout, unless the timeout can be guaranteed to 
+    		 * not increase the expiry time.
+    		 */
+    		
+    		// First take the original TIME_LEFT. This will start at 10 minutes if we get rejected in
+    		// the same millisecond as the failure table block was added.
+    		int timeLeft = msg.getInt(DMT.TIME_LEFT);
+    		int origTimeLeft = timeLeft;
+    		
+    		if(timeLeft <= 0) {
+    			Logger.error(this, "Impossible: timeLeft="+timeLeft);
+    			origTimeLeft = 0;
+    			timeLeft=1000; // arbitrary default...
+    		}
+    		
+    		// This is in theory relative to when the request was received by the node. Lets make it relative
+    		// to a known event before that: the time when we sent the request.
+    		
+    		long timeSinceSent = Math.max(0, (System.currentTimeMillis() - timeSentRequest));
+    		timeLeft -= timeSinceSent;
+    		
+    		// Subtract 1% for good measure / to compensate for dodgy clocks
+    		timeLeft -= origTimeLeft / 100;
+    		
+    		//Store the timeleft so that the requestHandler can get at it.
+    		synchronized(this) {
+    			recentlyFailedTimeLeft = timeLeft;
+    		}
+    		
+   			// Kill the request, regardless of whether there is timeout left.
+    		// If there is, we will avoid sending requests for the specified period.
+    		// FIXME we need to create the FT entry.
+   			finish(RECENTLY_FAILED, next, false);
+   			node.failureTable.onFinalFailure(key, next, htl, origHTL, timeLeft, source);
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRouteNotFound) {
+    		// Backtrack within available hops
+    		short newHtl = msg.getShort(DMT.HTL);
+    		if(newHtl < htl) htl = newHtl;
+    		next.successNotOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		routeRequests();
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Non-fatal - probably still have time left
+			forwardRejectedOverload();
+			rejectOverloads++;
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				//NB: IS_LOCAL means it's terminal. not(IS_LOCAL) implies that the rejection message was forwarded from a downstream node.
+				//"Local" from our peers perspective, this has nothing to do with local requests (source==null)
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				next.localRejectedOverload("ForwardRejectedOverload2");
+				// Node in trouble suddenly??
+				Logger.normal(this, "Local RejectedOverload after Accepted, moving on to next peer");
+				// Give up on this one, try another
+				routeRequests();
+				return;
+			}
+			//so long as the node does not send a (IS_LOCAL) message. Interestingly messages can often timeout having only received this message.
+			waitForData(next);
+			return;
+    	}
+
+    	if(msg.getSpec() == DMT.FNPCHKDataFound) {
+    		if(!(key instanceof NodeCHK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+    			routeRequests();
+    			return;
+    		}
+    		
+        	// Found data
+        	
+        	// First get headers
+        	
+        	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
+        	
+        	// FIXME: Validate headers
+        	
+        	receiveCHK(next);
+        	return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPSSKPubKey) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got pubkey on "+uid);
+    		
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			routeRequests();
+    			return;
+    		}
+			byte[] pubkeyAsBytes = ((ShortBuffer)msg.getObject(DMT.PUBKEY_AS_BYTES)).getData();
+			try {
+				if(pubKey == null)
+					pubKey = DSAPublicKey.create(pubkeyAsBytes);
+				((NodeSSK)key).setPubKey(pubKey);
+			} catch (SSKVerifyException e) {
+				pubKey = null;
+				Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e.getMessage()+ ')', e);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				routeRequests(); // try next node
+				return;
+			} catch (CryptFormatException e) {
+				Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e+ ')');
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				routeRequests(); // try next node
+				return;
+			}
+			if(sskData != null && headers != null) {
+				finishSSK(next);
+				return;
+			}
+			waitForData(next);
+			return;
+    	}
+    	            	
+    	if(msg.getSpec() == DMT.FNPSSKDataFoundData) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got data on "+uid);
+    		
+        	sskData = ((ShortBuffer)msg.getObject(DMT.DATA)).getData();
+        	
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			routeRequests();
+    			return;
+    		}
+    		
+        	if(pubKey != null && headers != null) {
+        		finishSSK(next);
+        		return;
+        	}
+        	waitForData(next);
+        	return;
+
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got headers on "+uid);
+    		
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			routeRequests();
+    			return;
+    		}
+    		
+        	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
+    		
+        	if(pubKey != null && sskData != null) {
+        		finishSSK(next);
+        		return;
+        	}
+        	waitForData(next);
+        	return;
+
+    	}
+    	
+   		Logger.error(this, "Unexpected message: "+msg);
+   		waitForData(next);
+    }
+
+    /** Receive the data for a CHK from next, which has sent us DataFound, without a thread waiting for it. */
+    private void receiveCHK(final PeerNode next) {
+    	node.addTransferringSender((NodeCHK)key, this);
+    	
+    	final BlockReceiver br;
+    	final long tStart;
+    	try {
+    		prb = new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE);
+    		
+    		synchronized(this) {
+    			notifyAll();
+    		}
+    		fireCHKTransferBegins();
+    		
+    		tStart = System.currentTimeMillis();
+    		br = new BlockReceiver(node.usm, next, uid, prb, this, node.getTicker(), true);
+    		
+    		if(logMINOR) Logger.minor(this, "Receiving data");
+    		synchronized(this) {
+    			transferringFrom = next;
+    		}
+    		node.getTicker().queueTimedJob(new Runnable() {
+    			
+    			public void run() {
+    				synchronized(RequestSender.this) {
+    					if(transferringFrom != next) return;
     				}
-    				if(sskData != null && headers != null) {
-    					finishSSK(next);
-    					return;
+    				makeTurtle();
+    			}
+    			
+    		}, 60*1000);
+    	} catch (RuntimeException e) {
+    		node.removeTransferringSender((NodeCHK)key, this);
+    		throw e;
+    	} catch (Error e) {
+    		node.removeTransferringSender((NodeCHK)key, this);
+    		throw e;
+    	}
+    	br.receive(new BlockReceiver.BlockReceiverCompletion() {
+    		
+    		public void blockReceived(final byte[] data) {
+    			new RequestStep() {
+    				@Override
+    				void step() {
+    					try {
+    						onCHKReceived(next, data, tStart);
+    					} finally {
+    						node.removeTransferringSender((NodeCHK)key, RequestSender.this);
+    					}
     				}
-    				continue;
-            	}
-            	            	
-            	if(msg.getSpec() == DMT.FNPSSKDataFoundData) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got data on "+uid);
-            		
-                	sskData = ((ShortBuffer)msg.getObject(DMT.DATA)).getData();
-                	
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-            		
-                	if(pubKey != null && headers != null) {
-                		finishSSK(next);
-                		return;
-                	}
-                	continue;
+    			}.queue();
+    		}
+    		
+    		public void blockReceiveFailed(final RetrievalException e) {
+    			new RequestStep() {
+    				@Override
+    				void step() {
+    					try {
+    						onCHKReceiveFailed(next, br, e);
+    					} finally {
+    						node.removeTransferringSender((NodeCHK)key, RequestSender.this);
+    					}
+    				}
+    			}.queue();
+    		}
+    		
+    	});
+    }
 
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got headers on "+uid);
-            		
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-            		
-                	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
-            		
-                	if(pubKey != null && sskData != null) {
-                		finishSSK(next);
-                		return;
-                	}
-                	continue;
+    private void onCHKReceived(PeerNode next, byte[] data, long tStart) {
+    	synchronized(this) {
+    		transferringFrom = null;
+    	}
+    	
+    	long tEnd = System.currentTimeMillis();
+    	this.transferTime = tEnd - tStart;
+    	boolean turtle;
+    	boolean turtleBackedOff;
+    	synchronized(this) {
+    		turtle = turtleMode;
+    		turtleBackedOff = sentBackoffTurtle;
+    		sentBackoffTurtle = true;
+    	}
+    	if(!turtle)
+    		next.transferSuccess();
+    	else {
+    		Logger.normal(this, "TURTLE SUCCEEDED: "+key+" for "+this+" in "+TimeUtil.formatTime(transferTime, 2, true));
+    		if(!turtleBackedOff)
+    			next.transferFailed("TurtledTransfer");
+    		node.nodeStats.turtleSucceeded();
+    	}
+    	next.successNotOverload();
+    	if(turtle) {
+    		next.unregisterTurtleTransfer(this);
+    		node.unregisterTurtleTransfer(this);
+    	}
+    	node.nodeStats.successfulBlockReceive();
+    	if(logMINOR) Logger.minor(this, "Received data");
+    	// Received data
+    	try {
+    		verifyAndCommit(data);
+    	} catch (KeyVerifyException e1) {
+    		Logger.normal(this, "Got data but verify failed: "+e1, e1);
+    		finish(VERIFY_FAILURE, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return;
+    	}
+    	finish(SUCCESS, next, false);
+    }
 
-            	}
-            	
-           		Logger.error(this, "Unexpected message: "+msg);
-            	
-            }
-        }
-	}
+    private void onCHKReceiveFailed(PeerNode next, BlockReceiver br, RetrievalException e) {
+    	boolean turtle;
+    	synchronized(this) {
+    		transferringFrom = null;
+    		turtle = turtleMode;
+    	}
+    	if(turtle) {
+    		if(e.getReason() != RetrievalException.GONE_TO_TURTLE_MODE) {
+    			Logger.normal(this, "TURTLE FAILED: "+key+" for "+this+" : "+e);
+    			node.nodeStats.turtleFailed();
+    		} else {
+    			if(logMINOR) Logger.minor(this, "Upstream turtled for "+this+" from "+next);
+    		}
+    		next.unregisterTurtleTransfer(this);
+    		node.unregisterTurtleTransfer(this);
+    	}
+    	if (e.getReason()==RetrievalException.SENDER_DISCONNECTED)
+    		Logger.normal(this, "Transfer failed (disconnect): "+e, e);
+    	else
+    		// A certain number of these are normal, it's better to track them through statistics than call attention to them in the logs.
+    		Logger.normal(this, "Transfer failed ("+e.getReason()+"/"+RetrievalException.getErrString(e.getReason())+"): "+e+" from "+next, e);
+    	next.localRejectedOverload("TransferFailedRequest"+e.getReason());
+    	finish(TRANSFER_FAILED, next, false);
+    	node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    	int reason = e.getReason();
+    	boolean timeout = (!br.senderAborted()) &&
+    		(reason == RetrievalException.SENDER_DIED || reason == RetrievalException.RECEIVER_DIED || reason == RetrievalException.TIMED_OUT
+    		|| reason == RetrievalException.UNABLE_TO_SEND_BLOCK_WITHIN_TIMEOUT);
+    	if(timeout) {
+    		// Looks like a timeout. Backoff, even if it's a turtle.
+    		if(logMINOR) Logger.minor(this, "Timeout transferring data : "+e, e);
+    		next.transferFailed(e.getErrString());
+    	} else {
+    		// Quick failure (in that we didn't have to timeout). Don't backoff.
+    		// Treat as a DNF.
+    		// If it was turtled, and then failed, still treat it as a DNF.
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    	}
+    	node.nodeStats.failedBlockReceive(true, timeout, reason == RetrievalException.GONE_TO_TURTLE_MODE);
+    }
     
 	protected void makeTurtle() {
 		synchronized(this) {
@@ -1127,6 +1359,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     	if(logMINOR) Logger.minor(this, "finish("+code+ ')');
         
     	boolean turtle;
+    	boolean waitingForOpennet = false;
     	
         synchronized(this) {
             status = code;
@@ -1169,6 +1402,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 			if(!fromOfferedKey) {
 				if(key instanceof NodeCHK && next != null && 
 						(next.isOpennet() || node.passOpennetRefsThroughDarknet()) ) {
+					waitingForOpennet = true;
 					finishOpennet(next);
 				} else
 					finishOpennetNull(next);
@@ -1178,11 +1412,14 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 			fireRequestSenderFinished(code);
 		}
         
-		synchronized(this) {
-			opennetFinished = true;
-			notifyAll();
-		}
-        
+        // Otherwise finishOpennet() will, when it is done.
+        if(!waitingForOpennet)
+        	setOpennetFinished();
+    }
+
+    private synchronized void setOpennetFinished() {
+    	opennetFinished = true;
+    	notifyAll();
     }
 
     /** Wait for the opennet completion message and discard it */
@@ -1200,22 +1437,71 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 
 	/**
      * Do path folding, maybe.
-     * Wait for either a CompletedAck or a ConnectDestination.
+     * Wait for either a CompletedAck or a ConnectDestination, without blocking a thread.
      * If the former, exit.
-     * If we want a connection, reply with a ConnectReply, otherwise send a ConnectRejected and exit.
+     * Otherwise receive the noderef, and if we want a connection, reply with a ConnectReply,
+     * otherwise keep the noderef for the RequestHandler to pass on.
      * Add the peer.
      */
-    private void finishOpennet(PeerNode next) {
+    private void finishOpennet(final PeerNode next) {
+    	
+    	final OpennetManager om = node.getOpennet();
+    	
+    	if(om == null) {
+    		// Nothing to do
+    		setOpennetFinished();
+    		return;
+    	}
     	
-    	OpennetManager om;
+    	MessageFilter mf = om.opennetNoderefFilter(false, next, uid);
+    	
+    	try {
+    		node.usm.addAsyncFilter(mf, new AsyncMessageFilterCallback() {
+
+    			public void onMatched(final Message m) {
+    				receivedBytes(m.receivedByteCount());
+    				if(m.getSpec() == DMT.FNPOpennetCompletedAck) {
+    					setOpennetFinished();
+    					return;
+    				}
+    				// The noderef is a bulk transfer, which blocks.
+    				node.executor.execute(new Runnable() {
+
+    					public void run() {
+    						addOpennetNoderef(next, om, om.receiveOpennetNoderef(m, false, next, uid, RequestSender.this));
+    					}
+
+    				}, "Opennet noderef for UID "+uid);
+    			}
+
+    			public boolean shouldTimeout() {
+    				return false;
+    			}
+
+    			public void onTimeout() {
+    				Logger.normal(this, "Timeout waiting for opennet peer on "+RequestSender.this);
+    				setOpennetFinished();
+    			}
+
+    			public void onDisconnect(PeerContext ctx) {
+    				Logger.normal(this, "No opennet response because node disconnected on "+RequestSender.this);
+    				setOpennetFinished();
+    			}
+
+    			public void onRestarted(PeerContext ctx) {
+    				onDisconnect(ctx);
+    			}
+
+    		});
+    	} catch (DisconnectedException e) {
+    		setOpennetFinished();
+    	}
+    }
+
+    /** Add the opennet peer whose noderef we received in finishOpennet(), if we want it. */
+    private void addOpennetNoderef(PeerNode next, OpennetManager om, byte[] noderef) {
     	
     	try {
-    		om = node.getOpennet();
-    		
-    		if(om == null) return; // Nothing to do
-    		
-        	byte[] noderef = om.waitForOpennetNoderef(false, next, uid, this);
-        	
         	if(noderef == null) return;
         	
         	SimpleFieldSet ref = om.validateNoderef(noderef, 0, noderef.length, next, false);
@@ -1251,10 +1537,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 			if(logMINOR)
 				Logger.minor(this, "Not connected sending ConnectReply on "+this+" to "+next);
     	} finally {
-    		synchronized(this) {
-    			opennetFinished = true;
-    			notifyAll();
-    		}
+    		setOpennetFinished();
     	}
 	}
 
@@ -1376,6 +1659,29 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 		 * Should return quickly, allocate a thread if it needs to block etc. */
 		void onAbortDownstreamTransfers(int reason, String desc);
 	}
+
+	/** Told the real final status, even if downstream transfers were aborted before it. */
+	interface FinishedListener {
+		/** Should return quickly, allocate a thread if it needs to block etc */
+		void onFinished(int status);
+	}
+
+	/**
+	 * Tell the listener the final status once the request has finished, or now if it already
+	 * has. Unlike a Listener, it is not told TRANSFER_FAILED when downstream transfers are
+	 * aborted, e.g. on turtling, so it can wait for the request itself.
+	 */
+	public void addFinishedListener(FinishedListener l) {
+		synchronized(listeners) {
+			if(!sentRequestSenderFinished) {
+				if(finishedListeners == null)
+					finishedListeners = new ArrayList<FinishedListener>(1);
+				finishedListeners.add(l);
+				return;
+			}
+		}
+		l.onFinished(getStatus());
+	}
 	
 	public void addListener(Listener l) {
 		// Only call here if we've already called for the other listeners.
@@ -1451,6 +1757,16 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 					Logger.error(this, "Caught: "+t, t);
 				}
 			}
+			if(finishedListeners != null) {
+				for (FinishedListener l : finishedListeners) {
+					try {
+						l.onFinished(status);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught: "+t, t);
+					}
+				}
+				finishedListeners = null;
+			}
 		}
 	}
 
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import com.db4o.ObjectContainer;
 
 import freenet.client.async.ChosenBlock;
@@ -60,6 +62,14 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	 * buckets and the thread limit. FIXME make configurable. */
 	private static final boolean LOCAL_REQUESTS_COMPETE_FAIRLY = true;
 	
+	/** Most rate credit to build up, i.e. the largest number of requests to start at once */
+	static final double MAX_CREDIT = 4.0;
+	/** Upper bounds of the queueing delay histogram buckets, in milliseconds. There is one more
+	 * bucket for anything longer. */
+	public static final int[] QUEUEING_DELAY_BUCKETS = new int[] { 10, 100, 500, 1000, 5000, 10000, 30000, 60000 };
+	/** The start rates decay over this period, in milliseconds */
+	private static final double START_RATE_PERIOD = 60 * 1000;
+	
 	public static boolean isValidPriorityClass(int prio) {
 		return !((prio < MAXIMUM_PRIORITY_CLASS) || (prio > MINIMUM_PRIORITY_CLASS));
 	}
@@ -75,6 +85,11 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	private long sentRequestTime;
 	private final boolean isInsert;
 	private final boolean isSSK;
+	/** Queueing delay histogram for each priority */
+	private final AtomicLongArray[] queueingDelays;
+	/** Decaying count of requests started at each priority, per millisecond. Also the lock for startRateTimes. */
+	private final double[] startRates;
+	private final long[] startRateTimes;
 	
 	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, TokenBucket outputBucket, TokenBucket inputBucket,
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK) {
@@ -88,6 +103,11 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		this.averageInputBytesPerRequest = averageInputBytesPerRequest;
 		this.isInsert = isInsert;
 		this.isSSK = isSSK;
+		queueingDelays = new AtomicLongArray[NUMBER_OF_PRIORITY_CLASSES];
+		for(int i = 0; i < queueingDelays.length; i++)
+			queueingDelays[i] = new AtomicLongArray(QUEUEING_DELAY_BUCKETS.length + 1);
+		startRates = new double[NUMBER_OF_PRIORITY_CLASSES];
+		startRateTimes = new long[NUMBER_OF_PRIORITY_CLASSES];
 	}
 
 	void setScheduler(RequestScheduler sched) {
@@ -109,9 +129,10 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	void realRun() {
 		ChosenBlock req = null;
+		// When we grabbed req
+		long grabbedTime = 0;
 		sentRequestTime = System.currentTimeMillis();
-		// The last time at which we sent a request or decided not to
-		long cycleTime = sentRequestTime;
+		RequestCredit credit = new RequestCredit(MAX_CREDIT, 1.0, sentRequestTime);
 		while(true) {
 			// Allow 5 minutes before we start killing requests due to not connecting.
 			OpennetManager om;
@@ -129,67 +150,119 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 			}
 			if(req == null) {
 				req = sched.grabRequest();
-			}
-			if(req != null) {
+				if(req == null) {
+					if(logMINOR) Logger.minor(this, "Waiting...");
+					// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
+					// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
+					synchronized(this) {
+						req = sched.grabRequest();
+						if(req == null) {
+							try {
+								wait(100*1000); // as close to indefinite as I'm comfortable with! Toad
+							} catch (InterruptedException e) {
+								// Ignore
+							}
+						}
+					}
+				}
+				if(req == null) continue;
+				grabbedTime = System.currentTimeMillis();
 				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
-				// Wait
+			}
+			if(!req.localRequestOnly) {
+				// Wait for credit. Local-only requests don't go out on the network so don't need any.
 				long delay = throttle.getDelay();
-				if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle);
-				long sleepUntil = cycleTime + delay;
+				long now = System.currentTimeMillis();
+				credit.accrue(now, delay);
+				if(!credit.canStart()) {
+					long wait = credit.waitTime(delay);
+					if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle+" credit="+credit.get()+" sleeping "+wait+"ms");
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					continue;
+				}
 				if(!LOCAL_REQUESTS_COMPETE_FAIRLY) {
 					inputBucket.blockingGrab((int)(Math.max(0, averageInputBytesPerRequest.currentValue())));
 					outputBucket.blockingGrab((int)(Math.max(0, averageOutputBytesPerRequest.currentValue())));
 				}
-				long now;
-				do {
-					now = System.currentTimeMillis();
-					if(now < sleepUntil)
-						try {
-							Thread.sleep(sleepUntil - now);
-							if(logMINOR) Logger.minor(this, "Slept: "+(sleepUntil-now)+"ms");
-						} catch (InterruptedException e) {
-							// Ignore
-						}
-				} while(now < sleepUntil);
-				String reason;
-				if(LOCAL_REQUESTS_COMPETE_FAIRLY && !req.localRequestOnly) {
-					if((reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false)) != null) {
-						if(logMINOR)
-							Logger.minor(this, "Not sending local request: "+reason);
-						// Wait one throttle-delay before trying again
-						cycleTime = System.currentTimeMillis();
-						continue; // Let local requests compete with all the others
-					}
-				} else {
-					stats.waitUntilNotOverloaded(isInsert);
+			}
+			String reason;
+			if(LOCAL_REQUESTS_COMPETE_FAIRLY && !req.localRequestOnly) {
+				if((reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false)) != null) {
+					if(logMINOR)
+						Logger.minor(this, "Not sending local request: "+reason);
+					credit.onRejected();
+					continue; // Let local requests compete with all the others
 				}
 			} else {
-				if(logMINOR) Logger.minor(this, "Waiting...");				
-				// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
-				// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
-				synchronized(this) {
-					req = sched.grabRequest();
-					if(req == null) {
-						try {
-							wait(100*1000); // as close to indefinite as I'm comfortable with! Toad
-						} catch (InterruptedException e) {
-							// Ignore
-						}
-					}
-				}
+				stats.waitUntilNotOverloaded(isInsert);
 			}
-			if(req == null) continue;
 			if(!startRequest(req, logMINOR)) {
 				// Don't log if it's a cancelled transient request.
 				if(!((!req.isPersistent()) && req.isCancelled()))
 					Logger.normal(this, "No requests to start on "+req);
+			} else {
+				reportStarted(req.getPriority(), System.currentTimeMillis() - grabbedTime);
+			}
+			if(!req.localRequestOnly) {
+				sentRequestTime = System.currentTimeMillis();
+				credit.onStarted();
 			}
-			if(!req.localRequestOnly)
-				cycleTime = sentRequestTime = System.currentTimeMillis();
 			req = null;
 		}
 	}
 
+	private void reportStarted(short priority, long queueingDelay) {
+		if(!isValidPriorityClass(priority)) return;
+		int bucket = 0;
+		while(bucket < QUEUEING_DELAY_BUCKETS.length && queueingDelay >= QUEUEING_DELAY_BUCKETS[bucket])
+			bucket++;
+		queueingDelays[priority].incrementAndGet(bucket);
+		long now = System.currentTimeMillis();
+		synchronized(startRates) {
+			startRates[priority] = decayedStartRate(priority, now) + 1.0 / START_RATE_PERIOD;
+			startRateTimes[priority] = now;
+		}
+	}
+
+	/** Caller must hold the startRates lock. */
+	private double decayedStartRate(int priority, long now) {
+		long elapsed = now - startRateTimes[priority];
+		if(elapsed <= 0) return startRates[priority];
+		return startRates[priority] * Math.exp(-(double) elapsed / START_RATE_PERIOD);
+	}
+
+	/**
+	 * @return The rate at which requests have been started at each priority, per minute, averaged
+	 * over roughly the last minute.
+	 */
+	public double[] getStartRates() {
+		double[] ret = new double[NUMBER_OF_PRIORITY_CLASSES];
+		long now = System.currentTimeMillis();
+		synchronized(startRates) {
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = decayedStartRate(i, now) * START_RATE_PERIOD;
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the queueing delay histogram for a priority: the time between grabbing a request from
+	 * the scheduler and starting it, while waiting for rate credit and for the node not to be
+	 * overloaded.
+	 * @return The number of requests in each bucket, see {@link #QUEUEING_DELAY_BUCKETS}.
+	 */
+	public long[] getQueueingDelayCounts(short priority) {
+		AtomicLongArray counts = queueingDelays[priority];
+		long[] ret = new long[counts.length()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = counts.get(i);
+		return ret;
+	}
+
 	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
 		if((!req.isPersistent()) && req.isCancelled()) {
 			req.onDumped();
@@ -224,10 +297,16 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		}
 	}
 	
+	/**
+	 * Starts a request. Fetches are started asynchronously: run() returns once the request is
+	 * under way, and finished() is called when it completes. Inserts still block in send()
+	 * until they finish.
+	 */
 	private class SenderThread implements Runnable {
 
 		private final ChosenBlock req;
 		private final Key key;
+		private boolean finished;
 		
 		public SenderThread(ChosenBlock req, Key key) {
 			this.req = req;
@@ -235,25 +314,47 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		}
 
 		public void run() {
+			boolean async = false;
 			try {
 		    freenet.support.Logger.OSThread.logPID(this);
 		    // FIXME ? key is not known for inserts here
 		    if (key != null)
 		    	stats.reportOutgoingLocalRequestLocation(key.toNormalizedDouble());
-		    if(!req.send(core, sched)) {
+		    boolean sent;
+		    if(req.canSendAsync(sched.getContext())) {
+		    	sent = req.sendAsync(core, sched, new Runnable() {
+
+		    		public void run() {
+		    			finished();
+		    		}
+
+		    	});
+		    	async = true;
+		    } else
+		    	sent = req.send(core, sched);
+		    if(!sent) {
 				if(!((!req.isPersistent()) && req.isCancelled()))
 					Logger.error(this, "run() not able to send a request on "+req);
 				else
 					Logger.normal(this, "run() not able to send a request on "+req+" - request was cancelled");
 			}
-			if(logMINOR) 
-				Logger.minor(this, "Finished "+req);
 			} finally {
-				if(key != null) sched.removeFetchingKey(key);
-				else if((!req.isPersistent()) && ((TransientChosenBlock)req).request instanceof SendableInsert)
-					sched.removeTransientInsertFetching((SendableInsert)(((TransientChosenBlock)req).request), req.token);
+				// If sendAsync() threw, the callback may never be called.
+				if(!async) finished();
+			}
+		}
 
+		/** The request has finished, stop excluding its key. */
+		private void finished() {
+			synchronized(this) {
+				if(finished) return;
+				finished = true;
 			}
+			if(logMINOR) 
+				Logger.minor(this, "Finished "+req);
+			if(key != null) sched.removeFetchingKey(key);
+			else if((!req.isPersistent()) && ((TransientChosenBlock)req).request instanceof SendableInsert)
+				sched.removeTransientInsertFetching((SendableInsert)(((TransientChosenBlock)req).request), req.token);
 		}
 		
 	}
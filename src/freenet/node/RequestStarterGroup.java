@@ -261,6 +261,34 @@ public class RequestStarterGroup {
 		return throttleWindow.realCurrentValue();
 	}
 
+	/**
+	 * @return The rate at which local requests of all kinds have been started at each
+	 * priority, per minute.
+	 */
+	public double[] getStartRates() {
+		double[] ret = new double[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(RequestStarter starter : new RequestStarter[] { chkRequestStarter, chkInsertStarter, sskRequestStarter, sskInsertStarter }) {
+			double[] rates = starter.getStartRates();
+			for(int i = 0; i < ret.length; i++)
+				ret[i] += rates[i];
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The queueing delay histogram for local requests of all kinds at a priority, see
+	 * {@link RequestStarter#QUEUEING_DELAY_BUCKETS}.
+	 */
+	public long[] getQueueingDelayCounts(short priority) {
+		long[] ret = new long[RequestStarter.QUEUEING_DELAY_BUCKETS.length + 1];
+		for(RequestStarter starter : new RequestStarter[] { chkRequestStarter, chkInsertStarter, sskRequestStarter, sskInsertStarter }) {
+			long[] counts = starter.getQueueingDelayCounts(priority);
+			for(int i = 0; i < ret.length; i++)
+				ret[i] += counts[i];
+		}
+		return ret;
+	}
+
 	public long countTransientQueuedRequests() {
 		return chkFetchScheduler.countTransientQueuedRequests() +
 			sskFetchScheduler.countTransientQueuedRequests() +
@@ -3,11 +3,12 @@ package freenet.node;
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
 import freenet.keys.ClientKey;
+import freenet.keys.ClientKeyBlock;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
-public class SendableGetRequestSender implements SendableRequestSender {
+public class SendableGetRequestSender implements AsyncSendableRequestSender {
 
 	private static volatile boolean logMINOR;
 	
@@ -26,19 +27,8 @@ public class SendableGetRequestSender implements SendableRequestSender {
 	 * @return True if a request was executed. False if caller should try to find another request, and remove
 	 * this one from the queue. */
 	public boolean send(NodeClientCore core, final RequestScheduler sched, ClientContext context, ChosenBlock req) {
-		Object keyNum = req.token;
+		if(!canSend(context, req)) return false;
 		ClientKey key = req.ckey;
-		if(key == null) {
-			Logger.error(SendableGet.class, "Key is null in send(): keyNum = "+keyNum+" for "+req);
-			return false;
-		}
-		if(logMINOR)
-			Logger.minor(SendableGet.class, "Sending get for key "+keyNum+" : "+key);
-		if(req.isCancelled()) {
-			if(logMINOR) Logger.minor(SendableGet.class, "Cancelled: "+req);
-			req.onFailure(new LowLevelGetException(LowLevelGetException.CANCELLED), context);
-			return false;
-		}
 		try {
 			try {
 				core.realGetKey(key, req.localRequestOnly, req.ignoreStore, req.canWriteClientCache);
@@ -59,4 +49,56 @@ public class SendableGetRequestSender implements SendableRequestSender {
 		return true;
 	}
 
+	/** Start the request, without blocking. Called by RequestStarter.
+	 * @return True if a request was started. False if caller should try to find another request, and remove
+	 * this one from the queue. */
+	public boolean sendAsync(NodeClientCore core, RequestScheduler sched, final ClientContext context, final ChosenBlock req, final Runnable onFinished) {
+		if(!canSend(context, req)) {
+			onFinished.run();
+			return false;
+		}
+		core.asyncGetKey(req.ckey, req.localRequestOnly, req.ignoreStore, req.canWriteClientCache, new LowLevelGetCallback() {
+
+			public void onSuccess(ClientKeyBlock block) {
+				try {
+					req.onFetchSuccess(context);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t, t);
+					req.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR), context);
+				} finally {
+					onFinished.run();
+				}
+			}
+
+			public void onFailure(LowLevelGetException e) {
+				try {
+					req.onFailure(e, context);
+				} finally {
+					onFinished.run();
+				}
+			}
+
+		});
+		return true;
+	}
+
+	/** @return False if the request can't be sent, after calling its failure callback if it was
+	 * cancelled. */
+	private boolean canSend(ClientContext context, ChosenBlock req) {
+		Object keyNum = req.token;
+		ClientKey key = req.ckey;
+		if(key == null) {
+			Logger.error(SendableGet.class, "Key is null in send(): keyNum = "+keyNum+" for "+req);
+			return false;
+		}
+		if(logMINOR)
+			Logger.minor(SendableGet.class, "Sending get for key "+keyNum+" : "+key);
+		if(req.isCancelled()) {
+			if(logMINOR) Logger.minor(SendableGet.class, "Cancelled: "+req);
+			req.onFailure(new LowLevelGetException(LowLevelGetException.CANCELLED), context);
+			return false;
+		}
+		return true;
+	}
+
 }
@@ -7,5 +7,10 @@ public interface Ticker {
 
 	public abstract void queueTimedJob(Runnable job, long offset);
 	public abstract void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes);
+	/**
+	 * Remove a job which is no longer needed, so it doesn't sit in the queue until it is due.
+	 * @return True if it was queued (every queued run of it is removed).
+	 */
+	public abstract boolean removeQueuedJob(Runnable job);
 
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUHashtable;
+
+/**
+ * Limits how often packets from unknown addresses are tried against the keys of every peer.
+ *
+ * Each source network (a /24 for IPv4, a /64 for IPv6) has its own small budget, so a flood
+ * from one network doesn't use up the budget of a peer connecting from another. Networks where
+ * none of our peers were last seen also share a global budget, which bounds the total cost of a
+ * flood with random spoofed source addresses. Networks where a peer was last seen are exempt
+ * from the global budget, so a peer whose NAT rebinds within its network still gets through
+ * such a flood.
+ */
+class TrialDecryptionLimiter {
+
+	/** Maximum number of networks we keep a budget for. The least recently seen is dropped. */
+	static final int MAX_NETWORKS = 1024;
+
+	private final int perNetworkRate;
+	private final int perNetworkBurst;
+	private final LRUHashtable<ByteArrayWrapper, Budget> networks = new LRUHashtable<ByteArrayWrapper, Budget>();
+	private final Budget global;
+
+	/**
+	 * @param perNetworkRate Trial decryptions per second for each source network.
+	 * @param perNetworkBurst Burst size for each source network.
+	 * @param globalRate Trial decryptions per second for all unknown networks together.
+	 * @param globalBurst Burst size for all unknown networks together.
+	 */
+	TrialDecryptionLimiter(int perNetworkRate, int perNetworkBurst, int globalRate, int globalBurst, long now) {
+		this.perNetworkRate = perNetworkRate;
+		this.perNetworkBurst = perNetworkBurst;
+		this.global = new Budget(globalRate, globalBurst, now);
+	}
+
+	/**
+	 * Should we try a packet from this address against every peer?
+	 * @param addr The source address of the packet. If null, only the global budget applies.
+	 * @param knownNetwork True if one of our peers was last seen on the same network, see
+	 * {@link #sameNetwork(InetAddress, InetAddress)}.
+	 * @param now The current time in milliseconds.
+	 * @return True if the caller may go ahead, in which case the budgets have been charged.
+	 */
+	synchronized boolean allow(InetAddress addr, boolean knownNetwork, long now) {
+		if(addr == null) {
+			if(!global.available(now)) return false;
+			global.take();
+			return true;
+		}
+		ByteArrayWrapper key = new ByteArrayWrapper(network(addr));
+		Budget budget = networks.get(key);
+		if(budget == null) {
+			budget = new Budget(perNetworkRate, perNetworkBurst, now);
+			while(networks.size() >= MAX_NETWORKS)
+				networks.popKey();
+		}
+		networks.push(key, budget);
+		if(!budget.available(now)) return false;
+		if(!knownNetwork) {
+			if(!global.available(now)) return false;
+			global.take();
+		}
+		budget.take();
+		return true;
+	}
+
+	/**
+	 * @return The network part of an address: the first 3 bytes of an IPv4 address, or the
+	 * first 8 bytes of an IPv6 address.
+	 */
+	static byte[] network(InetAddress addr) {
+		byte[] bytes = addr.getAddress();
+		int length = bytes.length == 4 ? 3 : 8;
+		byte[] net = new byte[length];
+		System.arraycopy(bytes, 0, net, 0, length);
+		return net;
+	}
+
+	static boolean sameNetwork(InetAddress a, InetAddress b) {
+		byte[] x = a.getAddress();
+		byte[] y = b.getAddress();
+		if(x.length != y.length) return false;
+		int length = x.length == 4 ? 3 : 8;
+		for(int i=0;i<length;i++)
+			if(x[i] != y[i]) return false;
+		return true;
+	}
+
+	/** A token bucket driven by the caller's clock. */
+	private static class Budget {
+		private final int rate;
+		private final int burst;
+		private double tokens;
+		private long lastRefill;
+
+		Budget(int rate, int burst, long now) {
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+			this.lastRefill = now;
+		}
+
+		boolean available(long now) {
+			if(now > lastRefill) {
+				tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000.0);
+				lastRefill = now;
+			} else if(now < lastRefill)
+				lastRefill = now; // Clock went backwards, refill from here.
+			return tokens >= 1;
+		}
+
+		void take() {
+			tokens--;
+		}
+	}
+}
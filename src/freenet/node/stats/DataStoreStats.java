@@ -31,6 +31,14 @@ public interface DataStoreStats {
 
 	public long falsePos();
 
+	public long lockContentions();
+
+	public long pendingWrites() throws StatsNotAvailableException;
+
+	public double avgWriteBatch() throws StatsNotAvailableException;
+
+	public long overflowWrites() throws StatsNotAvailableException;
+
 	double avgLocation() throws StatsNotAvailableException;
 
 	double avgSuccess() throws StatsNotAvailableException;
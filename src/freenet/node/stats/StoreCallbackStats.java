@@ -3,7 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node.stats;
 
+import freenet.store.FreenetStore;
 import freenet.store.StoreCallback;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 
 /**
  * This class wraps StoreCallback instance to provide methods required to display stats
@@ -75,6 +77,29 @@ public class StoreCallbackStats implements DataStoreStats {
 		return storeStats.getBloomFalsePositive();
 	}
 
+	public long lockContentions() {
+		return storeStats.lockContentions();
+	}
+
+	private SaltedHashFreenetStore<?> writeBehindStore() throws StatsNotAvailableException {
+		FreenetStore<?> store = storeStats.getStore();
+		if (store instanceof SaltedHashFreenetStore && ((SaltedHashFreenetStore<?>) store).isWriteBehind())
+			return (SaltedHashFreenetStore<?>) store;
+		throw new StatsNotAvailableException();
+	}
+
+	public long pendingWrites() throws StatsNotAvailableException {
+		return writeBehindStore().getWriteQueueSize();
+	}
+
+	public double avgWriteBatch() throws StatsNotAvailableException {
+		return writeBehindStore().getAverageWriteBatchSize();
+	}
+
+	public long overflowWrites() throws StatsNotAvailableException {
+		return writeBehindStore().getWriteQueueOverflows();
+	}
+
 	public double avgLocation() throws StatsNotAvailableException {
 		return nodeStats.avgLocation();
 	}
@@ -1170,6 +1170,11 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 		if(meta != null) meta.noMetadata = true;
 		return retval;
 	}
+
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		return StoreUtil.fetchEach(this, routingKeys, fullKeys, blocks, dontPromote, canReadClientCache, canReadSlashdotCache);
+	}
 	
 	/**
 	 * {@inheritDoc}
@@ -2323,6 +2328,10 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 	public long getBloomFalsePositive() {
 		return -1;
 	}
+
+	public long lockContentions() {
+		return -1;
+	}
 	
     public boolean probablyInStore(byte[] routingKey) {
     	// This needs to be fast, so that it can be run from any thread.
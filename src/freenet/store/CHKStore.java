@@ -26,6 +26,18 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 	public CHKBlock fetch(NodeCHK chk, boolean dontPromote, BlockMetadata meta) throws IOException {
 		return store.fetch(chk.getRoutingKey(), null, dontPromote, false, false, meta);
 	}
+
+	/**
+	 * Fetch several blocks at once. Only the keys whose slot in <code>blocks</code> is still
+	 * <code>null</code> are looked up.
+	 * @return The number of blocks found.
+	 */
+	public int fetchBatch(NodeCHK[] chks, CHKBlock[] blocks, boolean dontPromote) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++)
+			routingKeys[i] = chks[i].getRoutingKey();
+		return store.fetchBatch(routingKeys, null, blocks, dontPromote, false, false);
+	}
 	
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
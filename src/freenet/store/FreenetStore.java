@@ -26,6 +26,19 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @throws IOException If a disk I/O error occurs.
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta) throws IOException;
+
+	/**
+	 * Retrieve several blocks at once. Only the keys whose slot in <code>blocks</code> is still
+	 * <code>null</code> are looked up, so the same arrays can be passed to several stores in
+	 * turn. The store may look the keys up in any order, e.g. to access the disk sequentially.
+	 * @param routingKeys The routing keys of the blocks.
+	 * @param fullKeys The full keys of the blocks, or null. Needed to reconstruct SSKs.
+	 * @param blocks Array of the same length as <code>routingKeys</code>. The blocks found are
+	 * stored at the index of their key.
+	 * @return The number of blocks found by this call.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException;
 	
 	/**
 	 * Store a block.
@@ -64,6 +77,13 @@ public interface FreenetStore<T extends StorableBlock> {
 	public long keyCount();
 
 	public long getBloomFalsePositive();
+
+	/**
+	 * Number of times a thread had to wait for a lock held by another thread.
+	 *
+	 * @return the count, or -1 if not available.
+	 */
+	public long lockContentions();
 	
 	/**
 	 * Check if a routing key probably
@@ -17,10 +17,20 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache) throws IOException {
+		return 0;
+	}
+
 	public long getBloomFalsePositive() {
 		return 0;
 	}
 
+	public long lockContentions() {
+		return 0;
+	}
+
 	public long getMaxKeys() {
 		return 0;
 	}
@@ -2,92 +2,102 @@ package freenet.store;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sleepycat.je.DatabaseException;
 
 import freenet.keys.KeyVerifyException;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUHashtable;
+import freenet.support.ClockCache;
 import freenet.support.Logger;
 
 /**
- * LRU in memory store.
+ * Approximate LRU in memory store. Lookups don't take any lock, so client cache hits don't
+ * serialise request threads.
  * 
  * For debugging / simulation only
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Immutable, so we can read it without locking. Replaced rather than changed on overwrite. */
 	private final static class Block {
-		byte[] header;
-		byte[] data;
-		byte[] fullKey;
-		boolean oldBlock;
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		final boolean oldBlock;
+		
+		Block(byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+		}
 	}
 	
-	private final LRUHashtable<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final ClockCache<ByteArrayWrapper, Block> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
-	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
 		this.callback = callback;
-		this.blocksByRoutingKey = new LRUHashtable<ByteArrayWrapper, Block>();
-		this.maxKeys = maxKeys;
+		this.blocksByRoutingKey = new ClockCache<ByteArrayWrapper, Block>(maxKeys);
 		callback.setStore(this);
 	}
 	
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
+		Block block = dontPromote ? blocksByRoutingKey.peek(key) : blocksByRoutingKey.get(key);
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
 			return null;
 		}
 		try {
 			T ret =
 				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
+			hits.incrementAndGet();
 			if(meta != null && block.oldBlock) meta.oldBlock = true;
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			blocksByRoutingKey.remove(key, block);
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
-	public synchronized long getMaxKeys() {
-		return maxKeys;
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		return StoreUtil.fetchEach(this, routingKeys, fullKeys, blocks, dontPromote, canReadClientCache, canReadSlashdotCache);
 	}
 
-	public synchronized long hits() {
-		return hits;
+	public long getMaxKeys() {
+		return blocksByRoutingKey.getMaxSize();
 	}
 
-	public synchronized long keyCount() {
+	public long hits() {
+		return hits.get();
+	}
+
+	public long keyCount() {
 		return blocksByRoutingKey.size();
 	}
 
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
-		writes++;
+		writes.incrementAndGet();
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
+		Block oldBlock = blocksByRoutingKey.peek(key);
 		boolean storeFullKeys = callback.storeFullKeys();
 		if(oldBlock != null) {
 			if(callback.collisionPossible()) {
@@ -95,52 +105,37 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 					Arrays.equals(oldBlock.header, header) &&
 					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
 				if(equals) return;
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
-				} else {
+				if(!overwrite)
 					throw new KeyCollisionException();
-				}
-				return;
 			} else {
 				return;
 			}
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		// Evicted blocks are simply garbage collected.
+		blocksByRoutingKey.put(key, new Block(header, data, storeFullKeys ? fullKey : null, isOldBlock));
 	}
 
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws DatabaseException, IOException {
-		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		blocksByRoutingKey.setMaxSize((int)Math.min(Integer.MAX_VALUE, maxStoreKeys));
 	}
 
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	public long getBloomFalsePositive() {
 		return -1;
 	}
+
+	public long lockContentions() {
+		return -1;
+	}
 	
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		return blocksByRoutingKey.containsKey(key);
 	}
 
 	public void clear() {
@@ -148,11 +143,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
+		Iterator<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
+		while(keys.hasNext()) {
+			ByteArrayWrapper routingKeyWrapped = keys.next();
 			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
+			Block block = blocksByRoutingKey.peek(routingKeyWrapped);
+			if(block == null) continue; // Removed since we started
 			
 			T ret;
 			try {
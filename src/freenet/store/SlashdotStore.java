@@ -4,15 +4,16 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sleepycat.je.DatabaseException;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.Ticker;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUHashtable;
+import freenet.support.ClockCache;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -21,7 +22,7 @@ import freenet.support.io.TempBucketFactory;
 
 /** Short-term cache. Used to cache all blocks retrieved in the last 30 minutes (on low 
  * security levels), or just to cache data fetched through ULPRs (on higher security levels).
- * - Strict LRU.
+ * - Approximate LRU (CLOCK), so hits don't need to lock the whole store.
  * - Size limit.
  * - Strictly enforced time limit.
  * - Blocks are encrypted, and kept in temp files.
@@ -44,13 +45,17 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	}
 	
 	private class DiskBlock {
-		Bucket data;
-		long lastAccessed;
+		final Bucket data;
+		volatile long lastAccessed;
+		
+		DiskBlock(Bucket data) {
+			this.data = data;
+		}
 	}
 	
 	private final TempBucketFactory bf;
 	
-	private long maxLifetime;
+	private volatile long maxLifetime;
 	
 	private final long purgePeriod;
 	
@@ -59,15 +64,13 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	private final Ticker ticker;
 	
-	private final LRUHashtable<ByteArrayWrapper, DiskBlock> blocksByRoutingKey;
+	private final ClockCache<ByteArrayWrapper, DiskBlock> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
-	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	private final int headerSize;
 	private final int dataSize;
@@ -75,8 +78,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	
 	public SlashdotStore(StoreCallback<T> callback, int maxKeys, long maxLifetime, long purgePeriod, Ticker ticker, TempBucketFactory tbf) {
 		this.callback = callback;
-		this.blocksByRoutingKey = new LRUHashtable<ByteArrayWrapper, DiskBlock>();
-		this.maxKeys = maxKeys;
+		this.blocksByRoutingKey = new ClockCache<ByteArrayWrapper, DiskBlock>(maxKeys);
 		this.bf = tbf;
 		this.ticker = ticker;
 		this.maxLifetime = maxLifetime;
@@ -93,58 +95,72 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	 */
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		DiskBlock block;
-		long timeAccessed;
-		synchronized(this) {
-			block = blocksByRoutingKey.get(key);
-			if(block == null) {
-				misses++;
-				return null;
-			}
-			timeAccessed = block.lastAccessed;
+		DiskBlock block = dontPromote ? blocksByRoutingKey.peek(key) : blocksByRoutingKey.get(key);
+		if(block == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		long timeAccessed = block.lastAccessed;
+		if(System.currentTimeMillis() - timeAccessed >= maxLifetime) {
+			// Expired but not purged yet.
+			if(blocksByRoutingKey.remove(key, block))
+				block.data.free();
+			misses.incrementAndGet();
+			return null;
 		}
 		InputStream in = block.data.getInputStream();
 		DataInputStream dis = new DataInputStream(in);
 		byte[] fk = new byte[fullKeySize];
 		byte[] header = new byte[headerSize];
 		byte[] data = new byte[dataSize];
-		dis.readFully(fk);
-		dis.readFully(header);
-		dis.readFully(data);
-		in.close();
+		try {
+			dis.readFully(fk);
+			dis.readFully(header);
+			dis.readFully(data);
+		} catch (IOException e) {
+			// Probably freed by a concurrent purge or overwrite
+			if(logMINOR) Logger.minor(this, "Unable to read block: "+e, e);
+			misses.incrementAndGet();
+			return null;
+		} finally {
+			in.close();
+		}
 		try {
 			T ret =
 				callback.construct(data, header, routingKey, fk, canReadClientCache, canReadSlashdotCache, null, null);
-			synchronized(this) {
-				hits++;
-				if(!dontPromote) {
-					block.lastAccessed = System.currentTimeMillis();
-					blocksByRoutingKey.push(key, block);
-				}
-			}
+			hits.incrementAndGet();
+			if(!dontPromote)
+				block.lastAccessed = System.currentTimeMillis();
 			if(logDEBUG) Logger.debug(this, "Block was last accessed "+(System.currentTimeMillis() - timeAccessed)+"ms ago");
 			if(meta != null) meta.noMetadata = true;
 			return ret;
 		} catch (KeyVerifyException e) {
-			block.data.free();
-			synchronized(this) {
-				blocksByRoutingKey.removeKey(key);
-				misses++;
-			}
+			if(blocksByRoutingKey.remove(key, block))
+				block.data.free();
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		return StoreUtil.fetchEach(this, routingKeys, fullKeys, blocks, dontPromote, canReadClientCache, canReadSlashdotCache);
+	}
+
 	public long getBloomFalsePositive() {
 		return -1;
 	}
 
+	public long lockContentions() {
+		return -1;
+	}
+
 	public long getMaxKeys() {
-		return maxKeys;
+		return blocksByRoutingKey.getMaxSize();
 	}
 
 	public long hits() {
-		return hits;
+		return hits.get();
 	}
 
 	public long keyCount() {
@@ -152,7 +168,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	}
 
 	public long misses() {
-		return misses;
+		return misses.get();
 	}
 
 	public boolean probablyInStore(byte[] routingKey) {
@@ -175,20 +191,24 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		os.write(data);
 		os.close();
 		
-		DiskBlock stored = new DiskBlock();
-		stored.data = bucket;
-		purgeOldData(new ByteArrayWrapper(routingkey), stored);
+		DiskBlock stored = new DiskBlock(bucket);
+		stored.lastAccessed = System.currentTimeMillis();
+		writes.incrementAndGet();
+		// Replaced or evicted blocks.
+		free(blocksByRoutingKey.put(new ByteArrayWrapper(routingkey), stored));
 	}
 
 	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws DatabaseException, IOException {
 		if(maxStoreKeys > Integer.MAX_VALUE) throw new IllegalArgumentException();
-		this.maxKeys = (int) maxStoreKeys;
+		final int maxKeys = (int) maxStoreKeys;
 		if(shrinkNow) {
+			free(blocksByRoutingKey.setMaxSize(maxKeys));
 			purgeOldData();
 		} else {
 			ticker.queueTimedJob(new Runnable() {
 
 				public void run() {
+					free(blocksByRoutingKey.setMaxSize(maxKeys));
 					purgeOldData();
 					// Don't re-schedule
 				}
@@ -198,7 +218,7 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 	}
 
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	private final Runnable purgeOldData = new Runnable() {
@@ -213,39 +233,37 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		
 	};
 
+	/** Remove and free all blocks that have not been accessed within the lifetime limit. */
 	protected void purgeOldData() {
-		purgeOldData(null, null);
-	}
-	
-	protected void purgeOldData(ByteArrayWrapper key, DiskBlock addFirst) {
-		List<DiskBlock> blocks = null;
-		synchronized(this) {
-			long now = System.currentTimeMillis();
-			if(addFirst != null) {
-				addFirst.lastAccessed = now;
-				blocksByRoutingKey.push(key, addFirst);
-				writes++;
-			}
-			while(true) {
-				if(blocksByRoutingKey.isEmpty()) break;
-				DiskBlock block = blocksByRoutingKey.peekValue();
-				if(now - block.lastAccessed < maxLifetime && blocksByRoutingKey.size() < maxKeys) break;
-				if(blocks == null) blocks = new ArrayList<DiskBlock>();
-				blocks.add(block);
-				blocksByRoutingKey.popValue();
+		long now = System.currentTimeMillis();
+		long lifetime = maxLifetime;
+		int purged = 0;
+		Iterator<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
+		while(keys.hasNext()) {
+			ByteArrayWrapper key = keys.next();
+			DiskBlock block = blocksByRoutingKey.peek(key);
+			if(block == null) continue;
+			if(now - block.lastAccessed < lifetime) continue;
+			if(blocksByRoutingKey.remove(key, block)) {
+				block.data.free();
+				purged++;
 			}
 		}
+		if(logMINOR && purged > 0) Logger.minor(this, "Purged "+purged+" old blocks");
+	}
+	
+	private void free(List<DiskBlock> blocks) {
 		if(blocks == null) return;
 		for(DiskBlock block : blocks) {
 			block.data.free();
 		}
 	}
 
-	public synchronized Long getLifetime() {
+	public Long getLifetime() {
 		return maxLifetime;
 	}
 
-	public synchronized void setLifetime(Long val) {
+	public void setLifetime(Long val) {
 		maxLifetime = val;
 	}
 }
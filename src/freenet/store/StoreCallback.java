@@ -86,6 +86,10 @@ public abstract class StoreCallback<T extends StorableBlock> {
 		return store.getBloomFalsePositive();
 	}
 
+	public long lockContentions() {
+		return store.lockContentions();
+	}
+
 	/** Generate a routing key from a full key */
 	public abstract byte[] routingKeyFromFullKey(byte[] keyBuf);
 }
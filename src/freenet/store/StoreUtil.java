@@ -0,0 +1,29 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+
+/**
+ * Helpers shared by the {@link FreenetStore} implementations.
+ */
+public class StoreUtil {
+
+	/**
+	 * Implement {@link FreenetStore#fetchBatch(byte[][], byte[][], StorableBlock[], boolean,
+	 * boolean, boolean)} by fetching the missing keys one by one. For stores where batching
+	 * wouldn't save anything, e.g. because every lookup is a hash table access.
+	 * @return The number of blocks found by this call.
+	 */
+	public static <T extends StorableBlock> int fetchEach(FreenetStore<T> store, byte[][] routingKeys, byte[][] fullKeys, T[] blocks,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		int found = 0;
+		for(int i=0;i<routingKeys.length;i++) {
+			if(blocks[i] != null) continue;
+			blocks[i] = store.fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, null);
+			if(blocks[i] != null) found++;
+		}
+		return found;
+	}
+}
@@ -16,6 +16,7 @@ import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.node.MasterKeys;
 import freenet.support.ByteArrayWrapper;
+import freenet.support.ClockCache;
 import freenet.support.Logger;
 
 /**
@@ -52,13 +53,31 @@ public class CipherManager {
 	}
 
 	/**
-	 * Cache for digested keys
+	 * Cache for digested keys. Each request digests the same key several times (bloom filter,
+	 * locking, probing), so lookups must be cheap: they don't take any lock.
 	 */
-	@SuppressWarnings("serial")
-	private Map<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new LinkedHashMap<ByteArrayWrapper, byte[]>() {
+	private final ClockCache<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new ClockCache<ByteArrayWrapper, byte[]>(1024);
+
+	/** Most initialized ciphers to keep for each thread */
+	static final int CIPHER_CACHE_SIZE = 32;
+
+	/**
+	 * Cache for initialized ciphers, by plain routing key, one per thread. Saves the key schedule
+	 * when the same key is read repeatedly, or written and read back, on a thread. A cipher is
+	 * never shared between threads, and a hit takes no lock. Only the (cheap) PCFB mode is
+	 * created per operation.
+	 */
+	private final ThreadLocal<Map<ByteArrayWrapper, BlockCipher>> cipherCache = new ThreadLocal<Map<ByteArrayWrapper, BlockCipher>>() {
 		@Override
-		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
-			return size() > 128;
+		protected Map<ByteArrayWrapper, BlockCipher> initialValue() {
+			return new LinkedHashMap<ByteArrayWrapper, BlockCipher>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, BlockCipher> eldest) {
+					return size() > CIPHER_CACHE_SIZE;
+				}
+			};
 		}
 	};
 
@@ -70,11 +89,9 @@ public class CipherManager {
 	 */
 	byte[] getDigestedKey(byte[] plainKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(plainKey);
-		synchronized (digestRoutingKeyCache) {
-			byte[] dk = digestRoutingKeyCache.get(key);
-			if (dk != null)
-				return dk;
-		}
+		byte[] dk = digestRoutingKeyCache.get(key);
+		if (dk != null)
+			return dk;
 
 		MessageDigest digest = SHA256.getMessageDigest();
 		try {
@@ -84,9 +101,7 @@ public class CipherManager {
 			byte[] hashedRoutingKey = digest.digest();
 			assert hashedRoutingKey.length == 0x20;
 
-			synchronized (digestRoutingKeyCache) {
-				digestRoutingKeyCache.put(key, hashedRoutingKey);
-			}
+			digestRoutingKeyCache.put(key, hashedRoutingKey);
 
 			return hashedRoutingKey;
 		} finally {
@@ -161,18 +176,31 @@ public class CipherManager {
 		System.arraycopy(salt, 0, iv2, 0, 0x10);
 		System.arraycopy(iv, 0, iv2, 0x10, 0x10);
 
+		return PCFBMode.create(getCipher(key), iv2);
+	}
+
+	private BlockCipher getCipher(byte[] key) {
+		Map<ByteArrayWrapper, BlockCipher> cache = cipherCache.get();
+		ByteArrayWrapper wrapper = new ByteArrayWrapper(key);
+		BlockCipher aes = cache.get(wrapper);
+		if (aes != null)
+			return aes;
+
 		try {
-			BlockCipher aes = new Rijndael(256, 256);
+			aes = new Rijndael(256, 256);
 			aes.initialize(key);
-
-			return PCFBMode.create(aes, iv2);
 		} catch (UnsupportedCipherException e) {
 			Logger.error(this, "Rijndael not supported!", e);
 			throw new Error("Rijndael not supported!", e);
 		}
+		cache.put(wrapper, aes);
+		return aes;
 	}
 
 	public void shutdown() {
+		digestRoutingKeyCache.clear();
+		// Other threads' ciphers go when this CipherManager does.
+		cipherCache.remove();
 		MasterKeys.clear(salt);
 		MasterKeys.clear(diskSalt);
 	}
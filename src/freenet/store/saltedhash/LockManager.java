@@ -3,9 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -15,58 +14,117 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * The offsets are spread over a fixed number of stripes, each with its own lock, so threads
+ * locking unrelated offsets rarely contend with each other.
+ *
  * @author sdiz
  */
 public class LockManager {
+	/** Number of stripes, must be a power of two */
+	private static final int STRIPES = 128;
+
 	private static boolean logDEBUG;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final AtomicLong contentions = new AtomicLong();
+
+	/**
+	 * A set of locked offsets sharing one lock. Only a handful of offsets are locked at a time,
+	 * so we use a plain array rather than boxing them into a map.
+	 */
+	private static class Stripe {
+		final Lock lock = new ReentrantLock();
+		final Condition unlocked = lock.newCondition();
+		long[] offsets = new long[4];
+		int count;
+
+		boolean contains(long offset) {
+			for (int i = 0; i < count; i++)
+				if (offsets[i] == offset)
+					return true;
+			return false;
+		}
+
+		void add(long offset) {
+			if (count == offsets.length) {
+				long[] newOffsets = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, newOffsets, 0, count);
+				offsets = newOffsets;
+			}
+			offsets[count++] = offset;
+		}
+
+		boolean remove(long offset) {
+			for (int i = 0; i < count; i++)
+				if (offsets[i] == offset) {
+					offsets[i] = offsets[--count];
+					return true;
+				}
+			return false;
+		}
+	}
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe getStripe(long offset) {
+		int hash = (int) (offset ^ (offset >>> 32));
+		return stripes[hash & (STRIPES - 1)];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
 	 * then one lock at a time (or deadlock may occur).
+	 *
+	 * @return a non-<code>null</code> token to pass to {@link #unlockEntry(long, Condition)},
+	 *         or <code>null</code> if the lock failed (shutting down or interrupted)
 	 */
 	Condition lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
-		Condition condition;
+		Stripe stripe = getStripe(offset);
+		boolean blocked = false;
 		try {
-			entryLock.lock();
+			if (!stripe.lock.tryLock()) {
+				blocked = true;
+				stripe.lock.lock();
+			}
 			try {
 				do {
 					if (shutdown)
 						return null;
 
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
+					if (stripe.contains(offset)) {
+						blocked = true;
+						stripe.unlocked.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+					} else
 						break;
 				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				stripe.add(offset);
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
 			return null;
+		} finally {
+			// count each lockEntry() call that had to wait once
+			if (blocked)
+				contentions.incrementAndGet();
 		}
 
 		if (logDEBUG)
 			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		return stripe.unlocked;
 	}
 
 	/**
@@ -76,29 +134,40 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = getStripe(offset);
+		assert condition == stripe.unlocked;
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			boolean removed = stripe.remove(offset);
+			assert removed;
+			// other waiters on this stripe may be waiting for different offsets
+			stripe.unlocked.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
+	/**
+	 * Number of {@link #lockEntry(long)} calls that had to wait for another thread, either for
+	 * the stripe lock or for the offset to be unlocked.
+	 */
+	long getContentions() {
+		return contentions.get();
+	}
+
 	/**
 	 * Shutdown and wait for all entries unlocked
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (stripe.count != 0)
+					stripe.unlocked.awaitUninterruptibly();
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
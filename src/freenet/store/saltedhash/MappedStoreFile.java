@@ -0,0 +1,164 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped view of a store file made of fixed length records.
+ *
+ * The file is mapped lazily in regions of about {@link #REGION_SIZE} bytes, so we never need a
+ * single mapping larger than 2GB, and a record never crosses a region boundary. Records beyond
+ * the end of the file are not mapped (we never let a mapping grow the file); the caller should
+ * fall back to normal <code>FileChannel</code> I/O in that case.
+ *
+ * The caller <strong>must</strong> call {@link #invalidate()} before truncating the file, and
+ * must make sure no other thread is using a record buffer at that time. Accessing a mapping of a
+ * truncated file will crash the JVM on some platforms, and on Windows a file can't be truncated
+ * at all while it is still mapped. If the mappings can't be released explicitly, the file must
+ * not be truncated until they have been garbage collected.
+ */
+class MappedStoreFile {
+	/** Approximate size of each mapped region */
+	private static final int REGION_SIZE = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final int recordLength;
+	private final int recordsPerRegion;
+
+	private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+	MappedStoreFile(FileChannel channel, int recordLength) {
+		assert recordLength > 0 && recordLength <= REGION_SIZE;
+		this.channel = channel;
+		this.recordLength = recordLength;
+		this.recordsPerRegion = REGION_SIZE / recordLength;
+	}
+
+	/**
+	 * Get a buffer backed directly by the mapped file for a record. Changes to the buffer are
+	 * written to the file.
+	 *
+	 * @param offset
+	 *            record offset (not byte offset)
+	 * @return a buffer with position 0 and limit of the record length, or <code>null</code> if
+	 *         the record can't be mapped.
+	 */
+	ByteBuffer getRecord(long offset) {
+		int region = (int) (offset / recordsPerRegion);
+		int pos = (int) (offset % recordsPerRegion) * recordLength;
+
+		MappedByteBuffer[] r = regions;
+		MappedByteBuffer buf = region < r.length ? r[region] : null;
+		if (buf == null || buf.capacity() < pos + recordLength) {
+			buf = map(region, pos + recordLength);
+			if (buf == null)
+				return null;
+		}
+
+		ByteBuffer record = buf.duplicate();
+		record.limit(pos + recordLength);
+		record.position(pos);
+		return record.slice();
+	}
+
+	private synchronized MappedByteBuffer map(int region, int minLength) {
+		MappedByteBuffer[] r = regions;
+		if (region < r.length && r[region] != null && r[region].capacity() >= minLength)
+			return r[region]; // mapped by another thread
+
+		try {
+			long start = (long) region * recordsPerRegion * recordLength;
+			long size = Math.min((long) recordsPerRegion * recordLength, channel.size() - start);
+			if (size < minLength)
+				return null; // beyond end of file
+
+			MappedByteBuffer buf = channel.map(MapMode.READ_WRITE, start, size);
+
+			MappedByteBuffer[] newRegions = new MappedByteBuffer[Math.max(r.length, region + 1)];
+			System.arraycopy(r, 0, newRegions, 0, r.length);
+			newRegions[region] = buf;
+			regions = newRegions;
+			return buf;
+		} catch (IOException e) {
+			// e.g. out of address space on 32-bit JVM
+			Logger.error(this, "Can't map region " + region + ", falling back to FileChannel", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Flush all mapped regions to disk.
+	 */
+	void force() {
+		for (MappedByteBuffer buf : regions)
+			if (buf != null)
+				buf.force();
+	}
+
+	/**
+	 * Drop and unmap all mappings. They will be remapped on demand. No other thread may be using
+	 * a record buffer, because it becomes invalid immediately.
+	 *
+	 * @return <code>true</code> if every mapping was released, <code>false</code> if some are
+	 *         left for the garbage collector (unsupported JVM), so the file must not be truncated
+	 *         yet.
+	 */
+	synchronized boolean invalidate() {
+		MappedByteBuffer[] r = regions;
+		regions = new MappedByteBuffer[0];
+
+		boolean released = true;
+		for (MappedByteBuffer buf : r)
+			if (buf != null && !unmap(buf))
+				released = false;
+		return released;
+	}
+
+	/**
+	 * Release a mapping now rather than waiting for the garbage collector. There is no public API
+	 * for this, so we use the JVM internals by reflection: <code>Unsafe.invokeCleaner()</code> on
+	 * newer JVMs, and <code>DirectBuffer.cleaner().clean()</code> on older ones.
+	 *
+	 * @return <code>true</code> if the buffer was unmapped.
+	 */
+	private static boolean unmap(MappedByteBuffer buf) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buf);
+			return true;
+		} catch (NoSuchMethodException e) {
+			// Older JVM, try the cleaner directly
+		} catch (Throwable t) {
+			Logger.normal(MappedStoreFile.class, "Can't unmap store file: " + t, t);
+			return false;
+		}
+
+		try {
+			Method cleanerMethod = buf.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buf);
+			if (cleaner == null)
+				return false;
+			Method clean = cleaner.getClass().getMethod("clean");
+			clean.setAccessible(true);
+			clean.invoke(cleaner);
+			return true;
+		} catch (Throwable t) {
+			Logger.normal(MappedStoreFile.class, "Can't unmap store file: " + t, t);
+			return false;
+		}
+	}
+}
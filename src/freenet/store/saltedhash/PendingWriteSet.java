@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.support.ByteArrayWrapper;
+
+/**
+ * Writes waiting in the write-behind queue of a {@link SaltedHashFreenetStore}, by routing key.
+ *
+ * A newer write of a key replaces the older one. A write stays in the set, and visible to
+ * lookups, until it has been written and {@link #remove(byte[], Comparable)} is called. Not
+ * thread-safe, the caller must synchronize.
+ *
+ * @param <W>
+ *            the write, ordered by the position it will be written to
+ */
+class PendingWriteSet<W extends Comparable<W>> {
+	private final Map<ByteArrayWrapper, W> pending = new HashMap<ByteArrayWrapper, W>();
+
+	/**
+	 * Add a write, replacing any pending write of the same key.
+	 *
+	 * @return <code>true</code> if it replaced a pending write
+	 */
+	boolean add(byte[] routingKey, W write) {
+		return pending.put(new ByteArrayWrapper(routingKey), write) != null;
+	}
+
+	W get(byte[] routingKey) {
+		if (pending.isEmpty())
+			return null;
+		return pending.get(new ByteArrayWrapper(routingKey));
+	}
+
+	boolean contains(byte[] routingKey) {
+		return get(routingKey) != null;
+	}
+
+	/**
+	 * Get all the pending writes in write order. They are not removed.
+	 */
+	List<W> sortedBatch() {
+		List<W> batch = new ArrayList<W>(pending.values());
+		Collections.sort(batch);
+		return batch;
+	}
+
+	/**
+	 * Remove a write once it has been written, unless it has been replaced by a newer write of
+	 * the same key in the meantime.
+	 *
+	 * @return <code>true</code> if it was removed
+	 */
+	boolean remove(byte[] routingKey, W write) {
+		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		if (pending.get(key) != write)
+			return false;
+		pending.remove(key);
+		return true;
+	}
+
+	int size() {
+		return pending.size();
+	}
+
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+}
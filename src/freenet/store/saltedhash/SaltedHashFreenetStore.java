@@ -9,7 +9,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -19,6 +21,7 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -47,6 +50,7 @@ import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.support.BlockedBloomFilter;
 import freenet.support.BloomFilter;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
@@ -98,6 +102,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private int flags;
 
 	private boolean preallocate = true;
+	private volatile boolean memoryMapped = false;
 
 	/** If we have no space in this store, try writing it to the alternate store,
 	 * with the wrong store flag set. Note that we do not *read from* it, the caller
@@ -116,12 +121,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, bloomFilterSize, bloomCounting, false, shutdownHook,
+		        preallocate, resizeOnStart, exec, masterKey);
+	}
+
+	/**
+	 * @param bloomBlocked
+	 *            Use a blocked bloom filter (see {@link BlockedBloomFilter}). Switching to or from
+	 *            it rebuilds the bloom filter.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, int bloomFilterSize, boolean bloomCounting, boolean bloomBlocked, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
+	        throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, bloomFilterSize, bloomCounting,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        bloomBlocked, shutdownHook, preallocate, resizeOnStart, masterKey);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        int bloomFilterSize, boolean bloomCounting, boolean bloomBlocked, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -153,13 +170,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			// If not already resizing, start resizing to the new store size.
 			prevStoreSize = storeSize;
 			storeSize = maxKeys;
+			cleanerJob = CLEANER_JOB_NONE;
 			writeConfigFile();
 		}
 
 		newStore |= openStoreFiles(baseDir, name);
 
-		bloomFile = new File(this.baseDir, name + ".bloom");
-		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting);
+		// Different file formats. Remove the other one so we never load a stale filter if switched back.
+		bloomFile = new File(this.baseDir, name + (bloomBlocked ? ".blockedbloom" : ".bloom"));
+		new File(this.baseDir, name + (bloomBlocked ? ".bloom" : ".blockedbloom")).delete();
+		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting, bloomBlocked);
 
 		System.err.println("Bloomfilter (" + bloomFilter + ") for " + name + " is loaded.");
 
@@ -189,6 +209,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			// Bloom filter resized?
 			flags |= FLAG_REBUILD_BLOOM;
 			checkBloom = false;
+			if (cleanerJob == CLEANER_JOB_REBUILD_BLOOM)
+				cleanerJob = CLEANER_JOB_NONE;
 
 			/*-
 			if (cleanerGlobalLock.tryLock()) {
@@ -231,9 +253,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if((smallerSize * (headerBlockLength + dataBlockLength + hdPadding) > curStoreFileSize) ||
 				(smallerSize * Entry.METADATA_LENGTH > curMetaFileSize)) {
 			// Pad it up to the minimum size before proceeding.
-			if(longStart)
+			if(longStart) {
 				setStoreFileSize(storeSize, true);
-			else
+				curStoreFileSize = hdRAF.length();
+				curMetaFileSize = metaRAF.length();
+			} else
 				return true;
 		}
 
@@ -262,6 +286,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null) {
+			PendingWrite write = queue.getPending(routingKey);
+			if (write != null) {
+				if (meta != null && !write.isOldBlock)
+					meta.setOldBlock();
+				hits.incrementAndGet();
+				return write.block;
+			}
+		}
+
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -311,6 +346,131 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/**
+	 * A possible location of a key, for batched lookups.
+	 */
+	private static class Probe implements Comparable<Probe> {
+		final long offset;
+		final int keyIndex;
+
+		Probe(long offset, int keyIndex) {
+			this.offset = offset;
+			this.keyIndex = keyIndex;
+		}
+
+		public int compareTo(Probe o) {
+			if (offset < o.offset)
+				return -1;
+			if (offset > o.offset)
+				return 1;
+			return keyIndex - o.keyIndex;
+		}
+	}
+
+	/**
+	 * Batched fetch. All the keys are checked against the bloom filter first, then the possible
+	 * offsets of the remaining keys are read in ascending order, so that the files are read
+	 * mostly sequentially instead of seeking for every key.
+	 */
+	public int fetchBatch(byte[][] routingKeys, byte[][] fullKeys, T[] blocks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Fetch batch of " + routingKeys.length + " keys for " + callback);
+
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return 0;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		try {
+			int found = 0;
+			boolean[] wanted = new boolean[routingKeys.length];
+			List<Probe> probes = new ArrayList<Probe>();
+			WriteBehindQueue queue = writeQueue;
+			for (int i = 0; i < routingKeys.length; i++) {
+				if (blocks[i] != null)
+					continue;
+				if (queue != null) {
+					PendingWrite write = queue.getPending(routingKeys[i]);
+					if (write != null) {
+						blocks[i] = write.block;
+						hits.incrementAndGet();
+						found++;
+						continue;
+					}
+				}
+				if (checkBloom && !bloomFilter.checkFilter(cipherManager.getDigestedKey(routingKeys[i]))) {
+					misses.incrementAndGet();
+					continue;
+				}
+				wanted[i] = true;
+				for (long offset : getOffsetFromPlainKey(routingKeys[i], storeSize))
+					probes.add(new Probe(offset, i));
+				if (prevStoreSize != 0)
+					for (long offset : getOffsetFromPlainKey(routingKeys[i], prevStoreSize))
+						probes.add(new Probe(offset, i));
+			}
+			Collections.sort(probes);
+
+			for (Probe probe : probes) {
+				int i = probe.keyIndex;
+				if (!wanted[i])
+					continue; // already found
+				if (storeFileOffsetReady != -1 && probe.offset >= storeFileOffsetReady)
+					continue;
+
+				Entry entry;
+				Condition lock = lockManager.lockEntry(probe.offset);
+				if (lock == null) {
+					if (logDEBUG)
+						Logger.debug(this, "cannot lock offset: " + probe.offset + ", shutting down?");
+					return found;
+				}
+				try {
+					entry = readEntry(probe.offset, routingKeys[i], true);
+				} catch (EOFException e) {
+					if (prevStoreSize == 0) // may occur on store shrinking
+						Logger.error(this, "EOFException on fetchBatch", e);
+					continue;
+				} finally {
+					lockManager.unlockEntry(probe.offset, lock);
+				}
+				if (entry == null)
+					continue;
+
+				wanted[i] = false;
+				try {
+					T block = entry.getStorableBlock(routingKeys[i], fullKeys == null ? null : fullKeys[i], canReadClientCache, canReadSlashdotCache, null, null);
+					if (block != null) {
+						blocks[i] = block;
+						hits.incrementAndGet();
+						found++;
+						continue;
+					}
+				} catch (KeyVerifyException e) {
+					Logger.minor(this, "key verification exception", e);
+				}
+				misses.incrementAndGet();
+			}
+
+			for (int i = 0; i < wanted.length; i++) {
+				if (wanted[i]) {
+					misses.incrementAndGet();
+					if (checkBloom)
+						bloomFalsePos.incrementAndGet();
+				}
+			}
+			return found;
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -325,16 +485,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if (!bloomFilter.checkFilter(cipherManager.getDigestedKey(routingKey)))
 				return null;
 
+		long startTime = System.nanoTime();
 		Entry entry = probeEntry0(routingKey, storeSize, withData);
 
 		if (entry == null && prevStoreSize != 0)
 			entry = probeEntry0(routingKey, prevStoreSize, withData);
+		reportReadLatency(System.nanoTime() - startTime);
 		if (checkBloom && entry == null)
 			bloomFalsePos.incrementAndGet();
 
 		return entry;
 	}
 
+	/** Smoothed latency of foreground probes in nanoseconds, used to throttle the cleaner */
+	private volatile long readLatency;
+	private volatile long readLatencyUpdated;
+
+	private void reportReadLatency(long nanos) {
+		// Not atomic, an occasional lost update doesn't matter.
+		long latency = readLatency;
+		readLatency = latency + (nanos - latency) / 16;
+		readLatencyUpdated = System.currentTimeMillis();
+	}
+
 	private Entry probeEntry0(byte[] routingKey, long probeStoreSize, boolean withData) throws IOException {
 		Entry entry = null;
 		long[] offset = getOffsetFromPlainKey(routingKey, probeStoreSize);
@@ -359,6 +532,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
+		WriteBehindQueue queue = writeQueue;
+		// Collisions must be reported to the caller, so those puts can't be deferred.
+		if (queue != null && (overwrite || !collisionPossible)) {
+			if (queue.queue(new PendingWrite(block, data, header, overwrite, isOldBlock)))
+				return;
+			// The queue is full or being drained, write it ourselves.
+		}
 		put(block, data, header, overwrite, isOldBlock, false);
 	}
 
@@ -536,6 +716,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	// memory mapped views, only used if memoryMapped is set
+	private MappedStoreFile metaMap;
+	private MappedStoreFile hdMap;
 
 	/**
 	 * Data entry
@@ -766,6 +949,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		hdFC = hdRAF.getChannel();
 		hdFC.lock();
 
+		metaMap = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH);
+		hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding);
+
 		return newStore;
 	}
 
@@ -776,26 +962,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *         the key does not match the entry.
 	 */
 	private Entry readEntry(long offset, byte[] routingKey, boolean withData) throws IOException {
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+		ByteBuffer mbf = null;
+		if (useMappedIO())
+			mbf = metaMap.getRecord(offset);
+		if (mbf == null) {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
+
+		// check the key before decoding the entry, most probes are misses
+		if (routingKey != null && !isMatchingEntry(mbf, cipherManager.getDigestedKey(routingKey)))
+			return null;
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
 
 		if (routingKey != null) {
-			if (entry.isFree())
-				return null;
-			if (!Arrays.equals(cipherManager.getDigestedKey(routingKey), entry.digestedRoutingKey))
-				return null;
-
 			if (withData) {
 				ByteBuffer hdBuf = readHD(offset);
 				entry.setHD(hdBuf);
@@ -808,6 +998,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	/**
+	 * Check if the metadata in the buffer is an occupied entry with the given digested key,
+	 * without decoding it.
+	 */
+	private boolean isMatchingEntry(ByteBuffer metaDataBuf, byte[] digestedKey) {
+		if ((metaDataBuf.getLong(0x30) & Entry.ENTRY_FLAG_OCCUPIED) == 0)
+			return false;
+		for (int i = 0; i < digestedKey.length; i++)
+			if (metaDataBuf.get(i) != digestedKey[i])
+				return false;
+		return true;
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
@@ -815,6 +1018,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
+		if (useMappedIO()) {
+			ByteBuffer buf = hdMap.getRecord(offset);
+			if (buf != null)
+				return buf;
+		}
+
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
@@ -855,6 +1064,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private void writeEntry(Entry entry, long offset) throws IOException {
 		cipherManager.encrypt(entry, random);
 
+		if (useMappedIO()) {
+			ByteBuffer metaRecord = metaMap.getRecord(offset);
+			ByteBuffer hdRecord = hdMap.getRecord(offset);
+			if (metaRecord != null && (hdRecord != null || entry.header == null || entry.data == null)) {
+				metaRecord.put(entry.toMetaDataBuffer());
+				if (hdRecord != null && entry.header != null && entry.data != null) {
+					hdRecord.put(entry.header);
+					hdRecord.put(entry.data);
+				}
+				entry.curOffset = offset;
+				return;
+			}
+		}
+
 		ByteBuffer bf = entry.toMetaDataBuffer();
 		do {
 			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
@@ -877,6 +1100,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose() {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		try {
+			metaMap.force();
+			hdMap.force();
+		} catch (Exception e) {
+			Logger.error(this, "error flushing mapped store", e);
+		}
+		metaMap.invalidate();
+		hdMap.invalidate();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -901,6 +1132,36 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.preallocate = preallocate;
 	}
 
+	/**
+	 * Use memory mapped I/O for the store files. This saves a read or write system call per entry
+	 * and the temporary buffer for it; the entry data is still copied into the {@link Entry}.
+	 * This needs plenty of address space, so it should only be used on 64-bit JVMs. Mapped I/O is
+	 * not used while resizing the store.
+	 *
+	 * @param memoryMapped
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		configLock.writeLock().lock();
+		try {
+			this.memoryMapped = memoryMapped;
+			if (!memoryMapped) {
+				metaMap.invalidate();
+				hdMap.invalidate();
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Whether entry I/O should go through the memory mapped files. Caller must hold the
+	 * configLock. The mappings are dropped when a resize starts, so the file can be truncated
+	 * safely.
+	 */
+	private boolean useMappedIO() {
+		return memoryMapped && prevStoreSize == 0;
+	}
+
 	/**
 	 * Change on disk store file size
 	 *
@@ -968,6 +1229,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
+			if (newMetaLen < metaRAF.length() || newHdLen < hdRAF.length()) {
+				// Mappings were dropped when the resize started, but can't be truncated until
+				// they are actually released. Leave the files long; we'll try again next time.
+				boolean unmapped = metaMap == null || metaMap.invalidate();
+				unmapped = (hdMap == null || hdMap.invalidate()) && unmapped;
+				if (!unmapped) {
+					Logger.normal(this, "Store files still mapped, not truncating them yet");
+					return;
+				}
+			}
+
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
@@ -1075,8 +1347,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						flags |= FLAG_REBUILD_BLOOM;
 					}
 					try {
-						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerJob = raf.readInt();
+						cleanerCheckpoint = raf.readLong();
+						if ((flags & FLAG_DIRTY) != 0) {
+							// Not flushed properly, can't trust the checkpoint.
+							cleanerJob = CLEANER_JOB_NONE;
+							cleanerCheckpoint = 0;
+						}
 						long w = raf.readLong();
 						writes.set(w);
 						Logger.normal(this, "Set writes to saved value "+w);
@@ -1126,8 +1403,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(generation);
 			raf.writeInt(flags);
 			raf.writeInt(bloomFilterK);
-			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeInt(cleanerJob);
+			raf.writeLong(cleanerCheckpoint);
 			raf.writeLong(writes.get());
 			raf.writeLong(hits.get());
 			raf.writeLong(misses.get());
@@ -1149,6 +1426,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
+	private static final int CLEANER_JOB_NONE = 0;
+	private static final int CLEANER_JOB_RESIZE = 1;
+	private static final int CLEANER_JOB_REBUILD_BLOOM = 2;
+	/** Cleaner job which was interrupted, one of CLEANER_JOB_*, protected by configLock */
+	private int cleanerJob = CLEANER_JOB_NONE;
+	/** Number of batches of cleanerJob done so far, saved in the config file */
+	private volatile long cleanerCheckpoint;
 	private Cleaner cleanerThread;
 	private CleanerStatusUserAlert cleanerStatusUserAlert;
 
@@ -1158,7 +1442,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		// initialize
 		void init();
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// initialize, resuming from the checkpoint
+		void resume();
+
+		// call this after reading RESIZE_MEMORY_ENTRIES entries, may be called from several threads
 		// return false to abort
 		boolean batch(long entriesLeft);
 
@@ -1167,6 +1454,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		void finish();
 
+		// may be called from several threads
 		// return <code>null</code> to free the entry
 		// return NOT_MODIFIED to keep the old entry
 		SaltedHashFreenetStore<T>.Entry process(SaltedHashFreenetStore<T>.Entry entry);
@@ -1259,6 +1547,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
 
+		/**
+		 * Number of threads working on a resize or bloom filter rebuild. Each works on its own
+		 * batches of offsets; the entry locks are always taken in ascending order, so they can't
+		 * deadlock.
+		 */
+		private final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
 		/**
 		 * Move old entries to new location and resize store
 		 */
@@ -1267,8 +1562,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Resizing datastore "+name);
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
-				List<Entry> oldEntryList = new LinkedList<Entry>();
+				final List<Entry> oldEntryList = new LinkedList<Entry>();
+				final AtomicLong batches = new AtomicLong();
 				int optimialK;
+				boolean forked;
+				long truncatedTo = Long.MAX_VALUE;
 
 				public void init() {
 					if (storeSize > _prevStoreSize)
@@ -1279,6 +1577,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					try {
 						generation++;
 						bloomFilter.fork(optimialK);
+						forked = true;
 						keyCount.set(0);
 					} finally {
 						configLock.writeLock().unlock();
@@ -1287,6 +1586,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 30 * 1000 + 1000);
 				}
 
+				public void resume() {
+					// The forked filter is gone, keep the current one. It is still valid, the
+					// keys don't change when entries are moved.
+					if (storeSize > _prevStoreSize)
+						setStoreFileSize(storeSize, false);
+
+					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 30 * 1000 + 1000);
+				}
+
 				public Entry process(Entry entry) {
 					int oldGeneration = entry.generation;
 					if (oldGeneration != generation) {
@@ -1316,31 +1624,51 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.remove(0);
+						synchronized (oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * threads)
+								oldEntryList.remove(0);
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
 					return null;
 				}
 
-				int i = 0;
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 30 * 1000 + 1000);
 
-					if (i++ % 16 == 0)
+					if (batches.getAndIncrement() % 16 == 0)
 						writeConfigFile();
 
 					// shrink data file to current size
-					if (storeSize < _prevStoreSize)
-						setStoreFileSize(Math.max(storeSize, entriesLeft), false);
+					if (storeSize < _prevStoreSize) {
+						synchronized (this) {
+							// never grow it back with an out of date value from another thread
+							if (entriesLeft < truncatedTo) {
+								truncatedTo = entriesLeft;
+								setStoreFileSize(Math.max(storeSize, entriesLeft), false);
+							}
+						}
+					}
 
 					// try to resolve the list
-					ListIterator<Entry> it = oldEntryList.listIterator();
+					List<Entry> pending;
+					synchronized (oldEntryList) {
+						pending = new ArrayList<Entry>(oldEntryList);
+						oldEntryList.clear();
+					}
+					ListIterator<Entry> it = pending.listIterator();
 					while (it.hasNext())
 						if (resolveOldEntry(it.next()))
 							it.remove();
+					if (!pending.isEmpty()) {
+						synchronized (oldEntryList) {
+							oldEntryList.addAll(0, pending);
+							while (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * threads)
+								oldEntryList.remove(0);
+						}
+					}
 
 					return _prevStoreSize == prevStoreSize;
 				}
@@ -1354,12 +1682,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					try {
 						if (_prevStoreSize != prevStoreSize)
 							return;
-						bloomFilter.merge();
+						if (forked) {
+							bloomFilter.merge();
+							bloomFilterK = optimialK;
+						}
 						prevStoreSize = 0;
 
 						flags &= ~FLAG_REBUILD_BLOOM;
 						checkBloom = true;
-						bloomFilterK = optimialK;
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1368,7 +1698,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, CLEANER_JOB_RESIZE);
 		}
 
 		/**
@@ -1380,15 +1710,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			Logger.normal(this, "Start rebuilding bloom filter (" + name + ")");
 
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
-				int optimialK;
+				final AtomicLong batches = new AtomicLong();
 
 				public void init() {
-					optimialK = BloomFilter.optimialK(bloomFilterSize, storeSize);
-
+					// checkBloom is off until we finish, so we can rebuild in place. The filter
+					// is flushed with the checkpoint on shutdown, so we can resume.
 					configLock.writeLock().lock();
 					try {
 						generation++;
-						bloomFilter.fork(bloomFilterK);
+						bloomFilter.unsetAll();
 						keyCount.set(0);
 					} finally {
 						configLock.writeLock().unlock();
@@ -1397,9 +1727,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 5 * 1000 + 1000);
 				}
 
+				public void resume() {
+					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 5 * 1000 + 1000);
+				}
+
 				public Entry process(Entry entry) {
 					if (entry.generation != generation) {
-						bloomFilter.addKeyForked(entry.getDigestedRoutingKey());
+						bloomFilter.addKey(entry.getDigestedRoutingKey());
 						keyCount.incrementAndGet();
 
 						entry.generation = generation;
@@ -1408,27 +1742,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 
-				int i = 0;
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 5 * 1000 + 1000);
 
-					if (i++ % 16 == 0)
+					if (batches.getAndIncrement() % 16 == 0)
 						writeConfigFile();
 
 					return prevStoreSize == 0;
 				}
 
 				public void abort() {
-					bloomFilter.discard();
+					// Keep the partly rebuilt filter, we will resume from the checkpoint.
 				}
 
 				public void finish() {
-					bloomFilter.merge();
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
 						checkBloom = true;
-						bloomFilterK = optimialK;
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1437,55 +1768,184 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, CLEANER_JOB_REBUILD_BLOOM);
 		}
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			entriesLeft = entriesTotal = storeSize;
+		/**
+		 * Keeps track of the batches done, which may complete out of order, and updates the
+		 * checkpoint.
+		 */
+		private class BatchProgress {
+			/** All batches below this are done */
+			private long done;
+			private final SortedSet<Long> doneOutOfOrder = new TreeSet<Long>();
 
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+			BatchProgress(long done) {
+				this.done = done;
 			}
 
-			int i = 0;
-			processor.init();
+			/**
+			 * @return number of batches done without gaps
+			 */
+			synchronized long done(long batch) {
+				if (batch != done) {
+					doneOutOfOrder.add(batch);
+					return done;
+				}
+				done++;
+				while (!doneOutOfOrder.isEmpty() && doneOutOfOrder.first() == done) {
+					doneOutOfOrder.remove(done);
+					done++;
+				}
+				cleanerCheckpoint = done;
+				return done;
+			}
+
+			synchronized long getDone() {
+				return done;
+			}
+		}
+
+		/**
+		 * Process all the entries with several threads, in batches of {@link #RESIZE_MEMORY_ENTRIES}.
+		 * Resume from the checkpoint if the last run of the same job was interrupted.
+		 */
+		private void batchProcessEntries(final BatchProcessor<T> processor, final long storeSize, final boolean reverse,
+		        final boolean sleep, int job) {
+			final long batches = (storeSize + RESIZE_MEMORY_ENTRIES - 1) / RESIZE_MEMORY_ENTRIES;
+
+			long firstBatch;
+			configLock.writeLock().lock();
 			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
-					}
+				firstBatch = (cleanerJob == job && cleanerCheckpoint <= batches) ? cleanerCheckpoint : 0;
+				cleanerJob = job;
+				cleanerCheckpoint = firstBatch;
+			} finally {
+				configLock.writeLock().unlock();
+			}
+
+			entriesTotal = storeSize;
+			entriesLeft = entriesLeft(firstBatch, batches, storeSize, reverse);
+
+			final AtomicLong nextBatch = new AtomicLong(firstBatch);
+			final BatchProgress progress = new BatchProgress(firstBatch);
+			final AtomicBoolean failed = new AtomicBoolean();
 
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+			if (firstBatch != 0) {
+				System.err.println(name + " cleaner resuming from " + (entriesTotal - entriesLeft) + "/" + entriesTotal);
+				processor.resume();
+			} else
+				processor.init();
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
-						processor.abort();
-						return;
+			Runnable worker = new Runnable() {
+				public void run() {
+					try {
+						while (!shutdown && !failed.get()) {
+							long batch = nextBatch.getAndIncrement();
+							if (batch >= batches)
+								return;
+							long curOffset = (reverse ? batches - 1 - batch : batch) * RESIZE_MEMORY_ENTRIES;
+
+							if (batch % 64 == 0)
+								System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
+								        + entriesTotal);
+
+							if (!batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor)) {
+								failed.set(true);
+								return;
+							}
+							long left = entriesLeft(progress.done(batch), batches, storeSize, reverse);
+							entriesLeft = left;
+							if (!processor.batch(left)) {
+								failed.set(true);
+								return;
+							}
+
+							if (sleep && !throttle()) {
+								failed.set(true);
+								return;
+							}
+						}
+					} catch (Throwable t) {
+						Logger.error(this, "Cleaner failed: " + t, t);
+						failed.set(true);
 					}
+				}
+			};
 
+			NativeThread[] helpers = new NativeThread[threads - 1];
+			for (int i = 0; i < helpers.length; i++) {
+				helpers[i] = new NativeThread(worker, "Store-" + name + "-Cleaner-" + (i + 1), NativeThread.LOW_PRIORITY, false);
+				helpers[i].setDaemon(true);
+				helpers[i].start();
+			}
+			worker.run();
+			for (NativeThread helper : helpers) {
+				while (true) {
 					try {
-						if (sleep)
-							Thread.sleep(100);
+						helper.join();
+						break;
 					} catch (InterruptedException e) {
-						processor.abort();
-						return;
+						failed.set(true);
 					}
 				}
-				processor.finish();
-			} catch (Exception e) {
+			}
+
+			if (failed.get() || shutdown || progress.getDone() != batches) {
 				processor.abort();
+				return;
+			}
+			processor.finish();
+			configLock.writeLock().lock();
+			try {
+				if (cleanerJob == job) {
+					cleanerJob = CLEANER_JOB_NONE;
+					cleanerCheckpoint = 0;
+				}
+			} finally {
+				configLock.writeLock().unlock();
+			}
+		}
+
+		private long entriesLeft(long batchesDone, long batches, long storeSize, boolean reverse) {
+			if (reverse)
+				return Math.min(storeSize, (batches - batchesDone) * RESIZE_MEMORY_ENTRIES);
+			else
+				return Math.max(storeSize - batchesDone * RESIZE_MEMORY_ENTRIES, 0);
+		}
+
+		/** Foreground reads slower than this slow down the cleaner, in nanoseconds */
+		private static final long THROTTLE_LATENCY = 50L * 1000 * 1000;
+		/** Maximum delay between batches, in milliseconds */
+		private static final int MAX_THROTTLE_DELAY = 10 * 1000;
+		/** Current delay between batches, in milliseconds */
+		private volatile int throttleDelay;
+
+		/**
+		 * Slow down if foreground reads are slow (probably because we are hogging the disk), speed
+		 * up again when they are fast or there are none.
+		 *
+		 * @return <code>false</code> if interrupted
+		 */
+		private boolean throttle() {
+			boolean busy = System.currentTimeMillis() - readLatencyUpdated < MAX_THROTTLE_DELAY
+			        && readLatency > THROTTLE_LATENCY;
+			int delay = throttleDelay;
+			if (busy)
+				delay = Math.min(Math.max(delay * 2, 10), MAX_THROTTLE_DELAY);
+			else
+				delay = delay / 2;
+			throttleDelay = delay;
+			if (delay == 0)
+				return true;
+			try {
+				Thread.sleep(delay);
+				return true;
+			} catch (InterruptedException e) {
+				return false;
 			}
 		}
 
@@ -1740,6 +2200,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			cleanerJob = CLEANER_JOB_NONE;
+			// the store files are going to be resized
+			metaMap.invalidate();
+			hdMap.invalidate();
 			writeConfigFile();
 		} finally {
 			configLock.writeLock().unlock();
@@ -1751,6 +2215,220 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	// ------------- Write-behind
+	/** Maximum number of blocks waiting to be written. Puts beyond that are written directly. */
+	private static final int WRITE_QUEUE_MAX_SIZE = 256;
+	/** How long to wait for the queue to be written on shutdown */
+	private static final int WRITE_QUEUE_DRAIN_TIMEOUT = 60 * 1000;
+
+	private volatile WriteBehindQueue writeQueue;
+
+	/**
+	 * Enable or disable the write-behind queue. If enabled, {@link #put(StorableBlock, byte[],
+	 * byte[], boolean, boolean)} only queues the block, and a separate thread writes the queued
+	 * blocks in batches, sorted by offset. Fetches check the queue before the store. Disabling
+	 * it writes out everything still queued before returning.
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		WriteBehindQueue queue;
+		synchronized (this) {
+			queue = writeQueue;
+			if (writeBehind) {
+				if (queue != null && !queue.isStopping())
+					return;
+				// If the old queue is still draining, it finishes on its own.
+				queue = new WriteBehindQueue();
+				queue.start();
+				writeQueue = queue;
+				return;
+			}
+			if (queue == null)
+				return;
+			// Puts are written directly from now on, but fetches still see the queue.
+			queue.stopAccepting();
+		}
+		// Don't hold the lock while waiting for the writes
+		queue.drain();
+		synchronized (this) {
+			if (writeQueue == queue)
+				writeQueue = null;
+		}
+	}
+
+	public boolean isWriteBehind() {
+		return writeQueue != null;
+	}
+
+	/** @return number of blocks waiting to be written, or -1 if write-behind is disabled */
+	public int getWriteQueueSize() {
+		WriteBehindQueue queue = writeQueue;
+		return queue == null ? -1 : queue.size();
+	}
+
+	/** @return average number of blocks written per batch, or -1 if write-behind is disabled */
+	public double getAverageWriteBatchSize() {
+		WriteBehindQueue queue = writeQueue;
+		return queue == null ? -1 : queue.averageBatchSize();
+	}
+
+	/**
+	 * @return number of blocks written directly because the queue was full, or -1 if
+	 *         write-behind is disabled
+	 */
+	public long getWriteQueueOverflows() {
+		WriteBehindQueue queue = writeQueue;
+		return queue == null ? -1 : queue.overflows();
+	}
+
+	private class PendingWrite implements Comparable<PendingWrite> {
+		final T block;
+		final byte[] data;
+		final byte[] header;
+		final boolean overwrite;
+		final boolean isOldBlock;
+		/** First probe offset, used to sort the writes */
+		final long offset;
+
+		PendingWrite(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) {
+			this.block = block;
+			this.data = data;
+			this.header = header;
+			this.overwrite = overwrite;
+			this.isOldBlock = isOldBlock;
+			this.offset = getOffsetFromPlainKey(block.getRoutingKey(), storeSize)[0];
+		}
+
+		public int compareTo(PendingWrite o) {
+			if (offset < o.offset)
+				return -1;
+			if (offset > o.offset)
+				return 1;
+			return 0;
+		}
+	}
+
+	private class WriteBehindQueue extends NativeThread {
+		/** Writes stay here until they are on disk. */
+		private final PendingWriteSet<PendingWrite> pending = new PendingWriteSet<PendingWrite>();
+		private boolean stopping;
+		private long overflows;
+		private long batches;
+		private long batchedWrites;
+
+		WriteBehindQueue() {
+			super("Store-" + name + "-Writer", NativeThread.HIGH_PRIORITY, false);
+			setDaemon(true);
+		}
+
+		/**
+		 * Queue a write. A newer write of the same key replaces the older one, even while
+		 * draining, so the older one can't overwrite it later.
+		 *
+		 * @return <code>false</code> if the queue is full or stopping, and the caller must
+		 *         write the block itself
+		 */
+		synchronized boolean queue(PendingWrite write) {
+			byte[] routingKey = write.block.getRoutingKey();
+			if (!pending.contains(routingKey)) {
+				if (stopping)
+					return false;
+				if (pending.size() >= WRITE_QUEUE_MAX_SIZE) {
+					overflows++;
+					if (logMINOR)
+						Logger.minor(this, "Write queue full, writing " + HexUtil.bytesToHex(routingKey) + " directly on " + name);
+					return false;
+				}
+			}
+			pending.add(routingKey, write);
+			notifyAll();
+			return true;
+		}
+
+		synchronized PendingWrite getPending(byte[] routingKey) {
+			return pending.get(routingKey);
+		}
+
+		synchronized boolean isStopping() {
+			return stopping;
+		}
+
+		synchronized int size() {
+			return pending.size();
+		}
+
+		synchronized long overflows() {
+			return overflows;
+		}
+
+		synchronized double averageBatchSize() {
+			return batches == 0 ? 0 : ((double) batchedWrites) / batches;
+		}
+
+		/**
+		 * Stop accepting new keys. The writes already queued are still written.
+		 */
+		synchronized void stopAccepting() {
+			stopping = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the writes already queued. {@link #stopAccepting()} must have been called.
+		 */
+		void drain() {
+			try {
+				join(WRITE_QUEUE_DRAIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			synchronized (this) {
+				if (!pending.isEmpty())
+					Logger.error(this, "Lost " + pending.size() + " queued writes on " + name);
+			}
+		}
+
+		@Override
+		public void realRun() {
+			while (true) {
+				List<PendingWrite> batch;
+				synchronized (this) {
+					while (pending.isEmpty() && !stopping) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					if (pending.isEmpty())
+						return; // stopping and drained
+					batch = pending.sortedBatch();
+				}
+
+				for (PendingWrite write : batch) {
+					try {
+						put(write.block, write.data, write.header, write.overwrite, write.isOldBlock, false);
+					} catch (IOException e) {
+						Logger.error(this, "Error writing queued block on " + name + ": " + e, e);
+					} catch (KeyCollisionException e) {
+						// Impossible, such writes are not queued
+						Logger.error(this, "Key collision writing queued block on " + name, e);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught " + t + " writing queued block on " + name, t);
+					}
+					synchronized (this) {
+						pending.remove(write.block.getRoutingKey(), write);
+						notifyAll();
+					}
+				}
+
+				synchronized (this) {
+					batches++;
+					batchedWrites += batch.size();
+				}
+			}
+		}
+	}
+
 	// ------------- Locking
 	volatile boolean shutdown = false;
 	private LockManager lockManager;
@@ -1848,6 +2526,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public void close() {
+		setWriteBehind(false);
 		shutdown = true;
 		lockManager.shutdown();
 
@@ -1924,6 +2603,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return bloomFalsePos.get();
 	}
 
+	public long lockContentions() {
+		return lockManager.getContentions();
+	}
+
 	// ------------- Migration
 	public void migrationFrom(File storeFile, File keyFile) {
 		try {
@@ -1972,6 +2655,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public boolean probablyInStore(byte[] routingKey) {
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null && queue.getPending(routingKey) != null)
+			return true;
 		configLock.readLock().lock();
 		try {
 			if (!checkBloom)
@@ -30,8 +30,19 @@ public abstract class BloomFilter {
 	}
 	
 	public static BloomFilter createFilter(File file, int length, int k, boolean counting) throws IOException {
+		return createFilter(file, length, k, counting, false);
+	}
+	
+	/**
+	 * @param blocked
+	 *            Use a {@link BlockedBloomFilter}. This uses a different file format from the
+	 *            other filters.
+	 */
+	public static BloomFilter createFilter(File file, int length, int k, boolean counting, boolean blocked) throws IOException {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
+		if (blocked)
+			return new BlockedBloomFilter(file, length, k, counting);
 		if (counting)
 			return new CountingBloomFilter(file, length, k);
 		else
@@ -80,6 +91,23 @@ public abstract class BloomFilter {
 		return true;
 	}
 
+	/**
+	 * Check a key whose hashes may be shared with other filters.
+	 * Subclasses which don't use {@link #getHashes(byte[])} must override this.
+	 */
+	public boolean checkFilter(Hashes hashes) {
+		Random r = hashes.replay();
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < k; i++)
+				if (!getBit(r.nextInt(length)))
+					return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+		return true;
+	}
+
 	public void removeKey(byte[] key) {
 		Random hashes = getHashes(key);
 		lock.writeLock().lock();
@@ -109,9 +137,64 @@ public abstract class BloomFilter {
 	}
 
 	protected Random getHashes(byte[] key) {
+		return newHashes(key);
+	}
+
+	private static Random newHashes(byte[] key) {
 		return new MersenneTwister(key);
 	}
 
+	/**
+	 * The hashes of a key, to check it against many filters without seeding a new generator for
+	 * each of them. Not thread-safe.
+	 */
+	public static final class Hashes {
+		private final byte[] key;
+		private Random source;
+		/** Output of the generator so far */
+		private int[] values = new int[32];
+		private int count;
+		private final Replay replay = new Replay();
+
+		public Hashes(byte[] key) {
+			this.key = key;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		private int get(int i) {
+			if (source == null)
+				source = newHashes(key);
+			while (i >= count) {
+				if (count == values.length) {
+					int[] v = new int[count * 2];
+					System.arraycopy(values, 0, v, 0, count);
+					values = v;
+				}
+				values[count++] = source.nextInt();
+			}
+			return values[i];
+		}
+
+		/** @return The same sequence as getHashes(key), from the start. */
+		Random replay() {
+			replay.pos = 0;
+			return replay;
+		}
+
+		private class Replay extends Random {
+			private static final long serialVersionUID = 1L;
+			int pos;
+
+			@Override
+			protected int next(int bits) {
+				return get(pos++) >>> (32 - bits);
+			}
+		}
+	}
+
 	//-- Fork & Merge
 	protected BloomFilter forkedFilter;
 
@@ -0,0 +1,240 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size limited cache with approximate LRU replacement (the CLOCK algorithm).
+ *
+ * Unlike {@link LRUHashtable}, lookups don't take any lock: a hit just sets a "referenced" flag on
+ * the item. Only adding and removing items is synchronized. When the cache is full, the clock hand
+ * sweeps over the items, clearing the flag of referenced items and evicting the first item that
+ * has not been referenced since the last sweep.
+ */
+public class ClockCache<K, V> {
+
+	private static class Item<K, V> {
+		final K key;
+		volatile V value;
+		volatile boolean referenced;
+		/** Position in the clock, protected by the cache lock */
+		int slot;
+
+		Item(K key, V value, int slot) {
+			this.key = key;
+			this.value = value;
+			this.slot = slot;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Item<K, V>> map = new ConcurrentHashMap<K, Item<K, V>>();
+
+	// All below protected by this
+	/** The clock. Grows on demand up to maxSize. May contain holes (null) after removals. */
+	private Item<K, V>[] clock;
+	/** Number of slots in use in the clock, including holes */
+	private int used;
+	private int hand;
+	private int maxSize;
+
+	private static final int INITIAL_SIZE = 16;
+
+	@SuppressWarnings("unchecked")
+	public ClockCache(int maxSize) {
+		if(maxSize < 0) throw new IllegalArgumentException();
+		this.maxSize = maxSize;
+		clock = new Item[Math.min(maxSize, INITIAL_SIZE)];
+	}
+
+	/**
+	 * Get a value, and mark it as recently used.
+	 */
+	public V get(K key) {
+		Item<K, V> item = map.get(key);
+		if(item == null) return null;
+		item.referenced = true;
+		return item.value;
+	}
+
+	/**
+	 * Get a value without marking it as recently used.
+	 */
+	public V peek(K key) {
+		Item<K, V> item = map.get(key);
+		if(item == null) return null;
+		return item.value;
+	}
+
+	public boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	/**
+	 * Add a value, or replace the value for an existing key. Evicts values if necessary to stay
+	 * within the size limit.
+	 * @return The values removed from the cache, i.e. the replaced value and any evicted
+	 * values (or the new value itself if the size limit is 0), or null if none were removed.
+	 * The caller may need to free them.
+	 */
+	public synchronized List<V> put(K key, V value) {
+		Item<K, V> item = map.get(key);
+		if(item != null) {
+			V old = item.value;
+			item.value = value;
+			item.referenced = true;
+			if(old == value) return null;
+			List<V> removed = new ArrayList<V>(1);
+			removed.add(old);
+			return removed;
+		}
+		List<V> removed = null;
+		if(maxSize == 0) {
+			removed = new ArrayList<V>(1);
+			removed.add(value);
+			return removed;
+		}
+		while(map.size() >= maxSize) {
+			if(removed == null) removed = new ArrayList<V>(1);
+			removed.add(evict());
+		}
+		item = new Item<K, V>(key, value, allocateSlot());
+		clock[item.slot] = item;
+		// Don't consider the new item for eviction until the hand has gone round once.
+		if(item.slot == hand) hand++;
+		map.put(key, item);
+		return removed;
+	}
+
+	/**
+	 * Remove a key.
+	 * @return The value removed, or null.
+	 */
+	public synchronized V remove(K key) {
+		Item<K, V> item = map.remove(key);
+		if(item == null) return null;
+		clock[item.slot] = null;
+		return item.value;
+	}
+
+	/**
+	 * Remove a key only if it is mapped to the given value.
+	 * @return True if the key was removed.
+	 */
+	public synchronized boolean remove(K key, V value) {
+		Item<K, V> item = map.get(key);
+		if(item == null || item.value != value) return false;
+		map.remove(key);
+		clock[item.slot] = null;
+		return true;
+	}
+
+	/**
+	 * Change the size limit.
+	 * @return The values evicted, or null if none were evicted.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<V> setMaxSize(int newMaxSize) {
+		if(newMaxSize < 0) throw new IllegalArgumentException();
+		List<V> removed = null;
+		while(map.size() > newMaxSize) {
+			if(removed == null) removed = new ArrayList<V>();
+			removed.add(evict());
+		}
+		maxSize = newMaxSize;
+		// Compact the clock, and make sure it's no larger than the new limit.
+		Item<K, V>[] newClock = new Item[Math.max(Math.min(maxSize, INITIAL_SIZE), map.size())];
+		int x = 0;
+		for(int i=0;i<used;i++) {
+			Item<K, V> item = clock[i];
+			if(item == null) continue;
+			item.slot = x;
+			newClock[x++] = item;
+		}
+		clock = newClock;
+		used = x;
+		hand = 0;
+		return removed;
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Iterate the keys. The iterator is weakly consistent, i.e. it never throws
+	 * ConcurrentModificationException, and may or may not reflect changes made after it
+	 * was created.
+	 */
+	public Iterator<K> keys() {
+		return map.keySet().iterator();
+	}
+
+	/**
+	 * Remove everything.
+	 * @return The values removed.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<V> clear() {
+		List<V> removed = new ArrayList<V>(map.size());
+		for(Item<K, V> item : map.values())
+			removed.add(item.value);
+		map.clear();
+		clock = new Item[Math.min(maxSize, INITIAL_SIZE)];
+		used = 0;
+		hand = 0;
+		return removed;
+	}
+
+	/** Find a free slot in the clock, growing it if necessary. Caller must have made room. */
+	@SuppressWarnings("unchecked")
+	private int allocateSlot() {
+		if(used < clock.length)
+			return used++;
+		if(clock.length < maxSize) {
+			Item<K, V>[] newClock = new Item[(int)Math.min((long)clock.length * 2, maxSize)];
+			System.arraycopy(clock, 0, newClock, 0, used);
+			clock = newClock;
+			return used++;
+		}
+		// Full clock: there must be a hole since map.size() < maxSize
+		for(int i=0;i<used;i++) {
+			int slot = (hand + i) % used;
+			if(clock[slot] == null) return slot;
+		}
+		throw new IllegalStateException("No free slot in clock: size="+map.size()+" max="+maxSize+" used="+used);
+	}
+
+	/** Evict one item. Caller must ensure the cache is not empty. */
+	private V evict() {
+		while(true) {
+			if(hand >= used) hand = 0;
+			Item<K, V> item = clock[hand];
+			if(item == null) {
+				hand++;
+				continue;
+			}
+			if(item.referenced) {
+				item.referenced = false;
+				hand++;
+				continue;
+			}
+			clock[hand] = null;
+			map.remove(item.key);
+			// Leave the hand here, the new item will usually take this slot, see put().
+			return item.value;
+		}
+	}
+}
@@ -22,7 +22,8 @@ import java.util.LinkedList;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -93,23 +94,25 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Lock-free, so logging threads don't queue up behind each other or the writer thread.
+	 * When it is full the oldest lines are dropped.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final LockFreeRingBuffer<byte[]> list;
+	/** Estimated memory used by the lines in list, including LINE_OVERHEAD for each */
+	protected final AtomicLong listBytes = new AtomicLong();
+	/** Set while a thread is dropping lines because we are logging too fast */
+	private final AtomicBoolean chopping = new AtomicBoolean();
+	/** The writer thread waits on this for more lines */
+	private final Object writerSync = new Object();
+	/** Set by the writer thread, holding writerSync, while it is waiting */
+	private volatile boolean writerWaiting;
 
 	long maxOldLogfilesDiskUsage;
 	protected final LinkedList<OldLogFile> logFiles = new LinkedList<OldLogFile>();
@@ -129,10 +132,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = len / 4;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -306,51 +307,46 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					}
 					boolean died = false;
 					boolean timeoutFlush = false;
-					synchronized (list) {
+					synchronized(FileLoggerHook.this) {
 						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									list.wait(Math.min(500, (int)(Math.min(maxWait-thisTime, Integer.MAX_VALUE))));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										continue;
-									}
-									// Do NOT use list.poll(timeout) because it uses a separate lock.
-									o = list.poll();
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
+					}
+					long maxWait;
+					if(timeWaitingForSync == -1)
+						maxWait = Long.MAX_VALUE;
+					else
+						maxWait = timeWaitingForSync + flush;
+					o = list.poll();
+					while(o == null) {
+						if (closed) {
+							died = true;
+							break;
 						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+						if(thisTime < maxWait) {
+							waitForLines(Math.min(500, maxWait-thisTime));
+							thisTime = System.currentTimeMillis();
+							long bytes = listBytes.get();
+							if(bytes < LIST_WRITE_THRESHOLD) {
+								// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
+								if(bytes > 0 && maxWait == Long.MAX_VALUE)
+									maxWait = thisTime + flush;
+								continue;
+							}
+							o = list.poll();
 						}
+						if(o == null) {
+							if(timeWaitingForSync == -1) {
+								timeWaitingForSync = thisTime;
+								maxWait = thisTime + flush;
+							}
+							if(thisTime >= maxWait) {
+								timeoutFlush = true;
+								timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
+								break;
+							}
+						} else break;
+					}
+					if(o != null) {
+						listBytes.addAndGet(-(o.length + LINE_OVERHEAD));
 					}
 					if(timeoutFlush || died) {
 						// Flush to disk 
@@ -376,6 +372,25 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		/**
+		 * Wait until a line is logged to an empty queue, or the queue reaches
+		 * LIST_WRITE_THRESHOLD, or the timeout expires.
+		 */
+		private void waitForLines(long timeout) {
+			synchronized(writerSync) {
+				writerWaiting = true;
+				try {
+					// Check again after setting writerWaiting, so we can't miss a wakeup.
+					if(list.isEmpty() || listBytes.get() < LIST_WRITE_THRESHOLD)
+						writerSync.wait(timeout);
+				} catch (InterruptedException e) {
+					// Ignored.
+				} finally {
+					writerWaiting = false;
+				}
+			}
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -486,7 +501,29 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** Used to format the date, holding the lock on df */
+	private final Date myDate = new Date();
+	/** The last date formatted. Many lines are logged in the same millisecond. */
+	private volatile FormattedDate lastDate;
+
+	private static class FormattedDate {
+		final long time;
+		final String formatted;
+		FormattedDate(long time, String formatted) {
+			this.time = time;
+			this.formatted = formatted;
+		}
+	}
+
+	/** Buffer for formatting lines, reused by each thread to avoid reallocating it for every line */
+	private static final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(512);
+		}
+	};
+	/** Don't keep a buffer bigger than this after logging a huge line */
+	private static final int MAX_LINE_BUFFER = 64 * 1024;
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -794,7 +831,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		this.logOverwrite = overwrite;
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		list = new LockFreeRingBuffer<byte[]>(MAX_LIST_SIZE);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -864,7 +901,24 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		StringBuilder sb = lineBuffer.get();
+		if(sb.length() != 0) {
+			// Logging while formatting a line, e.g. from hashCode() or a Throwable's toString().
+			sb = new StringBuilder(e == null ? 512 : 1024);
+		}
+		byte[] line;
+		try {
+			format(sb, o, c, msg, e, priority);
+			line = sb.toString().getBytes();
+		} finally {
+			sb.setLength(0);
+			if(sb.capacity() > MAX_LINE_BUFFER)
+				lineBuffer.set(new StringBuilder(512));
+		}
+		logString(line);
+	}
+
+	private void format(StringBuilder sb, Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
 		int sctr = 0;
 
 		for (int i = 0; i < fmt.length; ++i) {
@@ -873,11 +927,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					sb.append(formatDate(System.currentTimeMillis()));
 					break;
 				case CLASS :
 					sb.append(c == null ? "<none>" : c.getName());
@@ -927,56 +977,79 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
+	}
 
-		logString(sb.toString().getBytes());
+	private String formatDate(long now) {
+		FormattedDate last = lastDate;
+		if(last != null && last.time == now)
+			return last.formatted;
+		String formatted;
+		synchronized(df) {
+			myDate.setTime(now);
+			formatted = df.format(myDate);
+		}
+		lastDate = new FormattedDate(now, formatted);
+		return formatted;
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
+		boolean wasEmpty = list.isEmpty();
+		long bytes = enqueue(b);
+		if (bytes > MAX_LIST_BYTES && chopping.compareAndSet(false, true)) {
+			// Only one thread chops at a time, the others carry on logging.
+			try {
+				int x = 0;
 				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
+					|| (listBytes.get() > (MAX_LIST_BYTES * 0.9F))) {
+					byte[] ss = list.poll();
+					if(ss == null) break;
+					listBytes.addAndGet(-(ss.length + LINE_OVERHEAD));
 					x++;
 				}
 				String err =
 					"GRRR: ERROR: Logging too fast, chopped "
 						+ x
 						+ " entries, "
-						+ listBytes
+						+ listBytes.get()
 						+ " bytes in memory\n";
-				byte[] buf = err.getBytes();
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
+				enqueue(err.getBytes());
+			} finally {
+				chopping.set(false);
+			}
+		}
+		long threshold = LIST_WRITE_THRESHOLD;
+		// The writer thread is waiting for the first line or for the threshold.
+		if(wasEmpty || (bytes >= threshold && bytes - (b.length + LINE_OVERHEAD) < threshold)) {
+			if(writerWaiting) {
+				synchronized(writerSync) {
+					writerSync.notifyAll();
+				}
 			}
-			if (sz == 0)
-				list.notifyAll();
 		}
 	}
 
-	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
+	/**
+	 * Add a line to the queue, dropping the oldest line if it is full.
+	 * @return The bytes queued afterwards.
+	 */
+	private long enqueue(byte[] b) {
+		int length = b.length + LINE_OVERHEAD;
+		// Count it first, so the writer thread never takes it off before it is counted.
+		long bytes = listBytes.addAndGet(length);
+		if(!list.offer(b)) {
+			byte[] ss = list.poll();
+			if(ss != null) bytes = listBytes.addAndGet(-(ss.length + LINE_OVERHEAD));
+			if(!list.offer(b))
+				bytes = listBytes.addAndGet(-length);
 		}
+		return bytes;
+	}
+
+	public long listBytes() {
+		return listBytes.get();
 	}
 
 	public static int numberOf(char c) {
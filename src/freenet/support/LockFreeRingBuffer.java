@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded FIFO queue which any number of threads can add to and take from at once without
+ * locking. Each slot has a sequence number saying whether it is ready to be written or read on
+ * the current lap, and threads claim positions with a compare-and-set on the head or the tail
+ * (Dmitry Vyukov's bounded MPMC queue). A thread which finds the queue full or empty returns
+ * straight away rather than waiting.
+ *
+ * Unlike ArrayBlockingQueue, adding an item never blocks behind a thread which is taking one.
+ */
+public class LockFreeRingBuffer<E> {
+
+	private final Object[] items;
+	/** For each slot, the position it can next be written at, or that plus one if it is full */
+	private final AtomicLongArray sequences;
+	private final int mask;
+	/** Next position to write */
+	private final AtomicLong tail = new AtomicLong();
+	/** Next position to read */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param minCapacity The queue will hold at least this many items. It is rounded up to a
+	 * power of two.
+	 */
+	public LockFreeRingBuffer(int minCapacity) {
+		int capacity = 1;
+		while(capacity < minCapacity)
+			capacity <<= 1;
+		items = new Object[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Add an item to the tail of the queue.
+	 * @return False if the queue was full.
+	 */
+	public boolean offer(E item) {
+		if(item == null) throw new NullPointerException();
+		while(true) {
+			long pos = tail.get();
+			int slot = (int) (pos & mask);
+			long seq = sequences.get(slot);
+			if(seq == pos) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					items[slot] = item;
+					// Publishes the item.
+					sequences.set(slot, pos + 1);
+					return true;
+				}
+			} else if(seq < pos) {
+				// The slot still holds the item from the last lap.
+				return false;
+			}
+			// Otherwise another thread got there first, try the next position.
+		}
+	}
+
+	/**
+	 * Take the item at the head of the queue.
+	 * @return Null if the queue was empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while(true) {
+			long pos = head.get();
+			int slot = (int) (pos & mask);
+			long seq = sequences.get(slot);
+			if(seq == pos + 1) {
+				if(head.compareAndSet(pos, pos + 1)) {
+					E item = (E) items[slot];
+					items[slot] = null;
+					// Free for the next lap.
+					sequences.set(slot, pos + items.length);
+					return item;
+				}
+			} else if(seq < pos + 1) {
+				return null;
+			}
+		}
+	}
+
+	/** @return The number of items queued. Only an estimate while other threads are using it. */
+	public int size() {
+		long size = tail.get() - head.get();
+		if(size < 0) return 0;
+		if(size > items.length) return items.length;
+		return (int) size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+
+}
@@ -10,7 +10,8 @@ public class LoggerHookChain extends LoggerHook {
 
     // Best performance, least synchronization.
     // We will only very rarely add or remove hooks
-    private LoggerHook[] hooks;
+    // Copy on write, so log() doesn't need to lock.
+    private volatile LoggerHook[] hooks;
 
     /**
      * Create a logger. Threshhold set to NORMAL.
@@ -40,7 +41,7 @@ public class LoggerHookChain extends LoggerHook {
      * @implements LoggerHook.log()
      */
     @Override
-	public synchronized void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
+	public void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
         LoggerHook[] myHooks = hooks;
         for(int i=0;i<myHooks.length;i++) {
             myHooks[i].log(o,c,msg,e,priority);
@@ -16,6 +16,11 @@ public class NullBloomFilter extends BloomFilter {
 		return true;
 	}
 
+	@Override
+	public boolean checkFilter(Hashes hashes) {
+		return true;
+	}
+
 	@Override
 	public void addKey(byte[] key) {
 		// ignore
@@ -42,6 +47,11 @@ public class NullBloomFilter extends BloomFilter {
 		// ignore
 	}
 
+	@Override
+	public void unsetAll() {
+		// ignore
+	}
+
 	@Override
 	public void fork(int k) {
 		return;
@@ -37,6 +37,15 @@ public class StringCounter {
 			item.counter++;
 	}
 	
+	public synchronized void add(String string, int count) {
+		Item item = map.get(string);
+		if(item == null) {
+			item = new Item(string);
+			map.put(string, item);
+		}
+		item.counter += count;
+	}
+	
 	public int get(String string) {
 		Item item = map.get(string);
 		if(item == null) return 0;
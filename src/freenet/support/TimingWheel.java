@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: a queue of items each due at a time in milliseconds, with O(1)
+ * schedule and cancel however many are queued. A TreeMap costs O(log n) for both, which adds
+ * up with tens of thousands of timeouts queued.
+ *
+ * There are LEVELS wheels of SLOTS slots. Level 0 has one slot per millisecond, level 1 one
+ * per SLOTS milliseconds and so on. An item goes in the lowest level at which its time and the
+ * current time share the same slot above, so everything in a level 0 slot is due at the same
+ * millisecond. Each time the current time crosses a slot boundary of a higher level, the items
+ * in that slot are moved down. Anything too far ahead even for the top level (over two years)
+ * waits in an overflow list.
+ *
+ * Items are returned in order of time, and those due at the same time in the order they were
+ * scheduled. An item scheduled for a time which has already been processed is due at the next
+ * millisecond which hasn't. If the clock goes backwards, everything queued is sorted and queued
+ * again from the new time, so items are still due at their own time, not when the clock gets
+ * back to where it was. Not thread-safe: the caller must synchronize.
+ */
+public class TimingWheel<T> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 6;
+	/** Index of the overflow list in counts */
+	private static final int OVERFLOW = LEVELS;
+
+	/** A queued item. Keep it to cancel the item later. */
+	public static final class Timer<T> {
+		/** The time the item is due */
+		public final long time;
+		public final T item;
+		/** Order of scheduling, to keep it when queueing again after the clock goes back */
+		private final long seq;
+		private Timer<T> prev;
+		private Timer<T> next;
+		/** The level, or OVERFLOW, or -1 if it is not queued */
+		private int level = -1;
+		private int slot;
+
+		private Timer(long time, T item, long seq) {
+			this.time = time;
+			this.item = item;
+			this.seq = seq;
+		}
+
+		/** @return True unless the item has been run or cancelled. */
+		public boolean isQueued() {
+			return level != -1;
+		}
+	}
+
+	/** Heads of the doubly linked list for each slot of each level */
+	private final Timer<T>[][] heads;
+	/** Tails, so items are appended, keeping the order they were scheduled in */
+	private final Timer<T>[][] tails;
+	private Timer<T> overflowHead;
+	private Timer<T> overflowTail;
+	/** Number of items in each level, and in the overflow list */
+	private final int[] counts = new int[LEVELS + 1];
+	private int size;
+	private long scheduled;
+	/** The next millisecond to process. Everything due before this has been returned. */
+	private long current;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long now) {
+		heads = new Timer[LEVELS][SLOTS];
+		tails = new Timer[LEVELS][SLOTS];
+		current = now;
+	}
+
+	/**
+	 * Queue an item.
+	 * @param item The item to return from expire() once its time has come.
+	 * @param time The time it is due. If this is already past, it will be returned by the next
+	 * call to expire().
+	 * @return A handle to cancel it.
+	 */
+	public Timer<T> schedule(T item, long time) {
+		Timer<T> timer = new Timer<T>(time, item, scheduled++);
+		insert(timer);
+		size++;
+		return timer;
+	}
+
+	/**
+	 * Remove an item from the queue.
+	 * @return False if it had already been returned by expire() or cancelled.
+	 */
+	public boolean cancel(Timer<T> timer) {
+		if(timer.level == -1) return false;
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	/** @return The number of items queued. */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove everything due at or before now, and add it to the list in the order it was due.
+	 * @return The number of items added.
+	 */
+	public int expire(long now, List<T> expired) {
+		int added = 0;
+		// Everything up to current - 1 has been processed, so the clock has gone backwards.
+		if(now < current - 1)
+			rebase(now);
+		while(current <= now) {
+			if(size == 0) {
+				// Nothing to move or return, skip straight to now.
+				current = now + 1;
+				break;
+			}
+			long t = current;
+			cascade(t);
+			int slot = (int) (t & SLOT_MASK);
+			Timer<T> timer;
+			while((timer = heads[0][slot]) != null) {
+				unlink(timer);
+				size--;
+				expired.add(timer.item);
+				added++;
+			}
+			// If the lowest levels are empty, nothing can happen until the next boundary of the
+			// lowest level which isn't, so skip ahead. This keeps a long gap between calls cheap.
+			int empty = 0;
+			while(empty < LEVELS && counts[empty] == 0)
+				empty++;
+			if(empty == 0)
+				current = t + 1;
+			else {
+				long step = 1L << (BITS * empty);
+				current = Math.min((t | (step - 1)) + 1, now + 1);
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * The clock has gone backwards: take everything out, and queue it again with now as the
+	 * current time. Otherwise nothing would be due until the clock got back to the old time.
+	 */
+	private void rebase(long now) {
+		ArrayList<Timer<T>> all = new ArrayList<Timer<T>>(size);
+		for(int level = 0; level < LEVELS; level++) {
+			for(int slot = 0; slot < SLOTS; slot++) {
+				for(Timer<T> timer = heads[level][slot]; timer != null; timer = timer.next)
+					all.add(timer);
+			}
+			Arrays.fill(heads[level], null);
+			Arrays.fill(tails[level], null);
+		}
+		for(Timer<T> timer = overflowHead; timer != null; timer = timer.next)
+			all.add(timer);
+		overflowHead = overflowTail = null;
+		Arrays.fill(counts, 0);
+		Collections.sort(all, new Comparator<Timer<T>>() {
+			public int compare(Timer<T> a, Timer<T> b) {
+				if(a.time != b.time) return a.time < b.time ? -1 : 1;
+				return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+			}
+		});
+		current = now;
+		for(Timer<T> timer : all)
+			insert(timer);
+	}
+
+	/** Move down the items in the slots of the higher levels whose boundary is at t. */
+	private void cascade(long t) {
+		if((t & SLOT_MASK) != 0) return;
+		if(counts[OVERFLOW] != 0 && (t & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+			Timer<T> timer = overflowHead;
+			overflowHead = overflowTail = null;
+			counts[OVERFLOW] = 0;
+			while(timer != null) {
+				Timer<T> next = timer.next;
+				insert(timer);
+				timer = next;
+			}
+		}
+		// From the top down, so items can move more than one level in one go.
+		for(int level = LEVELS - 1; level > 0; level--) {
+			if((t & ((1L << (BITS * level)) - 1)) != 0) continue;
+			if(counts[level] == 0) continue;
+			int slot = (int) ((t >>> (BITS * level)) & SLOT_MASK);
+			Timer<T> timer = heads[level][slot];
+			heads[level][slot] = tails[level][slot] = null;
+			while(timer != null) {
+				Timer<T> next = timer.next;
+				counts[level]--;
+				insert(timer);
+				timer = next;
+			}
+		}
+	}
+
+	private void insert(Timer<T> timer) {
+		// Anything overdue is due now.
+		long time = Math.max(timer.time, current);
+		long diff = time ^ current;
+		int level = 0;
+		while(level < LEVELS && (diff >>> (BITS * (level + 1))) != 0)
+			level++;
+		timer.next = null;
+		counts[level]++;
+		if(level == OVERFLOW) {
+			timer.level = OVERFLOW;
+			timer.prev = overflowTail;
+			if(overflowTail == null) overflowHead = timer;
+			else overflowTail.next = timer;
+			overflowTail = timer;
+			return;
+		}
+		int slot = (int) ((time >>> (BITS * level)) & SLOT_MASK);
+		timer.level = level;
+		timer.slot = slot;
+		Timer<T> tail = tails[level][slot];
+		timer.prev = tail;
+		if(tail == null) heads[level][slot] = timer;
+		else tail.next = timer;
+		tails[level][slot] = timer;
+	}
+
+	private void unlink(Timer<T> timer) {
+		int level = timer.level;
+		counts[level]--;
+		if(level == OVERFLOW) {
+			if(timer.prev == null) overflowHead = timer.next;
+			else timer.prev.next = timer.next;
+			if(timer.next == null) overflowTail = timer.prev;
+			else timer.next.prev = timer.prev;
+		} else {
+			int slot = timer.slot;
+			if(timer.prev == null) heads[level][slot] = timer.next;
+			else timer.prev.next = timer.next;
+			if(timer.next == null) tails[level][slot] = timer.prev;
+			else timer.next.prev = timer.prev;
+		}
+		timer.prev = timer.next = null;
+		timer.level = -1;
+	}
+
+}
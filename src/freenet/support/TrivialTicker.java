@@ -1,6 +1,7 @@
 package freenet.support;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -22,7 +23,8 @@ public class TrivialTicker implements Ticker {
 	
 	private final Executor executor;
 	
-	private final HashSet<Runnable> jobs = new HashSet<Runnable>();
+	/** The tasks queued for each job */
+	private final HashMap<Runnable, ArrayList<TimerTask>> jobs = new HashMap<Runnable, ArrayList<TimerTask>>();
 	
 	private boolean running = true;
 	
@@ -31,13 +33,12 @@ public class TrivialTicker implements Ticker {
 	}
 	
 	public void queueTimedJob(final Runnable job, long offset) {
-		synchronized(this) {
-			if(!running)
-				return;
-			
-			jobs.add(job);
-		}
-		timer.schedule(new TimerTask() {
+		queueTimedJob(job, "Delayed task: "+job, offset, false, false);
+	}
+
+	public void queueTimedJob(final Runnable job, final String name, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		TimerTask task = new TimerTask() {
 
 			@Override
 			public void run() {
@@ -45,47 +46,41 @@ public class TrivialTicker implements Ticker {
 					if(job instanceof FastRunnable) {
 						job.run();
 					} else {
-						executor.execute(job, "Delayed task: "+job);
+						executor.execute(job, name);
 					}
 				} finally {
-					synchronized(this) {
-						jobs.remove(job);
+					synchronized(TrivialTicker.this) {
+						ArrayList<TimerTask> tasks = jobs.get(job);
+						if(tasks != null) {
+							tasks.remove(this);
+							if(tasks.isEmpty()) jobs.remove(job);
+						}
 					}
 				}
 				
 			}
 			
-		}, offset);
-	}
-
-	public void queueTimedJob(final Runnable job, final String name, long offset,
-			boolean runOnTickerAnyway, boolean noDupes) {
+		};
 		synchronized(this) {
 			if(!running)
 				return;
 			
-			if(noDupes && jobs.contains(job)) return;
-			jobs.add(job);
+			ArrayList<TimerTask> tasks = jobs.get(job);
+			if(tasks == null) {
+				tasks = new ArrayList<TimerTask>(1);
+				jobs.put(job, tasks);
+			} else if(noDupes) return;
+			tasks.add(task);
+			timer.schedule(task, offset);
 		}
-		timer.schedule(new TimerTask() {
+	}
 
-			@Override
-			public void run() {
-				try {
-					if(job instanceof FastRunnable) {
-						job.run();
-					} else {
-						executor.execute(job, name);
-					}
-				} finally {
-					synchronized(this) {
-						jobs.remove(job);
-					}
-				}
-				
-			}
-			
-		}, offset);
+	public synchronized boolean removeQueuedJob(Runnable job) {
+		ArrayList<TimerTask> tasks = jobs.remove(job);
+		if(tasks == null) return false;
+		for(TimerTask task : tasks)
+			task.cancel();
+		return true;
 	}
 	
 	public void shutdown() {
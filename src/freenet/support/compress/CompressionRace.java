@@ -0,0 +1,406 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Compress some data with several compressors and keep the smallest result.
+ *
+ * The compressors can be run one after the other, or all at once on an Executor. Either way the
+ * winner is the same: the smallest result of the compressors up to and including the first one
+ * which gets the data down to minSize, the earliest on a tie, just as if they were run in turn
+ * and we stopped at minSize. A compressor is stopped as soon as it can no longer win, i.e. it
+ * has written more than a result which beats it, or an earlier compressor has reached minSize.
+ * Optionally, the compressors can be tried on a few samples of the data first, so that those
+ * which are clearly worse are not run on all of it.
+ */
+public class CompressionRace {
+
+	/** Don't bother running compressors in parallel for less data than this */
+	static final long PARALLEL_MIN_SIZE = 1024 * 1024;
+	/** Number of samples to take in sampling mode */
+	static final int SAMPLES = 4;
+	/** Size of each sample */
+	static final int SAMPLE_SIZE = 256 * 1024;
+	/** Don't bother sampling less data than this, just compress it */
+	static final long SAMPLE_MIN_SIZE = 16L * 1024 * 1024;
+	/** Keep any compressor which did no more than this much worse than the best on the samples */
+	static final double SAMPLE_MARGIN = 0.05;
+
+	private static volatile boolean logMINOR;
+
+	public interface Callback {
+		/** Called when a compressor is started, possibly on another thread. */
+		void onStartCompression(COMPRESSOR_TYPE comp);
+	}
+
+	private final Bucket data;
+	private final long size;
+	private final BucketFactory bf;
+	private final long minSize;
+	private final long generateHashes;
+	private final Callback cb;
+
+	// Protected by (this)
+	private COMPRESSOR_TYPE bestCodec;
+	private Bucket bestData;
+	private long bestSize;
+	private int bestIndex;
+	private HashResult[] hashes;
+	private IOException failure;
+	/** Size of each compressor's result, or -1 if it hasn't got one (yet) */
+	private long[] results;
+	/** For each compressor, if it writes more than this, it has lost. Replaced, not changed. */
+	private volatile long[] bounds;
+	/** The first compressor which got the data down to minSize. Those after it have lost. */
+	private volatile int cutoff = Integer.MAX_VALUE;
+	/** Set when all compressors still running should stop */
+	private volatile boolean finished;
+
+	/**
+	 * @param data The data to compress.
+	 * @param bf Where to put the compressed data.
+	 * @param minSize If a compressor gets the data down to this size, stop.
+	 * @param generateHashes If not 0, hashes to compute on the data while compressing it with the
+	 * first compressor.
+	 * @param cb Told about each compressor as it starts. May be null.
+	 */
+	public CompressionRace(Bucket data, BucketFactory bf, long minSize, long generateHashes, Callback cb) {
+		this.data = data;
+		this.size = data.size();
+		this.bf = bf;
+		this.minSize = minSize;
+		this.generateHashes = generateHashes;
+		this.cb = cb;
+		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+	}
+
+	/**
+	 * Try each compressor in turn, or all at once, with as many threads as the executor gives us.
+	 * @param comps The compressors to try, the fastest first.
+	 * @param executor If not null, run the compressors in parallel on this executor.
+	 * @throws IOException If reading or writing failed. Nothing is kept.
+	 */
+	public void run(COMPRESSOR_TYPE[] comps, Executor executor) throws IOException {
+		run(comps, executor, null);
+	}
+
+	/**
+	 * Try each compressor in turn, or all at once.
+	 * @param comps The compressors to try, the fastest first.
+	 * @param executor If not null, run the compressors in parallel on this executor.
+	 * @param threads If not null, each compressor run on the executor needs a permit from this.
+	 * Those which can't get one are run on the calling thread after the first one. The caller
+	 * should already have a permit for the calling thread.
+	 * @throws IOException If reading or writing failed. Nothing is kept.
+	 */
+	public void run(final COMPRESSOR_TYPE[] comps, Executor executor, final Semaphore threads) throws IOException {
+		synchronized(this) {
+			results = new long[comps.length];
+			Arrays.fill(results, -1);
+			updateBounds();
+		}
+		if(executor == null || comps.length < 2 || size < PARALLEL_MIN_SIZE) {
+			for(int i = 0; i < comps.length && !finished && i <= cutoff; i++)
+				attemptOrFail(comps[i], i);
+		} else {
+			final CountDownLatch done = new CountDownLatch(comps.length - 1);
+			ArrayList<Integer> onThisThread = new ArrayList<Integer>();
+			for(int i = 1; i < comps.length; i++) {
+				if(threads != null && !threads.tryAcquire()) {
+					onThisThread.add(i);
+					done.countDown();
+					continue;
+				}
+				final int index = i;
+				executor.execute(new PrioRunnable() {
+
+					public void run() {
+						try {
+							attemptOrFail(comps[index], index);
+						} finally {
+							if(threads != null) threads.release();
+							done.countDown();
+						}
+					}
+
+					public int getPriority() {
+						return NativeThread.MIN_PRIORITY;
+					}
+
+				}, "Compressor thread for "+comps[i]+" on "+data);
+			}
+			// The first one computes the hashes, so run it here.
+			attemptOrFail(comps[0], 0);
+			for(int index : onThisThread)
+				attemptOrFail(comps[index], index);
+			boolean interrupted = false;
+			while(true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+		synchronized(this) {
+			if(failure != null) {
+				if(bestData != null) bestData.free();
+				bestData = null;
+				bestCodec = null;
+				throw failure;
+			}
+		}
+	}
+
+	private void attemptOrFail(COMPRESSOR_TYPE comp, int index) {
+		try {
+			attempt(comp, index);
+		} catch (IOException e) {
+			fail(e);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" compressing with "+comp, t);
+			IOException e = new IOException("Compressor failed: "+t);
+			e.initCause(t);
+			fail(e);
+		}
+	}
+
+	private synchronized void fail(IOException e) {
+		if(failure == null) failure = e;
+		finished = true;
+	}
+
+	private void attempt(COMPRESSOR_TYPE comp, int index) throws IOException {
+		if(finished || index > cutoff) return;
+		if(cb != null) cb.onStartCompression(comp);
+		if(logMINOR) Logger.minor(this, "Attempt to compress using "+comp);
+		// The hashes must be computed over all the data, so that one runs to the end.
+		boolean hashing = index == 0 && generateHashes != 0;
+		InputStream is = null;
+		OutputStream os = null;
+		Bucket result = null;
+		boolean keep = false;
+		try {
+			is = data.getInputStream();
+			MultiHashInputStream hasher = null;
+			if(hashing)
+				is = hasher = new MultiHashInputStream(is, generateHashes);
+			result = bf.makeBucket(-1);
+			os = new RaceOutputStream(result.getOutputStream(), hashing ? -1 : index);
+			comp.compress(is, os, size, hashing ? Long.MAX_VALUE : bounds[index]);
+			is.close();
+			is = null;
+			os.close();
+			os = null;
+			if(hasher != null) {
+				synchronized(this) {
+					hashes = hasher.getResults();
+				}
+			}
+			keep = offer(comp, index, result);
+		} catch (CompressionOutputSizeException e) {
+			// Lost.
+		} catch (LostException e) {
+			// Lost.
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(!keep && result != null)
+				result.free();
+		}
+	}
+
+	private synchronized boolean offer(COMPRESSOR_TYPE comp, int index, Bucket result) {
+		long resultSize = result.size();
+		if(index > cutoff || resultSize >= size) {
+			if(logMINOR)
+				Logger.minor(this, comp+" compressed "+size+" bytes to "+resultSize+" (lost)");
+			return false;
+		}
+		results[index] = resultSize;
+		if(resultSize <= minSize) {
+			// Run in turn, we would have stopped here, so the later ones can't win.
+			cutoff = index;
+			if(bestData != null && bestIndex > index) {
+				bestData.free();
+				bestData = null;
+			}
+		}
+		boolean better = bestData == null || resultSize < bestSize || (resultSize == bestSize && index < bestIndex);
+		if(logMINOR)
+			Logger.minor(this, comp+" compressed "+size+" bytes to "+resultSize+(better ? " (best so far)" : ""));
+		if(better) {
+			if(bestData != null)
+				bestData.free();
+			bestData = result;
+			bestCodec = comp;
+			bestSize = resultSize;
+			bestIndex = index;
+		}
+		updateBounds();
+		return better;
+	}
+
+	/**
+	 * Work out how much each compressor may write before it has lost. An earlier compressor's
+	 * result beats anything bigger. A later compressor's result beats anything bigger, unless
+	 * what it beats is no bigger than minSize, since then the later one would never have run.
+	 * Caller must hold the lock.
+	 */
+	private void updateBounds() {
+		long[] newBounds = new long[results.length];
+		for(int i = 0; i < results.length; i++) {
+			long bound = size;
+			for(int j = 0; j < results.length; j++) {
+				if(results[j] < 0 || j == i) continue;
+				bound = Math.min(bound, j < i ? results[j] : Math.max(results[j], minSize));
+			}
+			newBounds[i] = bound;
+		}
+		bounds = newBounds;
+	}
+
+	/**
+	 * Compress a few samples of the data with each compressor, and drop those which are clearly
+	 * worse than the best one.
+	 * @return The compressors worth trying on all the data, in the original order.
+	 */
+	public COMPRESSOR_TYPE[] sample(COMPRESSOR_TYPE[] comps) throws IOException {
+		if(comps.length < 2 || size < SAMPLE_MIN_SIZE) return comps;
+		byte[][] samples = readSamples();
+		long[] sizes = new long[comps.length];
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < comps.length; i++) {
+			for(byte[] sample : samples) {
+				CountedOutputStream cos = new CountedOutputStream(new NullOutputStream());
+				try {
+					comps[i].compress(new ByteArrayInputStream(sample), cos, sample.length, Long.MAX_VALUE);
+				} catch (CompressionOutputSizeException e) {
+					// Impossible
+					throw new Error(e);
+				}
+				sizes[i] += cos.written();
+			}
+			best = Math.min(best, sizes[i]);
+		}
+		ArrayList<COMPRESSOR_TYPE> keep = new ArrayList<COMPRESSOR_TYPE>(comps.length);
+		if(best >= (long)SAMPLES * SAMPLE_SIZE) {
+			// Doesn't compress. Try the fastest anyway, the samples might have been unlucky.
+			keep.add(comps[0]);
+		} else {
+			for(int i = 0; i < comps.length; i++)
+				if(sizes[i] <= best * (1.0 + SAMPLE_MARGIN))
+					keep.add(comps[i]);
+		}
+		if(logMINOR) {
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < comps.length; i++)
+				sb.append(comps[i]).append('=').append(sizes[i]).append(' ');
+			Logger.minor(this, "Sampled "+SAMPLES+" x "+SAMPLE_SIZE+" bytes: "+sb+"keeping "+keep);
+		}
+		return keep.toArray(new COMPRESSOR_TYPE[keep.size()]);
+	}
+
+	/** Read SAMPLES chunks spread evenly across the data. */
+	private byte[][] readSamples() throws IOException {
+		byte[][] samples = new byte[SAMPLES][SAMPLE_SIZE];
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(data.getInputStream());
+			long pos = 0;
+			for(int i = 0; i < SAMPLES; i++) {
+				long offset = (size - SAMPLE_SIZE) * i / (SAMPLES - 1);
+				FileUtil.skipFully(dis, offset - pos);
+				dis.readFully(samples[i]);
+				pos = offset + SAMPLE_SIZE;
+			}
+			dis.close();
+			dis = null;
+		} finally {
+			Closer.close(dis);
+		}
+		return samples;
+	}
+
+	/** @return The best compressor, or null if none of them made the data smaller. */
+	public synchronized COMPRESSOR_TYPE getCodec() {
+		return bestCodec;
+	}
+
+	/** @return The compressed data, or null if none of the compressors made the data smaller. */
+	public synchronized Bucket getData() {
+		return bestData;
+	}
+
+	/** @return The hashes of the data, or null if they weren't asked for. */
+	public synchronized HashResult[] getHashes() {
+		return hashes;
+	}
+
+	private static class LostException extends IOException {
+		private static final long serialVersionUID = -1;
+	}
+
+	/** Stops the compressor as soon as it can no longer win. */
+	private class RaceOutputStream extends FilterOutputStream {
+
+		/** The compressor's index, or -1 if it must run to the end */
+		private final int index;
+		private long written;
+
+		RaceOutputStream(OutputStream os, int index) {
+			super(os);
+			this.index = index;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+			check();
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			out.write(buf, offset, length);
+			written += length;
+			check();
+		}
+
+		private void check() throws LostException {
+			if(index >= 0 && (finished || index > cutoff || written > bounds[index]))
+				throw new LostException();
+		}
+
+	}
+
+}
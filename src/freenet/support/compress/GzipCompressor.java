@@ -6,18 +6,28 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
+import java.util.LinkedList;
 import java.util.zip.GZIPOutputStream;
 
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.CountedOutputStream;
+import freenet.support.io.NativeThread;
 
 // WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
 public class GzipCompressor implements Compressor {
 
+	/** Don't split the data into chunks smaller than this, gzip's window is only 32KiB but the
+	 * headers and the thread handoffs add up. */
+	public static final int MIN_CHUNK_SIZE = 64 * 1024;
+	private static volatile Executor executor;
+	private static volatile int parallelThreads;
+	private static volatile int chunkSize = 1024 * 1024;
+
 	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
 		Bucket output = bf.makeBucket(maxWriteLength);
 		InputStream is = null;
@@ -36,6 +46,11 @@ public class GzipCompressor implements Compressor {
 	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
 		if(maxReadLength < 0)
 			throw new IllegalArgumentException();
+		Executor exec = executor;
+		int threads = parallelThreads;
+		int chunk = chunkSize;
+		if(exec != null && threads > 1 && maxReadLength > chunk)
+			return compressParallel(is, os, maxReadLength, maxWriteLength, exec, threads, chunk);
 		GZIPOutputStream gos = null;
 		os = new BufferedOutputStream(os);
 		CountedOutputStream cos = new CountedOutputStream(os);
@@ -68,6 +83,117 @@ public class GzipCompressor implements Compressor {
 		}
 	}
 
+	/**
+	 * Compress a large stream on several threads. The input is split into chunks which are
+	 * compressed separately and written as consecutive gzip members, which a gzip decoder reads
+	 * as the concatenation of the chunks.
+	 */
+	private long compressParallel(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength, Executor exec, int threads, int chunk) throws IOException, CompressionOutputSizeException {
+		LinkedList<GzipChunk> inFlight = new LinkedList<GzipChunk>();
+		long read = 0;
+		long written = 0;
+		boolean eof = false;
+		int chunks = 0;
+		while(true) {
+			// Keep all the threads busy, but don't hold too much in memory.
+			while(!eof && inFlight.size() < threads * 2) {
+				byte[] buf = new byte[(int) Math.min(chunk, maxReadLength - read)];
+				int length = 0;
+				while(length < buf.length) {
+					int x = is.read(buf, length, buf.length - length);
+					if(x <= -1) break;
+					if(x == 0) throw new IOException("Returned zero from read()");
+					length += x;
+				}
+				read += length;
+				if(length < buf.length || read == maxReadLength) eof = true;
+				if(length == 0 && chunks > 0) break;
+				GzipChunk job = new GzipChunk(buf, length);
+				inFlight.add(job);
+				exec.execute(job, "Gzip compressor chunk "+chunks);
+				chunks++;
+			}
+			if(inFlight.isEmpty()) break;
+			byte[] compressed = inFlight.removeFirst().waitFor();
+			os.write(compressed);
+			written += compressed.length;
+			if(written > maxWriteLength)
+				throw new CompressionOutputSizeException();
+		}
+		os.flush();
+		return written;
+	}
+
+	private static class GzipChunk implements PrioRunnable {
+
+		private final byte[] data;
+		private final int length;
+		private byte[] compressed;
+		private Throwable failed;
+		private boolean done;
+
+		GzipChunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+
+		public void run() {
+			byte[] out = null;
+			Throwable t = null;
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2 + 64);
+				GZIPOutputStream gos = new GZIPOutputStream(baos);
+				gos.write(data, 0, length);
+				gos.close();
+				out = baos.toByteArray();
+			} catch (Throwable e) {
+				t = e;
+			}
+			synchronized(this) {
+				compressed = out;
+				failed = t;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		synchronized byte[] waitFor() throws IOException {
+			boolean interrupted = false;
+			while(!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(failed != null) {
+				IOException e = new IOException("Compressing chunk failed: "+failed);
+				e.initCause(failed);
+				throw e;
+			}
+			return compressed;
+		}
+
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+
+	}
+
+	/**
+	 * Compress large streams on several threads, or not.
+	 * @param exec The executor to run the threads on, or null to never compress in parallel.
+	 * @param threads The number of threads to use for each stream, no more than 1 to turn it off.
+	 * @param chunk The amount of data to compress on each thread at a time.
+	 */
+	public static void setParallelCompression(Executor exec, int threads, int chunk) {
+		if(chunk < MIN_CHUNK_SIZE) throw new IllegalArgumentException("Chunk size too small: "+chunk);
+		chunkSize = chunk;
+		parallelThreads = threads;
+		executor = exec;
+	}
+
 	public Bucket decompress(Bucket data, BucketFactory bf, long maxLength, long maxCheckSizeLength, Bucket preferred) throws IOException, CompressionOutputSizeException {
 		Bucket output;
 		if(preferred != null)
@@ -90,7 +216,8 @@ public class GzipCompressor implements Compressor {
 	}
 
 	private long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
-		GZIPInputStream gis = new GZIPInputStream(is);
+		// Might be more than one member, if it was compressed in parallel.
+		InputStream gis = new MultiMemberGZIPInputStream(is);
 		long written = 0;
 		byte[] buffer = new byte[4096];
 		while(true) {
@@ -0,0 +1,160 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a gzip stream made of any number of members one after the other, as written by
+ * GzipCompressor when compressing in parallel (or by "cat a.gz b.gz"). The result is the
+ * concatenation of the members' data. java.util.zip.GZIPInputStream stops after the first member
+ * on older JVMs, and on newer ones only looks for another member if available() says there is
+ * more data, which many of our streams don't.
+ */
+class MultiMemberGZIPInputStream extends InputStream {
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final PushbackInputStream in;
+	private final Inflater inf = new Inflater(true);
+	private final CRC32 crc = new CRC32();
+	private final CRC32 headerCrc = new CRC32();
+	private final byte[] buf = new byte[4096];
+	/** Number of bytes last passed to the inflater from buf */
+	private int bufLength;
+	private boolean inMember;
+	private boolean eof;
+	private boolean closed;
+
+	MultiMemberGZIPInputStream(InputStream is) throws IOException {
+		in = new PushbackInputStream(is, buf.length);
+		// There must be at least one member.
+		readHeader();
+		inMember = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int x = read(b, 0, 1);
+		return x == -1 ? -1 : (b[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		if(len == 0) return 0;
+		while(true) {
+			if(eof) return -1;
+			if(!inMember) {
+				int c = in.read();
+				if(c == -1) {
+					eof = true;
+					return -1;
+				}
+				in.unread(c);
+				readHeader();
+				inMember = true;
+			}
+			int x;
+			try {
+				x = inf.inflate(b, off, len);
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+			if(x > 0) {
+				crc.update(b, off, x);
+				return x;
+			}
+			if(inf.finished()) {
+				int remaining = inf.getRemaining();
+				if(remaining > 0)
+					in.unread(buf, bufLength - remaining, remaining);
+				readTrailer();
+				inMember = false;
+			} else if(inf.needsDictionary()) {
+				throw new ZipException("Unexpected preset dictionary in gzip stream");
+			} else if(inf.needsInput()) {
+				bufLength = in.read(buf, 0, buf.length);
+				if(bufLength == -1)
+					throw new EOFException("Unexpected end of gzip stream");
+				inf.setInput(buf, 0, bufLength);
+			}
+		}
+	}
+
+	private void readHeader() throws IOException {
+		headerCrc.reset();
+		if(readUShort() != GZIP_MAGIC)
+			throw new ZipException("Not in GZIP format");
+		if(readUByte() != 8)
+			throw new ZipException("Unsupported compression method");
+		int flags = readUByte();
+		// Modification time, extra flags, OS
+		for(int i = 0; i < 6; i++)
+			readUByte();
+		if((flags & FEXTRA) != 0) {
+			int length = readUShort();
+			for(int i = 0; i < length; i++)
+				readUByte();
+		}
+		if((flags & FNAME) != 0)
+			while(readUByte() != 0);
+		if((flags & FCOMMENT) != 0)
+			while(readUByte() != 0);
+		if((flags & FHCRC) != 0) {
+			int expected = (int) headerCrc.getValue() & 0xFFFF;
+			if(readUShort() != expected)
+				throw new ZipException("Corrupt gzip header");
+		}
+		inf.reset();
+		crc.reset();
+	}
+
+	private void readTrailer() throws IOException {
+		long expectedCRC = readUInt();
+		long expectedSize = readUInt();
+		if(expectedCRC != crc.getValue())
+			throw new ZipException("Corrupt gzip stream (bad CRC)");
+		if(expectedSize != (inf.getBytesWritten() & 0xFFFFFFFFL))
+			throw new ZipException("Corrupt gzip stream (bad length)");
+	}
+
+	private int readUByte() throws IOException {
+		int b = in.read();
+		if(b == -1) throw new EOFException("Unexpected end of gzip stream");
+		headerCrc.update(b);
+		return b;
+	}
+
+	private int readUShort() throws IOException {
+		int b = readUByte();
+		return (readUByte() << 8) | b;
+	}
+
+	private long readUInt() throws IOException {
+		long s = readUShort();
+		return ((long) readUShort() << 16) | s;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		inf.end();
+		in.close();
+	}
+
+}
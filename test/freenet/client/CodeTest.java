@@ -138,4 +138,64 @@ public class CodeTest extends TestCase {
 			encodeDecode(code2, code, index);
 		}
 	}
+
+	/** The pure Java codec must produce exactly the same check blocks as the onion code. */
+	public void testVandermondeCompatible() {
+		int k = 20, n = 50;
+		byte[] src = new byte[n * PACKET_SIZE];
+		Util.rand.nextBytes(src);
+		Buffer[] srcBufs = new Buffer[k];
+		for (int i = 0; i < k; i++)
+			srcBufs[i] = new Buffer(src, i * PACKET_SIZE, PACKET_SIZE);
+		byte[] repair = new byte[(n - k) * PACKET_SIZE];
+		Buffer[] repairBufs = new Buffer[n - k];
+		int[] index = new int[n - k];
+		for (int i = 0; i < n - k; i++) {
+			repairBufs[i] = new Buffer(repair, i * PACKET_SIZE, PACKET_SIZE);
+			index[i] = k + i;
+		}
+		new PureCode(k, n).encode(srcBufs, repairBufs, index);
+
+		int[] inSlots = new int[k];
+		for (int i = 0; i < k; i++)
+			inSlots[i] = i;
+		VandermondeFECCode code = new VandermondeFECCode(k, n);
+		VandermondeFECCode.multiply(code.encodeMatrix(index), src, inSlots, index, PACKET_SIZE, 0, PACKET_SIZE);
+		for (int i = 0; i < repair.length; i++)
+			Assert.assertEquals(repair[i], src[k * PACKET_SIZE + i]);
+	}
+
+	/** Decode a whole 128 + 128 segment of 32KiB blocks from the check blocks, both ways. */
+	public void testBenchmarkSegment() {
+		if(!BENCHMARK) return;
+
+		int k = 128, n = 256, blockSize = 32768;
+		byte[] src = new byte[k * blockSize];
+		Util.rand.nextBytes(src);
+		Buffer[] bufs = new Buffer[k];
+		for (int i = 0; i < k; i++)
+			bufs[i] = new Buffer(src, i * blockSize, blockSize);
+		int[] index = new int[k];
+		for (int i = 0; i < k; i++)
+			index[i] = k + i;
+		FECCode pureCode = new PureCode(k, n);
+		long t1 = System.currentTimeMillis();
+		pureCode.decode(bufs, index.clone());
+		long t2 = System.currentTimeMillis();
+
+		int[] slots = new int[k];
+		for (int i = 0; i < k; i++)
+			slots[i] = i;
+		byte[] buf = new byte[2 * k * blockSize];
+		System.arraycopy(src, 0, buf, 0, src.length);
+		VandermondeFECCode code = new VandermondeFECCode(k, n);
+		long t3 = System.currentTimeMillis();
+		byte[][] matrix = code.interpolate(index, slots);
+		int[] outSlots = new int[k];
+		for (int i = 0; i < k; i++)
+			outSlots[i] = k + i;
+		VandermondeFECCode.multiply(matrix, buf, slots, outSlots, blockSize, 0, blockSize);
+		long t4 = System.currentTimeMillis();
+		System.out.println("PureCode took "+(t2 - t1)+"ms, VandermondeFECCode took "+(t4 - t3)+"ms to decode "+k+" blocks of "+blockSize+" bytes");
+	}
 }
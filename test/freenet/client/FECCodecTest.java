@@ -0,0 +1,29 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.client.FECCodec} class.
+ */
+public class FECCodecTest extends TestCase {
+
+	private static final int BLOCK = 32768;
+
+	/**
+	 * Tests that small segments get whole block stripes, and large ones smaller stripes, so the
+	 * stripe buffer stays around a megabyte.
+	 */
+	public void testStripeSize() {
+		assertEquals(BLOCK, FECCodec.stripeSize(20, BLOCK));
+		assertEquals(BLOCK, FECCodec.stripeSize(32, BLOCK));
+		assertEquals(24576, FECCodec.stripeSize(40, BLOCK));
+		assertEquals(4096, FECCodec.stripeSize(256, BLOCK));
+		assertTrue(256 * FECCodec.stripeSize(256, BLOCK) <= 1024 * 1024);
+		// Never smaller than the minimum, never bigger than a block.
+		assertEquals(4096, FECCodec.stripeSize(1000, BLOCK));
+		assertEquals(100, FECCodec.stripeSize(2, 100));
+	}
+}
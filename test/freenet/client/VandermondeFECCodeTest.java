@@ -0,0 +1,179 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class VandermondeFECCodeTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 5000;
+
+	/** Multiply in GF(2^8) the slow way, without the tables */
+	private static int gfMul(int a, int b) {
+		int r = 0;
+		while(b != 0) {
+			if((b & 1) != 0) r ^= a;
+			a <<= 1;
+			if((a & 0x100) != 0) a ^= 0x11d;
+			b >>= 1;
+		}
+		return r;
+	}
+
+	private static int gfInv(int a) {
+		for(int b = 1; b < 256; b++)
+			if(gfMul(a, b) == 1) return b;
+		throw new ArithmeticException();
+	}
+
+	private static int gfPow(int a, int e) {
+		int r = 1;
+		for(int i = 0; i < e; i++)
+			r = gfMul(r, a);
+		return r;
+	}
+
+	/**
+	 * The systematic encoding matrix the way Rizzo's code builds it: the n x k Vandermonde
+	 * matrix on the points 0, 1, alpha, alpha^2 ..., times the inverse of its top k rows.
+	 */
+	private static int[][] referenceMatrix(int k, int n) {
+		int[][] v = new int[n][k];
+		v[0][0] = 1;
+		for(int r = 1; r < n; r++)
+			for(int c = 0; c < k; c++)
+				v[r][c] = gfPow(gfPow(2, r - 1), c);
+		// Invert the top k x k by Gauss-Jordan elimination
+		int[][] a = new int[k][2 * k];
+		for(int r = 0; r < k; r++) {
+			System.arraycopy(v[r], 0, a[r], 0, k);
+			a[r][k + r] = 1;
+		}
+		for(int c = 0; c < k; c++) {
+			int p = c;
+			while(a[p][c] == 0) p++;
+			int[] t = a[p]; a[p] = a[c]; a[c] = t;
+			int inv = gfInv(a[c][c]);
+			for(int j = 0; j < 2 * k; j++)
+				a[c][j] = gfMul(a[c][j], inv);
+			for(int r = 0; r < k; r++) {
+				if(r == c || a[r][c] == 0) continue;
+				int f = a[r][c];
+				for(int j = 0; j < 2 * k; j++)
+					a[r][j] ^= gfMul(f, a[c][j]);
+			}
+		}
+		int[][] enc = new int[n][k];
+		for(int r = 0; r < n; r++)
+			for(int c = 0; c < k; c++) {
+				int x = 0;
+				for(int j = 0; j < k; j++)
+					x ^= gfMul(v[r][j], a[j][k + c]);
+				enc[r][c] = x;
+			}
+		return enc;
+	}
+
+	public void testMatchesReference() {
+		int[][] sizes = { { 1, 2 }, { 3, 7 }, { 20, 40 }, { 128, 256 } };
+		for(int[] size : sizes) {
+			int k = size[0], n = size[1];
+			int[][] ref = referenceMatrix(k, n);
+			int[] check = new int[n - k];
+			for(int i = 0; i < check.length; i++)
+				check[i] = k + i;
+			byte[][] m = new VandermondeFECCode(k, n).encodeMatrix(check);
+			for(int r = 0; r < check.length; r++)
+				for(int c = 0; c < k; c++)
+					assertEquals("k="+k+" n="+n+" row "+r+" col "+c, ref[k + r][c], m[r][c] & 0xFF);
+		}
+	}
+
+	/** Encode, lose some blocks, decode from what's left. */
+	public void testRoundTrip() {
+		Random random = new Random(1234);
+		int k = 16, n = 40;
+		VandermondeFECCode code = new VandermondeFECCode(k, n);
+		byte[] blocks = new byte[n * BLOCK_SIZE];
+		random.nextBytes(blocks);
+		int[] check = new int[n - k];
+		for(int i = 0; i < check.length; i++)
+			check[i] = k + i;
+		VandermondeFECCode.multiply(code.encodeMatrix(check), blocks, slots(0, k), check, BLOCK_SIZE, 0, BLOCK_SIZE);
+
+		for(int attempt = 0; attempt < 10; attempt++) {
+			// Pick k random blocks, and decode the data blocks (and one check block) from them.
+			int[] all = slots(0, n);
+			for(int i = n - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int t = all[i]; all[i] = all[j]; all[j] = t;
+			}
+			int[] known = new int[k];
+			System.arraycopy(all, 0, known, 0, k);
+			int[] wanted = new int[k + 1];
+			for(int i = 0; i < k; i++)
+				wanted[i] = i;
+			wanted[k] = n - 1;
+			byte[] buf = new byte[(2 * k + 1) * BLOCK_SIZE];
+			for(int i = 0; i < k; i++)
+				System.arraycopy(blocks, known[i] * BLOCK_SIZE, buf, i * BLOCK_SIZE, BLOCK_SIZE);
+			VandermondeFECCode.multiply(code.interpolate(known, wanted), buf, slots(0, k), slots(k, k + 1), BLOCK_SIZE, 0, BLOCK_SIZE);
+			for(int i = 0; i < wanted.length; i++) {
+				byte[] expected = new byte[BLOCK_SIZE];
+				byte[] got = new byte[BLOCK_SIZE];
+				System.arraycopy(blocks, wanted[i] * BLOCK_SIZE, expected, 0, BLOCK_SIZE);
+				System.arraycopy(buf, (k + i) * BLOCK_SIZE, got, 0, BLOCK_SIZE);
+				assertTrue("Block "+wanted[i]+" from "+Arrays.toString(known), Arrays.equals(expected, got));
+			}
+		}
+	}
+
+	/** Splitting the blocks up between threads must give the same result. */
+	public void testPartialRanges() {
+		Random random = new Random(5678);
+		int k = 10, n = 20;
+		VandermondeFECCode code = new VandermondeFECCode(k, n);
+		byte[][] matrix = code.encodeMatrix(slots(k, n - k));
+		byte[] whole = new byte[n * BLOCK_SIZE];
+		random.nextBytes(whole);
+		byte[] split = whole.clone();
+		VandermondeFECCode.multiply(matrix, whole, slots(0, k), slots(k, n - k), BLOCK_SIZE, 0, BLOCK_SIZE);
+		int[] bounds = { 0, 1, 777, 2048, 4099, BLOCK_SIZE };
+		for(int i = 0; i < bounds.length - 1; i++)
+			VandermondeFECCode.multiply(matrix, split, slots(0, k), slots(k, n - k), BLOCK_SIZE, bounds[i], bounds[i + 1]);
+		assertTrue(Arrays.equals(whole, split));
+	}
+
+	public void testInvalid() {
+		try {
+			new VandermondeFECCode(10, 257);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Ok
+		}
+		VandermondeFECCode code = new VandermondeFECCode(2, 4);
+		try {
+			code.interpolate(new int[] { 1, 1 }, new int[] { 0 });
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Ok
+		}
+		try {
+			code.encodeMatrix(new int[] { 1 });
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Ok
+		}
+	}
+
+	private static int[] slots(int start, int count) {
+		int[] slots = new int[count];
+		for(int i = 0; i < count; i++)
+			slots[i] = start + i;
+		return slots;
+	}
+}
@@ -0,0 +1,280 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+import freenet.support.BloomFilter;
+import freenet.support.CountingBloomFilter;
+
+/**
+ * Test case for {@link freenet.client.async.KeyListenerIndex} class.
+ */
+public class KeyListenerIndexTest extends TestCase {
+
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private final Random random = new Random(1234);
+
+	private NodeCHK randomKey() {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	/** The scheduler salts keys, here we just use the routing key. */
+	private static byte[] salt(Key key) {
+		return key.getRoutingKey();
+	}
+
+	/**
+	 * Tests that single key listeners are found by routing key, without probing the others.
+	 */
+	public void testSingleKey() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		NodeCHK[] keys = new NodeCHK[10];
+		SingleKeyListener[] listeners = new SingleKeyListener[keys.length];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = randomKey();
+			listeners[i] = new SingleKeyListener(keys[i], null, (short)1, false);
+			assertTrue(index.add(listeners[i]));
+		}
+		assertFalse(index.add(listeners[0]));
+		assertEquals(keys.length, index.size());
+
+		ArrayList<KeyListener> matches = index.probablyWantKey(keys[3], salt(keys[3]));
+		assertEquals(1, matches.size());
+		assertSame(listeners[3], matches.get(0));
+		assertEquals(1, index.getProbes(KeyListenerIndex.Phase.ROUTING_KEY));
+
+		NodeCHK other = randomKey();
+		assertNull(index.probablyWantKey(other, salt(other)));
+		assertFalse(index.anyProbablyWantKey(other, salt(other)));
+		assertEquals(1, index.getProbes(KeyListenerIndex.Phase.ROUTING_KEY));
+
+		assertTrue(index.remove(listeners[3]));
+		assertFalse(index.remove(listeners[3]));
+		assertNull(index.probablyWantKey(keys[3], salt(keys[3])));
+		assertEquals(keys.length - 1, index.size());
+	}
+
+	/**
+	 * Tests that splitfile and other listeners are all checked, and that each phase is counted
+	 * separately.
+	 */
+	public void testSplitfilesAndOthers() throws IOException {
+		KeyListenerIndex index = new KeyListenerIndex();
+		NodeCHK wanted = randomKey();
+		NodeCHK otherWanted = randomKey();
+		TestSplitFileListener[] splitfiles = new TestSplitFileListener[5];
+		for(int i=0;i<splitfiles.length;i++) {
+			splitfiles[i] = new TestSplitFileListener(100);
+			index.add(splitfiles[i]);
+		}
+		splitfiles[2].add(salt(wanted));
+		TestListener other = new TestListener(otherWanted, null);
+		index.add(other);
+
+		ArrayList<KeyListener> matches = index.probablyWantKey(wanted, salt(wanted));
+		assertEquals(1, matches.size());
+		assertSame(splitfiles[2], matches.get(0));
+		assertEquals(5, index.getProbes(KeyListenerIndex.Phase.SPLITFILE));
+		assertEquals(1, index.getProbes(KeyListenerIndex.Phase.OTHER));
+
+		matches = index.probablyWantKey(otherWanted, salt(otherWanted));
+		assertEquals(1, matches.size());
+		assertSame(other, matches.get(0));
+
+		// anyProbablyWantKey() stops at the first match
+		assertTrue(index.anyProbablyWantKey(wanted, salt(wanted)));
+		assertEquals(13, index.getProbes(KeyListenerIndex.Phase.SPLITFILE));
+		assertEquals(2, index.getProbes(KeyListenerIndex.Phase.OTHER));
+		assertEquals(15, index.getProbes());
+		assertEquals(3, index.getLookups());
+	}
+
+	/**
+	 * Tests the true and false positive counters.
+	 */
+	public void testPositiveCounters() throws IOException {
+		KeyListenerIndex index = new KeyListenerIndex();
+		TestSplitFileListener splitfile = new TestSplitFileListener(100);
+		NodeCHK key = randomKey();
+		SingleKeyListener single = new SingleKeyListener(key, null, (short)1, false);
+		index.add(splitfile);
+		index.add(single);
+		index.onChecked(splitfile, false);
+		index.onChecked(splitfile, false);
+		index.onChecked(splitfile, true);
+		index.onChecked(single, true);
+		assertEquals(2, index.getFalsePositives(KeyListenerIndex.Phase.SPLITFILE));
+		assertEquals(1, index.getTruePositives(KeyListenerIndex.Phase.SPLITFILE));
+		assertEquals(0, index.getFalsePositives(KeyListenerIndex.Phase.ROUTING_KEY));
+		assertEquals(1, index.getTruePositives(KeyListenerIndex.Phase.ROUTING_KEY));
+
+		index.probablyWantKey(key, salt(key));
+		String stats = index.getStats();
+		assertTrue(stats, stats.contains("routing_key(probes=1 true=1 false=0)"));
+		assertTrue(stats, stats.contains("splitfile(probes=1 true=1 false=2)"));
+		assertFalse(stats, stats.contains("other"));
+	}
+
+	/**
+	 * Tests removing all the listeners of a HasKeyListener.
+	 */
+	public void testRemoveByHasKeyListener() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		HasKeyListener a = new TestHasKeyListener();
+		HasKeyListener b = new TestHasKeyListener();
+		TestListener a1 = new TestListener(randomKey(), a);
+		TestListener a2 = new TestListener(randomKey(), a);
+		TestListener b1 = new TestListener(randomKey(), b);
+		index.add(a1);
+		index.add(b1);
+		index.add(a2);
+		ArrayList<KeyListener> removed = index.remove(a);
+		assertEquals(2, removed.size());
+		assertTrue(removed.contains(a1));
+		assertTrue(removed.contains(a2));
+		assertNull(index.remove(a));
+		assertEquals(1, index.size());
+		assertSame(b1, index.getAll().get(0));
+	}
+
+	/**
+	 * Measures probing splitfile listeners with realistically sized filters.
+	 */
+	public void testBenchmark() throws IOException {
+		if(!BENCHMARK) return;
+		for(int n : new int[] { 10, 100, 1000 }) {
+			KeyListenerIndex index = new KeyListenerIndex();
+			for(int i=0;i<n;i++) {
+				int keys = 100 + random.nextInt(5000);
+				TestSplitFileListener listener = new TestSplitFileListener(keys);
+				byte[] key = new byte[32];
+				for(int j=0;j<keys;j++) {
+					random.nextBytes(key);
+					listener.add(key.clone());
+				}
+				index.add(listener);
+			}
+			int lookups = 2000000 / n;
+			NodeCHK[] probe = new NodeCHK[lookups];
+			for(int i=0;i<lookups;i++)
+				probe[i] = randomKey();
+			for(int round=0;round<3;round++) {
+				long start = System.nanoTime();
+				for(NodeCHK key : probe)
+					index.probablyWantKey(key, salt(key));
+				long time = System.nanoTime() - start;
+				if(round == 2)
+					System.out.println(n + " splitfiles: " + (time / 1000.0 / lookups) + "us per key, " + (time / lookups / n) + "ns per splitfile");
+			}
+		}
+	}
+
+	/** A splitfile listener with a counting filter like the real one, which we can add to. */
+	private static class TestSplitFileListener extends SplitFileFetcherKeyListener {
+		private final CountingBloomFilter filter;
+
+		TestSplitFileListener(int keys) throws IOException {
+			super(null, keys, null, null, 0, 13, new byte[32], 1, 8, 1, false, true);
+			int bits = keys * SplitFileFetcher.DEFAULT_MAIN_BLOOM_ELEMENTS_PER_KEY;
+			bits += (8 - (bits & 7)) & 7;
+			filter = new CountingBloomFilter(bits, 13);
+		}
+
+		void add(byte[] saltedKey) {
+			filter.addKey(saltedKey);
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return filter.checkFilter(saltedKey);
+		}
+
+		@Override
+		boolean probablyWantKey(BloomFilter.Hashes saltedKeyHashes) {
+			return filter.checkFilter(saltedKeyHashes);
+		}
+	}
+
+	private static class TestHasKeyListener implements HasKeyListener {
+		public KeyListener makeKeyListener(ObjectContainer container, ClientContext context) {
+			return null;
+		}
+
+		public boolean isCancelled(ObjectContainer container) {
+			return false;
+		}
+
+		public void onFailed(KeyListenerConstructionException e, ObjectContainer container, ClientContext context) {
+		}
+	}
+
+	/** A listener of a kind the index doesn't know about. */
+	private static class TestListener implements KeyListener {
+		private final Key key;
+		private final HasKeyListener parent;
+
+		TestListener(Key key, HasKeyListener parent) {
+			this.key = key;
+			this.parent = parent;
+		}
+
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return this.key.equals(key);
+		}
+
+		public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return this.key.equals(key) ? 1 : (short)-1;
+		}
+
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return null;
+		}
+
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ObjectContainer container, ClientContext context) {
+			return this.key.equals(key);
+		}
+
+		public boolean persistent() {
+			return false;
+		}
+
+		public short getPriorityClass(ObjectContainer container) {
+			return 1;
+		}
+
+		public long countKeys() {
+			return 1;
+		}
+
+		public HasKeyListener getHasKeyListener() {
+			return parent;
+		}
+
+		public void onRemove() {
+		}
+
+		public boolean isEmpty() {
+			return false;
+		}
+
+		public boolean isSSK() {
+			return false;
+		}
+	}
+}
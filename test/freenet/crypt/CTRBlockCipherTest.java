@@ -0,0 +1,70 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+import freenet.crypt.ciphers.Rijndael;
+
+public class CTRBlockCipherTest extends TestCase {
+
+	private final Random random = new Random(1);
+
+	private byte[] jceCTR(byte[] key, byte[] iv, byte[] data) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher.doFinal(data);
+	}
+
+	private void checkAgainstJCE(byte[] iv) throws Exception {
+		byte[] key = new byte[16];
+		random.nextBytes(key);
+		byte[] plain = new byte[10000];
+		random.nextBytes(plain);
+		byte[] expected = jceCTR(key, iv, plain);
+
+		Rijndael aes = new Rijndael(128, 128);
+		aes.initialize(key);
+		// All at once, into a different buffer.
+		CTRBlockCipher ctr = new CTRBlockCipher(aes, iv);
+		byte[] out = new byte[plain.length];
+		ctr.processBytes(plain, 0, plain.length, out, 0);
+		assertTrue(Arrays.equals(expected, out));
+
+		// In place, in pieces of random sizes which don't line up with the blocks.
+		ctr.reset(iv, 0);
+		byte[] buf = plain.clone();
+		int offset = 0;
+		while(offset < buf.length) {
+			int length = Math.min(buf.length - offset, random.nextInt(50));
+			ctr.processBytes(buf, offset, length, buf, offset);
+			offset += length;
+		}
+		assertTrue(Arrays.equals(expected, buf));
+
+		// Decrypting is the same operation.
+		ctr.reset(iv, 0);
+		ctr.processBytes(buf, 0, buf.length, buf, 0);
+		assertTrue(Arrays.equals(plain, buf));
+	}
+
+	public void testMatchesJCE() throws Exception {
+		byte[] iv = new byte[16];
+		random.nextBytes(iv);
+		checkAgainstJCE(iv);
+	}
+
+	public void testCounterWraps() throws Exception {
+		byte[] iv = new byte[16];
+		Arrays.fill(iv, 8, 16, (byte) 0xFF);
+		iv[15] = (byte) 0xF0;
+		checkAgainstJCE(iv);
+	}
+}
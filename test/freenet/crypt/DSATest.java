@@ -16,6 +16,8 @@
 package freenet.crypt;
 
 import java.math.BigInteger;
+import java.util.Random;
+
 import junit.framework.TestCase;
 import net.i2p.util.NativeBigInteger;
 
@@ -25,6 +27,8 @@ import net.i2p.util.NativeBigInteger;
  * @author Alberto Bacchelli &lt;sback@freenetproject.org&gt;
  */
 public class DSATest extends TestCase{
+
+    private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
     
     /*-------------FIPS-EXAMPLE-CONSTANTS---------------------------------------
      * These are the values as they appear in the Appendix 5
@@ -194,6 +198,118 @@ public class DSATest extends TestCase{
         
         assertTrue(DSA.verify(aDSAPubKey,aSignature,aDSAPrivKey.getX(),false));
     }
+
+    /**
+     * Test the comb tables used by verify() against modPow(), for both
+     * single and simultaneous exponentiation. */
+    public void testFixedBaseComb() {
+        DSAGroup group = Global.DSAgroupBigA;
+        BigInteger p = group.getP();
+        BigInteger q = group.getQ();
+        Random random = new Random(1);
+        BigInteger y = new NativeBigInteger(p.bitLength() - 1, random);
+        FixedBaseComb g = new FixedBaseComb(group.getG(), p, q.bitLength());
+        FixedBaseComb yComb = new FixedBaseComb(y, p, q.bitLength());
+        BigInteger[] exponents = new BigInteger[] {
+                BigInteger.ZERO, BigInteger.ONE, q.subtract(BigInteger.ONE),
+                BigInteger.ONE.shiftLeft(255), new BigInteger(256, random),
+                new BigInteger(256, random), new BigInteger(100, random) };
+        for(BigInteger e1 : exponents) {
+            assertEquals(group.getG().modPow(e1, p), g.pow(e1));
+            for(BigInteger e2 : exponents)
+                assertEquals(group.getG().modPow(e1, p).multiply(y.modPow(e2, p)).mod(p),
+                        FixedBaseComb.multiPow(g, e1, yComb, e2));
+        }
+        assertFalse(g.canExponentiate(BigInteger.ONE.shiftLeft(256)));
+    }
+
+    /**
+     * Verify many signatures by the same key, so verify() builds comb
+     * tables for it, and check that bad signatures still fail. */
+    public void testVerifyRepeatedKey() {
+        DSAGroup group = Global.DSAgroupBigA;
+        DSAPrivateKey privKey = new DSAPrivateKey(group, randomSource);
+        DSAPublicKey pubKey = new DSAPublicKey(group, privKey);
+        Random random = new Random(2);
+        for(int i = 0; i < 10; i++) {
+            BigInteger m = new BigInteger(255, random);
+            DSASignature sig = DSA.sign(group, privKey, m, randomSource);
+            assertTrue(DSA.verify(pubKey, sig, m, false));
+            // From the cache this time.
+            assertTrue(DSA.verify(pubKey, sig, m, false));
+            assertFalse(DSA.verify(pubKey, sig, m.add(BigInteger.ONE), false));
+            assertFalse(DSA.verify(pubKey, new DSASignature(sig.getR(), sig.getS().add(BigInteger.ONE)), m, false));
+            assertFalse(DSA.verify(pubKey, new DSASignature(sig.getR().add(BigInteger.ONE), sig.getS()), m, false));
+        }
+        // A different key.
+        DSAPublicKey otherKey = new DSAPublicKey(group, new DSAPrivateKey(group, randomSource));
+        BigInteger m = new BigInteger(255, random);
+        DSASignature sig = DSA.sign(group, privKey, m, randomSource);
+        assertFalse(DSA.verify(otherKey, sig, m, false));
+    }
+
+    /**
+     * Verifies per second: plain modPow(), with a new key each time, with
+     * the same key each time, and for signatures which were just verified. */
+    public void testVerifyBenchmark() {
+        if(!BENCHMARK) return;
+        DSAGroup group = Global.DSAgroupBigA;
+        int count = 200;
+        DSAPublicKey[] pubKeys = new DSAPublicKey[count];
+        DSASignature[] sigs = new DSASignature[count];
+        BigInteger[] hashes = new BigInteger[count];
+        DSAPrivateKey hotKey = new DSAPrivateKey(group, randomSource);
+        DSAPublicKey hotPubKey = new DSAPublicKey(group, hotKey);
+        DSASignature[] hotSigs = new DSASignature[count];
+        Random random = new Random(3);
+        for(int i = 0; i < count; i++) {
+            hashes[i] = new BigInteger(255, random);
+            hotSigs[i] = DSA.sign(group, hotKey, hashes[i], randomSource);
+        }
+        for(int round = 0; round < 3; round++) {
+            // New keys each round, so they are never used often enough to get tables.
+            for(int i = 0; i < count; i++) {
+                DSAPrivateKey privKey = new DSAPrivateKey(group, randomSource);
+                pubKeys[i] = new DSAPublicKey(group, privKey);
+                sigs[i] = DSA.sign(group, privKey, hashes[i], randomSource);
+            }
+            long start = System.currentTimeMillis();
+            for(int i = 0; i < count; i++) {
+                DSASignature sig = sigs[i];
+                BigInteger q = group.getQ();
+                BigInteger w = sig.getS().modInverse(q);
+                BigInteger u1 = hashes[i].multiply(w).mod(q);
+                BigInteger u2 = sig.getR().multiply(w).mod(q);
+                BigInteger v = group.getG().modPow(u1, group.getP()).multiply(
+                        pubKeys[i].getY().modPow(u2, group.getP())).mod(group.getP()).mod(q);
+                assertEquals(sig.getR(), v);
+            }
+            long modPowTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for(int i = 0; i < count; i++) {
+                // Different message each time, so never cached.
+                assertTrue(DSA.verify(pubKeys[i], sigs[i], hashes[i], false));
+            }
+            long manyKeysTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for(int i = 0; i < count; i++)
+                assertTrue(DSA.verify(hotPubKey, hotSigs[i], hashes[i], false));
+            long hotKeyTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for(int i = 0; i < count; i++)
+                assertTrue(DSA.verify(hotPubKey, hotSigs[count - 1], hashes[count - 1], false));
+            long cachedTime = System.currentTimeMillis() - start;
+            if(round == 2)
+                System.out.println("DSA verifies/sec: modPow " + rate(count, modPowTime) + ", verify() " +
+                        rate(count, manyKeysTime) + ", same key " + rate(count, hotKeyTime) +
+                        ", already verified " + rate(count, cachedTime) +
+                        (NativeBigInteger.isNative() ? " (native)" : ""));
+        }
+    }
+
+    private static long rate(int count, long time) {
+        return count * 1000L / Math.max(1, time);
+    }
     
     /* The following tests still generates problem,
      * they are commented so they could be useful to
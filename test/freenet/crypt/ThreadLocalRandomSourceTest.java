@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.support.ByteArrayWrapper;
+
+public class ThreadLocalRandomSourceTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private File seedFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		seedFile = File.createTempFile("prng-test", ".seed");
+		FileOutputStream fos = new FileOutputStream(seedFile);
+		byte[] buf = new byte[256];
+		new Random(1).nextBytes(buf);
+		fos.write(buf);
+		fos.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		assertTrue(seedFile.delete());
+	}
+
+	private Yarrow createYarrow() {
+		return new Yarrow(seedFile, "SHA1", "Rijndael", false, false, false);
+	}
+
+	/** Well past several reseeds, no block repeats and the bits are balanced. */
+	public void testOutput() {
+		ThreadLocalRandomSource random = new ThreadLocalRandomSource(createYarrow());
+		Set<ByteArrayWrapper> blocks = new HashSet<ByteArrayWrapper>();
+		long ones = 0;
+		int count = 64 * 1024;
+		for(int i = 0; i < count; i++) {
+			// Odd sizes, so blocks straddle the buffers.
+			byte[] block = new byte[(i & 1) == 0 ? 16 : 13];
+			random.nextBytes(block);
+			assertTrue(blocks.add(new ByteArrayWrapper(block)));
+			for(byte b : block)
+				ones += Integer.bitCount(b & 0xFF);
+		}
+		long bits = (count / 2) * (16 + 13) * 8L;
+		assertEquals(0.5, (double) ones / bits, 0.005);
+		for(int i = 0; i < 1000; i++) {
+			int x = random.nextInt(10);
+			assertTrue(x >= 0 && x < 10);
+		}
+	}
+
+	/** Each thread gets a different stream. */
+	public void testThreadsDiffer() throws InterruptedException {
+		final ThreadLocalRandomSource random = new ThreadLocalRandomSource(createYarrow());
+		final byte[][] out = new byte[2][64];
+		Thread[] threads = new Thread[2];
+		for(int i = 0; i < 2; i++) {
+			final int x = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					random.nextBytes(out[x]);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertFalse(new ByteArrayWrapper(out[0]).equals(new ByteArrayWrapper(out[1])));
+	}
+
+	/** Timer entropy is added to the pools in batches, and reseeds the Yarrow once there is enough. */
+	public void testTimerEntropyBatched() {
+		Yarrow yarrow = createYarrow();
+		ThreadLocalRandomSource random = new ThreadLocalRandomSource(yarrow);
+		EntropySource timer = new EntropySource();
+		Random r = new Random(2);
+		int reseeds = yarrow.getReseedCount();
+		int entropy = 0;
+		for(int i = 0; i < 31; i++) {
+			timer.lastVal = System.currentTimeMillis() - r.nextInt(1 << 20);
+			entropy += random.acceptTimerEntropy(timer);
+		}
+		// Well over the fast pool threshold, but still waiting in the batch.
+		assertTrue(entropy > 200);
+		assertEquals(reseeds, yarrow.getReseedCount());
+		timer.lastVal = System.currentTimeMillis() - r.nextInt(1 << 20);
+		random.acceptTimerEntropy(timer);
+		assertTrue(yarrow.getReseedCount() > reseeds);
+	}
+
+	/**
+	 * 32 threads drawing random numbers and feeding in timer entropy, as with packets being sent
+	 * and received, with and without the per-thread generators.
+	 */
+	public void testBenchmark() throws InterruptedException, IOException {
+		if(!BENCHMARK) return;
+		for(int round = 0; round < 3; round++) {
+			long yarrowTime = run(createYarrow());
+			long threadLocalTime = run(new ThreadLocalRandomSource(createYarrow()));
+			if(round == 2)
+				System.out.println("32 threads, 100k nextInt() + 16 byte nextBytes() + acceptTimerEntropy() each: Yarrow " +
+						yarrowTime + "ms, per-thread generators " + threadLocalTime + "ms");
+		}
+	}
+
+	private long run(final RandomSource random) throws InterruptedException {
+		final int threads = 32;
+		final int operations = 100 * 1000;
+		Thread[] t = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					EntropySource timer = new EntropySource();
+					byte[] buf = new byte[16];
+					for(int j = 0; j < operations; j++) {
+						random.nextInt();
+						random.nextBytes(buf);
+						random.acceptTimerEntropy(timer, 0.25);
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < threads; i++)
+			t[i].start();
+		for(int i = 0; i < threads; i++)
+			t[i].join();
+		return System.currentTimeMillis() - start;
+	}
+}
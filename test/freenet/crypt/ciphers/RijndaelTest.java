@@ -3,9 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.crypt.ciphers;
 
+import java.security.InvalidKeyException;
 import java.util.Arrays;
 import java.util.Random;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
 import junit.framework.TestCase;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.support.HexUtil;
@@ -31,6 +35,8 @@ public class RijndaelTest extends TestCase {
 
 	private static final Random rand = new Random(12345);
 
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
 	public void testKnownValue() throws UnsupportedCipherException {
 		Rijndael aes128 = new Rijndael(128, 128);
 		byte[] res128 = new byte[128 / 8];
@@ -1083,4 +1089,122 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	private static byte[] range(byte[] buf, int offset, int length) {
+		byte[] out = new byte[length];
+		System.arraycopy(buf, offset, out, 0, length);
+		return out;
+	}
+
+	/** The unrolled 256-bit block code must agree with the general code it replaced. */
+	public void testUnrolledMatchesGeneral() throws InvalidKeyException {
+		for (int keySize = 16; keySize <= 32; keySize += 8) {
+			byte[] key = new byte[keySize];
+			rand.nextBytes(key);
+			Object sessionKey = Rijndael_Algorithm.makeKey(key, 32);
+			int[] a = new int[8];
+			int[] t = new int[8];
+			for (int i = 0; i < 256; i++) {
+				byte[] plain = new byte[32];
+				rand.nextBytes(plain);
+				byte[] expected = new byte[32];
+				Rijndael_Algorithm.blockEncrypt(plain, expected, 0, sessionKey, 32, a, t);
+				byte[] buf = new byte[100];
+				Rijndael_Algorithm.blockEncrypt(plain, 0, buf, 7, sessionKey, 32);
+				assertTrue(Arrays.equals(expected, range(buf, 7, 32)));
+				Rijndael_Algorithm.blockDecrypt(buf, 7, buf, 50, sessionKey, 32);
+				assertTrue(Arrays.equals(plain, range(buf, 50, 32)));
+			}
+		}
+	}
+
+	/** One instance, used by several threads at once, must give the same results as one thread. */
+	public void testConcurrent() throws Exception {
+		final Rijndael aes = new Rijndael(256, 256);
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		aes.initialize(key);
+		final byte[][] plain = new byte[1024][32];
+		final byte[][] expected = new byte[plain.length][32];
+		for (int i = 0; i < plain.length; i++) {
+			rand.nextBytes(plain[i]);
+			aes.encipher(plain[i], expected[i]);
+		}
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					byte[] out = new byte[32];
+					for (int round = 0; round < 20; round++) {
+						for (int j = 0; j < plain.length; j++) {
+							aes.encipher(plain[j], out);
+							if (!Arrays.equals(out, expected[j])) failed[0] = true;
+							aes.decipher(out, out);
+							if (!Arrays.equals(out, plain[j])) failed[0] = true;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertFalse(failed[0]);
+	}
+
+	private interface BlockOp {
+		void encipher(byte[] buf, int offset) throws Exception;
+	}
+
+	private static void benchmark(String name, BlockOp op, int blockSize) throws Exception {
+		byte[] buf = new byte[1024 * 1024];
+		rand.nextBytes(buf);
+		for (int round = 0; round < 3; round++) {
+			long start = System.currentTimeMillis();
+			for (int pass = 0; pass < 16; pass++)
+				for (int i = 0; i < buf.length; i += blockSize)
+					op.encipher(buf, i);
+			long time = Math.max(1, System.currentTimeMillis() - start);
+			if (round == 2) System.out.println(name + ": " + (16 * 1000 / time) + " MB/s");
+		}
+	}
+
+	/** Single thread throughput of the old general code, the new code, and the JCE's AES. */
+	public void testBenchmark() throws Exception {
+		if (!BENCHMARK) return;
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		final Object sessionKey = Rijndael_Algorithm.makeKey(key, 32);
+		final int[] a = new int[8];
+		final int[] t = new int[8];
+		final byte[] out = new byte[32];
+		benchmark("Old Rijndael(256,256)", new BlockOp() {
+			public void encipher(byte[] buf, int offset) {
+				Rijndael_Algorithm.blockEncrypt(buf, out, offset, sessionKey, 32, a, t);
+			}
+		}, 32);
+		final Rijndael aes256 = new Rijndael(256, 256);
+		aes256.initialize(key);
+		benchmark("Rijndael(256,256)", new BlockOp() {
+			public void encipher(byte[] buf, int offset) {
+				aes256.encipher(buf, offset, buf, offset);
+			}
+		}, 32);
+		final Rijndael aes128 = new Rijndael(128, 128);
+		aes128.initialize(key);
+		benchmark("Rijndael(128,128)", new BlockOp() {
+			public void encipher(byte[] buf, int offset) {
+				aes128.encipher(buf, offset, buf, offset);
+			}
+		}, 16);
+		final Cipher jce = Cipher.getInstance("AES/ECB/NoPadding");
+		jce.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 16, "AES"));
+		benchmark("JCE AES-128", new BlockOp() {
+			public void encipher(byte[] buf, int offset) throws Exception {
+				jce.update(buf, offset, 16, buf, offset);
+			}
+		}, 16);
+	}
 }
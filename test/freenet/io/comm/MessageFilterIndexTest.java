@@ -0,0 +1,231 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.io.comm.MessageFilterIndex} class.
+ */
+public class MessageFilterIndexTest extends TestCase {
+
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final int TIMEOUT = 60 * 1000;
+
+	private static MessageFilter accepted(long uid, int timeout) {
+		return MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	/**
+	 * Tests that a message is matched by uid, falling back to a filter which doesn't care about
+	 * the uid, and that a matched filter is removed.
+	 */
+	public void testMatchByUid() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter one = accepted(1, TIMEOUT);
+		MessageFilter two = accepted(2, TIMEOUT);
+		MessageFilter any = MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(TIMEOUT);
+		index.add(one, now);
+		index.add(two, now);
+		index.add(any, now);
+		assertEquals(3, index.size());
+
+		assertSame(two, index.removeMatch(DMT.createFNPAccepted(2)));
+		assertSame(any, index.removeMatch(DMT.createFNPAccepted(3)));
+		assertNull(index.removeMatch(DMT.createFNPAccepted(3)));
+		assertNull(index.removeMatch(DMT.createFNPRejectedLoop(1)));
+		assertSame(one, index.removeMatch(DMT.createFNPAccepted(1)));
+		assertEquals(0, index.size());
+	}
+
+	/**
+	 * Tests that when several filters match, the one which times out first wins, whichever
+	 * bucket it is in.
+	 */
+	public void testFirstByTimeout() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter late = accepted(1, TIMEOUT * 2);
+		MessageFilter early = MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(TIMEOUT);
+		MessageFilter wildcard = MessageFilter.create().setField(DMT.UID, 1L).setTimeout(TIMEOUT / 2);
+		index.add(late, now);
+		index.add(early, now);
+		assertSame(early, index.removeMatch(DMT.createFNPAccepted(1)));
+		index.add(early, now);
+		index.add(wildcard, now);
+		assertSame(wildcard, index.removeMatch(DMT.createFNPAccepted(1)));
+		assertSame(early, index.removeMatch(DMT.createFNPAccepted(1)));
+		assertSame(late, index.removeMatch(DMT.createFNPAccepted(1)));
+		assertEquals(0, index.size());
+	}
+
+	/**
+	 * Tests that a filter with alternatives is found through any of them, and removed from all.
+	 */
+	public void testOr() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter f = accepted(1, TIMEOUT).or(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 1L).setTimeout(TIMEOUT));
+		index.add(f, now);
+		assertSame(f, index.removeMatch(DMT.createFNPRejectedLoop(1)));
+		assertEquals(0, index.size());
+		assertNull(index.removeMatch(DMT.createFNPAccepted(1)));
+	}
+
+	public void testRemove() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter f = accepted(1, TIMEOUT);
+		index.add(f, now);
+		assertTrue(index.remove(f));
+		assertFalse(index.remove(f));
+		assertNull(index.removeMatch(DMT.createFNPAccepted(1)));
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		index.removeTimedOut(now + TIMEOUT * 2, timedOut);
+		assertTrue(timedOut.isEmpty());
+	}
+
+	/**
+	 * Tests that only the filters past their timeout are removed.
+	 */
+	public void testTimeout() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		MessageFilter shortTimeout = accepted(1, 1000);
+		MessageFilter longTimeout = accepted(2, TIMEOUT);
+		index.add(longTimeout, now);
+		index.add(shortTimeout, now);
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		index.removeTimedOut(now, timedOut);
+		assertTrue(timedOut.isEmpty());
+		index.removeTimedOut(now + 2000, timedOut);
+		assertEquals(1, timedOut.size());
+		assertSame(shortTimeout, timedOut.get(0));
+		assertEquals(1, index.size());
+	}
+
+	/**
+	 * Tests that a callback is only asked whether its filter should time out when the filter is
+	 * due, and that the filter is removed once it says so.
+	 */
+	public void testCallbackCheckedWhenDue() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		CountingCallback cb = new CountingCallback();
+		MessageFilter f = MessageFilter.create().setType(DMT.FNPAccepted).setNoTimeout().setAsyncCallback(cb);
+		index.add(f, now);
+		List<MessageFilter> timedOut = new ArrayList<MessageFilter>();
+		long interval = MessageFilterIndex.CALLBACK_CHECK_INTERVAL;
+
+		for (int i = 0; i < 10; i++)
+			index.removeTimedOut(now + i, timedOut);
+		assertEquals(0, cb.checks);
+
+		long t = now + interval + 1;
+		index.removeTimedOut(t, timedOut);
+		assertEquals(1, cb.checks);
+		assertTrue(timedOut.isEmpty());
+
+		cb.shouldTimeout = true;
+		index.removeTimedOut(t + interval / 2, timedOut);
+		assertEquals(1, cb.checks);
+		assertTrue(timedOut.isEmpty());
+
+		index.removeTimedOut(t + interval + 1, timedOut);
+		assertEquals(2, cb.checks);
+		assertEquals(1, timedOut.size());
+		assertSame(f, timedOut.get(0));
+		assertEquals(0, index.size());
+	}
+
+	/**
+	 * Tests that a callback which wants to time out stops its filter matching straight away.
+	 */
+	public void testCallbackCheckedOnMatch() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex();
+		CountingCallback cb = new CountingCallback();
+		MessageFilter f = MessageFilter.create().setType(DMT.FNPAccepted).setNoTimeout().setAsyncCallback(cb);
+		index.add(f, now);
+		cb.shouldTimeout = true;
+		assertNull(index.removeMatch(DMT.createFNPAccepted(1)));
+		assertTrue(cb.checks > 0);
+	}
+
+	/**
+	 * Measures MessageCore.checkFilters() with 10k filters outstanding, for messages which match
+	 * one and for messages which match none, against a scan of the filters as it used to be.
+	 */
+	public void testBenchmark() throws DisconnectedException {
+		if(!BENCHMARK) return;
+		final int filters = 10000;
+		MessageCore core = new MessageCore();
+		AsyncMessageFilterCallback cb = new NullAsyncMessageFilterCallback();
+		List<MessageFilter> scan = new ArrayList<MessageFilter>(filters);
+		Message[] matching = new Message[filters];
+		Message[] unmatched = new Message[filters];
+		for(int i = 0; i < filters; i++) {
+			MessageFilter f = accepted(i, TIMEOUT * 60);
+			core.addAsyncFilter(f, cb);
+			scan.add(f);
+			matching[i] = DMT.createFNPAccepted(i);
+			unmatched[i] = DMT.createFNPRejectedLoop(i);
+		}
+		for(int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for(Message m : matching)
+				core.checkFilters(m, null);
+			long matchTime = System.nanoTime() - start;
+			// Put them back for the next round, and the unmatched messages below.
+			for(int i = 0; i < filters; i++)
+				core.addAsyncFilter(accepted(i, TIMEOUT * 60), cb);
+			start = System.nanoTime();
+			for(Message m : unmatched)
+				core.checkFilters(m, null);
+			long missTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			int found = 0;
+			for(Message m : unmatched) {
+				for(MessageFilter f : scan) {
+					if(f.match(m)) {
+						found++;
+						break;
+					}
+				}
+			}
+			long scanTime = System.nanoTime() - start;
+			assertEquals(0, found);
+			if(round == 4)
+				System.out.println(filters + " filters: checkFilters " + (matchTime / filters) + "ns matched, " + (missTime / filters) + "ns unmatched; linear scan " + (scanTime / filters) + "ns unmatched");
+		}
+	}
+
+	private static class CountingCallback implements AsyncMessageFilterCallback {
+		int checks;
+		boolean shouldTimeout;
+
+		public void onMatched(Message m) {
+		}
+
+		public boolean shouldTimeout() {
+			checks++;
+			return shouldTimeout;
+		}
+
+		public void onTimeout() {
+		}
+
+		public void onDisconnect(PeerContext ctx) {
+		}
+
+		public void onRestarted(PeerContext ctx) {
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+public class MessageTest extends TestCase {
+
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static MessageType allTypes;
+	private static MessageType small;
+
+	@Override
+	protected void setUp() {
+		if (allTypes != null) return;
+		allTypes = new MessageType("MessageTest.allTypes", (short) 0);
+		allTypes.addField("bool", Boolean.class);
+		allTypes.addField("byte", Byte.class);
+		allTypes.addField("short", Short.class);
+		allTypes.addField("int", Integer.class);
+		allTypes.addField("long", Long.class);
+		allTypes.addField("double", Double.class);
+		allTypes.addField("string", String.class);
+		allTypes.addField("buffer", Buffer.class);
+		allTypes.addField("shortBuffer", ShortBuffer.class);
+		allTypes.addLinkedListField("list", Long.class);
+		small = new MessageType("MessageTest.small", (short) 0);
+		small.addField("uid", Long.class);
+	}
+
+	private Message makeMessage() {
+		Message m = new Message(allTypes);
+		m.set("bool", true);
+		m.set("byte", (byte) -3);
+		m.set("short", (short) 1234);
+		m.set("int", -123456789);
+		m.set("long", 0x123456789abcdefL);
+		m.set("double", 0.125);
+		m.set("string", "Hello é");
+		m.set("buffer", new Buffer(new byte[] { 9, 8, 7, 6, 5 }, 1, 3));
+		m.set("shortBuffer", new ShortBuffer(new byte[] { 1, 2, 3 }));
+		LinkedList<Long> list = new LinkedList<Long>();
+		list.add(1L);
+		list.add(-2L);
+		m.set("list", list);
+		return m;
+	}
+
+	/** The encoding before fields were stored by index */
+	private byte[] legacyEncode(Message m) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(m.getSpec().getName().hashCode());
+		for (String name : m.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos, null);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	public void testWireFormat() throws Exception {
+		Message m = makeMessage();
+		byte[] expected = legacyEncode(m);
+		byte[] encoded = m.encodeToPacket(null);
+		assertTrue(Arrays.equals(expected, encoded));
+		assertEquals(expected.length, m.encodedLength(null));
+	}
+
+	public void testRoundTrip() {
+		Message m = makeMessage();
+		Message sub = new Message(small);
+		sub.set("uid", 42L);
+		m.addSubMessage(sub);
+		byte[] encoded = m.encodeToPacket(null);
+		assertEquals(encoded.length, m.encodedLength(null));
+
+		Message d = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertNotNull(d);
+		assertEquals(allTypes, d.getSpec());
+		assertTrue(d.getBoolean("bool"));
+		assertEquals((byte) -3, d.getByte("byte"));
+		assertEquals((short) 1234, d.getShort("short"));
+		assertEquals(-123456789, d.getInt("int"));
+		assertEquals(0x123456789abcdefL, d.getLong("long"));
+		assertEquals(0.125, d.getDouble("double"));
+		assertEquals("Hello é", d.getString("string"));
+		assertTrue(Arrays.equals(new byte[] { 8, 7, 6 }, ((Buffer) d.getObject("buffer")).getData()));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, ((ShortBuffer) d.getObject("shortBuffer")).getData()));
+		assertEquals(Arrays.asList(new Long[] { 1L, -2L }), d.getObject("list"));
+		assertEquals(42L, d.getSubMessage(small).getLong("uid"));
+	}
+
+	public void testEncodeIntoBuffer() {
+		Message m = new Message(small);
+		m.set("uid", 7L);
+		ByteBuffer buf = ByteBuffer.allocate(20);
+		buf.position(3);
+		assertEquals(12, m.encodeToPacket(null, buf));
+		assertEquals(15, buf.position());
+		assertEquals(small.getName().hashCode(), buf.getInt(3));
+		assertEquals(7L, buf.getLong(7));
+	}
+
+	public void testFields() {
+		Message m = new Message(small);
+		assertFalse(m.isSet("uid"));
+		assertNull(m.getObject("uid"));
+		try {
+			m.getLong("uid");
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Ok
+		}
+		try {
+			m.set("uid", 1);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Ok
+		}
+		try {
+			m.set("nonexistent", 1L);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Ok
+		}
+		m.set("uid", Long.valueOf(5));
+		assertTrue(m.isSet("uid"));
+		assertEquals(Long.valueOf(5), m.getFromPayload("uid"));
+		assertEquals("MessageTest.small {uid=5}", m.toString());
+	}
+
+	/**
+	 * Measures encoding and decoding a few common messages: ns and bytes allocated per message,
+	 * encoding into a reused buffer, into a new byte[], and as before with Serializer.
+	 */
+	public void testBenchmark() throws Exception {
+		if(!BENCHMARK) return;
+		Random random = new Random(1234);
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		BitArray sent = new BitArray(32);
+		sent.setBit(3, true);
+		Message[] messages = new Message[] {
+			DMT.createFNPCHKDataRequest(random.nextLong(), (short) 18, new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256)),
+			DMT.createPacketTransmit(random.nextLong(), 3, sent, new Buffer(data)),
+			DMT.createFNPAccepted(random.nextLong())
+		};
+		final int iterations = 200000;
+		for(Message m : messages) {
+			ByteBuffer buf = ByteBuffer.allocate(m.encodedLength(null));
+			byte[] encoded = m.encodeToPacket(null);
+			for(int round = 0; round < 3; round++) {
+				long[] start = now();
+				for(int i = 0; i < iterations; i++) {
+					buf.clear();
+					m.encodeToPacket(null, buf);
+				}
+				String intoBuffer = per(start, iterations);
+				start = now();
+				for(int i = 0; i < iterations; i++)
+					m.encodeToPacket(null);
+				String toArray = per(start, iterations);
+				start = now();
+				for(int i = 0; i < iterations; i++)
+					legacyEncode(m);
+				String legacy = per(start, iterations);
+				start = now();
+				for(int i = 0; i < iterations; i++)
+					Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+				String decode = per(start, iterations);
+				if(round == 2)
+					System.out.println(m.getSpec().getName() + " (" + encoded.length + " bytes): encode into buffer " + intoBuffer +
+							", to byte[] " + toArray + ", Serializer " + legacy + "; decode " + decode);
+			}
+		}
+	}
+
+	/** @return The time, and the bytes allocated by this thread if the JVM can tell us. */
+	private static long[] now() {
+		return new long[] { System.nanoTime(), allocated() };
+	}
+
+	private static String per(long[] start, int iterations) {
+		long time = System.nanoTime() - start[0];
+		long bytes = allocated() - start[1];
+		return (time / iterations) + "ns" + (start[1] < 0 ? "" : " " + (bytes / iterations) + "B");
+	}
+
+	private static long allocated() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.io.comm.UnclaimedMessages} class.
+ */
+public class UnclaimedMessagesTest extends TestCase {
+
+	private static final int TIMEOUT = 60 * 1000;
+
+	private static MessageFilter accepted(long uid) {
+		return MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, uid).setTimeout(TIMEOUT);
+	}
+
+	/**
+	 * Tests that the oldest matching message is returned first, and each only once.
+	 */
+	public void testOldestFirst() {
+		long now = System.currentTimeMillis();
+		UnclaimedMessages unclaimed = new UnclaimedMessages(100);
+		Message first = DMT.createFNPAccepted(1);
+		Message other = DMT.createFNPRejectedLoop(1);
+		Message second = DMT.createFNPAccepted(1);
+		unclaimed.add(first);
+		unclaimed.add(other);
+		unclaimed.add(second);
+		assertEquals(3, unclaimed.size());
+
+		assertSame(first, unclaimed.removeMatch(accepted(1), now, 0));
+		assertSame(second, unclaimed.removeMatch(accepted(1), now, 0));
+		assertNull(unclaimed.removeMatch(accepted(1), now, 0));
+		assertNull(unclaimed.removeMatch(accepted(2), now, 0));
+		assertEquals(1, unclaimed.size());
+	}
+
+	/**
+	 * Tests filters which only give the type, or no type at all, and filters with alternatives.
+	 */
+	public void testPartialFilters() {
+		long now = System.currentTimeMillis();
+		UnclaimedMessages unclaimed = new UnclaimedMessages(100);
+		Message a1 = DMT.createFNPAccepted(1);
+		Message r2 = DMT.createFNPRejectedLoop(2);
+		Message a3 = DMT.createFNPAccepted(3);
+		unclaimed.add(a1);
+		unclaimed.add(r2);
+		unclaimed.add(a3);
+
+		MessageFilter byUidOnly = MessageFilter.create().setField(DMT.UID, 3L).setTimeout(TIMEOUT);
+		assertSame(a3, unclaimed.removeMatch(byUidOnly, now, 0));
+
+		MessageFilter either = MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(TIMEOUT)
+			.or(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(TIMEOUT));
+		assertSame(a1, unclaimed.removeMatch(either, now, 0));
+		assertSame(r2, unclaimed.removeMatch(either, now, 0));
+		assertEquals(0, unclaimed.size());
+	}
+
+	/**
+	 * Tests that the oldest messages are dropped when there are too many.
+	 */
+	public void testMaxSize() {
+		long now = System.currentTimeMillis();
+		UnclaimedMessages unclaimed = new UnclaimedMessages(3);
+		for (int i = 0; i < 10; i++)
+			unclaimed.add(DMT.createFNPAccepted(i));
+		assertTrue(unclaimed.size() <= 4);
+		assertNull(unclaimed.removeMatch(accepted(0), now, 0));
+		assertNotNull(unclaimed.removeMatch(accepted(9), now, 0));
+		assertNotNull(unclaimed.removeMatch(accepted(8), now, 0));
+	}
+
+	/**
+	 * Tests that messages older than the drop time are dropped, unless the filter wants them.
+	 */
+	public void testDropOld() {
+		UnclaimedMessages unclaimed = new UnclaimedMessages(100);
+		Message a1 = DMT.createFNPAccepted(1);
+		Message a2 = DMT.createFNPAccepted(2);
+		unclaimed.add(a1);
+		unclaimed.add(a2);
+		long now = System.currentTimeMillis();
+		assertSame(a2, unclaimed.removeMatch(accepted(2), now, now + 1));
+		assertEquals(0, unclaimed.size());
+		assertNull(unclaimed.removeMatch(accepted(1), now, 0));
+	}
+
+	public void testMessageCounts() {
+		UnclaimedMessages unclaimed = new UnclaimedMessages(100);
+		unclaimed.add(DMT.createFNPAccepted(1));
+		unclaimed.add(DMT.createFNPAccepted(2));
+		unclaimed.add(DMT.createFNPRejectedLoop(1));
+		Map<String, Integer> counts = unclaimed.getMessageCounts();
+		assertEquals(2, counts.size());
+		assertEquals(Integer.valueOf(2), counts.get(DMT.FNPAccepted.getName()));
+		assertEquals(Integer.valueOf(1), counts.get(DMT.FNPRejectedLoop.getName()));
+	}
+}
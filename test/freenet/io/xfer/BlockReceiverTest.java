@@ -0,0 +1,335 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.AsyncMessageFilterCallback;
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+import freenet.io.comm.DisconnectedException;
+import freenet.io.comm.Message;
+import freenet.io.comm.MessageCore;
+import freenet.io.comm.MessageFilter;
+import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.RetrievalException;
+import freenet.io.comm.SocketHandler;
+import freenet.node.OutgoingPacketMangler;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+
+/**
+ * Test case for the asynchronous {@link freenet.io.xfer.BlockReceiver#receive(BlockReceiver.BlockReceiverCompletion)}.
+ */
+public class BlockReceiverTest extends TestCase {
+
+	private static final long UID = 1234;
+	private static final int PACKETS = 4;
+	private static final int PACKET_SIZE = 32;
+
+	private FakeMessageCore core;
+	private FakePeer peer;
+	private PartiallyReceivedBlock prb;
+	private BlockReceiver receiver;
+	private Completion completion;
+	private byte[] data;
+
+	@Override
+	protected void setUp() {
+		core = new FakeMessageCore();
+		peer = new FakePeer();
+		prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		receiver = new BlockReceiver(core, peer, UID, prb, null, null, false);
+		completion = new Completion();
+		data = new byte[PACKETS * PACKET_SIZE];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) i;
+	}
+
+	/** @return A packetTransmit for the packet, claiming that the given packets have been sent. */
+	private Message packet(int packetNo, int... sentPackets) {
+		BitArray sent = new BitArray(PACKETS);
+		for(int i : sentPackets)
+			sent.setBit(i, true);
+		sent.setBit(packetNo, true);
+		return DMT.createPacketTransmit(UID, packetNo, sent, new Buffer(data, packetNo * PACKET_SIZE, PACKET_SIZE));
+	}
+
+	/**
+	 * Tests that the block is returned once all the packets have arrived, without asking for
+	 * any again, and that leftover messages are then discarded.
+	 */
+	public void testAllPackets() {
+		receiver.receive(completion);
+		assertNotNull(core.callback);
+		for(int i=0;i<PACKETS;i++) {
+			assertEquals(0, completion.calls);
+			core.deliver(packet(i));
+		}
+		assertEquals(1, completion.calls);
+		assertNull(completion.failure);
+		assertTrue(Arrays.equals(data, completion.block));
+		assertEquals(1, core.sent.size());
+		assertEquals(DMT.allReceived, core.sent.get(0).getSpec());
+		// A late allSent goes to the discard filter.
+		assertSame(receiver, core.callback);
+		core.deliver(DMT.createAllSent(UID));
+		assertEquals(1, completion.calls);
+	}
+
+	/**
+	 * Tests that a packet the sender thinks it has sent is asked for again, and that everything
+	 * missing is asked for on allSent and on timeout.
+	 */
+	public void testMissingPacketResend() {
+		receiver.receive(completion);
+		core.deliver(packet(0));
+		core.deliver(packet(2, 0, 1));
+		assertEquals(1, core.sent.size());
+		assertEquals(Arrays.asList(1), missing(core.sent.get(0)));
+		// Not asked for again until the resend time.
+		core.deliver(packet(3, 0, 1, 2));
+		assertEquals(1, core.sent.size());
+
+		core.timeout();
+		assertEquals(2, core.sent.size());
+		assertEquals(Arrays.asList(1), missing(core.sent.get(1)));
+		core.deliver(DMT.createAllSent(UID));
+		assertEquals(3, core.sent.size());
+		assertEquals(Arrays.asList(1), missing(core.sent.get(2)));
+		assertEquals(0, completion.calls);
+
+		core.deliver(packet(1));
+		assertEquals(1, completion.calls);
+		assertTrue(Arrays.equals(data, completion.block));
+		assertEquals(DMT.allReceived, core.sent.get(3).getSpec());
+	}
+
+	/**
+	 * Tests that we give up if the sender ignores our resend requests.
+	 */
+	public void testSenderUnresponsive() {
+		receiver.receive(completion);
+		core.deliver(packet(0));
+		for(int i=0;i<BlockReceiver.MAX_CONSECUTIVE_MISSING_PACKET_REPORTS;i++)
+			core.timeout();
+		assertEquals(0, completion.calls);
+		core.timeout();
+		assertEquals(1, completion.calls);
+		assertEquals(RetrievalException.SENDER_DIED, completion.failure.getReason());
+		assertTrue(prb.isAborted());
+	}
+
+	/**
+	 * Tests that the transfer fails when the sender aborts it.
+	 */
+	public void testSendAborted() {
+		receiver.receive(completion);
+		core.deliver(packet(0));
+		core.deliver(DMT.createSendAborted(UID, RetrievalException.SENDER_DIED, "Test"));
+		assertEquals(1, completion.calls);
+		assertNull(completion.block);
+		assertEquals(RetrievalException.SENDER_DIED, completion.failure.getReason());
+		assertTrue(receiver.senderAborted());
+		assertTrue(prb.isAborted());
+		assertNull(core.callback);
+	}
+
+	/**
+	 * Tests that the transfer fails when the sender disconnects, whether we are waiting for a
+	 * message, a message arrives after it disconnected, or it was gone before we started.
+	 */
+	public void testDisconnect() {
+		receiver.receive(completion);
+		core.deliver(packet(0));
+		core.disconnect(peer);
+		assertEquals(1, completion.calls);
+		assertEquals(RetrievalException.SENDER_DISCONNECTED, completion.failure.getReason());
+		assertTrue(prb.isAborted());
+
+		setUp();
+		receiver.receive(completion);
+		peer.connected = false;
+		core.deliver(packet(0));
+		assertEquals(1, completion.calls);
+		assertEquals(RetrievalException.SENDER_DISCONNECTED, completion.failure.getReason());
+
+		setUp();
+		core.disconnected = true;
+		receiver.receive(completion);
+		assertEquals(1, completion.calls);
+		assertEquals(RetrievalException.SENDER_DISCONNECTED, completion.failure.getReason());
+	}
+
+	/**
+	 * Tests that the bytes of each message received are charged to the byte counter, as they
+	 * were when waiting for them on a thread.
+	 */
+	public void testReceivedBytesCounted() {
+		CountingByteCounter ctr = new CountingByteCounter();
+		receiver = new BlockReceiver(core, peer, UID, prb, ctr, null, false);
+		receiver.receive(completion);
+		int expected = 0;
+		for(int i=0;i<PACKETS;i++) {
+			byte[] buf = packet(i).encodeToPacket(peer);
+			Message m = Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 10);
+			assertEquals(buf.length + 10, m.receivedByteCount());
+			expected += m.receivedByteCount();
+			core.deliver(m);
+		}
+		assertEquals(1, completion.calls);
+		assertNull(completion.failure);
+		assertEquals(expected, ctr.received);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Integer> missing(Message m) {
+		assertEquals(DMT.missingPacketNotification, m.getSpec());
+		return (LinkedList<Integer>) m.getObject(DMT.MISSING);
+	}
+
+	private static class Completion implements BlockReceiver.BlockReceiverCompletion {
+		int calls;
+		byte[] block;
+		RetrievalException failure;
+
+		public void blockReceived(byte[] buf) {
+			calls++;
+			block = buf;
+		}
+
+		public void blockReceiveFailed(RetrievalException e) {
+			calls++;
+			failure = e;
+		}
+	}
+
+	private static class CountingByteCounter implements ByteCounter {
+		int received;
+
+		public void receivedBytes(int x) {
+			received += x;
+		}
+
+		public void sentBytes(int x) {
+		}
+
+		public void sentPayload(int x) {
+		}
+	}
+
+	/**
+	 * Records the messages sent and the one filter waited for. Messages are delivered to the
+	 * filter by the test.
+	 */
+	private static class FakeMessageCore extends MessageCore {
+		final List<Message> sent = new ArrayList<Message>();
+		AsyncMessageFilterCallback callback;
+		boolean disconnected;
+
+		@Override
+		public void addAsyncFilter(MessageFilter filter, AsyncMessageFilterCallback callback) throws DisconnectedException {
+			if(disconnected) throw new DisconnectedException();
+			this.callback = callback;
+		}
+
+		@Override
+		public Message waitFor(MessageFilter filter, ByteCounter ctr) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void send(PeerContext destination, Message m, ByteCounter ctr) throws NotConnectedException {
+			if(disconnected) throw new NotConnectedException();
+			sent.add(m);
+		}
+
+		private AsyncMessageFilterCallback take() {
+			AsyncMessageFilterCallback cb = callback;
+			assertNotNull(cb);
+			callback = null;
+			return cb;
+		}
+
+		void deliver(Message m) {
+			take().onMatched(m);
+		}
+
+		void timeout() {
+			take().onTimeout();
+		}
+
+		void disconnect(PeerContext ctx) {
+			disconnected = true;
+			take().onDisconnect(ctx);
+		}
+	}
+
+	private static class FakePeer implements PeerContext {
+		boolean connected = true;
+
+		public Peer getPeer() {
+			return null;
+		}
+
+		public void forceDisconnect(boolean dump) {
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+
+		public boolean isRoutable() {
+			return connected;
+		}
+
+		public int getVersionNumber() {
+			return -1;
+		}
+
+		public void sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendThrottledMessage(Message msg, int packetSize, ByteCounter ctr, int timeout, boolean waitForSent, AsyncMessageCallback callback) {
+			throw new UnsupportedOperationException();
+		}
+
+		public long getBootID() {
+			return 0;
+		}
+
+		public PacketThrottle getThrottle() {
+			return null;
+		}
+
+		public SocketHandler getSocketHandler() {
+			return null;
+		}
+
+		public OutgoingPacketMangler getOutgoingMangler() {
+			return null;
+		}
+
+		public WeakReference<? extends PeerContext> getWeakRef() {
+			return new WeakReference<PeerContext>(this);
+		}
+
+		public String shortToString() {
+			return "fake peer";
+		}
+
+		public void transferFailed(String reason) {
+		}
+	}
+}
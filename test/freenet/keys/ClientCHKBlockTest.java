@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.spaceroots.mantissa.random.MersenneTwister;
+
+import freenet.crypt.PCFBMode;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.PooledExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+
+public class ClientCHKBlockTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	/** The data of a block encoded the way it always has been, with a new cipher every time. */
+	private static byte[] referenceEncode(byte[] payload) throws Exception {
+		MessageDigest md256 = MessageDigest.getInstance("SHA-256");
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		System.arraycopy(payload, 0, data, 0, payload.length);
+		if(payload.length != data.length) {
+			byte[] randomBytes = new byte[data.length - payload.length];
+			new MersenneTwister(md256.digest(payload)).nextBytes(randomBytes);
+			System.arraycopy(randomBytes, 0, data, payload.length, randomBytes.length);
+		}
+		byte[] encKey = md256.digest(data);
+		byte[] header = new byte[36];
+		System.arraycopy(md256.digest(encKey), 0, header, 2, 32);
+		header[34] = (byte)(payload.length >> 8);
+		header[35] = (byte)(payload.length & 0xff);
+		Rijndael cipher = new Rijndael(256, 256);
+		cipher.initialize(encKey);
+		PCFBMode pcfb = PCFBMode.create(cipher);
+		pcfb.blockEncipher(header, 2, header.length - 2);
+		pcfb.blockEncipher(data, 0, data.length);
+		return data;
+	}
+
+	private static byte[] randomBytes(Random random, int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static ClientCHKBlock encode(byte[] payload) throws Exception {
+		return ClientCHKBlock.encode(payload.clone(), false, true, (short)-1, payload.length, COMPRESSOR_TYPE.DEFAULT_COMPRESSORDESCRIPTOR);
+	}
+
+	public void testMatchesReference() throws Exception {
+		Random random = new Random(1);
+		int[] lengths = { 0, 1, 1000, CHKBlock.DATA_LENGTH - 1, CHKBlock.DATA_LENGTH };
+		for(int length : lengths) {
+			byte[] payload = randomBytes(random, length);
+			ClientCHKBlock block = encode(payload);
+			assertTrue("Length "+length, Arrays.equals(referenceEncode(payload), block.getRawData()));
+			// Encoding again on the same thread must give the same key.
+			assertEquals(block.getClientKey(), encode(payload).getClientKey());
+		}
+	}
+
+	public void testRoundTrip() throws Exception {
+		Random random = new Random(2);
+		int[] lengths = { 0, 17, 20000, CHKBlock.DATA_LENGTH };
+		for(int length : lengths) {
+			byte[] payload = randomBytes(random, length);
+			ClientCHKBlock block = encode(payload);
+			ClientCHKBlock fetched = new ClientCHKBlock(block.getRawData(), block.getRawHeaders(), block.getClientKey(), true);
+			assertTrue("Length "+length, Arrays.equals(payload, fetched.memoryDecode()));
+		}
+	}
+
+	public void testBadKey() throws Exception {
+		byte[] payload = randomBytes(new Random(3), 1000);
+		ClientCHKBlock block = encode(payload);
+		ClientCHK key = block.getClientKey();
+		byte[] cryptoKey = key.cryptoKey.clone();
+		cryptoKey[0] ^= 1;
+		ClientCHK wrong = new ClientCHK(key.getRoutingKey(), cryptoKey, false, key.cryptoAlgorithm, key.compressionAlgorithm);
+		try {
+			new ClientCHKBlock(block.getRawData(), block.getRawHeaders(), wrong, true).memoryDecode();
+			fail();
+		} catch (CHKDecodeException e) {
+			// Ok
+		}
+		// And the good key still works afterwards.
+		assertTrue(Arrays.equals(payload, block.memoryDecode()));
+	}
+
+	public void testEncodeSplitfileBlocks() throws Exception {
+		Random random = new Random(4);
+		Bucket[] buckets = new Bucket[40];
+		for(int i = 0; i < buckets.length; i++)
+			if(i % 7 != 3) buckets[i] = new ArrayBucket(randomBytes(random, CHKBlock.DATA_LENGTH));
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		ClientCHKBlock[] parallel = ClientCHKBlock.encodeSplitfileBlocks(buckets, null, executor, 4);
+		ClientCHKBlock[] sequential = ClientCHKBlock.encodeSplitfileBlocks(buckets, null, null, 1);
+		for(int i = 0; i < buckets.length; i++) {
+			if(buckets[i] == null) {
+				assertNull(parallel[i]);
+				continue;
+			}
+			assertEquals(sequential[i].getClientKey(), parallel[i].getClientKey());
+			assertEquals(ClientCHKBlock.encode(buckets[i], false, true, (short)-1, CHKBlock.DATA_LENGTH, null).getClientKey(), parallel[i].getClientKey());
+		}
+	}
+
+	/** Blocks per second, on one thread and on all of them. */
+	public void testBenchmark() throws Exception {
+		if(!BENCHMARK) return;
+		Random random = new Random(5);
+		Bucket[] buckets = new Bucket[2048];
+		for(int i = 0; i < buckets.length; i++)
+			buckets[i] = new ArrayBucket(randomBytes(random, CHKBlock.DATA_LENGTH));
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int threads = 1; threads <= cores; threads *= 2) {
+			// Warm up
+			ClientCHKBlock.encodeSplitfileBlocks(buckets, null, executor, threads);
+			long start = System.currentTimeMillis();
+			ClientCHKBlock[] blocks = ClientCHKBlock.encodeSplitfileBlocks(buckets, null, executor, threads);
+			long encoded = System.currentTimeMillis();
+			for(ClientCHKBlock block : blocks)
+				block.memoryDecode();
+			long decoded = System.currentTimeMillis();
+			double encodeRate = buckets.length * 1000.0 / Math.max(1, encoded - start);
+			System.out.println(threads+" threads: "+(int) encodeRate+" blocks/sec encode ("+(int) (encodeRate / threads)+" per thread), "+
+					(int) (buckets.length * 1000.0 / Math.max(1, decoded - encoded))+" blocks/sec decode on one thread");
+		}
+	}
+}
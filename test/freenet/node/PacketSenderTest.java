@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the shard assignment and wake up logic in {@link freenet.node.PacketSender}.
+ */
+public class PacketSenderTest extends TestCase {
+
+	private static final long NOW = 1000000;
+
+	/**
+	 * Tests that each peer always goes to the same shard, and that peers are spread evenly.
+	 */
+	public void testShardIndex() {
+		int shards = 4;
+		int peers = 10000;
+		Object[] pns = new Object[peers];
+		int[] counts = new int[shards];
+		for(int i=0;i<peers;i++) {
+			pns[i] = new Object();
+			int shard = PacketSender.shardIndex(pns[i], shards);
+			assertTrue(shard >= 0 && shard < shards);
+			counts[shard]++;
+		}
+		for(int i=0;i<peers;i++)
+			assertTrue(PacketSender.shardIndex(pns[i], shards) == PacketSender.shardIndex(pns[i], shards));
+		for(int count : counts)
+			assertTrue("Unbalanced: " + count, count > peers / shards * 8 / 10 && count < peers / shards * 12 / 10);
+		assertEquals(0, PacketSender.shardIndex(pns[0], 1));
+	}
+
+	/**
+	 * Tests that waking a peer makes it due now.
+	 */
+	public void testWake() {
+		AtomicLong checkTime = new AtomicLong(NOW + PacketSender.IDLE_PEER_CHECK_INTERVAL);
+		PacketSender.wake(checkTime, NOW);
+		assertEquals(NOW, checkTime.get());
+		// Waking it again keeps it due.
+		PacketSender.wake(checkTime, NOW + 10);
+		assertTrue(checkTime.get() <= NOW + 10);
+	}
+
+	/**
+	 * Tests that a peer woken while its shard is looking at it stays due, so the shard looks
+	 * at it again on its next pass, rather than in IDLE_PEER_CHECK_INTERVAL.
+	 */
+	public void testWakeDuringPass() {
+		AtomicLong checkTime = new AtomicLong(NOW);
+		// The shard reads the check time, and starts dealing with the peer...
+		long due = checkTime.get();
+		// ... when a message is queued for it.
+		PacketSender.wake(checkTime, NOW + 5);
+		// So the shard's update fails.
+		assertFalse(checkTime.compareAndSet(due, NOW + PacketSender.IDLE_PEER_CHECK_INTERVAL));
+		assertTrue(checkTime.get() <= NOW + 5);
+
+		// Without the wake up it succeeds.
+		due = checkTime.get();
+		assertTrue(checkTime.compareAndSet(due, NOW + PacketSender.IDLE_PEER_CHECK_INTERVAL));
+	}
+
+	/**
+	 * Peers which aren't connected must be looked at as often as before the shards, so that
+	 * handshakes aren't delayed.
+	 */
+	public void testDisconnectedInterval() {
+		assertTrue(PacketSender.DISCONNECTED_PEER_CHECK_INTERVAL <= PacketSender.MAX_COALESCING_DELAY);
+	}
+}
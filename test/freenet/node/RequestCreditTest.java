@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.node.RequestCredit} class.
+ */
+public class RequestCreditTest extends TestCase {
+
+	private static final long NOW = 1000000;
+	private static final long DELAY = 200;
+
+	private static RequestCredit credit() {
+		return new RequestCredit(RequestStarter.MAX_CREDIT, 1.0, NOW);
+	}
+
+	/**
+	 * Tests that credit accrues at one request per delay, and that we wait for the rest of it.
+	 */
+	public void testAccrual() {
+		RequestCredit credit = credit();
+		assertTrue(credit.canStart());
+		assertEquals(0, credit.waitTime(DELAY));
+		credit.onStarted();
+		assertFalse(credit.canStart());
+		assertEquals(DELAY, credit.waitTime(DELAY));
+
+		credit.accrue(NOW + DELAY / 4, DELAY);
+		assertFalse(credit.canStart());
+		assertEquals(DELAY * 3 / 4, credit.waitTime(DELAY));
+		credit.accrue(NOW + DELAY, DELAY);
+		assertTrue(credit.canStart());
+		assertEquals(1.0, credit.get(), 1e-9);
+
+		// A longer delay accrues more slowly.
+		credit.onStarted();
+		credit.accrue(NOW + DELAY * 2, DELAY * 4);
+		assertEquals(0.25, credit.get(), 1e-9);
+	}
+
+	/**
+	 * Tests that after a quiet spell we can start at most MAX_CREDIT requests back to back.
+	 */
+	public void testMaxCredit() {
+		RequestCredit credit = credit();
+		credit.accrue(NOW + DELAY * 1000, DELAY);
+		assertEquals(RequestStarter.MAX_CREDIT, credit.get(), 1e-9);
+		int started = 0;
+		while(credit.canStart()) {
+			credit.onStarted();
+			started++;
+		}
+		assertEquals((int) RequestStarter.MAX_CREDIT, started);
+		assertEquals(DELAY, credit.waitTime(DELAY));
+	}
+
+	/**
+	 * Tests that a rejected request throws away the credit, so we wait a full delay and then
+	 * start one request, not a burst.
+	 */
+	public void testRejectResetsCredit() {
+		RequestCredit credit = credit();
+		credit.accrue(NOW + DELAY * 10, DELAY);
+		assertTrue(credit.canStart());
+		credit.onRejected();
+		assertFalse(credit.canStart());
+		assertEquals(DELAY, credit.waitTime(DELAY));
+		credit.accrue(NOW + DELAY * 11, DELAY);
+		assertTrue(credit.canStart());
+		credit.onStarted();
+		assertFalse(credit.canStart());
+	}
+
+	/**
+	 * Tests that nothing is earned while the clock goes backwards.
+	 */
+	public void testClockBackwards() {
+		RequestCredit credit = credit();
+		credit.onStarted();
+		credit.accrue(NOW - 60 * 1000, DELAY);
+		assertEquals(0.0, credit.get(), 1e-9);
+		credit.accrue(NOW - 60 * 1000 + DELAY, DELAY);
+		assertTrue(credit.canStart());
+	}
+}
@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.node.TrialDecryptionLimiter} class.
+ */
+public class TrialDecryptionLimiterTest extends TestCase {
+
+	private static final long NOW = 1000000;
+
+	private TrialDecryptionLimiter limiter() {
+		return new TrialDecryptionLimiter(5, 20, 20, 100, NOW);
+	}
+
+	private static InetAddress addr(int a, int b, int c, int d) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { (byte)a, (byte)b, (byte)c, (byte)d });
+	}
+
+	/**
+	 * Tests that a flood from one network uses up its own budget, but not the budget of a peer
+	 * rebinding to a different, unknown network.
+	 */
+	public void testFloodFromOneNetwork() throws UnknownHostException {
+		TrialDecryptionLimiter limiter = limiter();
+		int allowed = 0;
+		for(int i=0;i<1000;i++)
+			if(limiter.allow(addr(10, 0, 0, i & 0xff), false, NOW)) allowed++;
+		assertEquals(20, allowed);
+		assertTrue(limiter.allow(addr(192, 168, 1, 7), false, NOW));
+	}
+
+	/**
+	 * Tests that a flood with random spoofed source addresses is bounded by the global budget,
+	 * and that a peer rebinding within the network it was last seen on still gets through.
+	 */
+	public void testSpoofedFloodDoesNotBlockRebindingPeer() throws UnknownHostException {
+		TrialDecryptionLimiter limiter = limiter();
+		Random r = new Random(1234);
+		int allowed = 0;
+		for(int i=0;i<10000;i++) {
+			InetAddress spoofed = addr(r.nextInt(256), r.nextInt(256), r.nextInt(256), r.nextInt(256));
+			if(limiter.allow(spoofed, false, NOW)) allowed++;
+		}
+		assertEquals(100, allowed);
+		// A new peer on an unknown network has to wait for the flood to end...
+		assertFalse(limiter.allow(addr(192, 168, 1, 7), false, NOW));
+		// ... but a known peer whose NAT moved it within its network doesn't.
+		InetAddress lastSeen = addr(172, 16, 5, 1);
+		InetAddress rebound = addr(172, 16, 5, 200);
+		assertTrue(TrialDecryptionLimiter.sameNetwork(lastSeen, rebound));
+		for(int i=0;i<20;i++)
+			assertTrue(limiter.allow(rebound, true, NOW));
+		// Its network still has a budget of its own.
+		assertFalse(limiter.allow(rebound, true, NOW));
+	}
+
+	/**
+	 * Tests that the budgets refill over time, and stall rather than break if the clock goes
+	 * backwards.
+	 */
+	public void testRefill() throws UnknownHostException {
+		TrialDecryptionLimiter limiter = limiter();
+		InetAddress a = addr(10, 1, 2, 3);
+		for(int i=0;i<20;i++)
+			assertTrue(limiter.allow(a, false, NOW));
+		assertFalse(limiter.allow(a, false, NOW));
+		// 5 per second
+		assertFalse(limiter.allow(a, false, NOW + 100));
+		assertTrue(limiter.allow(a, false, NOW + 200));
+		assertFalse(limiter.allow(a, false, NOW + 200));
+		// Clock steps back: nothing is refilled, then refills resume from the new time.
+		assertFalse(limiter.allow(a, false, NOW - 10000));
+		assertTrue(limiter.allow(a, false, NOW - 10000 + 200));
+	}
+
+	/**
+	 * Tests the network comparison for IPv4 and IPv6.
+	 */
+	public void testSameNetwork() throws UnknownHostException {
+		assertTrue(TrialDecryptionLimiter.sameNetwork(addr(1, 2, 3, 4), addr(1, 2, 3, 5)));
+		assertFalse(TrialDecryptionLimiter.sameNetwork(addr(1, 2, 3, 4), addr(1, 2, 4, 4)));
+		InetAddress v6a = InetAddress.getByName("2001:db8:1:2::1");
+		InetAddress v6b = InetAddress.getByName("2001:db8:1:2:ffff::9");
+		InetAddress v6c = InetAddress.getByName("2001:db8:1:3::1");
+		assertTrue(TrialDecryptionLimiter.sameNetwork(v6a, v6b));
+		assertFalse(TrialDecryptionLimiter.sameNetwork(v6a, v6c));
+		assertFalse(TrialDecryptionLimiter.sameNetwork(v6a, addr(32, 1, 13, 184)));
+	}
+}
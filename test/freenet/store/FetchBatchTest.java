@@ -0,0 +1,118 @@
+package freenet.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+
+/** Test {@link FreenetStore#fetchBatch(byte[][], byte[][], StorableBlock[], boolean, boolean, boolean)} */
+public class FetchBatchTest extends TestCase {
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private File tempDir;
+
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-fetchbatchtest");
+		tempDir.mkdir();
+		exec.start();
+	}
+
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testRAMStoreMixed() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(store, 10);
+		checkMixed(store);
+	}
+
+	public void testSaltStoreMixed() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 20, 0, false, SemiOrderedShutdownHook.get(), true, true, new TrivialTicker(exec), null);
+		saltStore.start(null, true);
+		try {
+			checkMixed(store);
+		} finally {
+			saltStore.close();
+		}
+	}
+
+	/**
+	 * Store every other block, then fetch them all in one batch, with one slot already filled.
+	 */
+	private void checkMixed(CHKStore store) throws IOException, CHKEncodeException {
+		ClientCHKBlock[] blocks = new ClientCHKBlock[6];
+		NodeCHK[] keys = new NodeCHK[blocks.length];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test" + i);
+			keys[i] = blocks[i].getClientKey().getNodeCHK();
+			if(i % 2 == 0)
+				store.put(blocks[i], false);
+		}
+
+		CHKBlock[] found = new CHKBlock[blocks.length];
+		// Already found elsewhere: must be left alone and not counted
+		found[5] = blocks[5];
+		assertEquals(3, store.fetchBatch(keys, found, false));
+		for(int i=0;i<blocks.length;i++) {
+			if(i % 2 == 0) {
+				assertNotNull(found[i]);
+				assertEquals(keys[i], found[i].getKey());
+			} else if(i == 5)
+				assertSame(blocks[5], found[i]);
+			else
+				assertNull(found[i]);
+		}
+
+		// Nothing left to find
+		assertEquals(0, store.fetchBatch(keys, found, false));
+	}
+
+	/**
+	 * A batch fetch with dontPromote must not protect the blocks from eviction.
+	 */
+	public void testRAMStoreDontPromote() throws IOException, CHKEncodeException {
+		assertTrue(fetchThenEvict(false));
+		assertFalse(fetchThenEvict(true));
+	}
+
+	/**
+	 * Fill a store of 4 blocks, batch fetch the first two, then add a fifth block.
+	 * @return Whether the first block survived.
+	 */
+	private boolean fetchThenEvict(boolean dontPromote) throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(store, 4);
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++)
+			blocks[i] = encodeBlock("evict" + i);
+		for(int i=0;i<4;i++)
+			store.put(blocks[i], false);
+
+		NodeCHK[] keys = new NodeCHK[] { blocks[0].getClientKey().getNodeCHK(), blocks[1].getClientKey().getNodeCHK() };
+		assertEquals(2, store.fetchBatch(keys, new CHKBlock[2], dontPromote));
+
+		store.put(blocks[4], false);
+		return store.fetch(keys[0], true, null) != null;
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR);
+	}
+}
@@ -124,6 +124,26 @@ public class RAMSaltMigrationTest extends TestCase {
 		saltStore.close();
 	}
 
+	public void testSaltStoreMemoryMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setMemoryMapped(true);
+		saltStore.start(null, true);
+
+		for(int i=0;i<5;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test);
+			store.put(block, false);
+			ClientCHK key = block.getClientKey();
+
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, null);
+			String data = decodeBlock(verify, key);
+			assertEquals(test, data);
+		}
+
+		saltStore.close();
+	}
+
 	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
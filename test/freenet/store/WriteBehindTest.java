@@ -0,0 +1,114 @@
+package freenet.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+
+/** Test the write-behind queue of {@link SaltedHashFreenetStore} */
+public class WriteBehindTest extends TestCase {
+
+	private static final int BLOCKS = 40;
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private File tempDir;
+
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-writebehindtest");
+		tempDir.mkdir();
+		exec.start();
+	}
+
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private SaltedHashFreenetStore<CHKBlock> open(CHKStore store) throws IOException {
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 500, 0, false, SemiOrderedShutdownHook.get(), true, true, new TrivialTicker(exec), null);
+		saltStore.start(null, true);
+		return saltStore;
+	}
+
+	private ClientCHKBlock[] encodeBlocks() throws IOException, CHKEncodeException {
+		ClientCHKBlock[] blocks = new ClientCHKBlock[BLOCKS];
+		for(int i=0;i<blocks.length;i++) {
+			byte[] data = ("test" + i).getBytes("UTF-8");
+			SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+			blocks[i] = ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Blocks are visible to fetches as soon as put() returns, whether or not they have been
+	 * written yet.
+	 */
+	public void testFetchFromQueue() throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = open(store);
+		try {
+			saltStore.setWriteBehind(true);
+			assertTrue(saltStore.isWriteBehind());
+			ClientCHKBlock[] blocks = encodeBlocks();
+			for(ClientCHKBlock block : blocks) {
+				store.put(block, false);
+				NodeCHK key = block.getClientKey().getNodeCHK();
+				CHKBlock found = store.fetch(key, false, null);
+				assertNotNull(found);
+				assertEquals(key, found.getKey());
+				assertTrue(saltStore.probablyInStore(key.getRoutingKey()));
+			}
+			assertTrue(saltStore.getWriteQueueSize() >= 0);
+		} finally {
+			saltStore.close();
+		}
+	}
+
+	/**
+	 * Disabling write-behind writes out everything still queued before returning.
+	 */
+	public void testDrain() throws IOException, CHKEncodeException {
+		ClientCHKBlock[] blocks = encodeBlocks();
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = open(store);
+		saltStore.setWriteBehind(true);
+		for(ClientCHKBlock block : blocks) {
+			store.put(block, false);
+			// a second put of the same key is coalesced, or written again
+			store.put(block, false);
+		}
+		saltStore.setWriteBehind(false);
+		assertFalse(saltStore.isWriteBehind());
+		assertEquals(-1, saltStore.getWriteQueueSize());
+		assertEquals(BLOCKS, saltStore.keyCount());
+		saltStore.close();
+
+		// everything is on disk
+		store = new CHKStore();
+		saltStore = open(store);
+		try {
+			assertEquals(BLOCKS, saltStore.keyCount());
+			for(ClientCHKBlock block : blocks) {
+				NodeCHK key = block.getClientKey().getNodeCHK();
+				CHKBlock found = store.fetch(key, false, null);
+				assertNotNull(found);
+				assertEquals(key, found.getKey());
+			}
+		} finally {
+			saltStore.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.PCFBMode;
+import freenet.crypt.SHA256;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Test case for {@link freenet.store.saltedhash.CipherManager} class.
+ */
+public class CipherManagerTest extends TestCase {
+
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	/** Header and data of a CHK */
+	private static final int HEADER_LENGTH = 36;
+	private static final int DATA_LENGTH = 32768;
+
+	private final Random random = new Random(1234);
+
+	private CipherManager cipherManager() {
+		byte[] salt = new byte[16];
+		random.nextBytes(salt);
+		return new CipherManager(salt, salt.clone());
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	/**
+	 * Tests that a digested key is the salted hash of the key, and is cached.
+	 */
+	public void testDigestedKey() {
+		CipherManager cm = cipherManager();
+		CipherManager other = cipherManager();
+		byte[] key = randomBytes(32);
+		byte[] digested = cm.getDigestedKey(key);
+		assertEquals(32, digested.length);
+		assertSame(digested, cm.getDigestedKey(key.clone()));
+		assertFalse(Arrays.equals(digested, other.getDigestedKey(key)));
+		assertFalse(Arrays.equals(digested, cm.getDigestedKey(randomBytes(32))));
+	}
+
+	/**
+	 * Tests that data encrypted with a cached cipher decrypts with a fresh one and vice versa,
+	 * including after the cache has overflowed, and on another thread.
+	 */
+	public void testCipherRoundTrip() throws InterruptedException {
+		final CipherManager cm = cipherManager();
+		int count = CipherManager.CIPHER_CACHE_SIZE * 2;
+		final byte[][] keys = new byte[count][];
+		final byte[][] ivs = new byte[count][];
+		final byte[] plain = randomBytes(HEADER_LENGTH);
+		final byte[][] encrypted = new byte[count][];
+		for(int round=0;round<2;round++) {
+			for(int i=0;i<count;i++) {
+				if(round == 0) {
+					keys[i] = randomBytes(32);
+					ivs[i] = randomBytes(16);
+					encrypted[i] = cm.makeCipher(ivs[i], keys[i]).blockEncipher(plain.clone(), 0, plain.length);
+					assertFalse(Arrays.equals(plain, encrypted[i]));
+				} else {
+					// Evicted by now, so this is a fresh cipher.
+					assertTrue(Arrays.equals(plain, cm.makeCipher(ivs[i], keys[i]).blockDecipher(encrypted[i].clone(), 0, plain.length)));
+				}
+			}
+		}
+		// Cached on this thread
+		int last = count - 1;
+		assertTrue(Arrays.equals(plain, cm.makeCipher(ivs[last], keys[last]).blockDecipher(encrypted[last].clone(), 0, plain.length)));
+
+		final boolean[] ok = new boolean[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				ok[0] = Arrays.equals(encrypted[0], cm.makeCipher(ivs[0], keys[0]).blockEncipher(plain.clone(), 0, plain.length));
+			}
+		};
+		t.start();
+		t.join();
+		assertTrue(ok[0]);
+	}
+
+	/**
+	 * Measures getDigestedKey() and decrypting an entry, with and without the caches.
+	 */
+	public void testBenchmark() throws UnsupportedCipherException {
+		if(!BENCHMARK) return;
+		CipherManager cm = cipherManager();
+		int n = 100000;
+		byte[][] keys = new byte[n][];
+		for(int i=0;i<n;i++)
+			keys[i] = randomBytes(32);
+		byte[] salt = randomBytes(16);
+
+		for(int round=0;round<3;round++) {
+			long start = System.nanoTime();
+			for(byte[] key : keys) {
+				MessageDigest digest = SHA256.getMessageDigest();
+				digest.update(key);
+				digest.update(salt);
+				digest.digest();
+				SHA256.returnMessageDigest(digest);
+			}
+			long uncached = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<n;i++)
+				cm.getDigestedKey(keys[i & 7]);
+			long cached = System.nanoTime() - start;
+			if(round == 2)
+				System.out.println("getDigestedKey: "+(uncached / n)+"ns per key uncached, "+(cached / n)+"ns cached");
+		}
+
+		byte[] iv = randomBytes(16);
+		byte[] iv2 = new byte[32];
+		System.arraycopy(salt, 0, iv2, 0, 16);
+		System.arraycopy(iv, 0, iv2, 16, 16);
+		byte[] header = randomBytes(HEADER_LENGTH);
+		byte[] data = randomBytes(DATA_LENGTH);
+		int ops = 2000;
+		for(int round=0;round<3;round++) {
+			long start = System.nanoTime();
+			for(int i=0;i<ops;i++) {
+				// What makeCipher() used to do for every entry
+				Rijndael aes = new Rijndael(256, 256);
+				aes.initialize(keys[i & 7]);
+				PCFBMode cipher = PCFBMode.create(aes, iv2);
+				cipher.blockDecipher(header, 0, header.length);
+				cipher.blockDecipher(data, 0, data.length);
+			}
+			long uncached = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<ops;i++) {
+				PCFBMode cipher = cm.makeCipher(iv, keys[i & 7]);
+				cipher.blockDecipher(header, 0, header.length);
+				cipher.blockDecipher(data, 0, data.length);
+			}
+			long cached = System.nanoTime() - start;
+			// Probing an entry only decrypts the header when the key doesn't match
+			start = System.nanoTime();
+			for(int i=0;i<ops*10;i++) {
+				Rijndael aes = new Rijndael(256, 256);
+				aes.initialize(keys[i & 7]);
+				PCFBMode.create(aes, iv2).blockDecipher(header, 0, header.length);
+			}
+			long headerUncached = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<ops*10;i++)
+				cm.makeCipher(iv, keys[i & 7]).blockDecipher(header, 0, header.length);
+			long headerCached = System.nanoTime() - start;
+			if(round == 2) {
+				System.out.println("decrypt entry: "+(uncached / ops / 1000.0)+"us uncached, "+(cached / ops / 1000.0)+"us cached");
+				System.out.println("decrypt header: "+(headerUncached / ops / 10)+"ns uncached, "+(headerCached / ops / 10)+"ns cached");
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.store.saltedhash.LockManager} class.
+ */
+public class LockManagerTest extends TestCase {
+
+	/**
+	 * Tests that distinct offsets, including offsets on the same stripe, can be locked at the
+	 * same time without waiting.
+	 */
+	public void testDistinctOffsets() {
+		LockManager lm = new LockManager();
+		Condition[] conds = new Condition[1000];
+		for (int i = 0; i < conds.length; i++) {
+			conds[i] = lm.lockEntry(i);
+			assertNotNull(conds[i]);
+		}
+		for (int i = 0; i < conds.length; i++)
+			lm.unlockEntry(i, conds[i]);
+		assertEquals(0, lm.getContentions());
+	}
+
+	/**
+	 * Tests that a second thread blocks until the offset is unlocked, and that the wait is
+	 * counted exactly once.
+	 */
+	public void testBlockedLockCountedOnce() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		Condition cond = lm.lockEntry(42);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				started.countDown();
+				Condition c = lm.lockEntry(42);
+				locked.countDown();
+				lm.unlockEntry(42, c);
+			}
+		};
+		t.start();
+		started.await();
+		assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+
+		lm.unlockEntry(42, cond);
+		assertTrue(locked.await(10, TimeUnit.SECONDS));
+		t.join();
+		assertEquals(1, lm.getContentions());
+	}
+
+	/**
+	 * Tests mutual exclusion with many threads hammering a few offsets.
+	 */
+	public void testConcurrentExclusion() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		final int offsets = 8;
+		final int[] holders = new int[offsets];
+		final int[] counters = new int[offsets];
+		final AtomicInteger failures = new AtomicInteger();
+		final int rounds = 2000;
+
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < rounds; j++) {
+						// offsets a multiple of the stripe count apart share a stripe
+						int idx = (seed + j) % offsets;
+						long offset = idx * 128L;
+						Condition c = lm.lockEntry(offset);
+						if (c == null) {
+							failures.incrementAndGet();
+							return;
+						}
+						if (++holders[idx] != 1)
+							failures.incrementAndGet();
+						counters[idx]++;
+						holders[idx]--;
+						lm.unlockEntry(offset, c);
+					}
+				}
+			};
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(0, failures.get());
+		int total = 0;
+		for (int c : counters)
+			total += c;
+		assertEquals(threads.length * rounds, total);
+		assertTrue(lm.getContentions() <= threads.length * rounds);
+	}
+
+	/**
+	 * Tests that lockEntry() fails after shutdown.
+	 */
+	public void testShutdown() {
+		LockManager lm = new LockManager();
+		Condition c = lm.lockEntry(1);
+		lm.unlockEntry(1, c);
+		lm.shutdown();
+		assertNull(lm.lockEntry(1));
+	}
+}
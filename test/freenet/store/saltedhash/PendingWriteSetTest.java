@@ -0,0 +1,86 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.store.saltedhash.PendingWriteSet} class.
+ */
+public class PendingWriteSetTest extends TestCase {
+
+	private static class Write implements Comparable<Write> {
+		final long offset;
+
+		Write(long offset) {
+			this.offset = offset;
+		}
+
+		public int compareTo(Write o) {
+			return offset < o.offset ? -1 : (offset > o.offset ? 1 : 0);
+		}
+	}
+
+	private static byte[] key(int i) {
+		return new byte[] { (byte) i, 1, 2, 3 };
+	}
+
+	/**
+	 * Tests that batches come out sorted by offset, whatever the insertion order.
+	 */
+	public void testOrdering() {
+		PendingWriteSet<Write> set = new PendingWriteSet<Write>();
+		long[] offsets = { 50, 3, 99, 12, 7, 64 };
+		for (int i = 0; i < offsets.length; i++)
+			assertFalse(set.add(key(i), new Write(offsets[i])));
+		assertEquals(offsets.length, set.size());
+
+		List<Write> batch = set.sortedBatch();
+		assertEquals(offsets.length, batch.size());
+		for (int i = 1; i < batch.size(); i++)
+			assertTrue(batch.get(i - 1).offset <= batch.get(i).offset);
+		// taking a batch doesn't remove anything
+		assertEquals(offsets.length, set.size());
+	}
+
+	/**
+	 * Tests that a newer write of the same key replaces the older one, and lookups see it.
+	 */
+	public void testCoalescing() {
+		PendingWriteSet<Write> set = new PendingWriteSet<Write>();
+		Write first = new Write(1);
+		Write second = new Write(1);
+		assertFalse(set.add(key(1), first));
+		assertTrue(set.add(key(1), second));
+		assertEquals(1, set.size());
+		// an equal but different array finds it
+		assertSame(second, set.get(key(1)));
+		assertTrue(set.contains(key(1)));
+		assertNull(set.get(key(2)));
+		assertFalse(set.contains(key(2)));
+	}
+
+	/**
+	 * Tests that finishing an older write doesn't remove a newer write of the same key.
+	 */
+	public void testRemoveReplaced() {
+		PendingWriteSet<Write> set = new PendingWriteSet<Write>();
+		Write first = new Write(1);
+		set.add(key(1), first);
+		List<Write> batch = set.sortedBatch();
+		assertSame(first, batch.get(0));
+
+		// replaced while the batch was being written
+		Write second = new Write(1);
+		set.add(key(1), second);
+		assertFalse(set.remove(key(1), first));
+		assertSame(second, set.get(key(1)));
+
+		assertTrue(set.remove(key(1), second));
+		assertTrue(set.isEmpty());
+		assertNull(set.get(key(1)));
+	}
+}
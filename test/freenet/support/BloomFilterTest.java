@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -9,6 +11,9 @@ import java.util.Set;
 import junit.framework.TestCase;
 
 public class BloomFilterTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
 	private static final int FILTER_SIZE = 4 * 1024; // MUST be > PASS,
 	private static final int PASS = 2048;
 	private static final int PASS_REMOVE = 4096;
@@ -47,8 +52,10 @@ public class BloomFilterTest extends TestCase {
 
 	public void testCountingFilterRemove() {
 		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
-		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		_testCountingFilterRemove(BloomFilter.createFilter(FILTER_SIZE, K, true));
+	}
 
+	private void _testCountingFilterRemove(BloomFilter filter) {
 		Map<ByteArrayWrapper, byte[]> baseList = new HashMap<ByteArrayWrapper, byte[]>();
 
 		// Add Keys
@@ -149,4 +156,171 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testBlockedFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(new BlockedBloomFilter(FILTER_SIZE, K, false));
+		_testFilterPositive(new BlockedBloomFilter(FILTER_SIZE, K, true));
+	}
+
+	public void testBlockedCountingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testCountingFilterRemove(new BlockedBloomFilter(FILTER_SIZE, K, true));
+	}
+
+	public void testBlockedFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(new BlockedBloomFilter(FILTER_SIZE, K, false));
+		_testFilterFalsePositive(new BlockedBloomFilter(FILTER_SIZE, K, true));
+	}
+
+	public void testBlockedFilterPersistence() throws IOException {
+		File file = File.createTempFile("bloom-", ".tmp");
+		try {
+			file.delete();
+			int K = BloomFilter.optimialK(FILTER_SIZE * 16, PASS_POS);
+			BloomFilter filter = BloomFilter.createFilter(file, FILTER_SIZE * 16, K, true, true);
+			assertTrue(filter.needRebuild());
+
+			byte[][] list = new byte[PASS_POS][];
+			for (int i = 0; i < PASS_POS; i++) {
+				list[i] = new byte[32];
+				rand.nextBytes(list[i]);
+				filter.addKey(list[i]);
+			}
+			filter.close();
+
+			filter = BloomFilter.createFilter(file, FILTER_SIZE * 16, K, true, true);
+			assertFalse(filter.needRebuild());
+			for (byte[] b : list)
+				assertTrue(filter.checkFilter(b));
+			filter.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testBlockedFilterMergeConcurrentLookup() throws InterruptedException {
+		int K = BloomFilter.optimialK(FILTER_SIZE * 64, PASS_POS);
+		final BlockedBloomFilter filter = new BlockedBloomFilter(FILTER_SIZE * 64, K, false);
+		final byte[][] list = new byte[PASS_POS][];
+		for (int i = 0; i < PASS_POS; i++) {
+			list[i] = new byte[32];
+			rand.nextBytes(list[i]);
+			filter.addKey(list[i]);
+		}
+
+		// Lookups racing with merge() must never miss a key that is in both filters.
+		final boolean[] failed = new boolean[1];
+		final boolean[] done = new boolean[1];
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					while (!done[0] && !failed[0])
+						for (byte[] b : list)
+							if (!filter.checkFilter(b))
+								failed[0] = true;
+				}
+			};
+			readers[t].start();
+		}
+		for (int round = 0; round < 50 && !failed[0]; round++) {
+			// Rebuild: fork, add every key to the fork only, merge.
+			filter.fork(K);
+			for (byte[] b : list)
+				filter.addKeyForked(b);
+			filter.merge();
+		}
+		done[0] = true;
+		for (Thread t : readers)
+			t.join();
+		assertFalse(failed[0]);
+	}
+
+	public void testBlockedFilterClosed() {
+		BlockedBloomFilter filter = new BlockedBloomFilter(FILTER_SIZE, 5, true);
+		byte[] b = new byte[32];
+		rand.nextBytes(b);
+		filter.close();
+		// No NPE, and no false negative
+		filter.addKey(b);
+		filter.removeKey(b);
+		assertTrue(filter.checkFilter(b));
+		assertTrue(filter.checkFilter(new BloomFilter.Hashes(b)));
+	}
+
+	public void testSharedHashes() {
+		// Filters of different sizes checked with the same hashes.
+		BloomFilter[] filters = new BloomFilter[] {
+				BloomFilter.createFilter(FILTER_SIZE, BloomFilter.optimialK(FILTER_SIZE, PASS_POS), true),
+				BloomFilter.createFilter(FILTER_SIZE * 3, BloomFilter.optimialK(FILTER_SIZE * 3, PASS_POS), false),
+				BloomFilter.createFilter(1000, 7, true),
+				new BlockedBloomFilter(FILTER_SIZE, 5, false) };
+		for (int i = 0; i < PASS_POS; i++) {
+			byte[] b = new byte[32];
+			rand.nextBytes(b);
+			for (BloomFilter filter : filters)
+				filter.addKey(b);
+		}
+		for (int i = 0; i < PASS_FALSE; i++) {
+			byte[] b = new byte[32];
+			rand.nextBytes(b);
+			BloomFilter.Hashes hashes = new BloomFilter.Hashes(b);
+			for (BloomFilter filter : filters)
+				assertEquals(filter.checkFilter(b), filter.checkFilter(hashes));
+		}
+	}
+
+	/**
+	 * Compares lookups in the existing filters with the blocked ones, for keys which are in the
+	 * filter and keys which aren't, with a filter too big for the CPU cache as in the store.
+	 */
+	public void testBenchmark() {
+		if (!BENCHMARK) return;
+		final int length = 1 << 26;
+		final int keys = length / 16;
+		final int lookups = 1000000;
+		int k = BloomFilter.optimialK(length, keys);
+		byte[][] present = new byte[lookups][];
+		byte[][] absent = new byte[lookups][];
+		for (int i = 0; i < lookups; i++) {
+			present[i] = new byte[32];
+			rand.nextBytes(present[i]);
+			absent[i] = new byte[32];
+			rand.nextBytes(absent[i]);
+		}
+		String[] names = new String[] { "binary", "counting", "blocked binary", "blocked counting" };
+		BloomFilter[] filters = new BloomFilter[] {
+				BloomFilter.createFilter(length, k, false),
+				BloomFilter.createFilter(length, k, true),
+				new BlockedBloomFilter(length, k, false),
+				new BlockedBloomFilter(length, k, true) };
+		byte[] b = new byte[32];
+		for (int f = 0; f < filters.length; f++) {
+			BloomFilter filter = filters[f];
+			for (byte[] key : present)
+				filter.addKey(key);
+			for (int i = lookups; i < keys; i++) {
+				rand.nextBytes(b);
+				filter.addKey(b);
+			}
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				for (byte[] key : present)
+					if (!filter.checkFilter(key)) fail();
+				long hitTime = System.nanoTime() - start;
+				int falsePositives = 0;
+				start = System.nanoTime();
+				for (byte[] key : absent)
+					if (filter.checkFilter(key)) falsePositives++;
+				long missTime = System.nanoTime() - start;
+				if (round == 2)
+					System.out.println(names[f] + " (" + length + " bits, " + keys + " keys, k=" + k + "): " + (hitTime / lookups) +
+							"ns present, " + (missTime / lookups) + "ns absent, " + falsePositives + " false positives");
+			}
+			filters[f] = null;
+		}
+	}
 }
@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.ClockCache} class.
+ */
+public class ClockCacheTest extends TestCase {
+
+	private final int sampleElemsNumber = 100;
+
+	private ClockCache<Integer, Object> createSampleCache(int maxSize, int size) {
+		ClockCache<Integer, Object> cache = new ClockCache<Integer, Object>(maxSize);
+		for (int i = 0; i < size; i++)
+			assertNull(cache.put(i, new Object()));
+		return cache;
+	}
+
+	/**
+	 * Tests put(K,V) and get(K) while the cache is not full.
+	 */
+	public void testPutGet() {
+		ClockCache<Integer, Object> cache = new ClockCache<Integer, Object>(sampleElemsNumber);
+		Object[] values = new Object[sampleElemsNumber];
+		for (int i = 0; i < sampleElemsNumber; i++) {
+			values[i] = new Object();
+			assertNull(cache.put(i, values[i]));
+		}
+		assertEquals(sampleElemsNumber, cache.size());
+		for (int i = 0; i < sampleElemsNumber; i++) {
+			assertSame(values[i], cache.get(i));
+			assertSame(values[i], cache.peek(i));
+		}
+		assertNull(cache.get(sampleElemsNumber));
+	}
+
+	/**
+	 * Tests that put(K,V) returns the replaced value for an existing key.
+	 */
+	public void testReplace() {
+		ClockCache<Integer, Object> cache = createSampleCache(sampleElemsNumber, 10);
+		Object oldValue = cache.peek(5);
+		Object newValue = new Object();
+		List<Object> removed = cache.put(5, newValue);
+		assertEquals(1, removed.size());
+		assertSame(oldValue, removed.get(0));
+		assertSame(newValue, cache.get(5));
+		assertEquals(10, cache.size());
+		assertNull(cache.put(5, newValue));
+	}
+
+	/**
+	 * Tests that the size limit is enforced, and referenced items survive eviction.
+	 */
+	public void testEviction() {
+		ClockCache<Integer, Object> cache = createSampleCache(sampleElemsNumber, sampleElemsNumber);
+		for (int i = 0; i < sampleElemsNumber / 2; i++)
+			cache.get(i);
+		for (int i = sampleElemsNumber; i < sampleElemsNumber * 3 / 2; i++) {
+			List<Object> removed = cache.put(i, new Object());
+			assertEquals(1, removed.size());
+			assertEquals(sampleElemsNumber, cache.size());
+		}
+		for (int i = 0; i < sampleElemsNumber / 2; i++)
+			assertTrue(cache.containsKey(i));
+		for (int i = sampleElemsNumber / 2; i < sampleElemsNumber; i++)
+			assertFalse(cache.containsKey(i));
+	}
+
+	/**
+	 * Tests that peek(K) doesn't protect an item from eviction.
+	 */
+	public void testPeekDoesNotPromote() {
+		ClockCache<Integer, Object> cache = createSampleCache(2, 2);
+		cache.peek(0);
+		cache.get(1);
+		cache.put(2, new Object());
+		assertFalse(cache.containsKey(0));
+		assertTrue(cache.containsKey(1));
+		assertTrue(cache.containsKey(2));
+	}
+
+	/**
+	 * Tests remove(K) and remove(K,V), and that removed slots are reused.
+	 */
+	public void testRemove() {
+		ClockCache<Integer, Object> cache = createSampleCache(sampleElemsNumber, sampleElemsNumber);
+		Object value = cache.peek(3);
+		assertFalse(cache.remove(3, new Object()));
+		assertTrue(cache.remove(3, value));
+		assertNull(cache.remove(3));
+		assertNotNull(cache.remove(4));
+		assertEquals(sampleElemsNumber - 2, cache.size());
+		assertNull(cache.put(3, new Object()));
+		assertNull(cache.put(4, new Object()));
+		assertEquals(sampleElemsNumber, cache.size());
+	}
+
+	/**
+	 * Tests shrinking and growing the cache.
+	 */
+	public void testSetMaxSize() {
+		ClockCache<Integer, Object> cache = createSampleCache(sampleElemsNumber, sampleElemsNumber);
+		List<Object> removed = cache.setMaxSize(sampleElemsNumber / 4);
+		assertEquals(sampleElemsNumber - sampleElemsNumber / 4, removed.size());
+		assertEquals(sampleElemsNumber / 4, cache.size());
+		assertNull(cache.setMaxSize(sampleElemsNumber));
+		for (int i = sampleElemsNumber; i < sampleElemsNumber * 7 / 4; i++)
+			assertNull(cache.put(i, new Object()));
+		assertEquals(sampleElemsNumber, cache.size());
+		assertNotNull(cache.put(-1, new Object()));
+	}
+
+	/**
+	 * Tests that a zero size cache never holds anything.
+	 */
+	public void testZeroSize() {
+		ClockCache<Integer, Object> cache = new ClockCache<Integer, Object>(0);
+		Object value = new Object();
+		List<Object> removed = cache.put(1, value);
+		assertSame(value, removed.get(0));
+		assertTrue(cache.isEmpty());
+	}
+
+	/**
+	 * Tests keys() and clear().
+	 */
+	public void testKeysAndClear() {
+		ClockCache<Integer, Object> cache = createSampleCache(sampleElemsNumber, sampleElemsNumber);
+		Set<Integer> keys = new HashSet<Integer>();
+		Iterator<Integer> it = cache.keys();
+		while (it.hasNext())
+			keys.add(it.next());
+		assertEquals(sampleElemsNumber, keys.size());
+		assertEquals(sampleElemsNumber, cache.clear().size());
+		assertTrue(cache.isEmpty());
+		assertFalse(cache.keys().hasNext());
+		assertNull(cache.put(1, new Object()));
+	}
+}
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	/** Counts and discards what is written. */
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+		@Override
+		public synchronized void write(int b) {
+			count++;
+		}
+		@Override
+		public synchronized void write(byte[] buf, int offset, int length) {
+			count += length;
+		}
+		synchronized long count() {
+			return count;
+		}
+	}
+
+	/** Every line logged by many threads at once reaches the stream whole. */
+	public void testConcurrentLines() throws InterruptedException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(out, "p: m", "", LogLevel.MINOR);
+		hook.start();
+		final int threads = 8;
+		final int lines = 2000;
+		Thread[] t = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			final int thread = i;
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < lines; j++)
+						hook.log(this, "thread " + thread + " line " + j, LogLevel.MINOR);
+				}
+			};
+			t[i].start();
+		}
+		for(int i = 0; i < threads; i++)
+			t[i].join();
+		// Not logged.
+		hook.log(this, "debug", LogLevel.DEBUG);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(hook.listBytes() != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		// The last line may still be being written.
+		Thread.sleep(100);
+		hook.close();
+		String[] written;
+		synchronized(out) {
+			written = new String(out.toByteArray()).split("\n");
+		}
+		assertEquals(threads * lines, written.length);
+		Set<String> expected = new HashSet<String>();
+		for(int i = 0; i < threads; i++)
+			for(int j = 0; j < lines; j++)
+				expected.add("MINOR: thread " + i + " line " + j);
+		for(String line : written)
+			assertTrue(line, expected.remove(line));
+	}
+
+	/** Lines logged in the same millisecond get the same date, and later ones a later date. */
+	public void testDateFormat() throws InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "d m", "HH:mm:ss:SSS", LogLevel.NORMAL);
+		hook.start();
+		hook.log(this, "a", LogLevel.NORMAL);
+		Thread.sleep(5);
+		hook.log(this, "b", LogLevel.NORMAL);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(hook.listBytes() != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Thread.sleep(100);
+		hook.close();
+		String[] written = new String(out.toByteArray()).split("\n");
+		assertEquals(2, written.length);
+		assertTrue(written[0].matches("\\d\\d:\\d\\d:\\d\\d:\\d\\d\\d a"));
+		assertTrue(written[1].matches("\\d\\d:\\d\\d:\\d\\d:\\d\\d\\d b"));
+		assertFalse(written[0].substring(0, 12).equals(written[1].substring(0, 12)));
+	}
+
+	/** Log calls per second from 32 threads at MINOR through the static Logger methods. */
+	public void testBenchmark() throws InterruptedException {
+		if(!BENCHMARK) return;
+		final int threads = 32;
+		final int perThread = 50 * 1000;
+		CountingOutputStream out = new CountingOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.MINOR);
+		hook.setMaxListBytes(100 * 1024 * 1024);
+		hook.start();
+		Logger.setupChain();
+		Logger.globalSetThreshold(LogLevel.MINOR);
+		Logger.globalAddHook(hook);
+		try {
+			for(int round = 0; round < 3; round++) {
+				Thread[] t = new Thread[threads];
+				for(int i = 0; i < threads; i++) {
+					t[i] = new Thread("Logging thread " + i) {
+						@Override
+						public void run() {
+							for(int j = 0; j < perThread; j++)
+								Logger.minor(this, "Benchmark line " + j + " of " + perThread);
+						}
+					};
+				}
+				long start = System.currentTimeMillis();
+				for(int i = 0; i < threads; i++)
+					t[i].start();
+				for(int i = 0; i < threads; i++)
+					t[i].join();
+				long time = Math.max(1, System.currentTimeMillis() - start);
+				if(round == 2)
+					System.out.println(threads + " threads logging at MINOR: " + (threads * perThread * 1000L / time) +
+							" calls/sec, " + out.count() + " bytes written so far");
+			}
+		} finally {
+			Logger.globalRemoveHook(hook);
+			hook.close();
+		}
+	}
+}
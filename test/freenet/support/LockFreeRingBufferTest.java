@@ -0,0 +1,90 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class LockFreeRingBufferTest extends TestCase {
+
+	public void testFIFO() {
+		LockFreeRingBuffer<Integer> queue = new LockFreeRingBuffer<Integer>(5);
+		assertEquals(8, queue.capacity());
+		assertNull(queue.poll());
+		// Several laps round the buffer.
+		int next = 0;
+		for(int round = 0; round < 10; round++) {
+			for(int i = 0; i < 8; i++)
+				assertTrue(queue.offer(round * 8 + i));
+			assertFalse(queue.offer(-1));
+			assertEquals(8, queue.size());
+			for(int i = 0; i < 5; i++)
+				assertEquals(next++, queue.poll().intValue());
+			assertEquals(3, queue.size());
+			for(int i = 0; i < 3; i++)
+				assertEquals(next++, queue.poll().intValue());
+			assertTrue(queue.isEmpty());
+			assertNull(queue.poll());
+		}
+	}
+
+	/** Each item added by several threads is taken exactly once by several others. */
+	public void testConcurrent() throws InterruptedException {
+		final int producers = 4;
+		final int consumers = 4;
+		final int perProducer = 200 * 1000;
+		final LockFreeRingBuffer<Integer> queue = new LockFreeRingBuffer<Integer>(64);
+		final byte[] seen = new byte[producers * perProducer];
+		final AtomicInteger taken = new AtomicInteger();
+		final AtomicInteger outOfOrder = new AtomicInteger();
+		Thread[] threads = new Thread[producers + consumers];
+		for(int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < perProducer; i++) {
+						while(!queue.offer(base + i))
+							Thread.yield();
+					}
+				}
+			};
+		}
+		for(int c = 0; c < consumers; c++) {
+			threads[producers + c] = new Thread() {
+				@Override
+				public void run() {
+					// Items from one producer must come out in order.
+					int[] last = new int[producers];
+					for(int i = 0; i < producers; i++)
+						last[i] = -1;
+					while(taken.get() < seen.length) {
+						Integer item = queue.poll();
+						if(item == null) {
+							Thread.yield();
+							continue;
+						}
+						int x = item.intValue();
+						if(x % perProducer <= last[x / perProducer])
+							outOfOrder.incrementAndGet();
+						last[x / perProducer] = x % perProducer;
+						synchronized(seen) {
+							seen[x]++;
+						}
+						taken.incrementAndGet();
+					}
+				}
+			};
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		assertEquals(0, outOfOrder.get());
+		for(int i = 0; i < seen.length; i++)
+			assertEquals(1, seen[i]);
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,225 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final long START = 1234567890123L;
+
+	public void testOrder() {
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(START);
+		wheel.schedule(3, START + 500);
+		wheel.schedule(1, START + 5);
+		wheel.schedule(4, START + 500);
+		wheel.schedule(2, START + 70);
+		wheel.schedule(5, START + 100000);
+		List<Integer> expired = new ArrayList<Integer>();
+		assertEquals(0, wheel.expire(START + 4, expired));
+		assertEquals(1, wheel.expire(START + 5, expired));
+		assertEquals(3, wheel.expire(START + 99999, expired));
+		assertEquals(1, wheel.size());
+		assertEquals(1, wheel.expire(START + 200000, expired));
+		for(int i = 0; i < expired.size(); i++)
+			assertEquals(i + 1, expired.get(i).intValue());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testOverdueAndFarFuture() {
+		TimingWheel<String> wheel = new TimingWheel<String>(START);
+		List<String> expired = new ArrayList<String>();
+		wheel.expire(START + 1000, expired);
+		wheel.schedule("past", START);
+		// Beyond the top level.
+		long far = START + 5L * 365 * 24 * 60 * 60 * 1000;
+		wheel.schedule("far", far);
+		wheel.expire(START + 1001, expired);
+		assertEquals(1, expired.size());
+		assertEquals("past", expired.get(0));
+		wheel.expire(far - 1, expired);
+		assertEquals(1, expired.size());
+		wheel.expire(far, expired);
+		assertEquals(2, expired.size());
+		// The clock going backwards doesn't lose anything.
+		wheel.schedule("again", far + 10);
+		wheel.expire(far - 1000, expired);
+		wheel.expire(far + 10, expired);
+		assertEquals("again", expired.get(2));
+	}
+
+	public void testCancel() {
+		TimingWheel<String> wheel = new TimingWheel<String>(START);
+		TimingWheel.Timer<String> a = wheel.schedule("a", START + 10);
+		TimingWheel.Timer<String> b = wheel.schedule("b", START + 10);
+		TimingWheel.Timer<String> c = wheel.schedule("c", START + 10000);
+		assertTrue(wheel.cancel(b));
+		assertFalse(wheel.cancel(b));
+		assertTrue(wheel.cancel(c));
+		List<String> expired = new ArrayList<String>();
+		wheel.expire(START + 20000, expired);
+		assertEquals(1, expired.size());
+		assertFalse(a.isQueued());
+		assertFalse(wheel.cancel(a));
+	}
+
+	/**
+	 * Tests that when the clock steps back, items are due at their own time, both those queued
+	 * before and after the step, rather than when the clock gets back to where it was.
+	 */
+	public void testClockBackwards() {
+		TimingWheel<String> wheel = new TimingWheel<String>(START);
+		List<String> expired = new ArrayList<String>();
+		wheel.schedule("old", START + 15000);
+		wheel.schedule("far", START + 10L * 24 * 60 * 60 * 1000);
+		wheel.expire(START + 10000, expired);
+		assertEquals(0, expired.size());
+		// The clock steps back 10 seconds.
+		wheel.schedule("soon", START + 100);
+		wheel.schedule("overdue", START - 100);
+		wheel.schedule("later", START + 20000);
+		assertEquals(1, wheel.expire(START, expired));
+		assertEquals("overdue", expired.get(0));
+		assertEquals(0, wheel.expire(START + 99, expired));
+		assertEquals(1, wheel.expire(START + 100, expired));
+		assertEquals("soon", expired.get(1));
+		assertEquals(0, wheel.expire(START + 14999, expired));
+		assertEquals(1, wheel.expire(START + 15000, expired));
+		assertEquals("old", expired.get(2));
+		assertEquals(1, wheel.expire(START + 20000, expired));
+		assertEquals("later", expired.get(3));
+		assertEquals(1, wheel.size());
+		assertEquals(1, wheel.expire(START + 10L * 24 * 60 * 60 * 1000, expired));
+		assertEquals("far", expired.get(4));
+	}
+
+	private static class Item {
+		final long time;
+		/** When it should come out: anything already overdue is due at the next millisecond */
+		final long due;
+		final int seq;
+		Item(long time, long due, int seq) {
+			this.time = time;
+			this.due = due;
+			this.seq = seq;
+		}
+	}
+
+	/** Random schedules, cancels and expiries, checked against sorting everything. */
+	public void testRandom() {
+		Random random = new Random(1);
+		TimingWheel<Item> wheel = new TimingWheel<Item>(START);
+		List<TimingWheel.Timer<Item>> queued = new ArrayList<TimingWheel.Timer<Item>>();
+		List<Item> expected = new ArrayList<Item>();
+		List<Item> expired = new ArrayList<Item>();
+		long now = START;
+		// expire() has returned everything due up to this time.
+		long processed = START - 1;
+		int seq = 0;
+		for(int round = 0; round < 2000; round++) {
+			int op = random.nextInt(10);
+			if(op < 6) {
+				long delay;
+				switch(random.nextInt(4)) {
+				case 0: delay = random.nextInt(100); break;
+				case 1: delay = random.nextInt(100000); break;
+				case 2: delay = (long) (random.nextDouble() * 10L * 24 * 60 * 60 * 1000); break;
+				default: delay = -random.nextInt(1000);
+				}
+				Item item = new Item(now + delay, Math.max(now + delay, processed + 1), seq++);
+				queued.add(wheel.schedule(item, item.time));
+			} else if(op < 7 && !queued.isEmpty()) {
+				TimingWheel.Timer<Item> timer = queued.remove(random.nextInt(queued.size()));
+				assertEquals(timer.isQueued(), wheel.cancel(timer));
+			} else {
+				now += random.nextInt(3) == 0 ? random.nextInt(1000000000) : random.nextInt(1000);
+				int before = expired.size();
+				wheel.expire(now, expired);
+				processed = now;
+				// Everything returned now must be due, and in order of time then sequence.
+				List<Item> due = new ArrayList<Item>();
+				for(TimingWheel.Timer<Item> timer : queued)
+					if(timer.time <= now && !expired.subList(0, before).contains(timer.item) && !timer.isQueued())
+						due.add(timer.item);
+				Collections.sort(due, new Comparator<Item>() {
+					public int compare(Item a, Item b) {
+						if(a.due != b.due) return a.due < b.due ? -1 : 1;
+						return a.seq - b.seq;
+					}
+				});
+				expected.addAll(due);
+				for(TimingWheel.Timer<Item> timer : queued)
+					assertEquals(timer.time > now, timer.isQueued());
+				// Forget the ones which have run.
+				List<TimingWheel.Timer<Item>> stillQueued = new ArrayList<TimingWheel.Timer<Item>>();
+				for(TimingWheel.Timer<Item> timer : queued)
+					if(timer.isQueued()) stillQueued.add(timer);
+				queued = stillQueued;
+				assertEquals(expected.size(), expired.size());
+				for(int i = before; i < expired.size(); i++) {
+					assertSame(expected.get(i), expired.get(i));
+					assertTrue(expired.get(i).time <= now);
+				}
+			}
+			assertEquals(queued.size(), wheel.size());
+		}
+	}
+
+	/**
+	 * 100k timeouts outstanding, most of which are cancelled before they are due, as with
+	 * request timeouts. Compared with a TreeMap keyed by time, as PacketSender used before.
+	 */
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		int outstanding = 100 * 1000;
+		int operations = 2 * 1000 * 1000;
+		for(int round = 0; round < 3; round++) {
+			Random random = new Random(2);
+			long now = START;
+			TimingWheel<Object> wheel = new TimingWheel<Object>(now);
+			List<Object> expired = new ArrayList<Object>();
+			@SuppressWarnings("unchecked")
+			TimingWheel.Timer<Object>[] timers = new TimingWheel.Timer[outstanding];
+			long start = System.currentTimeMillis();
+			for(int i = 0; i < operations; i++) {
+				int slot = i % outstanding;
+				if(timers[slot] != null) wheel.cancel(timers[slot]);
+				timers[slot] = wheel.schedule(this, now + 1000 + random.nextInt(120000));
+				if(slot == 0) wheel.expire(now += 10, expired);
+			}
+			long wheelTime = System.currentTimeMillis() - start;
+
+			random = new Random(2);
+			now = START;
+			TreeMap<Long, Object> map = new TreeMap<Long, Object>();
+			long[] keys = new long[outstanding];
+			start = System.currentTimeMillis();
+			for(int i = 0; i < operations; i++) {
+				int slot = i % outstanding;
+				if(keys[slot] != 0) map.remove(keys[slot]);
+				// Unique keys, to keep it simple.
+				keys[slot] = ((now + 1000 + random.nextInt(120000)) << 20) | (i & 0xFFFFF);
+				map.put(keys[slot], this);
+				if(slot == 0) {
+					now += 10;
+					while(!map.isEmpty() && map.firstKey() >> 20 <= now)
+						map.remove(map.firstKey());
+				}
+			}
+			long mapTime = System.currentTimeMillis() - start;
+			if(round == 2)
+				System.out.println(operations + " schedule+cancel with " + outstanding + " outstanding: timing wheel " +
+						wheelTime + "ms, TreeMap " + mapTime + "ms");
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class CompressionRaceTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static PooledExecutor executor;
+
+	private final BucketFactory bf = new ArrayBucketFactory();
+
+	@Override
+	protected void setUp() {
+		if(executor == null) {
+			executor = new PooledExecutor();
+			executor.start();
+		}
+	}
+
+	/** Words and numbers, compresses well but not trivially */
+	private static byte[] text(Random random, int size) {
+		String[] words = { "freenet", "node", "key", "insert", "request", "the", "a", "of", "splitfile", "block", "peer" };
+		StringBuilder sb = new StringBuilder(size);
+		while(sb.length() < size) {
+			sb.append(words[random.nextInt(words.length)]);
+			sb.append(random.nextInt(5) == 0 ? Integer.toString(random.nextInt(1000)) : "");
+			sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+		}
+		return sb.substring(0, size).getBytes();
+	}
+
+	private static byte[] random(Random random, int size) {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static byte[] decompress(COMPRESSOR_TYPE comp, Bucket compressed) throws Exception {
+		Bucket out = comp.decompress(compressed, new ArrayBucketFactory(), Long.MAX_VALUE, -1, null);
+		InputStream is = out.getInputStream();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int x;
+		while((x = is.read(buf)) > 0)
+			baos.write(buf, 0, x);
+		is.close();
+		return baos.toByteArray();
+	}
+
+	public void testSequentialAndParallelAgree() throws Exception {
+		byte[] data = text(new Random(1), 2 * 1024 * 1024);
+		CompressionRace sequential = new CompressionRace(new ArrayBucket(data), bf, 0, 0, null);
+		sequential.run(COMPRESSOR_TYPE.values(), null);
+		CompressionRace parallel = new CompressionRace(new ArrayBucket(data), bf, 0, 0, null);
+		parallel.run(COMPRESSOR_TYPE.values(), executor);
+
+		assertNotNull(sequential.getCodec());
+		assertEquals(sequential.getCodec(), parallel.getCodec());
+		assertEquals(sequential.getData().size(), parallel.getData().size());
+		assertTrue(Arrays.equals(data, decompress(parallel.getCodec(), parallel.getData())));
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = random(new Random(2), 2 * 1024 * 1024);
+		final int[] started = new int[1];
+		CompressionRace race = new CompressionRace(new ArrayBucket(data), bf, 0, 0, new CompressionRace.Callback() {
+
+			public void onStartCompression(COMPRESSOR_TYPE comp) {
+				synchronized(started) {
+					started[0]++;
+				}
+			}
+
+		});
+		race.run(COMPRESSOR_TYPE.values(), executor);
+		assertNull(race.getCodec());
+		assertNull(race.getData());
+		assertEquals(COMPRESSOR_TYPE.values().length, started[0]);
+	}
+
+	/** If the first compressor gets it small enough, don't try the others. */
+	public void testMinSize() throws IOException {
+		byte[] data = new byte[100000];
+		final int[] started = new int[1];
+		CompressionRace race = new CompressionRace(new ArrayBucket(data), bf, 32768, 0, new CompressionRace.Callback() {
+
+			public void onStartCompression(COMPRESSOR_TYPE comp) {
+				started[0]++;
+			}
+
+		});
+		race.run(COMPRESSOR_TYPE.values(), null);
+		assertEquals(COMPRESSOR_TYPE.GZIP, race.getCodec());
+		assertEquals(1, started[0]);
+	}
+
+	/** Compress a mixed corpus sequentially (as before), in parallel, and in parallel after sampling. */
+	/**
+	 * Tests that in parallel, when several compressors get down to minSize, the first of them
+	 * wins however the threads are scheduled, as it would in turn.
+	 */
+	public void testMinSizeParallel() throws IOException {
+		byte[] data = new byte[2 * 1024 * 1024];
+		COMPRESSOR_TYPE[] comps = new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+		for(int i = 0; i < 5; i++) {
+			CompressionRace race = new CompressionRace(new ArrayBucket(data), bf, 32768, 0, null);
+			race.run(comps, executor);
+			assertEquals(COMPRESSOR_TYPE.GZIP, race.getCodec());
+			assertTrue(race.getData().size() <= 32768);
+		}
+	}
+
+	/**
+	 * Tests that compressors which can't get a thread are run on the calling thread instead,
+	 * with the same result.
+	 */
+	public void testNoThreads() throws Exception {
+		byte[] data = text(new Random(3), 1024 * 1024);
+		COMPRESSOR_TYPE[] comps = new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+		CompressionRace sequential = new CompressionRace(new ArrayBucket(data), bf, 0, 0, null);
+		sequential.run(comps, null);
+		final Thread caller = Thread.currentThread();
+		final boolean[] otherThread = new boolean[1];
+		CompressionRace limited = new CompressionRace(new ArrayBucket(data), bf, 0, 0, new CompressionRace.Callback() {
+
+			public void onStartCompression(COMPRESSOR_TYPE comp) {
+				if(Thread.currentThread() != caller) otherThread[0] = true;
+			}
+
+		});
+		Semaphore threads = new Semaphore(0);
+		limited.run(comps, executor, threads);
+		assertFalse(otherThread[0]);
+		assertEquals(0, threads.availablePermits());
+		assertEquals(sequential.getCodec(), limited.getCodec());
+		assertEquals(sequential.getData().size(), limited.getData().size());
+		assertTrue(Arrays.equals(data, decompress(limited.getCodec(), limited.getData())));
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!BENCHMARK) return;
+		Random random = new Random(3);
+		int size = 32 * 1024 * 1024;
+		byte[] mixed = new byte[size];
+		for(int i = 0; i < 8; i++) {
+			byte[] part = (i % 2 == 0) ? text(random, size / 8) : random(random, size / 8);
+			System.arraycopy(part, 0, mixed, i * size / 8, size / 8);
+		}
+		byte[][] corpus = { text(random, size), random(random, size), new byte[size], mixed };
+		String[] names = { "text", "random", "zeros", "mixed" };
+		for(int i = 0; i < corpus.length; i++) {
+			for(int mode = 0; mode < 3; mode++) {
+				long start = System.currentTimeMillis();
+				CompressionRace race = new CompressionRace(new ArrayBucket(corpus[i]), bf, 0, 0, null);
+				COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.values();
+				if(mode == 2) comps = race.sample(comps);
+				race.run(comps, mode == 0 ? null : executor);
+				long end = System.currentTimeMillis();
+				System.out.println(names[i]+" "+(mode == 0 ? "sequential" : mode == 1 ? "parallel" : "sampled")+": "+
+						(end - start)+"ms, "+race.getCodec()+" "+(race.getData() == null ? size : race.getData().size()));
+			}
+		}
+	}
+}
@@ -16,10 +16,15 @@
 
 package freenet.support.compress;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.ArrayBucket;
@@ -145,6 +150,28 @@ public class GzipCompressorTest extends TestCase {
 		}
 	}
 	
+	public void testParallelCompress() throws Exception {
+		byte[] data = new byte[GzipCompressor.MIN_CHUNK_SIZE * 5 + 1234];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) UNCOMPRESSED_DATA_1.charAt((i * 7) % UNCOMPRESSED_DATA_1.length());
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		GzipCompressor.setParallelCompression(executor, 4, GzipCompressor.MIN_CHUNK_SIZE);
+		try {
+			Compressor.COMPRESSOR_TYPE.GZIP.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		} finally {
+			GzipCompressor.setParallelCompression(null, 0, GzipCompressor.MIN_CHUNK_SIZE);
+		}
+		Bucket out = Compressor.COMPRESSOR_TYPE.GZIP.decompress(new ArrayBucket(baos.toByteArray()), new ArrayBucketFactory(), data.length, -1, null);
+		assertEquals(data.length, out.size());
+		DataInputStream dis = new DataInputStream(out.getInputStream());
+		byte[] decompressed = new byte[data.length];
+		dis.readFully(decompressed);
+		dis.close();
+		assertTrue(Arrays.equals(data, decompressed));
+	}
+
 	private byte[] doBucketDecompress(byte[] compressedData) {
 
 		Bucket inBucket = new ArrayBucket(compressedData);
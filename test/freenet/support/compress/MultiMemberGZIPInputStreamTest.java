@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import junit.framework.TestCase;
+
+public class MultiMemberGZIPInputStreamTest extends TestCase {
+
+	private static byte[] gzip(byte[] data, int offset, int length) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		GZIPOutputStream gos = new GZIPOutputStream(baos);
+		gos.write(data, offset, length);
+		gos.close();
+		return baos.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int x;
+		while((x = is.read(buf)) != -1)
+			baos.write(buf, 0, x);
+		is.close();
+		return baos.toByteArray();
+	}
+
+	/** Returns a few bytes at a time, and never says any more are available. */
+	private static class TrickleInputStream extends InputStream {
+
+		private final InputStream in;
+		private final Random random = new Random(0);
+
+		TrickleInputStream(byte[] data) {
+			in = new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			return in.read(buf, offset, Math.min(length, 1 + random.nextInt(7)));
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+	}
+
+	private static byte[] data(int size) {
+		byte[] data = new byte[size];
+		Random random = new Random(size);
+		for(int i = 0; i < size; i++)
+			data[i] = (byte) ('a' + random.nextInt(4));
+		return data;
+	}
+
+	public void testSingleMember() throws IOException {
+		byte[] data = data(100000);
+		byte[] decoded = readAll(new MultiMemberGZIPInputStream(new ByteArrayInputStream(gzip(data, 0, data.length))));
+		assertTrue(Arrays.equals(data, decoded));
+	}
+
+	public void testMultipleMembers() throws IOException {
+		byte[] data = data(100000);
+		int[] bounds = { 0, 1, 1, 30000, 65536, 99999, 100000 };
+		ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+		for(int i = 0; i < bounds.length - 1; i++)
+			concatenated.write(gzip(data, bounds[i], bounds[i + 1] - bounds[i]));
+		byte[] encoded = concatenated.toByteArray();
+		assertTrue(Arrays.equals(data, readAll(new MultiMemberGZIPInputStream(new ByteArrayInputStream(encoded)))));
+		assertTrue(Arrays.equals(data, readAll(new MultiMemberGZIPInputStream(new TrickleInputStream(encoded)))));
+	}
+
+	public void testHeaderFields() throws IOException {
+		byte[] data = data(1000);
+		byte[] plain = gzip(data, 0, data.length);
+		// Rewrite the header with a file name, a comment, an extra field and a header CRC.
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		header.write(plain, 0, 3);
+		header.write(2 | 4 | 8 | 16);
+		header.write(plain, 4, 6);
+		header.write(3);
+		header.write(0);
+		header.write(new byte[] { 1, 2, 3 });
+		header.write("name".getBytes());
+		header.write(0);
+		header.write("comment".getBytes());
+		header.write(0);
+		CRC32 crc = new CRC32();
+		crc.update(header.toByteArray());
+		header.write((int) crc.getValue() & 0xFF);
+		header.write(((int) crc.getValue() >> 8) & 0xFF);
+		header.write(plain, 10, plain.length - 10);
+		byte[] encoded = header.toByteArray();
+		assertTrue(Arrays.equals(data, readAll(new MultiMemberGZIPInputStream(new ByteArrayInputStream(encoded)))));
+	}
+
+	public void testCorrupt() throws IOException {
+		byte[] data = data(1000);
+		byte[] encoded = gzip(data, 0, data.length);
+		byte[] badCRC = encoded.clone();
+		badCRC[badCRC.length - 8] ^= 1;
+		try {
+			readAll(new MultiMemberGZIPInputStream(new ByteArrayInputStream(badCRC)));
+			fail();
+		} catch (ZipException e) {
+			// Ok
+		}
+		byte[] truncated = new byte[encoded.length - 3];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+		try {
+			readAll(new MultiMemberGZIPInputStream(new ByteArrayInputStream(truncated)));
+			fail();
+		} catch (EOFException e) {
+			// Ok
+		}
+		try {
+			new MultiMemberGZIPInputStream(new ByteArrayInputStream(data));
+			fail();
+		} catch (ZipException e) {
+			// Ok
+		}
+	}
+}